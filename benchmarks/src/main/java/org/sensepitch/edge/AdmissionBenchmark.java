@@ -0,0 +1,80 @@
+package org.sensepitch.edge;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Verification of the admission token, which happens for every request of an admitted client.
+ * {@link #checkAdmissionCookie()} includes the cookie parsing, the request carries typical
+ * additional cookies.
+ *
+ * @author Jens Wilke
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AdmissionBenchmark {
+
+  static final String SECRET = "benchmark-secret";
+  static final byte[] SERVER_IPV4 = {10, 0, 0, 1};
+
+  DefaultAdmissionTokenGenerator generator;
+  Deflector deflector;
+  String token;
+  HttpRequest request;
+
+  @Setup
+  public void setup() {
+    generator = new DefaultAdmissionTokenGenerator(SERVER_IPV4, 'X', SECRET);
+    deflector =
+        new Deflector(
+            DeflectorConfig.builder()
+                .serverIpv4Address("10.0.0.1")
+                .tokenGenerators(
+                    List.of(
+                        AdmissionTokenGeneratorConfig.builder()
+                            .prefix("X")
+                            .secret(SECRET)
+                            .build()))
+                .build());
+    token = generator.newAdmission();
+    request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/index.html");
+    request
+        .headers()
+        .set(
+            HttpHeaderNames.COOKIE,
+            "_ga=GA1.1.1234567890.1751509330; "
+                + Deflector.TOKEN_COOKIE_NAME
+                + "="
+                + token
+                + "; session=5f2b1c9e8d7a6b5c4d3e2f1a");
+  }
+
+  @Benchmark
+  public long checkAdmission() {
+    return generator.checkAdmission(token);
+  }
+
+  @Benchmark
+  public long checkAdmissionCookie() {
+    return deflector.checkAdmissionCookie(request);
+  }
+}
@@ -0,0 +1,25 @@
+package org.sensepitch.edge;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so besides the time per operation the allocated bytes
+ * per operation ({@code gc.alloc.rate.norm}) are reported. Accepts the usual JMH command line
+ * options, e.g. a regular expression to select benchmarks or {@code -rf json} to store the result.
+ *
+ * @author Jens Wilke
+ */
+public class BenchmarkMain {
+
+  public static void main(String[] args) throws Exception {
+    new Runner(
+            new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
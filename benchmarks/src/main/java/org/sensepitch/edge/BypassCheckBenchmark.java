@@ -0,0 +1,90 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Crawler detection and bypass check with the builtin crawler database. The agent is a normal
+ * browser, which is the common case and needs to be fast, a crawler matched by the complete agent
+ * string and a crawler matched by a fragment.
+ *
+ * @author Jens Wilke
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BypassCheckBenchmark {
+
+  static final String BROWSER =
+      "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko)"
+          + " Chrome/138.0.0.0 Safari/537.36";
+  static final String CRAWLER =
+      "facebookexternalhit/1.1 (+http://www.facebook.com/externalhit_uatext.php)";
+  static final String CRAWLER_FRAGMENT =
+      "Mozilla/5.0 (compatible; facebookexternalhit/1.2;"
+          + " +http://www.facebook.com/externalhit_uatext.php)";
+
+  @Param({"browser", "crawler", "fragment"})
+  String agent;
+
+  DetectCrawler detectCrawler;
+  DefaultBypassCheck bypassCheck;
+  Channel channel;
+  HttpRequest request;
+
+  @Setup
+  public void setup() {
+    detectCrawler = new DetectCrawler(DetectCrawlerConfig.builder().build());
+    bypassCheck =
+        new DefaultBypassCheck(
+            BypassConfig.builder()
+                .uris(List.of("/robots.txt", "/favicon.ico", "/.well-known/*"))
+                .build());
+    channel = new EmbeddedChannel();
+    request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/index.html");
+    String userAgent =
+        switch (agent) {
+          case "browser" -> BROWSER;
+          case "crawler" -> CRAWLER;
+          default -> CRAWLER_FRAGMENT;
+        };
+    request.headers().set(HttpHeaderNames.USER_AGENT, userAgent);
+  }
+
+  @TearDown
+  public void tearDown() {
+    channel.close();
+  }
+
+  @Benchmark
+  public boolean detectCrawler() {
+    return detectCrawler.allowBypass(channel, request);
+  }
+
+  @Benchmark
+  public boolean defaultBypassCheck() {
+    return bypassCheck.allowBypass(channel, request);
+  }
+}
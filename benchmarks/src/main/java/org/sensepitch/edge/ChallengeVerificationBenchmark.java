@@ -0,0 +1,51 @@
+package org.sensepitch.edge;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Verification of a solved proof of work challenge. The nonce is solved in the setup, like the
+ * browser would do it.
+ *
+ * @author Jens Wilke
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChallengeVerificationBenchmark {
+
+  ChallengeGenerationAndVerification verification;
+  String challenge;
+  String nonce;
+
+  @Setup
+  public void setup() {
+    verification =
+        new ChallengeGenerationAndVerification(
+            new TimeBasedChallenge(), DeflectorConfig.DEFAULT_CHALLENGE_TARGET_PREFIX);
+    challenge = verification.generateChallenge();
+    for (int i = 0; ; i++) {
+      if (verification.verifyChallengeResponse(challenge, Integer.toString(i)) > 0) {
+        nonce = Integer.toString(i);
+        break;
+      }
+    }
+  }
+
+  @Benchmark
+  public long verifyChallengeResponse() {
+    return verification.verifyChallengeResponse(challenge, nonce);
+  }
+}
@@ -0,0 +1,51 @@
+package org.sensepitch.edge;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Label lookup in the crawler IP ranges that ship with Sensepitch, for an address within a
+ * Googlebot range and an address not matching anything, IPv4 and IPv6.
+ *
+ * @author Jens Wilke
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IpLookupBenchmark {
+
+  @Param({"66.249.66.1", "192.0.2.17", "2001:4860:4801:10::1", "2001:db8::1"})
+  String address;
+
+  AnyVersionIpLookup lookup;
+  byte[] addr;
+
+  @Setup
+  public void setup() throws Exception {
+    TrieIpLabelLookup labelLookup = CombinedIpTraitsLookup.readGoogleBotList();
+    addr = InetAddress.getByName(address).getAddress();
+    lookup =
+        addr.length == 4
+            ? labelLookup.getIpv4LookupStructure()
+            : labelLookup.getIpv6LookupStructure();
+  }
+
+  @Benchmark
+  public Object findLabelMatching() {
+    return lookup.findLabelMatching(addr);
+  }
+}
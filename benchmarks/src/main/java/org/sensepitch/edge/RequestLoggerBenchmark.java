@@ -0,0 +1,154 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Formatting of the access log line. Standard out is redirected to a stream discarding the output,
+ * so the formatting and not the terminal is measured. The asynchronous logger writes to a channel
+ * discarding the output, records dropped because the writer does not keep up are not counted.
+ *
+ * @author Jens Wilke
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestLoggerBenchmark {
+
+  StandardOutRequestLogger logger;
+  AsyncRequestLogger asyncLogger;
+  RequestLogInfo info;
+  PrintStream originalOut;
+
+  @Setup
+  public void setup() {
+    originalOut = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    logger = new StandardOutRequestLogger();
+    asyncLogger =
+        new AsyncRequestLogger(
+            AccessLogConfig.builder().async(true).build(),
+            new ProxyMetrics(),
+            Channels.newChannel(OutputStream.nullOutputStream()),
+            true);
+    HttpRequest request =
+        new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/assets/app.js?v=42");
+    request.headers().set(HttpHeaderNames.HOST, "www.example.com");
+    request
+        .headers()
+        .set(
+            HttpHeaderNames.USER_AGENT,
+            "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)"
+                + " Chrome/138.0.0.0 Safari/537.36");
+    request.headers().set(HttpHeaderNames.REFERER, "https://www.example.com/");
+    request.headers().set(HttpHeaderNames.ACCEPT, "*/*");
+    request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip, deflate, br");
+    request.headers().set(Deflector.ADMISSION_TOKEN_HEADER, "XxzO000M2QihLfB9VLB46000UISkx1");
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    info = new StaticLogInfo(new EmbeddedChannel(), request, response);
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.setOut(originalOut);
+    asyncLogger.close();
+    info.channel().close();
+  }
+
+  @Benchmark
+  public void logRequest() {
+    logger.logRequest(info);
+  }
+
+  @Benchmark
+  public void logRequestAsync() {
+    asyncLogger.logRequest(info);
+  }
+
+  record StaticLogInfo(Channel channel, HttpRequest request, HttpResponse response)
+      implements RequestLogInfo {
+
+    @Override
+    public String requestId() {
+      return "0a1b2c3d-0001";
+    }
+
+    @Override
+    public String requestHeaderHost() {
+      return "www.example.com";
+    }
+
+    @Override
+    public long contentBytes() {
+      return 10240;
+    }
+
+    @Override
+    public long bytesSent() {
+      return 10480;
+    }
+
+    @Override
+    public long bytesReceived() {
+      return 412;
+    }
+
+    @Override
+    public long requestStartTimeMillis() {
+      return 1751509330799L;
+    }
+
+    @Override
+    public Throwable error() {
+      return null;
+    }
+
+    @Override
+    public HttpHeaders trailingHeaders() {
+      return EmptyHttpHeaders.INSTANCE;
+    }
+
+    @Override
+    public long receiveDurationNanos() {
+      return 120_000;
+    }
+
+    @Override
+    public long responseTimeNanos() {
+      return 2_300_000;
+    }
+
+    @Override
+    public long totalDurationNanos() {
+      return 2_600_000;
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package org.sensepitch.edge;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Site lookup with a direct host match and with a URI prefix match. Sites only produce static
+ * responses, so no upstream connections or event loops are needed.
+ *
+ * @author Jens Wilke
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SiteSelectorBenchmark {
+
+  @Param({"www.example.com", "example.com"})
+  String host;
+
+  SiteSelector selector;
+  HttpRequest request;
+
+  @Setup
+  public void setup() {
+    Map<String, SiteConfig> sites = new LinkedHashMap<>();
+    for (int i = 0; i < 20; i++) {
+      sites.put("site" + i, site("site" + i + ".example.com", null));
+    }
+    sites.put("www", site("www.example.com", null));
+    sites.put("api", site("example.com", "/api/*"));
+    sites.put("static", site("example.com", "/static/*"));
+    ProxyConfig config =
+        ProxyConfig.builder()
+            .sites(sites)
+            .protection(ProtectionConfig.builder().disable(true).build())
+            .build();
+    selector = new SiteSelector(null, config);
+    request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/static/app.js");
+  }
+
+  static SiteConfig site(String host, String uri) {
+    return SiteConfig.builder()
+        .host(host)
+        .uri(uri)
+        .response(ResponseConfig.builder().text("ok").build())
+        .build();
+  }
+
+  @Benchmark
+  public Object getSuppliers() {
+    return selector.getSuppliers(request, host);
+  }
+}
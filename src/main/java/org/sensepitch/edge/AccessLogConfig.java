@@ -0,0 +1,27 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * Access log output. By default, every request is logged to standard out by the event loop
+ * directly. With {@code async} the event loop only encodes the log record and hands it over to a
+ * writer thread, so a slow or contended output does not stall request processing.
+ *
+ * @param async encode the log record in the event loop and write it in a separate thread. If the
+ *     writer cannot keep up, records are dropped and counted in the metric {@code
+ *     sensepitch_access_log_dropped}
+ * @param file append to this file instead of standard out, only supported with {@code async}
+ * @param bufferRecords maximum number of records waiting to be written, default is {@value
+ *     DEFAULT_BUFFER_RECORDS}
+ * @param maxRecordBytes maximum length of a log line in async mode, longer lines are truncated,
+ *     default is {@value DEFAULT_MAX_RECORD_BYTES}
+ * @author Jens Wilke
+ */
+@Builder(toBuilder = true)
+public record AccessLogConfig(boolean async, String file, int bufferRecords, int maxRecordBytes) {
+
+  public static final int DEFAULT_BUFFER_RECORDS = 4096;
+  public static final int DEFAULT_MAX_RECORD_BYTES = 2048;
+
+  public static final AccessLogConfig DEFAULT = builder().build();
+}
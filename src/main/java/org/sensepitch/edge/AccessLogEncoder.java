@@ -0,0 +1,259 @@
+package org.sensepitch.edge;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Encodes the access log line of a request as UTF-8 into a reusable byte array. Used per thread, so
+ * the encoding allocates almost nothing. The formatted time is cached and only updated once per
+ * second.
+ *
+ * @see StandardOutRequestLogger
+ * @see AsyncRequestLogger
+ * @author Jens Wilke
+ */
+public class AccessLogEncoder {
+
+  private static final DateTimeFormatter CLF_TIME =
+      DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH);
+
+  private byte[] buffer = new byte[1024];
+  private int length;
+  private long timeSecond = -1;
+  private byte[] timeBytes;
+
+  /** The encoded line, valid after {@link #encode(RequestLogInfo)} until the next call */
+  public byte[] buffer() {
+    return buffer;
+  }
+
+  /**
+   * Encode the log line including the terminating line feed.
+   *
+   * @return number of bytes in {@link #buffer()}
+   */
+  public int encode(RequestLogInfo info) {
+    length = 0;
+    HttpRequest request = info.request();
+    HttpResponse response = info.response();
+    HttpHeaders headers = request.headers();
+    int status = response.status().code();
+    append("RQ0 ");
+    append(info.requestId());
+    append(' ');
+    appendSanitized(headers.get(HttpHeaderNames.HOST));
+    append(' ');
+    appendRemoteHost(info);
+    append(" \"");
+    appendSanitized(IpTraitsHandler.extract(request));
+    append("\" ");
+    appendOrDash(headers.get(Deflector.ADMISSION_TOKEN_HEADER));
+    append(" [");
+    appendTime();
+    append("] ");
+    append(request.method().name());
+    append(' ');
+    append(request.uri());
+    append(' ');
+    append(request.protocolVersion().text());
+    append(' ');
+    append(status);
+    append(' ');
+    append(info.contentBytes());
+    append(' ');
+    append(info.bytesReceived());
+    append('>');
+    append(info.bytesSent());
+    append(' ');
+    appendDeltaTime(info.receiveDurationNanos());
+    append('<');
+    appendDeltaTime(info.responseTimeNanos());
+    append('=');
+    appendDeltaTime(info.totalDurationNanos());
+    append(" \"");
+    appendSanitized(headers.get(BypassCheck.HEADER));
+    append("\" \"");
+    appendSanitized(headers.get(HttpHeaderNames.USER_AGENT));
+    append("\" ");
+    appendSanitized(headers.get(HttpHeaderNames.REFERER));
+    append(" \"");
+    if (info.error() != null) {
+      appendSanitized(info.error().getMessage());
+    } else if (status >= 500) {
+      appendSanitized(response.status().reasonPhrase());
+    } else {
+      append('-');
+    }
+    append("\" \"");
+    appendOrDash(headers.get("Signature-Agent"));
+    append("\" \"");
+    Iterator<Map.Entry<CharSequence, CharSequence>> it = headers.iteratorCharSequence();
+    boolean first = true;
+    while (it.hasNext()) {
+      if (!first) {
+        append(", ");
+      }
+      appendSanitized(it.next().getKey());
+      first = false;
+    }
+    append("\"\n");
+    return length;
+  }
+
+  private void appendRemoteHost(RequestLogInfo info) {
+    if (info.channel().remoteAddress() instanceof InetSocketAddress addr) {
+      if (addr.getAddress() instanceof Inet4Address ipv4) {
+        byte[] bytes = ipv4.getAddress();
+        for (int i = 0; i < bytes.length; i++) {
+          if (i > 0) {
+            append('.');
+          }
+          append(bytes[i] & 0xff);
+        }
+      } else {
+        append(addr.getAddress().getHostAddress());
+      }
+    } else {
+      append('-');
+    }
+  }
+
+  private void appendTime() {
+    long second = System.currentTimeMillis() / 1000;
+    if (second != timeSecond) {
+      timeBytes = ZonedDateTime.now().format(CLF_TIME).getBytes(StandardCharsets.UTF_8);
+      timeSecond = second;
+    }
+    ensureCapacity(timeBytes.length);
+    System.arraycopy(timeBytes, 0, buffer, length, timeBytes.length);
+    length += timeBytes.length;
+  }
+
+  /** Seconds with three decimals, or "0" if below one millisecond */
+  private void appendDeltaTime(long nanoDelta) {
+    long millisDelta = nanoDelta / 1000 / 1000;
+    if (millisDelta == 0) {
+      append('0');
+      return;
+    }
+    if (millisDelta < 0) {
+      append('-');
+      millisDelta = -millisDelta;
+    }
+    append(millisDelta / 1000);
+    append('.');
+    long fraction = millisDelta % 1000;
+    append((char) ('0' + fraction / 100));
+    append((char) ('0' + fraction / 10 % 10));
+    append((char) ('0' + fraction % 10));
+  }
+
+  /** Dash for {@code null}, a double quote is replaced by a backslash */
+  private void appendSanitized(CharSequence s) {
+    if (s == null) {
+      append('-');
+      return;
+    }
+    int n = s.length();
+    ensureCapacity(n * 3);
+    for (int i = 0; i < n; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        buffer[length++] = c == '"' ? (byte) '\\' : (byte) c;
+      } else {
+        appendNonAscii(c, s, i);
+      }
+    }
+  }
+
+  private void appendOrDash(CharSequence s) {
+    append(s == null ? "-" : s);
+  }
+
+  private void append(CharSequence s) {
+    int n = s.length();
+    ensureCapacity(n * 3);
+    for (int i = 0; i < n; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        buffer[length++] = (byte) c;
+      } else {
+        appendNonAscii(c, s, i);
+      }
+    }
+  }
+
+  /**
+   * UTF-8 encode, a surrogate pair is encoded when the high surrogate is seen. The caller ensures
+   * capacity of three bytes per char.
+   */
+  private void appendNonAscii(char c, CharSequence s, int index) {
+    if (c < 0x800) {
+      buffer[length++] = (byte) (0xc0 | (c >> 6));
+      buffer[length++] = (byte) (0x80 | (c & 0x3f));
+    } else if (Character.isHighSurrogate(c)
+        && index + 1 < s.length()
+        && Character.isLowSurrogate(s.charAt(index + 1))) {
+      int cp = Character.toCodePoint(c, s.charAt(index + 1));
+      buffer[length++] = (byte) (0xf0 | (cp >> 18));
+      buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+      buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+      buffer[length++] = (byte) (0x80 | (cp & 0x3f));
+    } else if (Character.isSurrogate(c)) {
+      // low surrogate of an already encoded pair or unpaired
+      if (Character.isLowSurrogate(c)
+          && index > 0
+          && Character.isHighSurrogate(s.charAt(index - 1))) {
+        return;
+      }
+      buffer[length++] = '?';
+    } else {
+      buffer[length++] = (byte) (0xe0 | (c >> 12));
+      buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+      buffer[length++] = (byte) (0x80 | (c & 0x3f));
+    }
+  }
+
+  private void append(char c) {
+    ensureCapacity(1);
+    buffer[length++] = (byte) c;
+  }
+
+  private void append(long value) {
+    if (value < 0) {
+      append('-');
+      if (value == Long.MIN_VALUE) {
+        append(Long.toString(value).substring(1));
+        return;
+      }
+      value = -value;
+    }
+    int digits = 1;
+    for (long v = value / 10; v > 0; v /= 10) {
+      digits++;
+    }
+    ensureCapacity(digits);
+    for (int i = length + digits - 1; i >= length; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    length += digits;
+  }
+
+  private void ensureCapacity(int additional) {
+    if (length + additional > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+    }
+  }
+}
@@ -0,0 +1,220 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.ChannelException;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import io.prometheus.metrics.core.datapoints.GaugeDataPoint;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the concurrent requests to one upstream with a gradient algorithm, similar to Netflix
+ * Gradient2. Two moving averages of the response time are kept, a short one that follows the
+ * current load and a long one as the baseline. The limit is multiplied by the gradient {@code
+ * TOLERANCE * long / short}, capped to the range 0.5 to 1, and a headroom of the square root of the
+ * limit is added. As long as the response time stays within the tolerance the limit grows, when the
+ * upstream starts queueing requests internally the response time rises and the limit shrinks.
+ * Failed requests reduce the limit by {@link #BACKOFF_RATIO}. The limit only changes if the
+ * requests in flight are at least half of the limit, otherwise the measurements say nothing about
+ * the capacity of the upstream.
+ *
+ * <p>Requests above the limit wait in a bounded first in first out queue, a waiting request is
+ * rejected when its deadline passes. The limiter is shared by all event loops, the state is guarded
+ * by the monitor and the promises are completed outside of it.
+ *
+ * @author Jens Wilke
+ */
+public class AdaptiveConcurrencyLimiter {
+
+  static final double TOLERANCE = 1.5;
+  static final double BACKOFF_RATIO = 0.9;
+  static final double SMOOTHING = 0.2;
+  static final int SHORT_WINDOW = 10;
+  static final int LONG_WINDOW = 600;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final int queueSize;
+  private final long queueTimeoutNanos;
+  private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+  private final GaugeDataPoint limitGauge;
+  private final GaugeDataPoint queueDepthGauge;
+  private final CounterDataPoint queueFullRejections;
+  private final CounterDataPoint timeoutRejections;
+
+  private double limit;
+  private int inFlight;
+  private double shortRttNanos;
+  private double longRttNanos;
+
+  /**
+   * @param name label of the metrics, usually the upstream target
+   */
+  public AdaptiveConcurrencyLimiter(ConcurrencyLimitConfig cfg, ProxyMetrics metrics, String name) {
+    minLimit = cfg.minLimit() > 0 ? cfg.minLimit() : ConcurrencyLimitConfig.DEFAULT_MIN_LIMIT;
+    maxLimit =
+        Math.max(
+            minLimit,
+            cfg.maxLimit() > 0 ? cfg.maxLimit() : ConcurrencyLimitConfig.DEFAULT_MAX_LIMIT);
+    int initial =
+        cfg.initialLimit() > 0 ? cfg.initialLimit() : ConcurrencyLimitConfig.DEFAULT_INITIAL_LIMIT;
+    limit = Math.min(maxLimit, Math.max(minLimit, initial));
+    queueSize = cfg.queueSize() > 0 ? cfg.queueSize() : ConcurrencyLimitConfig.DEFAULT_QUEUE_SIZE;
+    queueTimeoutNanos =
+        TimeUnit.MILLISECONDS.toNanos(
+            cfg.queueTimeoutMillis() > 0
+                ? cfg.queueTimeoutMillis()
+                : ConcurrencyLimitConfig.DEFAULT_QUEUE_TIMEOUT_MILLIS);
+    limitGauge = metrics.upstreamConcurrencyLimitGauge.labelValues(name);
+    queueDepthGauge = metrics.upstreamQueueDepthGauge.labelValues(name);
+    queueFullRejections = metrics.upstreamRejectionCounter.labelValues(name, "queue_full");
+    timeoutRejections = metrics.upstreamRejectionCounter.labelValues(name, "timeout");
+    limitGauge.set(limit());
+  }
+
+  /**
+   * Acquire a permit for one request. Each successful acquire must be followed by exactly one
+   * {@link #release}.
+   *
+   * @param executor executor to complete the future and to schedule the deadline
+   * @return succeeded future if a permit is available, otherwise the future completes when the
+   *     request leaves the queue and fails with {@link LimitExceededException} if it is rejected
+   */
+  public Future<Void> acquire(EventExecutor executor) {
+    synchronized (this) {
+      if (inFlight < limit() && queue.isEmpty()) {
+        inFlight++;
+        return executor.newSucceededFuture(null);
+      }
+      if (queue.size() >= queueSize) {
+        queueFullRejections.inc();
+        return executor.newFailedFuture(new LimitExceededException("Upstream queue full"));
+      }
+    }
+    Waiter waiter = new Waiter(executor.newPromise());
+    waiter.deadline =
+        executor.schedule(() -> expire(waiter), queueTimeoutNanos, TimeUnit.NANOSECONDS);
+    synchronized (this) {
+      queue.addLast(waiter);
+      queueDepthGauge.set(queue.size());
+    }
+    // the limit might have changed in between
+    grantWaiters();
+    return waiter.promise;
+  }
+
+  /**
+   * Give back a permit and update the limit with the response time of the request.
+   *
+   * @param rttNanos time from acquire until the upstream response started
+   * @param dropped the request failed, e.g. the upstream connection was refused or reset
+   */
+  public void release(long rttNanos, boolean dropped) {
+    synchronized (this) {
+      update(rttNanos, dropped);
+      inFlight--;
+    }
+    grantWaiters();
+  }
+
+  public synchronized int limit() {
+    return (int) limit;
+  }
+
+  public synchronized int inFlight() {
+    return inFlight;
+  }
+
+  public synchronized int queueDepth() {
+    return queue.size();
+  }
+
+  private void update(long rttNanos, boolean dropped) {
+    if (dropped) {
+      setLimit(limit * BACKOFF_RATIO);
+      return;
+    }
+    if (rttNanos <= 0) {
+      return;
+    }
+    if (longRttNanos == 0) {
+      shortRttNanos = longRttNanos = rttNanos;
+    } else {
+      shortRttNanos += (rttNanos - shortRttNanos) / SHORT_WINDOW;
+      longRttNanos += (rttNanos - longRttNanos) / LONG_WINDOW;
+    }
+    // the load decreased a lot, let the baseline follow faster
+    if (longRttNanos / shortRttNanos > 2) {
+      longRttNanos *= 0.95;
+    }
+    if (inFlight < limit / 2) {
+      return;
+    }
+    double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRttNanos / shortRttNanos));
+    double newLimit = limit * gradient + Math.sqrt(limit);
+    setLimit(limit * (1 - SMOOTHING) + newLimit * SMOOTHING);
+  }
+
+  private void setLimit(double newLimit) {
+    limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    limitGauge.set((int) limit);
+  }
+
+  /** Hand out permits to waiting requests while below the limit */
+  private void grantWaiters() {
+    List<Waiter> granted = null;
+    synchronized (this) {
+      while (inFlight < limit() && !queue.isEmpty()) {
+        if (granted == null) {
+          granted = new ArrayList<>();
+        }
+        granted.add(queue.pollFirst());
+        inFlight++;
+      }
+      if (granted != null) {
+        queueDepthGauge.set(queue.size());
+      }
+    }
+    if (granted == null) {
+      return;
+    }
+    for (Waiter waiter : granted) {
+      waiter.deadline.cancel(false);
+      if (!waiter.promise.trySuccess(null)) {
+        release(0, false);
+      }
+    }
+  }
+
+  private void expire(Waiter waiter) {
+    synchronized (this) {
+      if (!queue.remove(waiter)) {
+        return;
+      }
+      queueDepthGauge.set(queue.size());
+    }
+    timeoutRejections.inc();
+    waiter.promise.tryFailure(new LimitExceededException("Upstream queue timeout"));
+  }
+
+  private static final class Waiter {
+    final Promise<Void> promise;
+    Future<?> deadline;
+
+    Waiter(Promise<Void> promise) {
+      this.promise = promise;
+    }
+  }
+
+  /** Request rejected because the upstream is at its concurrency limit */
+  static class LimitExceededException extends ChannelException {
+
+    public LimitExceededException(String message) {
+      super(message);
+    }
+  }
+}
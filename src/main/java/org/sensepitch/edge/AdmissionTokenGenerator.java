@@ -14,7 +14,7 @@ public interface AdmissionTokenGenerator {
    * Check whether admission is valid. This is done for every incoming request and should be fast.
    * Interface is prepared to indicate admission expiry.
    *
-   * @return {@code ADMISSION_OK} if valid, or {@code ADMISSION_INVALID}
+   * @return time the token was issued in milliseconds, if valid, or 0
    */
   long checkAdmission(String token);
 }
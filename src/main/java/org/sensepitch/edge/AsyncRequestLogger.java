@@ -0,0 +1,139 @@
+package org.sensepitch.edge;
+
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log which does no I/O in the event loop. The event loop encodes the log line into a buffer
+ * of its thread and copies it into a bounded ring buffer. A writer thread collects the lines and
+ * writes them in batches to standard out or a file. If the writer cannot keep up and the ring
+ * buffer is full, the line is dropped and counted, the event loop never waits.
+ *
+ * @author Jens Wilke
+ */
+public class AsyncRequestLogger implements RequestLogger, AutoCloseable {
+
+  private static final ProxyLogger LOG = ProxyLogger.get(AsyncRequestLogger.class);
+
+  /** Time the writer waits when no records are queued. This also forms larger batches. */
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static final int BATCH_BYTES = 64 * 1024;
+
+  private final ThreadLocal<AccessLogEncoder> encoders =
+      ThreadLocal.withInitial(AccessLogEncoder::new);
+  private final LogRecordRingBuffer ringBuffer;
+  private final WritableByteChannel out;
+  private final boolean closeOut;
+  private final CounterDataPoint overflowCounter;
+  private final CounterDataPoint truncatedCounter;
+  private final CounterDataPoint ioErrorCounter;
+  private final Thread writer;
+  private volatile boolean closed;
+
+  public AsyncRequestLogger(AccessLogConfig cfg, ProxyMetrics metrics) throws IOException {
+    this(
+        cfg,
+        metrics,
+        cfg.file() != null
+            ? FileChannel.open(
+                Path.of(cfg.file()),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)
+            : new FileOutputStream(FileDescriptor.out).getChannel(),
+        cfg.file() != null);
+  }
+
+  AsyncRequestLogger(
+      AccessLogConfig cfg, ProxyMetrics metrics, WritableByteChannel out, boolean closeOut) {
+    this.out = out;
+    this.closeOut = closeOut;
+    ringBuffer =
+        new LogRecordRingBuffer(
+            cfg.bufferRecords() > 0 ? cfg.bufferRecords() : AccessLogConfig.DEFAULT_BUFFER_RECORDS,
+            cfg.maxRecordBytes() > 0
+                ? cfg.maxRecordBytes()
+                : AccessLogConfig.DEFAULT_MAX_RECORD_BYTES);
+    overflowCounter = metrics.accessLogDroppedCounter.labelValues("overflow");
+    truncatedCounter = metrics.accessLogDroppedCounter.labelValues("truncated");
+    ioErrorCounter = metrics.accessLogDroppedCounter.labelValues("io_error");
+    writer = new Thread(this::writeLoop, "sensepitch-access-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  @Override
+  public void logRequest(RequestLogInfo info) {
+    AccessLogEncoder encoder = encoders.get();
+    int length = encoder.encode(info);
+    byte[] buffer = encoder.buffer();
+    if (length > ringBuffer.slotBytes()) {
+      length = ringBuffer.slotBytes();
+      buffer[length - 1] = '\n';
+      truncatedCounter.inc();
+    }
+    if (!ringBuffer.offer(buffer, length)) {
+      overflowCounter.inc();
+    }
+  }
+
+  /** Write the queued records and stop the writer thread. */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void writeLoop() {
+    ByteBuffer batch = ByteBuffer.allocate(Math.max(BATCH_BYTES, ringBuffer.slotBytes()));
+    boolean errorLogged = false;
+    for (; ; ) {
+      // read before draining, records offered before closing are written
+      boolean done = closed;
+      batch.clear();
+      int count = ringBuffer.drainTo(batch);
+      if (count == 0) {
+        if (done) {
+          break;
+        }
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+        continue;
+      }
+      batch.flip();
+      try {
+        while (batch.hasRemaining()) {
+          out.write(batch);
+        }
+        errorLogged = false;
+      } catch (IOException e) {
+        ioErrorCounter.inc(count);
+        if (!errorLogged) {
+          LOG.error("Writing access log failed", e);
+          errorLogged = true;
+        }
+      }
+    }
+    if (closeOut) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOG.error("Closing access log failed", e);
+      }
+    }
+  }
+}
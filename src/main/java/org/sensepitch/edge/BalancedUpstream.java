@@ -0,0 +1,299 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelException;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Balances requests over multiple upstream targets with power of two choices: two targets are drawn
+ * at random according to their weight, and the one with the lower cost is used. The cost is the
+ * peak EWMA of the response time multiplied by the outstanding requests plus one, divided by the
+ * weight. The peak EWMA jumps to a higher response time immediately and decays with {@link
+ * #DECAY_NANOS}, so a target that slows down gets less traffic at once.
+ *
+ * <p>Outstanding requests and response times are counted per event loop, each event loop balances
+ * on its own view. Connect, response and release of a request all happen within the event loop of
+ * the ingress channel, so the counters are plain fields without shared atomics. The target and
+ * start time of a request are attached to the upstream channel.
+ *
+ * <p>With health tracking, ejected targets are skipped. If all targets are ejected the request
+ * fails immediately instead of waiting for a connect timeout.
+ *
+ * @see TargetHealth
+ * @author Jens Wilke
+ */
+public class BalancedUpstream implements Upstream {
+
+  static final long DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  /** Response time recorded for a target that refused the connection */
+  static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  static final AttributeKey<Pick> PICK = AttributeKey.valueOf(BalancedUpstream.class, "pick");
+
+  private final Upstream[] targets;
+  private final int[] weights;
+
+  /** Health per target or {@code null} without health tracking */
+  private final TargetHealth[] health;
+
+  private final LongSupplier clock;
+
+  private final FastThreadLocal<LoopState> state =
+      new FastThreadLocal<>() {
+        @Override
+        protected LoopState initialValue() {
+          return new LoopState(targets.length);
+        }
+      };
+
+  /**
+   * @param targets upstream per target
+   * @param weights weight per target, positive
+   * @param health health per target, or {@code null} to not track health
+   */
+  public BalancedUpstream(List<Upstream> targets, int[] weights, TargetHealth[] health) {
+    this(targets, weights, health, System::nanoTime);
+  }
+
+  BalancedUpstream(
+      List<Upstream> targets, int[] weights, TargetHealth[] health, LongSupplier clock) {
+    if (targets.isEmpty()
+        || targets.size() != weights.length
+        || (health != null && health.length != weights.length)) {
+      throw new IllegalArgumentException("Targets and weights mismatch");
+    }
+    this.targets = targets.toArray(new Upstream[0]);
+    this.weights = weights.clone();
+    this.health = health;
+    this.clock = clock;
+    for (int weight : weights) {
+      if (weight <= 0) {
+        throw new IllegalArgumentException("Weight must be positive: " + weight);
+      }
+    }
+  }
+
+  @Override
+  public Future<Channel> connect(ChannelHandlerContext downstreamContext) {
+    LoopState s = state.get();
+    long now = clock.getAsLong();
+    int index = pick(s, now);
+    if (index < 0) {
+      return downstreamContext
+          .executor()
+          .newFailedFuture(new NoHealthyTargetException("All upstream targets ejected"));
+    }
+    s.outstanding[index]++;
+    Pick pick = new Pick(index, now);
+    Future<Channel> future = targets[index].connect(downstreamContext);
+    // added before the listeners of the caller, so the pick is attached when they run
+    future.addListener(
+        (FutureListener<Channel>)
+            f -> {
+              if (f.isSuccess()) {
+                f.getNow().attr(PICK).set(pick);
+              } else {
+                long t = clock.getAsLong();
+                s.outstanding[index]--;
+                s.observe(index, FAILURE_PENALTY_NANOS, t);
+                if (health != null
+                    && !(f.cause() instanceof DefaultUpstream.PoolExhaustedException)) {
+                  health[index].failure(t);
+                }
+              }
+            });
+    return future;
+  }
+
+  @Override
+  public void responseReceived(Channel ch, HttpResponse response) {
+    Pick pick = ch.attr(PICK).get();
+    if (pick == null) {
+      return;
+    }
+    if (!pick.measured) {
+      pick.measured = true;
+      long now = clock.getAsLong();
+      state.get().observe(pick.index, now - pick.startNanos, now);
+      if (health != null) {
+        if (response.status().code() >= 500) {
+          health[pick.index].failure(now);
+        } else {
+          health[pick.index].success();
+        }
+      }
+    }
+    targets[pick.index].responseReceived(ch, response);
+  }
+
+  @Override
+  public void release(Channel ch) {
+    Pick pick = finish(ch, false);
+    if (pick == null) {
+      ch.close();
+      return;
+    }
+    targets[pick.index].release(ch);
+  }
+
+  @Override
+  public void discard(Channel ch) {
+    Pick pick = finish(ch, false);
+    if (pick == null) {
+      ch.close();
+      return;
+    }
+    targets[pick.index].discard(ch);
+  }
+
+  @Override
+  public void discard(Channel ch, Throwable cause) {
+    Pick pick = finish(ch, true);
+    if (pick == null) {
+      ch.close();
+      return;
+    }
+    targets[pick.index].discard(ch, cause);
+  }
+
+  /**
+   * Count down outstanding requests. An upstream failure before the response arrived, e.g. a reset
+   * or close of the connection, counts as failure of the target. A discard without failure, e.g.
+   * because the client went away, does not.
+   */
+  private Pick finish(Channel ch, boolean failed) {
+    Pick pick = ch.attr(PICK).getAndSet(null);
+    if (pick != null) {
+      state.get().outstanding[pick.index]--;
+      if (health != null && failed && !pick.measured) {
+        health[pick.index].failure(clock.getAsLong());
+      }
+    }
+    return pick;
+  }
+
+  /**
+   * Power of two choices among the available targets. The second target is drawn without the first,
+   * ties go to the first draw.
+   *
+   * @return index of the target or -1 if all targets are ejected
+   */
+  int pick(LoopState s, long now) {
+    int total = 0;
+    for (int i = 0; i < targets.length; i++) {
+      if (isAvailable(i, now)) {
+        total += weights[i];
+      }
+    }
+    if (total == 0) {
+      return -1;
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int first = draw(random, total, -1, now);
+    if (first < 0 || total == weights[first]) {
+      return first;
+    }
+    int second = draw(random, total - weights[first], first, now);
+    if (second < 0) {
+      return first;
+    }
+    return s.cost(second, now) < s.cost(first, now) ? second : first;
+  }
+
+  /**
+   * Weighted random draw over the available targets except the excluded one.
+   *
+   * @return index of the target or -1 if no target is available anymore
+   */
+  private int draw(ThreadLocalRandom random, int total, int exclude, long now) {
+    int r = random.nextInt(total);
+    int last = -1;
+    for (int i = 0; i < targets.length; i++) {
+      if (i == exclude || !isAvailable(i, now)) {
+        continue;
+      }
+      last = i;
+      r -= weights[i];
+      if (r < 0) {
+        return i;
+      }
+    }
+    // another event loop ejected a target after the total was computed, -1 if none is left
+    return last;
+  }
+
+  private boolean isAvailable(int index, long now) {
+    return health == null || health[index].isAvailable(now);
+  }
+
+  int outstanding(int index) {
+    return state.get().outstanding[index];
+  }
+
+  double ewmaNanos(int index) {
+    return state.get().ewmaNanos[index];
+  }
+
+  /** Counters of one event loop */
+  final class LoopState {
+    final int[] outstanding;
+    final double[] ewmaNanos;
+    final long[] lastUpdateNanos;
+
+    LoopState(int count) {
+      outstanding = new int[count];
+      ewmaNanos = new double[count];
+      lastUpdateNanos = new long[count];
+    }
+
+    /** A higher response time is taken immediately, a lower one is averaged in */
+    void observe(int index, long rttNanos, long now) {
+      double ewma = ewmaNanos[index];
+      double weight = weightOf(index, now);
+      ewmaNanos[index] = rttNanos > ewma ? rttNanos : ewma * (1 - weight) + rttNanos * weight;
+      lastUpdateNanos[index] = now;
+    }
+
+    double cost(int index, long now) {
+      return (decayed(index, now) + 1) * (outstanding[index] + 1) / weights[index];
+    }
+
+    private double decayed(int index, long now) {
+      return ewmaNanos[index] * (1 - weightOf(index, now));
+    }
+
+    /** Weight of a new sample, depending on the time since the last one */
+    private double weightOf(int index, long now) {
+      long elapsed = Math.max(0, now - lastUpdateNanos[index]);
+      return 1 - Math.exp(-(double) elapsed / DECAY_NANOS);
+    }
+  }
+
+  static final class Pick {
+    final int index;
+    final long startNanos;
+    boolean measured;
+
+    Pick(int index, long startNanos) {
+      this.index = index;
+      this.startNanos = startNanos;
+    }
+  }
+
+  static class NoHealthyTargetException extends ChannelException {
+
+    public NoHealthyTargetException(String message) {
+      super(message);
+    }
+  }
+}
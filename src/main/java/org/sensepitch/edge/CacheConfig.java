@@ -0,0 +1,36 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * In-memory cache for upstream responses of a site. Only responses to {@code GET} requests are
+ * stored and only if the upstream allows it explicitly with {@code Cache-Control: max-age} or
+ * {@code s-maxage} or an {@code Expires} header. Cached responses are used for {@code GET} and
+ * {@code HEAD} requests. The cache is shared by all event loops and the bodies are kept in pooled
+ * direct buffers.
+ *
+ * @param maxBytes maximum memory used by the cached responses, default is {@value
+ *     DEFAULT_MAX_BYTES}
+ * @param maxObjectBytes responses with a larger body are not stored, default is {@value
+ *     DEFAULT_MAX_OBJECT_BYTES}
+ * @param collapse collapsed forwarding: while a response for a URI is requested from the upstream,
+ *     identical requests wait for this response instead of being forwarded as well
+ * @param collapseTimeoutMillis a waiting request is forwarded to the upstream after this time if
+ *     the response head did not arrive, default is {@value DEFAULT_COLLAPSE_TIMEOUT_MILLIS}
+ * @param disk additionally store large responses on disk
+ * @author Jens Wilke
+ */
+@Builder(toBuilder = true)
+public record CacheConfig(
+    int maxBytes,
+    int maxObjectBytes,
+    boolean collapse,
+    int collapseTimeoutMillis,
+    DiskCacheConfig disk) {
+
+  public static final int DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+  public static final int DEFAULT_MAX_OBJECT_BYTES = 1024 * 1024;
+  public static final int DEFAULT_COLLAPSE_TIMEOUT_MILLIS = 5000;
+
+  public static final CacheConfig DEFAULT = builder().build();
+}
@@ -0,0 +1,44 @@
+package org.sensepitch.edge;
+
+import java.util.List;
+import lombok.Builder;
+
+/**
+ * Compression of upstream responses. The encoding is negotiated from the {@code Accept-Encoding}
+ * request header, preferring brotli, zstd, gzip and deflate in this order. Brotli and zstd are only
+ * offered if the native library is present on the class path. Responses already encoded by the
+ * upstream are passed as is. If the site has a cache, the compressed response is stored, so an
+ * object is compressed only once per encoding.
+ *
+ * @param disable disable compression for a site, if enabled for all sites
+ * @param minBytes responses with a known content length below this size are not compressed, default
+ *     is {@value DEFAULT_MIN_BYTES}
+ * @param contentTypes content type prefixes of responses to compress, e.g. {@code text/} matches
+ *     all text types, default is {@link #DEFAULT_CONTENT_TYPES}
+ * @param level compression level for gzip and deflate from 1 to 9, default is {@value
+ *     DEFAULT_LEVEL}
+ * @author Jens Wilke
+ */
+@Builder(toBuilder = true)
+public record CompressionConfig(
+    boolean disable, int minBytes, List<String> contentTypes, int level) {
+
+  public static final int DEFAULT_MIN_BYTES = 1024;
+  public static final int DEFAULT_LEVEL = 6;
+  public static final List<String> DEFAULT_CONTENT_TYPES =
+      List.of(
+          "text/",
+          "application/javascript",
+          "application/json",
+          "application/manifest+json",
+          "application/xml",
+          "application/xhtml+xml",
+          "application/rss+xml",
+          "application/atom+xml",
+          "application/wasm",
+          "image/svg+xml",
+          "font/ttf",
+          "font/otf");
+
+  public static final CompressionConfig DEFAULT = builder().build();
+}
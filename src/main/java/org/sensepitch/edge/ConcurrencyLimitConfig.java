@@ -0,0 +1,34 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * Adaptive limit of the concurrent requests to an upstream. The limit follows the measured response
+ * time of the upstream: it grows while the response time stays near its long term average and
+ * shrinks when the response time rises or requests fail. Requests above the limit wait in a queue,
+ * if the queue is full or the wait exceeds the timeout, the request is rejected with status 503.
+ *
+ * @param initialLimit limit before the first measurements, default {@value #DEFAULT_INITIAL_LIMIT}
+ * @param minLimit the limit is never reduced below, default {@value #DEFAULT_MIN_LIMIT}
+ * @param maxLimit the limit never grows above, default {@value #DEFAULT_MAX_LIMIT}
+ * @param queueSize maximum number of waiting requests, default {@value #DEFAULT_QUEUE_SIZE}
+ * @param queueTimeoutMillis maximum time a request waits for the upstream, default {@value
+ *     #DEFAULT_QUEUE_TIMEOUT_MILLIS}
+ * @param disable no limit, same as without this configuration
+ * @author Jens Wilke
+ */
+@Builder(toBuilder = true)
+public record ConcurrencyLimitConfig(
+    int initialLimit,
+    int minLimit,
+    int maxLimit,
+    int queueSize,
+    int queueTimeoutMillis,
+    boolean disable) {
+
+  public static final int DEFAULT_INITIAL_LIMIT = 20;
+  public static final int DEFAULT_MIN_LIMIT = 4;
+  public static final int DEFAULT_MAX_LIMIT = 1000;
+  public static final int DEFAULT_QUEUE_SIZE = 1000;
+  public static final int DEFAULT_QUEUE_TIMEOUT_MILLIS = 2000;
+}
@@ -3,10 +3,18 @@ package org.sensepitch.edge;
 import lombok.Builder;
 
 /**
+ * Upstream connections are pooled per ingress event loop. An upstream connection is created and
+ * reused within the event loop of the ingress connection, so no thread hand over or locking is
+ * needed.
+ *
+ * @param idleTimeoutSeconds idle upstream connections are closed after this time
+ * @param maxSize maximum number of upstream connections per event loop, idle and in use. If the
+ *     limit is reached, the request is rejected with status 509.
+ * @param disable don't keep upstream connections, open a new connection for every request
  * @author Jens Wilke
  */
 @Builder(toBuilder = true)
-public record ConnectionPoolConfig(int idleTimeoutSeconds, int maxSize) {
+public record ConnectionPoolConfig(int idleTimeoutSeconds, int maxSize, boolean disable) {
 
   static int IDLE_TIMEOUT_SECONDS = 30;
 
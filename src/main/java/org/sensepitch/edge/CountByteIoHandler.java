@@ -1,11 +1,16 @@
 package org.sensepitch.edge;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 
 /**
+ * Counts bytes received and sent. Within an HTTP/1.1 connection this sits after the TLS handler and
+ * counts the raw bytes. Within an HTTP/2 stream it counts the payload of the data frames, so the
+ * bytes are attributed to the request of the stream and not to the shared connection.
+ *
  * @author Jens Wilke
  */
 public class CountByteIoHandler extends ChannelDuplexHandler {
@@ -15,19 +20,27 @@ public class CountByteIoHandler extends ChannelDuplexHandler {
 
   @Override
   public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-    assert msg instanceof ByteBuf;
-    received += ((ByteBuf) msg).readableBytes();
+    received += readableBytes(msg);
     super.channelRead(ctx, msg);
   }
 
   @Override
   public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
       throws Exception {
-    assert msg instanceof ByteBuf;
-    sent += ((ByteBuf) msg).readableBytes();
+    sent += readableBytes(msg);
     super.write(ctx, msg, promise);
   }
 
+  private static int readableBytes(Object msg) {
+    if (msg instanceof ByteBuf buf) {
+      return buf.readableBytes();
+    }
+    if (msg instanceof ByteBufHolder holder) {
+      return holder.content().readableBytes();
+    }
+    return 0;
+  }
+
   public long getBytesReceived() {
     return received;
   }
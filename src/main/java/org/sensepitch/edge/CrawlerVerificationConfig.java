@@ -0,0 +1,44 @@
+package org.sensepitch.edge;
+
+import java.util.List;
+import lombok.Builder;
+
+/**
+ * Verification of crawlers via DNS. If the user agent matches a crawler database entry with
+ * verification domains, the reverse DNS name of the client IP must end with one of the domains and
+ * resolve back to the client IP. Other user agents are not affected. The result is cached per IP.
+ *
+ * @param disable disable verification
+ * @param detectCrawler the crawler database with the verification domains, default is the builtin
+ *     database
+ * @param ttlSeconds time a result is cached, default is {@value DEFAULT_TTL_SECONDS}
+ * @param negativeTtlSeconds time a failed verification is cached, that is the IP has no PTR record
+ *     or the host names do not resolve back to the IP, default is {@value
+ *     DEFAULT_NEGATIVE_TTL_SECONDS}
+ * @param failureTtlSeconds time a lookup is not repeated after a DNS timeout or server failure,
+ *     default is {@value DEFAULT_FAILURE_TTL_SECONDS}
+ * @param maxEntries maximum number of cached IPs, default is {@value DEFAULT_MAX_ENTRIES}
+ * @param timeoutMillis timeout of a DNS query, default is {@value DEFAULT_TIMEOUT_MILLIS}
+ * @param nameServers name servers as {@code host:port} or {@code host}, default is the system
+ *     configuration
+ * @author Jens Wilke
+ */
+@Builder(toBuilder = true)
+public record CrawlerVerificationConfig(
+    boolean disable,
+    DetectCrawlerConfig detectCrawler,
+    long ttlSeconds,
+    long negativeTtlSeconds,
+    long failureTtlSeconds,
+    int maxEntries,
+    long timeoutMillis,
+    List<String> nameServers) {
+
+  public static final long DEFAULT_TTL_SECONDS = 24 * 60 * 60;
+  public static final long DEFAULT_NEGATIVE_TTL_SECONDS = 60 * 60;
+  public static final long DEFAULT_FAILURE_TTL_SECONDS = 5;
+  public static final int DEFAULT_MAX_ENTRIES = 100_000;
+  public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+  public static final CrawlerVerificationConfig DEFAULT = builder().build();
+}
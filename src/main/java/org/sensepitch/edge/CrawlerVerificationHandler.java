@@ -0,0 +1,102 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+
+/**
+ * Verifies requests with a crawler user agent via DNS, see {@link CrawlerVerifier}. The result is
+ * stored in the channel attribute {@link #VERIFIED} for the current request and evaluated by the
+ * {@link DetectCrawler}. If the result for the client IP is not cached yet, reading is stopped and
+ * the request and following messages are held until the lookup returns.
+ *
+ * @author Jens Wilke
+ */
+public class CrawlerVerificationHandler extends ChannelInboundHandlerAdapter {
+
+  /**
+   * True if the crawler is verified, false if the user agent claims a crawler that is not confirmed
+   * by DNS, null if the current request is not subject to verification.
+   */
+  public static final AttributeKey<Boolean> VERIFIED =
+      AttributeKey.valueOf(CrawlerVerificationHandler.class, "verified");
+
+  private final CrawlerVerifier verifier;
+  private final ProxyMetrics metrics;
+
+  /** Messages received while a lookup is in progress, null if not waiting */
+  private ArrayDeque<Object> held;
+
+  public CrawlerVerificationHandler(CrawlerVerifier verifier, ProxyMetrics metrics) {
+    this.verifier = verifier;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (held != null) {
+      held.add(msg);
+      return;
+    }
+    if (msg instanceof HttpRequest request) {
+      ctx.channel().attr(VERIFIED).set(null);
+      String agent = request.headers().get(HttpHeaderNames.USER_AGENT);
+      String[] domains = agent != null ? verifier.verifyDomains(agent) : null;
+      if (domains != null && ctx.channel().remoteAddress() instanceof InetSocketAddress addr) {
+        InetAddress address = addr.getAddress();
+        Future<String[]> names = verifier.lookup(address);
+        if (!names.isDone()) {
+          held = new ArrayDeque<>();
+          held.add(msg);
+          ctx.channel().config().setAutoRead(false);
+          names.addListener(f -> ctx.executor().execute(() -> resume(ctx, names, domains)));
+          return;
+        }
+        setVerified(ctx, names, domains);
+      }
+    }
+    ctx.fireChannelRead(msg);
+  }
+
+  private void resume(ChannelHandlerContext ctx, Future<String[]> names, String[] domains) {
+    ArrayDeque<Object> messages = held;
+    held = null;
+    if (!ctx.channel().isActive()) {
+      messages.forEach(ReferenceCountUtil::release);
+      return;
+    }
+    setVerified(ctx, names, domains);
+    ctx.channel().config().setAutoRead(true);
+    ctx.fireChannelRead(messages.poll());
+    Object msg;
+    while ((msg = messages.poll()) != null) {
+      try {
+        channelRead(ctx, msg);
+      } catch (Exception e) {
+        ctx.fireExceptionCaught(e);
+      }
+    }
+  }
+
+  private void setVerified(ChannelHandlerContext ctx, Future<String[]> names, String[] domains) {
+    boolean verified = CrawlerVerifier.matches(names.getNow(), domains);
+    ctx.channel().attr(VERIFIED).set(verified);
+    metrics.crawlerVerificationCounter.labelValues(verified ? "verified" : "failed").inc();
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    if (held != null) {
+      held.forEach(ReferenceCountUtil::release);
+      held = null;
+    }
+    super.handlerRemoved(ctx);
+  }
+}
@@ -0,0 +1,298 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.dns.DefaultDnsQuestion;
+import io.netty.handler.codec.dns.DefaultDnsRecordDecoder;
+import io.netty.handler.codec.dns.DnsPtrRecord;
+import io.netty.handler.codec.dns.DnsRawRecord;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsResponseCode;
+import io.netty.resolver.dns.DnsErrorCauseException;
+import io.netty.resolver.dns.DnsNameResolver;
+import io.netty.resolver.dns.DnsNameResolverBuilder;
+import io.netty.resolver.dns.SequentialDnsServerAddressStreamProvider;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies crawlers via reverse and forward confirmed DNS, as recommended by Google, Bing and
+ * others: the PTR record of the client IP yields a host name, which must resolve back to the client
+ * IP. The lookups are asynchronous with the Netty DNS resolver. The confirmed host names are cached
+ * per IP, so the DNS cost for a crawler IP is amortised over many requests. The cache entry is
+ * independent of the user agent, the host names are matched against the domains of the crawler
+ * database entry per request.
+ *
+ * <p>Only a definite answer is cached for a long time: a missing PTR record or host names that do
+ * not resolve back. After a DNS timeout or server failure the lookup is repeated after a few
+ * seconds, so an outage of the DNS does not keep crawlers out for the negative TTL.
+ *
+ * @author Jens Wilke
+ */
+public class CrawlerVerifier {
+
+  private static final ProxyLogger LOG = ProxyLogger.get(CrawlerVerifier.class);
+
+  /** Only the first PTR names are confirmed, a crawler IP usually has exactly one */
+  static final int MAX_PTR_NAMES = 4;
+
+  private static final String[] NO_NAMES = new String[0];
+
+  private final DetectCrawler detectCrawler;
+  private final EventLoop eventLoop;
+  private final DnsNameResolver resolver;
+  private final long ttlNanos;
+  private final long negativeTtlNanos;
+  private final long failureTtlNanos;
+  private final int maxEntries;
+  private final Map<InetAddress, Entry> cache = new ConcurrentHashMap<>();
+
+  public CrawlerVerifier(
+      CrawlerVerificationConfig cfg, EventLoopGroup eventLoopGroup, Transport transport) {
+    detectCrawler =
+        new DetectCrawler(
+            cfg.detectCrawler() != null
+                ? cfg.detectCrawler()
+                : DetectCrawlerConfig.builder().build());
+    ttlNanos =
+        TimeUnit.SECONDS.toNanos(
+            cfg.ttlSeconds() > 0
+                ? cfg.ttlSeconds()
+                : CrawlerVerificationConfig.DEFAULT_TTL_SECONDS);
+    negativeTtlNanos =
+        TimeUnit.SECONDS.toNanos(
+            cfg.negativeTtlSeconds() > 0
+                ? cfg.negativeTtlSeconds()
+                : CrawlerVerificationConfig.DEFAULT_NEGATIVE_TTL_SECONDS);
+    failureTtlNanos =
+        TimeUnit.SECONDS.toNanos(
+            cfg.failureTtlSeconds() > 0
+                ? cfg.failureTtlSeconds()
+                : CrawlerVerificationConfig.DEFAULT_FAILURE_TTL_SECONDS);
+    maxEntries =
+        cfg.maxEntries() > 0 ? cfg.maxEntries() : CrawlerVerificationConfig.DEFAULT_MAX_ENTRIES;
+    eventLoop = eventLoopGroup.next();
+    DnsNameResolverBuilder builder =
+        new DnsNameResolverBuilder(eventLoop)
+            .datagramChannelType(transport.datagramChannelClass())
+            .queryTimeoutMillis(
+                cfg.timeoutMillis() > 0
+                    ? cfg.timeoutMillis()
+                    : CrawlerVerificationConfig.DEFAULT_TIMEOUT_MILLIS);
+    if (cfg.nameServers() != null && !cfg.nameServers().isEmpty()) {
+      List<InetSocketAddress> servers =
+          cfg.nameServers().stream().map(CrawlerVerifier::parseNameServer).toList();
+      builder.nameServerProvider(new SequentialDnsServerAddressStreamProvider(servers));
+    }
+    resolver = builder.build();
+  }
+
+  /**
+   * @return null, if the user agent is not a crawler that can be verified via DNS
+   */
+  public String[] verifyDomains(String agent) {
+    return detectCrawler.verifyDomains(agent);
+  }
+
+  /**
+   * Host names of the address that are confirmed by forward lookup. Lookups for the same address
+   * are coalesced.
+   *
+   * @return future with the confirmed host names, lower case and without the trailing dot, or an
+   *     empty array if there are none
+   */
+  public Future<String[]> lookup(InetAddress address) {
+    long now = System.nanoTime();
+    Entry entry = cache.get(address);
+    if (entry != null && !entry.isExpired(now)) {
+      return entry.names;
+    }
+    Entry newEntry = new Entry(eventLoop.newPromise());
+    Entry current =
+        cache.compute(address, (k, old) -> old != null && !old.isExpired(now) ? old : newEntry);
+    if (current == newEntry) {
+      if (cache.size() > maxEntries) {
+        evict(now);
+      }
+      eventLoop.execute(() -> startLookup(address, newEntry));
+    }
+    return current.names;
+  }
+
+  /** True, if one of the host names is in one of the domains */
+  public static boolean matches(String[] names, String[] domains) {
+    for (String name : names) {
+      for (String domain : domains) {
+        if (name.equals(domain)
+            || (name.endsWith(domain) && name.charAt(name.length() - domain.length() - 1) == '.')) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  public void close() {
+    resolver.close();
+  }
+
+  int cacheSize() {
+    return cache.size();
+  }
+
+  /** Remove expired entries, if that is not enough, remove a tenth of the entries */
+  private void evict(long now) {
+    cache.values().removeIf(e -> e.isExpired(now));
+    int remove = cache.size() - maxEntries + maxEntries / 10;
+    Iterator<Entry> it = cache.values().iterator();
+    while (remove-- > 0 && it.hasNext()) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  private void startLookup(InetAddress address, Entry entry) {
+    resolver
+        .resolveAll(new DefaultDnsQuestion(reverseName(address), DnsRecordType.PTR))
+        .addListener(
+            (Future<List<DnsRecord>> f) -> {
+              if (!f.isSuccess()) {
+                LOG.trace("PTR lookup failed for " + address + ": " + f.cause());
+                complete(entry, NO_NAMES, isNotFound(f.cause()));
+                return;
+              }
+              List<String> names = new ArrayList<>();
+              for (DnsRecord record : f.getNow()) {
+                String name = decodePtr(record);
+                if (name != null && names.size() < MAX_PTR_NAMES) {
+                  names.add(name);
+                }
+                ReferenceCountUtil.release(record);
+              }
+              confirm(address, entry, names);
+            });
+  }
+
+  /** Resolve the names and keep the ones that resolve to the address */
+  private void confirm(InetAddress address, Entry entry, List<String> names) {
+    if (names.isEmpty()) {
+      complete(entry, NO_NAMES, true);
+      return;
+    }
+    List<String> confirmed = new ArrayList<>();
+    int[] outstanding = {names.size()};
+    boolean[] definite = {true};
+    for (String name : names) {
+      resolver
+          .resolveAll(name)
+          .addListener(
+              (Future<List<InetAddress>> f) -> {
+                if (f.isSuccess() && f.getNow().contains(address)) {
+                  confirmed.add(name);
+                } else if (!f.isSuccess() && !isNotFound(f.cause())) {
+                  definite[0] = false;
+                }
+                if (--outstanding[0] == 0) {
+                  complete(entry, confirmed.toArray(NO_NAMES), definite[0]);
+                }
+              });
+    }
+  }
+
+  /**
+   * @param definite the names are the answer of the DNS and not the result of a timeout or server
+   *     failure
+   */
+  private void complete(Entry entry, String[] names, boolean definite) {
+    long ttl = names.length > 0 ? ttlNanos : definite ? negativeTtlNanos : failureTtlNanos;
+    entry.expireNanos = System.nanoTime() + ttl;
+    entry.done = true;
+    entry.names.setSuccess(names);
+  }
+
+  /** The name does not exist, in contrast to a timeout or server failure */
+  static boolean isNotFound(Throwable cause) {
+    for (Throwable t = cause; t != null; t = t.getCause()) {
+      if (t instanceof DnsErrorCauseException e) {
+        return e.getCode() == DnsResponseCode.NXDOMAIN;
+      }
+    }
+    return false;
+  }
+
+  private static String decodePtr(DnsRecord record) {
+    String name = null;
+    if (record instanceof DnsPtrRecord ptr) {
+      name = ptr.hostname();
+    } else if (record instanceof DnsRawRecord raw && record.type() == DnsRecordType.PTR) {
+      name = DefaultDnsRecordDecoder.decodeName(raw.content().duplicate());
+    }
+    if (name == null || name.isEmpty()) {
+      return null;
+    }
+    if (name.endsWith(".")) {
+      name = name.substring(0, name.length() - 1);
+    }
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  /** Name for the PTR query, e.g. {@code 4.3.2.1.in-addr.arpa.} */
+  static String reverseName(InetAddress address) {
+    byte[] bytes = address.getAddress();
+    StringBuilder sb = new StringBuilder();
+    if (address instanceof Inet4Address) {
+      for (int i = bytes.length - 1; i >= 0; i--) {
+        sb.append(bytes[i] & 0xff).append('.');
+      }
+      return sb.append("in-addr.arpa.").toString();
+    }
+    for (int i = bytes.length - 1; i >= 0; i--) {
+      sb.append(Character.forDigit(bytes[i] & 0x0f, 16)).append('.');
+      sb.append(Character.forDigit((bytes[i] >> 4) & 0x0f, 16)).append('.');
+    }
+    return sb.append("ip6.arpa.").toString();
+  }
+
+  /** Parse {@code host}, {@code host:port} or {@code [ipv6]:port} */
+  static InetSocketAddress parseNameServer(String server) {
+    String host = server;
+    int port = 53;
+    if (server.startsWith("[")) {
+      int end = server.indexOf(']');
+      host = server.substring(1, end);
+      if (server.length() > end + 1) {
+        port = Integer.parseInt(server.substring(end + 2));
+      }
+    } else if (server.indexOf(':') == server.lastIndexOf(':') && server.indexOf(':') > 0) {
+      host = server.substring(0, server.indexOf(':'));
+      port = Integer.parseInt(server.substring(server.indexOf(':') + 1));
+    }
+    return new InetSocketAddress(host, port);
+  }
+
+  private static final class Entry {
+    final Promise<String[]> names;
+    volatile long expireNanos;
+    volatile boolean done;
+
+    Entry(Promise<String[]> names) {
+      this.names = names;
+    }
+
+    boolean isExpired(long now) {
+      return done && now - expireNanos > 0;
+    }
+  }
+}
@@ -2,6 +2,9 @@ package org.sensepitch.edge;
 
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -29,7 +32,11 @@ public class DefaultAdmissionTokenGenerator implements AdmissionTokenGenerator {
     return ThreadLocalRandom.current().nextLong();
   }
 
+  private static final ThreadLocal<ChecksumCalculation> TL_CHECKSUM =
+      ThreadLocal.withInitial(ChecksumCalculation::new);
+
   private final String secret;
+  private final byte[] secretBytes;
   private final char prefixChar;
 
   /**
@@ -58,27 +65,36 @@ public class DefaultAdmissionTokenGenerator implements AdmissionTokenGenerator {
   public DefaultAdmissionTokenGenerator(byte[] serverIpv4Address, char prefixChar, String secret) {
     this.prefixChar = prefixChar;
     this.secret = secret;
+    this.secretBytes = secret.getBytes(StandardCharsets.ISO_8859_1);
     this.serverIp4address = serverIpv4Address;
   }
 
+  /**
+   * Checks the token without allocating. The checksum chars of the token are decoded to a number
+   * and compared with the first checksum bytes of the hash. Encoding the hash, like it is done when
+   * generating the token, would need a {@code BigInteger} and a string per check. The hash is
+   * computed with a message digest and buffers kept per thread.
+   */
   public long checkAdmission(String token) {
     if (token == null || token.length() != TOKEN_CHARS || token.charAt(0) != prefixChar) {
       return 0;
     }
     int offset = TIME_CHARS + MIXED_CHARS + 1;
-    String uniqueId = token.substring(1, offset);
-    String receivedChecksum = token.substring(offset, offset + CHECKSUM_CHARS);
-    byte[] sha256 =
-        ChallengeGenerationAndVerification.sha256(
-            (uniqueId + secret).getBytes(StandardCharsets.ISO_8859_1));
-    // TODO: performance instead of encoding the newly generated checksum, we can decode the
-    // received checksum and compare the byte value
-    String checkSum = encodeChecksum(sha256);
-    if (!checkSum.equals(receivedChecksum)) {
+    long receivedChecksum =
+        decodeLittleEndianChecked(token, offset, offset + CHECKSUM_CHARS, ENCODING_RADIX);
+    if (receivedChecksum < 0) {
+      return 0;
+    }
+    long expectedChecksum = TL_CHECKSUM.get().checksum(token, 1, offset, secretBytes);
+    // constant time, no early exit depending on matching bytes
+    if ((receivedChecksum ^ expectedChecksum) != 0) {
       return 0;
     }
-    return decodeLittleEndianToLong(token.substring(1, TIME_CHARS + 1), ENCODING_RADIX)
-        & 0x0ffffffff * 1000 + MILLIS_START_TIME;
+    long seconds = decodeLittleEndianChecked(token, 1, TIME_CHARS + 1, ENCODING_RADIX);
+    if (seconds < 0) {
+      return 0;
+    }
+    return (seconds & 0x0ffffffffL) * 1000 + MILLIS_START_TIME;
   }
 
   public static long calculateCurrentSecondsTime32bits() {
@@ -96,11 +112,18 @@ public class DefaultAdmissionTokenGenerator implements AdmissionTokenGenerator {
   }
 
   public String newAdmission() {
+    return newAdmission(calculateCurrentSecondsTime32bits());
+  }
+
+  /**
+   * @param seconds issue time in seconds since {@link #MILLIS_START_TIME}
+   */
+  String newAdmission(long seconds) {
     byte[] bytes = new byte[MIXED_BYTES];
     mergeMixed(
         bytes, THREAD_ID.get(), serverIp4address, TL_SEQUENCE.get().nextLong(), getNextRandom());
     String variationsChars = encodeUniqueId(bytes);
-    String timeChars = calculateTimeChars(calculateCurrentSecondsTime32bits());
+    String timeChars = calculateTimeChars(seconds);
     String uniqueId = timeChars + variationsChars;
     byte[] sha256 =
         ChallengeGenerationAndVerification.sha256(
@@ -121,25 +144,78 @@ public class DefaultAdmissionTokenGenerator implements AdmissionTokenGenerator {
     return encode(sha256, 0, CHECKSUM_BYTES, ENCODING_RADIX, CHECKSUM_CHARS);
   }
 
-  static long decodeLittleEndianToLong(String str, int radix) {
+  /**
+   * Decode chars encoded with {@link #ALPHABET}, least significant digit first.
+   *
+   * @return the decoded value or -1 if a char is not within the alphabet
+   */
+  static long decodeLittleEndianChecked(CharSequence str, int start, int end, int radix) {
     long result = 0L;
-    char[] chars = str.toCharArray();
-    for (int i = chars.length - 1; i >= 0; i--) {
-      result *= radix;
-      int c = chars[i];
-      int value;
-      if (c > 'a') {
-        value = c - 'a' + 36;
-      } else if (c > 'A') {
-        value = c - 'A' + 10;
-      } else {
-        value = c - '0';
+    for (int i = end - 1; i >= start; i--) {
+      int value = digitValue(str.charAt(i));
+      if (value < 0 || value >= radix) {
+        return -1;
       }
-      result += value;
+      result = result * radix + value;
     }
     return result;
   }
 
+  private static int digitValue(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    } else if (c >= 'A' && c <= 'Z') {
+      return c - 'A' + 10;
+    } else if (c >= 'a' && c <= 'z') {
+      return c - 'a' + 36;
+    }
+    return -1;
+  }
+
+  /**
+   * Message digest and buffers for the checksum calculation, reused by one thread. Same result as
+   * hashing {@code (uniqueId + secret).getBytes(ISO_8859_1)}, so existing tokens stay valid.
+   */
+  private static class ChecksumCalculation {
+
+    private final MessageDigest digest;
+    private final byte[] input = new byte[TOKEN_CHARS];
+    private final byte[] hash;
+
+    ChecksumCalculation() {
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new UnsatisfiedLinkError(e.getMessage());
+      }
+      hash = new byte[digest.getDigestLength()];
+    }
+
+    /**
+     * @return the first {@link #CHECKSUM_BYTES} of the hash as unsigned big endian number
+     */
+    long checksum(String token, int start, int end, byte[] secretBytes) {
+      int length = end - start;
+      for (int i = 0; i < length; i++) {
+        char c = token.charAt(start + i);
+        // same replacement as String.getBytes(ISO_8859_1)
+        input[i] = c <= 0xff ? (byte) c : (byte) '?';
+      }
+      digest.update(input, 0, length);
+      digest.update(secretBytes);
+      try {
+        digest.digest(hash, 0, hash.length);
+      } catch (DigestException e) {
+        throw new IllegalStateException(e);
+      }
+      long value = 0;
+      for (int i = 0; i < CHECKSUM_BYTES; i++) {
+        value = (value << 8) | (hash[i] & 0xff);
+      }
+      return value;
+    }
+  }
+
   public static int mergeMixed(
       byte[] bytes, long threadId, byte[] serverIpv4Address, long sequence, long random) {
     int idx = 0;
@@ -3,24 +3,30 @@ package org.sensepitch.edge;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelException;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.pool.ChannelPoolHandler;
-import io.netty.channel.pool.SimpleChannelPool;
+import io.netty.channel.EventLoop;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.HttpClientCodec;
-import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.Future;
-import io.netty.util.concurrent.FutureListener;
 import io.netty.util.concurrent.Promise;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Connects to the upstream and keeps a connection pool per event loop. The upstream connection is
+ * always created in the event loop of the ingress connection, so reading from the upstream and
+ * writing to the ingress happens in the same thread.
+ *
  * @author Jens Wilke
  */
 public class DefaultUpstream implements Upstream {
@@ -28,75 +34,43 @@ public class DefaultUpstream implements Upstream {
   private static ProxyLogger LOG = ProxyLogger.get(DefaultUpstream.class);
 
   private final Bootstrap bootstrap;
-  private final SimpleChannelPool pool = null;
+  private final TargetAddresses addresses;
+  private final ConnectionPoolConfig poolCfg;
+
+  /** Pool per event loop of the ingress group. Not modified after construction. */
+  private final Map<EventLoop, LocalPool> pools = new IdentityHashMap<>();
 
   public DefaultUpstream(ProxyContext ctx, UpstreamConfig cfg) {
-    ConnectionPoolConfig poolCfg =
-        cfg.connectionPool() != null ? cfg.connectionPool() : ConnectionPoolConfig.DEFAULT;
-    String[] sa = cfg.target().split(":");
-    int port = 80;
-    String target = sa[0];
-    if (sa.length > 2) {
-      throw new IllegalArgumentException("Target: " + cfg.target());
-    }
-    if (sa.length > 1) {
-      port = Integer.parseInt(sa[1]);
-    }
-    bootstrap =
-        new Bootstrap()
-            .group(ctx.eventLoopGroup())
-            .channel(NioSocketChannel.class)
-            .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
-            .option(ChannelOption.SO_KEEPALIVE, true)
-            .remoteAddress(target, port);
-    ChannelPoolHandler channelHandler =
-        new ChannelPoolHandler() {
-          @Override
-          public void channelReleased(Channel ch) throws Exception {
-            ch.pipeline()
-                .replace(
-                    "forward",
-                    "forward",
-                    new IdleStateHandler(0, poolCfg.idleTimeoutSeconds(), 0) {
-                      @Override
-                      protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent evt) {
-                        // TODO: temp for investigation, remove
-                        LOG.info(
-                            "Closing idle upstream connection: "
-                                + ctx.channel().id()
-                                + ", event="
-                                + evt);
-                        ctx.close();
-                      }
-                    });
-          }
-
-          @Override
-          public void channelAcquired(Channel ch) throws Exception {}
-
-          @Override
-          public void channelCreated(Channel ch) throws Exception {
-            addHttpHandler(ch.pipeline());
-            ch.pipeline().addLast("forward", new ForwardHandler(null));
-          }
-        };
-    int maxConnections = poolCfg.maxSize();
-    /*-
-    if (maxConnections <= 0) {
-      pool = new SimpleChannelPool(bootstrap, channelHandler, ChannelHealthChecker.ACTIVE);
-    } else {
-      pool =
-          new FixedChannelPool(
-              bootstrap,
-              channelHandler,
-              ChannelHealthChecker.ACTIVE,
-              FixedChannelPool.AcquireTimeoutAction.FAIL,
-              50, // acquire timeout ms
-              maxConnections, // max connections
-              1,
-              true);
+    this(ctx, cfg, TargetAddresses.of(ctx, cfg));
+  }
+
+  public DefaultUpstream(ProxyContext ctx, UpstreamConfig cfg, TargetAddresses addresses) {
+    poolCfg = cfg.connectionPool() != null ? cfg.connectionPool() : ConnectionPoolConfig.DEFAULT;
+    bootstrap = newBootstrap(ctx);
+    this.addresses = addresses;
+    for (EventExecutor executor : ctx.eventLoopGroup()) {
+      EventLoop eventLoop = (EventLoop) executor;
+      pools.put(eventLoop, new LocalPool(eventLoop));
     }
-    -*/
+  }
+
+  /**
+   * Bootstrap for upstream connections, using the transport of the ingress event loops. The remote
+   * address is set per connection from the {@link TargetAddresses}.
+   */
+  static Bootstrap newBootstrap(ProxyContext ctx) {
+    return new Bootstrap()
+        .group(ctx.eventLoopGroup())
+        .channel(ctx.transport().socketChannelClass())
+        .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+        .option(ChannelOption.SO_KEEPALIVE, true);
+  }
+
+  /** Failed future if the target is not resolved yet */
+  static <T> Future<T> unresolved(EventExecutor executor, TargetAddresses addresses) {
+    return executor.newFailedFuture(
+        new TargetAddresses.UnresolvedTargetException(
+            "Upstream target not resolved, host=" + addresses.host()));
   }
 
   void addHttpHandler(ChannelPipeline pipeline) {
@@ -105,19 +79,108 @@ public class DefaultUpstream implements Upstream {
 
   @Override
   public Future<Channel> connect(ChannelHandlerContext ingressCtx) {
+    Channel ingress = ingressCtx.channel();
+    LocalPool pool = pools.get(ingress.eventLoop());
     if (pool != null) {
-      return getPooledChannel(ingressCtx.channel());
+      return pool.acquire(ingress);
+    }
+    // ingress is not in our event loop group, e.g. when testing with an embedded channel
+    InetSocketAddress address = addresses.select(0);
+    if (address == null) {
+      return unresolved(ingressCtx.executor(), addresses);
+    }
+    Promise<Channel> promise = ingressCtx.executor().newPromise();
+    connectToUpstream(bootstrap.clone().remoteAddress(address), ingress)
+        .addListener(
+            (ChannelFutureListener)
+                cf -> {
+                  if (cf.isSuccess()) {
+                    promise.setSuccess(cf.channel());
+                  } else {
+                    promise.setFailure(cf.cause());
+                  }
+                });
+    return promise;
+  }
+
+  @Override
+  public void release(Channel ch) {
+    LocalPool pool = pools.get(ch.eventLoop());
+    if (pool == null) {
+      ch.close();
+      return;
+    }
+    if (ch.eventLoop().inEventLoop()) {
+      pool.release(ch);
     } else {
-      ChannelFuture upstreamFuture = connectToUpstream(ingressCtx.channel());
-      Promise<Channel> promise = ingressCtx.executor().newPromise();
-      upstreamFuture.addListener(
+      ch.eventLoop().execute(() -> pool.release(ch));
+    }
+  }
+
+  private ChannelFuture connectToUpstream(Bootstrap bs, Channel ingress) {
+    return bs.handler(
+            new ChannelInitializer<SocketChannel>() {
+              @Override
+              public void initChannel(SocketChannel ch) {
+                addHttpHandler(ch.pipeline());
+                ch.pipeline().addLast("forward", new ForwardHandler(ingress));
+              }
+            })
+        .connect();
+  }
+
+  /**
+   * Connection pool for one event loop. All methods are called within the event loop, so there is
+   * no locking. Idle connections are reused last in first out, so rarely needed connections stay at
+   * the head of the queue and time out.
+   */
+  class LocalPool {
+
+    private final EventLoop eventLoop;
+    private final Bootstrap loopBootstrap;
+    private final ArrayDeque<Channel> idle = new ArrayDeque<>();
+    private final long idleTimeoutNanos;
+    private int connectionCount;
+
+    /** Selects the target address of the next connection */
+    private int connectSequence;
+
+    LocalPool(EventLoop eventLoop) {
+      this.eventLoop = eventLoop;
+      loopBootstrap = bootstrap.clone(eventLoop);
+      idleTimeoutNanos = TimeUnit.SECONDS.toNanos(poolCfg.idleTimeoutSeconds());
+      if (!poolCfg.disable() && poolCfg.idleTimeoutSeconds() > 0) {
+        long checkInterval = Math.max(1, poolCfg.idleTimeoutSeconds() / 2);
+        eventLoop.scheduleWithFixedDelay(
+            this::closeIdleConnections, checkInterval, checkInterval, TimeUnit.SECONDS);
+      }
+    }
+
+    Future<Channel> acquire(Channel ingress) {
+      Channel ch;
+      while ((ch = idle.pollLast()) != null) {
+        if (ch.isActive()) {
+          // make sure read is on, it can happen that its still off from previous request handling
+          ch.config().setAutoRead(true);
+          ch.pipeline().get(ForwardHandler.class).attach(ingress);
+          return eventLoop.newSucceededFuture(ch);
+        }
+      }
+      if (poolCfg.maxSize() > 0 && connectionCount >= poolCfg.maxSize()) {
+        return eventLoop.newFailedFuture(new PoolExhaustedException());
+      }
+      InetSocketAddress address = addresses.select(connectSequence++);
+      if (address == null) {
+        return unresolved(eventLoop, addresses);
+      }
+      connectionCount++;
+      ChannelFuture future =
+          connectToUpstream(loopBootstrap.clone().remoteAddress(address), ingress);
+      future.channel().closeFuture().addListener(f -> connectionCount--);
+      Promise<Channel> promise = eventLoop.newPromise();
+      future.addListener(
           (ChannelFutureListener)
               cf -> {
-                //                LOG.info(
-                //                  ingressCtx.channel().id()
-                //                    + ">"
-                //                    + cf.channel().id()
-                //                    + " upstream connected, forwarding to promise");
                 if (cf.isSuccess()) {
                   promise.setSuccess(cf.channel());
                 } else {
@@ -126,46 +189,38 @@ public class DefaultUpstream implements Upstream {
               });
       return promise;
     }
-  }
 
-  @Override
-  public void release(Channel ch) {
-    if (pool != null) {
-      // TODO: void promise
-      pool.release(ch);
+    void release(Channel ch) {
+      if (poolCfg.disable() || !ch.isActive()) {
+        ch.close();
+        return;
+      }
+      ch.pipeline().get(ForwardHandler.class).detach(eventLoop.ticker().nanoTime());
+      idle.addLast(ch);
     }
-  }
 
-  private Future<Channel> getPooledChannel(Channel ingress) {
-    Future<Channel> future = pool.acquire(ingress.eventLoop().newPromise());
-    future.addListener(
-        (FutureListener<Channel>)
-            f -> {
-              if (f.isSuccess()) {
-                Channel ch = f.resultNow();
-                // make sure read is on, it can happen that its till off from previous request
-                // handling
-                ch.setOption(ChannelOption.AUTO_READ, true);
-                // we need to do this in the listener call back, to set the downstream
-                ch.pipeline().replace("forward", "forward", new ForwardHandler(ingress));
-              }
-            });
-    return future;
+    /** Closes connections from the head of the queue which are idle for too long. */
+    void closeIdleConnections() {
+      long now = eventLoop.ticker().nanoTime();
+      Channel ch;
+      while ((ch = idle.peekFirst()) != null) {
+        ForwardHandler handler = ch.pipeline().get(ForwardHandler.class);
+        if (ch.isActive()
+            && handler != null
+            && now - handler.getIdleSinceNanos() < idleTimeoutNanos) {
+          return;
+        }
+        idle.pollFirst();
+        ch.close();
+      }
+    }
   }
 
-  private ChannelFuture connectToUpstream(Channel ingress) {
-    Bootstrap bs =
-        bootstrap
-            .clone()
-            .handler(
-                new ChannelInitializer<SocketChannel>() {
-                  @Override
-                  public void initChannel(SocketChannel ch) {
-                    addHttpHandler(ch.pipeline());
-                    ch.pipeline().addLast("forward", new ForwardHandler(ingress));
-                  }
-                });
-    ChannelFuture f = bs.connect();
-    return f;
+  /** Maximum number of upstream connections per event loop reached. */
+  static class PoolExhaustedException extends ChannelException {
+
+    public PoolExhaustedException() {
+      super("Upstream connection limit reached");
+    }
   }
 }
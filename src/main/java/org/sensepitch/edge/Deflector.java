@@ -7,6 +7,7 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
@@ -15,8 +16,9 @@ import io.netty.handler.codec.http.cookie.Cookie;
 import io.netty.handler.codec.http.cookie.DefaultCookie;
 import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
 import io.netty.handler.codec.http.cookie.ServerCookieEncoder;
-import io.netty.util.CharsetUtil;
+import io.netty.util.AsciiString;
 import java.net.Inet4Address;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.HashMap;
@@ -40,6 +42,23 @@ public class Deflector {
   public static final String CHALLENGE_COOKIE_NAME = "sensepitch-ch";
   private static final ResourceFiles challengeFiles = new ResourceFiles("challenge/files/");
 
+  private static final AsciiString NO_CACHE_CONTROL =
+      AsciiString.cached("no-store, no-cache, must-revalidate, max-age=0");
+  private static final AsciiString HTML_CONTENT_TYPE =
+      AsciiString.cached("text/html; charset=UTF-8");
+
+  private static final String CHALLENGE_URL_PREFIX = "/.sensepitch.challenge.";
+
+  /**
+   * Attributes of the challenge cookie, like {@link ServerCookieEncoder} would encode them. The
+   * {@code Expires} attribute is omitted, since {@code Max-Age} takes precedence in all browsers.
+   */
+  private static final String CHALLENGE_COOKIE_ATTRIBUTES =
+      "; Max-Age=" + 60 * 60 * 24 * 30 + "; Path=/; Secure; HTTPOnly";
+
+  /** Challenge resources are pre-compressed with gzip only */
+  private static final List<String> GZIP_ONLY = List.of(ResponseCompressionHandler.GZIP);
+
   /** Request header containing the validated admission token */
   public static String ADMISSION_TOKEN_HEADER = "sensepitch-token";
 
@@ -55,6 +74,9 @@ public class Deflector {
   private final AdmissionTokenGenerator tokenGenerator;
   private final Map<Character, AdmissionTokenGenerator> tokenGenerators = new HashMap<>();
   private final int powMaxIterations;
+  private final CompiledTemplate challengePage;
+  private final HeavyHitterDetector heavyHitters;
+  private final boolean rejectHeavyHitters;
 
   Deflector(DeflectorConfig cfg) {
     challengeVerification =
@@ -97,6 +119,14 @@ public class Deflector {
       tokenGenerators.put(prefix, generator);
     }
     tokenGenerator = firstGenerator;
+    challengePage = compileChallengePage();
+    if (cfg.heavyHitter() != null) {
+      heavyHitters = new HeavyHitterDetector(cfg.heavyHitter());
+      rejectHeavyHitters = cfg.heavyHitter().reject();
+    } else {
+      heavyHitters = null;
+      rejectHeavyHitters = false;
+    }
   }
 
   byte[] deriveServerIpv4Address() {
@@ -133,6 +163,61 @@ public class Deflector {
         && bypassCheck.allowBypass(ctx.channel(), request);
   }
 
+  /** Step, resource and answer requests of the challenge page */
+  static boolean isChallengeUrl(String uri) {
+    return uri.startsWith(CHALLENGE_URL_PREFIX);
+  }
+
+  /**
+   * Count the request per IP prefix, ASN and admission token. Called after the admission cookie is
+   * checked, so the token header is set for admitted requests. A token issued within the sliding
+   * window is only checked against its own limit. A client that solved the challenge after it was
+   * deflected as heavy hitter is not challenged again right away because of its IP prefix or ASN.
+   *
+   * @param admissionMillis issue time of the admission token, or 0 if not admitted
+   * @return true, if one of the keys exceeds its limit
+   */
+  boolean recordHeavyHitter(ChannelHandlerContext ctx, HttpRequest request, long admissionMillis) {
+    if (heavyHitters == null) {
+      return false;
+    }
+    boolean heavy = false;
+    if (ctx.channel().remoteAddress() instanceof InetSocketAddress addr) {
+      heavy = heavyHitters.recordAndCheck(HeavyHitterDetector.ipPrefixKey(addr.getAddress()));
+    }
+    String asn = request.headers().get(IpTraitsHandler.ASN_HEADER);
+    if (asn != null && heavyHitters.limitsAsn()) {
+      try {
+        heavy |= heavyHitters.recordAndCheck(HeavyHitterDetector.asnKey(Long.parseLong(asn)));
+      } catch (NumberFormatException ignore) {
+      }
+    }
+    if (admissionMillis > 0
+        && System.currentTimeMillis() - admissionMillis < heavyHitters.windowSeconds() * 1000) {
+      heavy = false;
+    }
+    String token = request.headers().get(ADMISSION_TOKEN_HEADER);
+    if (token != null) {
+      heavy |= heavyHitters.recordAndCheck(HeavyHitterDetector.tokenKey(token));
+    }
+    return heavy;
+  }
+
+  boolean isRejectHeavyHitters() {
+    return rejectHeavyHitters;
+  }
+
+  /** Cheap response for heavy hitters, instead of rendering the challenge page */
+  void outputTooManyRequests(ChannelHandlerContext ctx) {
+    FullHttpResponse response =
+        new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.TOO_MANY_REQUESTS, Unpooled.EMPTY_BUFFER);
+    response.headers().set(HttpHeaderNames.CACHE_CONTROL, NO_CACHE_CONTROL);
+    response.headers().set(HttpHeaderNames.RETRY_AFTER, heavyHitters.windowSeconds());
+    response.headers().set(HttpHeaderNames.CONTENT_LENGTH, HttpHeaderValues.ZERO);
+    ctx.writeAndFlush(response);
+  }
+
   void outputChallengeResources(ChannelHandlerContext ctx, HttpRequest request) {
     String uri = request.uri();
     int idx = uri.lastIndexOf('/');
@@ -152,46 +237,65 @@ public class Deflector {
       ctx.writeAndFlush(response);
       return;
     }
+    ByteBuf content = file.buf();
+    boolean gzip =
+        file.gzipBuf() != null
+            && ResponseCompressionHandler.negotiate(
+                    request.headers().get(HttpHeaderNames.ACCEPT_ENCODING), GZIP_ONLY)
+                != null;
+    if (gzip) {
+      content = file.gzipBuf();
+    }
     FullHttpResponse response =
         new DefaultFullHttpResponse(
-            HttpVersion.HTTP_1_1, HttpResponseStatus.OK, file.buf().retainedDuplicate());
+            HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content.retainedDuplicate());
+    if (file.gzipBuf() != null) {
+      response.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+    }
+    if (gzip) {
+      response.headers().set(HttpHeaderNames.CONTENT_ENCODING, ResponseCompressionHandler.GZIP);
+    }
     response
         .headers()
         .set(HttpHeaderNames.CACHE_CONTROL, "no-store, no-cache, must-revalidate, max-age=0");
     response.headers().set(HttpHeaderNames.PRAGMA, "no-cache");
     response.headers().set(HttpHeaderNames.EXPIRES, "0");
     response.headers().set(HttpHeaderNames.CONTENT_TYPE, file.mimeType());
-    response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, file.buf().readableBytes());
+    response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
     ctx.writeAndFlush(response);
   }
 
-  void outputChallengeHtml(ChannelHandlerContext ctx) {
-    String challenge = challengeVerification.generateChallenge();
+  /** Template with all static values substituted, only the challenge is inserted per request */
+  private CompiledTemplate compileChallengePage() {
     String msg = htmlTemplate;
-    msg = msg.replaceAll("files/", CHALLENGE_RESOURCES_URL + "/");
+    msg = msg.replace("files/", CHALLENGE_RESOURCES_URL + "/");
     msg = msg.replace("{{ENDPOINT}}", CHALLENGE_ANSWER_URL);
     msg = msg.replace("{{STEP}}", CHALLENGE_STEP_URL);
-    msg = msg.replace("{{CHALLENGE}}", challenge);
     msg = msg.replace("{{VERIFY_URL}}", CHALLENGE_ANSWER_URL);
     msg = msg.replace("{{PREFIX}}", challengeVerification.getTargetPrefix());
     msg = msg.replace("{{MAX_ITERATIONS}}", Integer.toString(powMaxIterations));
-    ByteBuf buf = Unpooled.copiedBuffer(msg, CharsetUtil.UTF_8);
+    return new CompiledTemplate(msg, "{{CHALLENGE}}");
+  }
+
+  /**
+   * Hottest response when under a bot flood. The page body references the compiled template
+   * segments and the header values are constants, only the challenge is encoded per request.
+   */
+  void outputChallengeHtml(ChannelHandlerContext ctx) {
+    String challenge = challengeVerification.generateChallenge();
+    ByteBuf buf = challengePage.render(ctx.alloc(), challenge);
     FullHttpResponse response =
         new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.FORBIDDEN, buf);
+    response.headers().set(HttpHeaderNames.CACHE_CONTROL, NO_CACHE_CONTROL);
+    response.headers().set(HttpHeaderNames.PRAGMA, HttpHeaderValues.NO_CACHE);
+    response.headers().set(HttpHeaderNames.EXPIRES, HttpHeaderValues.ZERO);
+    response.headers().set(HttpHeaderNames.CONTENT_TYPE, HTML_CONTENT_TYPE);
+    response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, buf.readableBytes());
     response
         .headers()
-        .set(HttpHeaderNames.CACHE_CONTROL, "no-store, no-cache, must-revalidate, max-age=0");
-    response.headers().set(HttpHeaderNames.PRAGMA, "no-cache");
-    response.headers().set(HttpHeaderNames.EXPIRES, "0");
-    response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
-    response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, buf.readableBytes());
-    Cookie cookie = new DefaultCookie(CHALLENGE_COOKIE_NAME, challenge);
-    cookie.setHttpOnly(true);
-    cookie.setSecure(true);
-    cookie.setPath("/");
-    cookie.setMaxAge(60 * 60 * 24 * 30);
-    String encodedCookie = ServerCookieEncoder.STRICT.encode(cookie);
-    response.headers().set(HttpHeaderNames.SET_COOKIE, encodedCookie);
+        .set(
+            HttpHeaderNames.SET_COOKIE,
+            CHALLENGE_COOKIE_NAME + "=" + challenge + CHALLENGE_COOKIE_ATTRIBUTES);
     ctx.writeAndFlush(response);
   }
 
@@ -219,7 +323,10 @@ public class Deflector {
     ctx.writeAndFlush(response);
   }
 
-  boolean checkAdmissionCookie(HttpRequest request) {
+  /**
+   * @return issue time of a valid admission token in milliseconds, or 0
+   */
+  long checkAdmissionCookie(HttpRequest request) {
     String cookieHeader = request.headers().get(HttpHeaderNames.COOKIE);
     if (cookieHeader != null) {
       Set<Cookie> cookies = ServerCookieDecoder.LAX.decode(cookieHeader);
@@ -227,20 +334,20 @@ public class Deflector {
         if (c.name().equals(TOKEN_COOKIE_NAME)) {
           String admissionToken = c.value();
           if (admissionToken == null || admissionToken.isEmpty()) {
-            return false;
+            return 0;
           }
           AdmissionTokenGenerator generator = tokenGenerators.get(admissionToken.charAt(0));
           if (generator == null) {
-            return false;
+            return 0;
           }
           long t = generator.checkAdmission(c.value());
           if (t > 0) {
             request.headers().set(ADMISSION_TOKEN_HEADER, admissionToken);
-            return true;
+            return t;
           }
         }
       }
     }
-    return false;
+    return 0;
   }
 }
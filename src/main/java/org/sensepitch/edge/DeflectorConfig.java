@@ -9,6 +9,7 @@ import lombok.Builder;
  *     DEFAULT_CHALLENGE_TARGET_PREFIX}
  * @param powMaxIterations maximum number of iterations for solving the PoW in the browser, default
  *     is {@value DEFAULT_POW_MAX_ITERATIONS}
+ * @param heavyHitter detect and challenge clients with a high request volume, disabled if absent
  * @author Jens Wilke
  */
 @Builder(toBuilder = true)
@@ -19,7 +20,8 @@ public record DeflectorConfig(
     DetectCrawlerConfig detectCrawler,
     String hashTargetPrefix,
     int powMaxIterations,
-    List<AdmissionTokenGeneratorConfig> tokenGenerators) {
+    List<AdmissionTokenGeneratorConfig> tokenGenerators,
+    HeavyHitterConfig heavyHitter) {
 
   public static DeflectorConfig.Builder builder() {
     return new DeflectorConfig.Builder()
@@ -25,7 +25,13 @@ public class DeflectorHandler implements ProtectionPlugin {
 
   @Override
   public boolean mightIntercept(HttpRequest request, ChannelHandlerContext ctx) {
-    if (deflector.checkAdmissionCookie(request)) {
+    long admissionMillis = deflector.checkAdmissionCookie(request);
+    boolean admitted = admissionMillis > 0;
+    // requests of the challenge page itself are not counted, a deflected client can solve it
+    boolean heavyHitter =
+      !Deflector.isChallengeUrl(request.uri())
+        && deflector.recordHeavyHitter(ctx, request, admissionMillis);
+    if (admitted && !heavyHitter) {
       request.headers().set(Deflector.TRAFFIC_FLAVOR_HEADER, Deflector.FLAVOR_USER);
       return false;
     } else if (deflector.needsBypass(ctx, request)) {
@@ -51,6 +57,9 @@ public class DeflectorHandler implements ProtectionPlugin {
       && request.uri().startsWith(Deflector.CHALLENGE_ANSWER_URL)) {
       request.headers().set(Deflector.TRAFFIC_FLAVOR_HEADER, Deflector.FLAVOR_USER);
       deflector.handleChallengeAnswer(ctx, request);
+    } else if (heavyHitter && deflector.isRejectHeavyHitters()) {
+      request.headers().set(Deflector.TRAFFIC_FLAVOR_HEADER, Deflector.FLAVOR_DEFLECT);
+      deflector.outputTooManyRequests(ctx);
     } else {
       // TODO: behaviour of non GET requests?
       request.headers().set(Deflector.TRAFFIC_FLAVOR_HEADER, Deflector.FLAVOR_DEFLECT);
@@ -10,20 +10,47 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 
 /**
+ * Detects crawlers by the exact user agent or by a fragment of the user agent. The fragments are
+ * compiled into a {@link FragmentMatcher}, so the user agent is scanned once regardless of the size
+ * of the database. Since clients send the same user agent over and over, the verdict per user agent
+ * is kept in a small direct mapped cache, so classification is usually a single lookup.
+ *
  * @author Jens Wilke
  */
 public class DetectCrawler implements BypassCheck {
 
   private static final String FRAGMENT_SEQUENCE = "http";
+  private static final String VERIFY_DOMAINS_COLUMN = "verify-domains";
+
+  /** Number of cached verdicts, power of two */
+  static final int VERDICT_CACHE_SIZE = 4096;
+
+  /** Cached verdict for user agents that match nothing */
+  private static final BypassCheck NO_MATCH = (ctx, request) -> false;
+
   private final Map<String, BypassCheck> agentMatch = new HashMap<>();
   private final Map<String, BypassCheck> fragmentAgentMatch = new HashMap<>();
+  private final Map<String, String[]> agentDomains = new HashMap<>();
+  private final Map<String, String[]> fragmentDomains = new HashMap<>();
+  private final FragmentMatcher fragmentMatcher;
+  private final BypassCheck[] fragmentChecks;
+  private final String[][] fragmentVerifyDomains;
+
+  /**
+   * Verdicts indexed by the hash of the user agent. Entries are immutable and replaced without
+   * locking, a racing update just loses an entry.
+   */
+  private final Verdict[] verdictCache = new Verdict[VERDICT_CACHE_SIZE];
 
   static final BypassCheck AGENT_MATCH_BYPASS =
       (ctx, request) -> {
@@ -52,6 +79,10 @@ public class DetectCrawler implements BypassCheck {
         throw new RuntimeException(e);
       }
     }
+    List<String> fragments = new ArrayList<>(fragmentAgentMatch.keySet());
+    fragmentMatcher = new FragmentMatcher(fragments);
+    fragmentChecks = fragments.stream().map(fragmentAgentMatch::get).toArray(BypassCheck[]::new);
+    fragmentVerifyDomains = fragments.stream().map(fragmentDomains::get).toArray(String[][]::new);
   }
 
   int readTsv(InputStream input) throws IOException {
@@ -69,12 +100,19 @@ public class DetectCrawler implements BypassCheck {
         try {
           String agent = record.get("agent-match");
           agentMatch.put(agent, AGENT_MATCH_BYPASS);
+          String[] domains = parseDomains(record);
+          if (domains != null) {
+            agentDomains.put(agent, domains);
+          }
           String fragment = record.get("fragment-agent-match");
           if (fragment != null && !fragment.isEmpty()) {
             if (!fragment.contains(FRAGMENT_SEQUENCE)) {
               throw new IllegalArgumentException("fragment must contain " + FRAGMENT_SEQUENCE);
             }
             fragmentAgentMatch.put(fragment, FRAGMENT_AGENT_MATCH_BYPASS);
+            if (domains != null) {
+              fragmentDomains.put(fragment, domains);
+            }
           }
           count++;
         } catch (Exception e) {
@@ -85,14 +123,37 @@ public class DetectCrawler implements BypassCheck {
     return count;
   }
 
+  /** Space separated domains in the optional {@code verify-domains} column */
+  private static String[] parseDomains(CSVRecord record) {
+    if (!record.isMapped(VERIFY_DOMAINS_COLUMN) || !record.isSet(VERIFY_DOMAINS_COLUMN)) {
+      return null;
+    }
+    String domains = record.get(VERIFY_DOMAINS_COLUMN).trim().toLowerCase(Locale.ROOT);
+    if (domains.isEmpty()) {
+      return null;
+    }
+    return domains.split("\\s+");
+  }
+
   @Override
   public boolean allowBypass(Channel channel, HttpRequest request) {
     String agent = request.headers().get(HttpHeaderNames.USER_AGENT);
     if (agent == null) {
       return false;
     }
-    BypassCheck bypassCheck = agentMatch.get(agent);
-    if (bypassCheck != null && bypassCheck.allowBypass(channel, request)) {
+    BypassCheck bypassCheck = verdict(agent).check();
+    Boolean verified =
+        channel != null ? channel.attr(CrawlerVerificationHandler.VERIFIED).get() : null;
+    if (verified != null) {
+      if (verified) {
+        BypassCheck.setBypassReason(request, "crawler-dns-verified");
+        request.headers().set(Deflector.TRAFFIC_FLAVOR_HEADER, Deflector.FLAVOR_CRAWLER);
+        return true;
+      }
+      // claims to be a crawler, but DNS says otherwise, the IP labels still count
+      bypassCheck = NO_MATCH;
+    }
+    if (bypassCheck == AGENT_MATCH_BYPASS && bypassCheck.allowBypass(channel, request)) {
       request.headers().set(Deflector.TRAFFIC_FLAVOR_HEADER, Deflector.FLAVOR_CRAWLER);
       return true;
     }
@@ -101,16 +162,48 @@ public class DetectCrawler implements BypassCheck {
       request.headers().set(Deflector.TRAFFIC_FLAVOR_HEADER, Deflector.FLAVOR_CRAWLER);
       return true;
     }
-    // screen first to be faster for normal browsers
-    if (!agent.contains(FRAGMENT_SEQUENCE)) {
-      return false;
+    if (bypassCheck != AGENT_MATCH_BYPASS && bypassCheck.allowBypass(channel, request)) {
+      request.headers().set(Deflector.TRAFFIC_FLAVOR_HEADER, Deflector.FLAVOR_CRAWLER);
+      return true;
     }
-    for (Map.Entry<String, BypassCheck> entry : fragmentAgentMatch.entrySet()) {
-      if (agent.contains(entry.getKey()) && entry.getValue().allowBypass(channel, request)) {
-        request.headers().set(Deflector.TRAFFIC_FLAVOR_HEADER, Deflector.FLAVOR_CRAWLER);
-        return true;
+    return false;
+  }
+
+  /**
+   * Domains the reverse DNS name of a crawler with this user agent must end with.
+   *
+   * @return null, if the user agent is not a crawler that can be verified via DNS
+   */
+  public String[] verifyDomains(String agent) {
+    return verdict(agent).verifyDomains();
+  }
+
+  /** Classify the user agent by exact match or fragment match. */
+  Verdict verdict(String agent) {
+    int slot = agent.hashCode() & (VERDICT_CACHE_SIZE - 1);
+    Verdict cached = verdictCache[slot];
+    if (cached != null && cached.agent.equals(agent)) {
+      return cached;
+    }
+    BypassCheck check = agentMatch.get(agent);
+    String[] domains = agentDomains.get(agent);
+    if (check == null) {
+      int idx = fragmentMatcher.match(agent);
+      if (idx == FragmentMatcher.NO_MATCH) {
+        check = NO_MATCH;
+      } else {
+        check = fragmentChecks[idx];
+        domains = fragmentVerifyDomains[idx];
       }
     }
-    return false;
+    Verdict verdict = new Verdict(agent, check, domains);
+    verdictCache[slot] = verdict;
+    return verdict;
   }
+
+  /**
+   * @param check the check of the matching database entry or {@link #NO_MATCH}
+   * @param verifyDomains domains for DNS verification or null
+   */
+  record Verdict(String agent, BypassCheck check, String[] verifyDomains) {}
 }
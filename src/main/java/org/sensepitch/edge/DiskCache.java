@@ -0,0 +1,668 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Disk tier of the {@link ResponseCache}. Responses are appended as records to segment files of a
+ * fixed size, which are memory mapped. Writing a record is a copy into the mapping, a hit is served
+ * as a slice of the mapping, so the body is neither copied nor read into the heap. The operating
+ * system keeps hot objects in the page cache.
+ *
+ * <p>The index maps a hash of the key to the segment and offset of the record, see {@link
+ * DiskCacheIndex}. After a restart the index is rebuilt by scanning the segment files. A record
+ * only counts after it was completely written, since the magic number is written last.
+ *
+ * <p>A background thread reclaims space. If the segments exceed the maximum size, the oldest
+ * segment is dropped, records that had a hit since they were written are appended again and get a
+ * second chance. Segments with less than half of live records are compacted the same way, but
+ * keeping all live records. A dropped segment file is deleted, the mapping stays valid until
+ * responses in flight are written.
+ *
+ * @author Jens Wilke
+ */
+public class DiskCache implements AutoCloseable {
+
+  private static final ProxyLogger LOG = ProxyLogger.get(DiskCache.class);
+
+  static final int MAGIC = 0x53504331;
+
+  /**
+   * Record layout: magic, record length, key length, headers length, body length, status, stored at
+   * millis, expires at millis, followed by key, headers and body
+   */
+  static final int RECORD_HEADER_BYTES = 6 * 4 + 2 * 8;
+
+  private static final long RECLAIM_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".dat";
+
+  private final Path directory;
+  private final int segmentBytes;
+  private final long maxBytes;
+  private final int minObjectBytes;
+  private final DiskCacheIndex index = new DiskCacheIndex();
+  private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+  private Segment active;
+  private final CounterDataPoint storedCounter;
+  private final CounterDataPoint evictedCounter;
+  private final CounterDataPoint relocatedCounter;
+  private final Thread reclaimer;
+
+  /** Only one reclaim at a time, segments are dropped outside of the cache lock */
+  private final Object reclaimLock = new Object();
+
+  private volatile boolean closed;
+
+  public DiskCache(DiskCacheConfig cfg, ProxyMetrics metrics) {
+    this(cfg, metrics, true);
+  }
+
+  /**
+   * @param background start the thread reclaiming space, otherwise {@link #reclaim(long)} needs to
+   *     be called
+   */
+  DiskCache(DiskCacheConfig cfg, ProxyMetrics metrics, boolean background) {
+    if (cfg.directory() == null) {
+      throw new IllegalArgumentException("Disk cache requires directory");
+    }
+    directory = Path.of(cfg.directory());
+    segmentBytes =
+        (cfg.segmentMegabytes() > 0
+                ? cfg.segmentMegabytes()
+                : DiskCacheConfig.DEFAULT_SEGMENT_MEGABYTES)
+            * 1024
+            * 1024;
+    long maxMegabytes =
+        cfg.maxMegabytes() > 0 ? cfg.maxMegabytes() : DiskCacheConfig.DEFAULT_MAX_MEGABYTES;
+    maxBytes = Math.max(maxMegabytes * 1024 * 1024, 2L * segmentBytes);
+    minObjectBytes =
+        cfg.minObjectBytes() > 0 ? cfg.minObjectBytes() : DiskCacheConfig.DEFAULT_MIN_OBJECT_BYTES;
+    storedCounter = metrics.cacheDiskCounter.labelValues("stored");
+    evictedCounter = metrics.cacheDiskCounter.labelValues("evicted");
+    relocatedCounter = metrics.cacheDiskCounter.labelValues("relocated");
+    try {
+      Files.createDirectories(directory);
+      rebuild(System.currentTimeMillis());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (background) {
+      reclaimer = new Thread(this::reclaimLoop, "sensepitch-disk-cache");
+      reclaimer.setDaemon(true);
+      reclaimer.start();
+    } else {
+      reclaimer = null;
+    }
+  }
+
+  /** Responses with a known length of at least this size are stored on disk */
+  public int minObjectBytes() {
+    return minObjectBytes;
+  }
+
+  /** Number of records in the index */
+  public synchronized int size() {
+    return index.size();
+  }
+
+  /** Size of all segment files */
+  public synchronized long segmentBytesTotal() {
+    return (long) segments.size() * segmentBytes;
+  }
+
+  /**
+   * Find a fresh response. The body of the entry is a read only slice of the mapped segment.
+   *
+   * @return the entry or {@code null}
+   */
+  public ResponseCache.Entry lookup(String key, long nowMillis) {
+    long hash = DiskCacheIndex.hash(key);
+    Segment segment;
+    int offset;
+    synchronized (this) {
+      int slot = index.find(hash);
+      if (slot < 0 || nowMillis >= index.expiresAtMillis(slot)) {
+        return null;
+      }
+      index.markAccessed(slot);
+      segment = segments.get(index.segment(slot));
+      offset = index.offset(slot);
+    }
+    Record record = Record.read(segment.map, offset);
+    if (!record.keyEquals(segment.map, key)) {
+      return null;
+    }
+    return ResponseCache.Entry.transientEntry(
+        HttpResponseStatus.valueOf(record.status),
+        record.readHeaders(segment.map),
+        record.body(segment.map),
+        record.storedAtMillis,
+        record.expiresAtMillis);
+  }
+
+  /**
+   * Reserve space for a response of known length. The body is written via the returned writer.
+   *
+   * @param headers complete response headers as sent on a hit
+   * @return writer or {@code null} if the response is too large for a segment
+   */
+  public Writer begin(
+      String key,
+      HttpResponseStatus status,
+      HttpHeaders headers,
+      int bodyLength,
+      long storedAtMillis,
+      long expiresAtMillis) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[] headerBytes = encodeHeaders(headers);
+    long recordLength =
+        (long) RECORD_HEADER_BYTES + keyBytes.length + headerBytes.length + bodyLength;
+    if (recordLength > segmentBytes) {
+      return null;
+    }
+    Segment segment;
+    int offset;
+    synchronized (this) {
+      if (closed) {
+        return null;
+      }
+      segment = reserve((int) recordLength);
+      if (segment == null) {
+        return null;
+      }
+      offset = segment.writePosition;
+      segment.writePosition += (int) recordLength;
+      segment.pendingWriters++;
+      // a scan can skip the record even if it is never completed
+      segment.map.putInt(offset + 4, (int) recordLength);
+    }
+    ByteBuffer map = segment.map;
+    map.putInt(offset + 8, keyBytes.length);
+    map.putInt(offset + 12, headerBytes.length);
+    map.putInt(offset + 16, bodyLength);
+    map.putInt(offset + 20, status.code());
+    map.putLong(offset + 24, storedAtMillis);
+    map.putLong(offset + 32, expiresAtMillis);
+    map.put(offset + RECORD_HEADER_BYTES, keyBytes);
+    map.put(offset + RECORD_HEADER_BYTES + keyBytes.length, headerBytes);
+    return new Writer(
+        segment,
+        offset,
+        (int) recordLength,
+        DiskCacheIndex.hash(key),
+        offset + RECORD_HEADER_BYTES + keyBytes.length + headerBytes.length,
+        bodyLength,
+        expiresAtMillis);
+  }
+
+  /** Space in the active segment, a new segment is created if needed. Called with the lock held. */
+  private Segment reserve(int recordLength) {
+    if (active == null || active.writePosition + recordLength > segmentBytes) {
+      int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+      try {
+        active = Segment.create(directory, id, segmentBytes);
+      } catch (IOException e) {
+        LOG.error("Creating disk cache segment failed", e);
+        active = null;
+        return null;
+      }
+      segments.put(id, active);
+      if (reclaimer != null) {
+        LockSupport.unpark(reclaimer);
+      }
+    }
+    return active;
+  }
+
+  private synchronized void publish(Writer w, boolean complete) {
+    Segment segment = w.segment;
+    segment.pendingWriters--;
+    if (!complete || segment.dropped) {
+      return;
+    }
+    segment.map.putInt(w.offset, MAGIC);
+    int slot = index.find(w.hash);
+    if (slot >= 0) {
+      Segment previous = segments.get(index.segment(slot));
+      if (previous != null) {
+        previous.liveBytes -= index.length(slot);
+      }
+    }
+    index.put(w.hash, segment.id, w.offset, w.recordLength, w.expiresAtMillis);
+    segment.liveBytes += w.recordLength;
+    storedCounter.inc();
+  }
+
+  /** Stop the reclaim thread. Segments stay on disk for the next start. */
+  @Override
+  public void close() {
+    closed = true;
+    if (reclaimer != null) {
+      LockSupport.unpark(reclaimer);
+      try {
+        reclaimer.join(TimeUnit.SECONDS.toMillis(5));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (this) {
+      for (Segment segment : segments.values()) {
+        segment.map.force();
+        segment.closeChannel();
+      }
+    }
+  }
+
+  /** Scan the segment files and build the index. */
+  private void rebuild(long nowMillis) throws IOException {
+    List<Path> files;
+    try (Stream<Path> stream = Files.list(directory)) {
+      files =
+          stream
+              .filter(
+                  p -> {
+                    String name = p.getFileName().toString();
+                    return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                  })
+              .toList();
+    }
+    for (Path file : files) {
+      String name = file.getFileName().toString();
+      int id;
+      try {
+        id =
+            Integer.parseInt(
+                name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      if (Files.size(file) != segmentBytes) {
+        // segment size was reconfigured
+        Files.delete(file);
+        continue;
+      }
+      segments.put(id, Segment.open(file, id, segmentBytes));
+    }
+    for (Segment segment : segments.values()) {
+      int position = 0;
+      while (position + RECORD_HEADER_BYTES <= segmentBytes) {
+        int length = segment.map.getInt(position + 4);
+        if (length < RECORD_HEADER_BYTES || position + length > segmentBytes) {
+          break;
+        }
+        if (segment.map.getInt(position) == MAGIC) {
+          Record record = Record.read(segment.map, position);
+          if (record.expiresAtMillis > nowMillis) {
+            long hash = DiskCacheIndex.hash(record.readKey(segment.map));
+            int slot = index.find(hash);
+            if (slot >= 0) {
+              segments.get(index.segment(slot)).liveBytes -= index.length(slot);
+            }
+            index.put(hash, segment.id, position, length, record.expiresAtMillis);
+            segment.liveBytes += length;
+          }
+        }
+        position += length;
+      }
+      segment.writePosition = position;
+      active = segment;
+    }
+  }
+
+  private void reclaimLoop() {
+    while (!closed) {
+      LockSupport.parkNanos(RECLAIM_INTERVAL_NANOS);
+      try {
+        reclaim(System.currentTimeMillis());
+      } catch (RuntimeException e) {
+        LOG.error("Disk cache reclaim failed", e);
+      }
+    }
+  }
+
+  /** Drop the oldest segments over the size limit and compact segments with mostly dead records. */
+  void reclaim(long nowMillis) {
+    synchronized (reclaimLock) {
+      for (; ; ) {
+        Segment oldest;
+        synchronized (this) {
+          if ((long) segments.size() * segmentBytes <= maxBytes) {
+            break;
+          }
+          oldest = segments.firstEntry().getValue();
+          if (oldest == active || oldest.pendingWriters > 0) {
+            break;
+          }
+        }
+        relocateAndDrop(oldest, nowMillis, true);
+      }
+      List<Segment> sparse = new ArrayList<>();
+      synchronized (this) {
+        for (Segment segment : segments.values()) {
+          if (segment != active
+              && segment.pendingWriters == 0
+              && segment.liveBytes < segmentBytes / 2) {
+            sparse.add(segment);
+          }
+        }
+      }
+      for (Segment segment : sparse) {
+        relocateAndDrop(segment, nowMillis, false);
+      }
+    }
+  }
+
+  /**
+   * Append the live records of the segment again and delete it.
+   *
+   * @param onlyAccessed only keep records that had a hit, otherwise all live records
+   */
+  private void relocateAndDrop(Segment segment, long nowMillis, boolean onlyAccessed) {
+    int position = 0;
+    while (position + RECORD_HEADER_BYTES <= segment.writePosition) {
+      int length = segment.map.getInt(position + 4);
+      if (length < RECORD_HEADER_BYTES) {
+        break;
+      }
+      if (segment.map.getInt(position) == MAGIC) {
+        relocate(segment, position, length, nowMillis, onlyAccessed);
+      }
+      position += length;
+    }
+    synchronized (this) {
+      segment.dropped = true;
+      segments.remove(segment.id);
+      if (active == segment) {
+        active = null;
+      }
+      // remove index entries of records not relocated
+      position = 0;
+      while (position + RECORD_HEADER_BYTES <= segment.writePosition) {
+        int length = segment.map.getInt(position + 4);
+        if (length < RECORD_HEADER_BYTES) {
+          break;
+        }
+        if (segment.map.getInt(position) == MAGIC) {
+          Record record = Record.read(segment.map, position);
+          int slot = index.find(DiskCacheIndex.hash(record.readKey(segment.map)));
+          if (slot >= 0 && index.segment(slot) == segment.id && index.offset(slot) == position) {
+            index.remove(slot);
+            evictedCounter.inc();
+          }
+        }
+        position += length;
+      }
+    }
+    segment.closeChannel();
+    try {
+      Files.deleteIfExists(segment.path);
+    } catch (IOException e) {
+      LOG.error("Deleting disk cache segment failed", e);
+    }
+  }
+
+  private void relocate(
+      Segment segment, int position, int length, long nowMillis, boolean onlyAccessed) {
+    Record record = Record.read(segment.map, position);
+    if (record.expiresAtMillis <= nowMillis) {
+      return;
+    }
+    long hash = DiskCacheIndex.hash(record.readKey(segment.map));
+    Segment target;
+    int targetOffset;
+    synchronized (this) {
+      int slot = index.find(hash);
+      if (slot < 0
+          || index.segment(slot) != segment.id
+          || index.offset(slot) != position
+          || (onlyAccessed && !index.isAccessed(slot))) {
+        return;
+      }
+      target = reserve(length);
+      if (target == null || target == segment) {
+        return;
+      }
+      targetOffset = target.writePosition;
+      target.writePosition += length;
+    }
+    target.map.put(targetOffset, segment.map, position, length);
+    synchronized (this) {
+      int slot = index.find(hash);
+      if (target.dropped
+          || slot < 0
+          || index.segment(slot) != segment.id
+          || index.offset(slot) != position) {
+        // replaced meanwhile, the copy is dead
+        target.map.putInt(targetOffset, 0);
+        return;
+      }
+      segment.liveBytes -= length;
+      index.put(hash, target.id, targetOffset, length, record.expiresAtMillis);
+      target.liveBytes += length;
+      relocatedCounter.inc();
+    }
+  }
+
+  static byte[] encodeHeaders(HttpHeaders headers) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    Iterator<Map.Entry<CharSequence, CharSequence>> it = headers.iteratorCharSequence();
+    while (it.hasNext()) {
+      Map.Entry<CharSequence, CharSequence> header = it.next();
+      out.writeBytes(header.getKey().toString().getBytes(StandardCharsets.UTF_8));
+      out.write(0);
+      out.writeBytes(header.getValue().toString().getBytes(StandardCharsets.UTF_8));
+      out.write(0);
+    }
+    return out.toByteArray();
+  }
+
+  /** Writes the body of a response into the reserved space of the segment. */
+  public class Writer {
+
+    private final Segment segment;
+    private final int offset;
+    private final int recordLength;
+    private final long hash;
+    private final int bodyEnd;
+    private final long expiresAtMillis;
+    private int position;
+    private boolean finished;
+
+    private Writer(
+        Segment segment,
+        int offset,
+        int recordLength,
+        long hash,
+        int bodyStart,
+        int bodyLength,
+        long expiresAtMillis) {
+      this.segment = segment;
+      this.offset = offset;
+      this.recordLength = recordLength;
+      this.hash = hash;
+      this.position = bodyStart;
+      this.bodyEnd = bodyStart + bodyLength;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+
+    /**
+     * Copy the content into the segment.
+     *
+     * @return read only buffer of the written bytes, which stays valid, or {@code null} if the
+     *     content exceeds the announced body length
+     */
+    public ByteBuf write(ByteBuf content) {
+      int length = content.readableBytes();
+      if (finished || position + length > bodyEnd) {
+        return null;
+      }
+      ByteBuffer target = segment.map.slice(position, length);
+      content.getBytes(content.readerIndex(), target);
+      position += length;
+      return Unpooled.wrappedBuffer(
+          segment.map.slice(position - length, length).asReadOnlyBuffer());
+    }
+
+    /**
+     * Make the record visible, if the body is complete.
+     *
+     * @return true if stored
+     */
+    public boolean commit() {
+      if (finished) {
+        return false;
+      }
+      finished = true;
+      boolean complete = position == bodyEnd;
+      publish(this, complete);
+      return complete;
+    }
+
+    /** The response is incomplete, the reserved space becomes dead. */
+    public void abort() {
+      if (!finished) {
+        finished = true;
+        publish(this, false);
+      }
+    }
+  }
+
+  /** Fields of a record header, read from the mapping */
+  private record Record(
+      int offset,
+      int keyLength,
+      int headersLength,
+      int bodyLength,
+      int status,
+      long storedAtMillis,
+      long expiresAtMillis) {
+
+    static Record read(MappedByteBuffer map, int offset) {
+      return new Record(
+          offset,
+          map.getInt(offset + 8),
+          map.getInt(offset + 12),
+          map.getInt(offset + 16),
+          map.getInt(offset + 20),
+          map.getLong(offset + 24),
+          map.getLong(offset + 32));
+    }
+
+    String readKey(MappedByteBuffer map) {
+      byte[] bytes = new byte[keyLength];
+      map.get(offset + RECORD_HEADER_BYTES, bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Compare without decoding, if the key is ASCII */
+    boolean keyEquals(MappedByteBuffer map, String key) {
+      if (key.length() != keyLength) {
+        return readKey(map).equals(key);
+      }
+      int start = offset + RECORD_HEADER_BYTES;
+      for (int i = 0; i < keyLength; i++) {
+        char c = key.charAt(i);
+        if (c >= 0x80) {
+          return readKey(map).equals(key);
+        }
+        if (map.get(start + i) != (byte) c) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    HttpHeaders readHeaders(MappedByteBuffer map) {
+      byte[] bytes = new byte[headersLength];
+      map.get(offset + RECORD_HEADER_BYTES + keyLength, bytes);
+      HttpHeaders headers = new DefaultHttpHeaders();
+      int start = 0;
+      String name = null;
+      for (int i = 0; i < bytes.length; i++) {
+        if (bytes[i] == 0) {
+          String s = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+          if (name == null) {
+            name = s;
+          } else {
+            headers.add(name, s);
+            name = null;
+          }
+          start = i + 1;
+        }
+      }
+      return headers;
+    }
+
+    ByteBuf body(MappedByteBuffer map) {
+      if (bodyLength == 0) {
+        return Unpooled.EMPTY_BUFFER;
+      }
+      int start = offset + RECORD_HEADER_BYTES + keyLength + headersLength;
+      return Unpooled.wrappedBuffer(map.slice(start, bodyLength).asReadOnlyBuffer());
+    }
+  }
+
+  /** A segment file and its mapping */
+  private static class Segment {
+
+    final int id;
+    final Path path;
+    final FileChannel channel;
+    final MappedByteBuffer map;
+    int writePosition;
+    int liveBytes;
+    int pendingWriters;
+    boolean dropped;
+
+    private Segment(int id, Path path, FileChannel channel, MappedByteBuffer map) {
+      this.id = id;
+      this.path = path;
+      this.channel = channel;
+      this.map = map;
+    }
+
+    static Segment create(Path directory, int id, int size) throws IOException {
+      Path path = directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+      return open(path, id, size);
+    }
+
+    static Segment open(Path path, int id, int size) throws IOException {
+      FileChannel channel =
+          FileChannel.open(
+              path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      return new Segment(id, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+
+    /** The mapping stays valid after closing the channel */
+    void closeChannel() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.error("Closing disk cache segment failed", e);
+      }
+    }
+  }
+}
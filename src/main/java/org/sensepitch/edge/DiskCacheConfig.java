@@ -0,0 +1,25 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * Disk tier of the response cache for large objects. Responses are appended to segment files which
+ * are memory mapped, so a hit is sent from the page cache without copying it into the heap. The
+ * index is rebuilt from the segment files after a restart. Responses with a {@code Vary} header are
+ * kept in memory only.
+ *
+ * @param directory directory for the segment files, required
+ * @param maxMegabytes maximum size of all segment files, default is {@value DEFAULT_MAX_MEGABYTES}
+ * @param segmentMegabytes size of a segment file, default is {@value DEFAULT_SEGMENT_MEGABYTES}
+ * @param minObjectBytes responses with a known content length of at least this size go to disk,
+ *     smaller ones to memory, default is {@value DEFAULT_MIN_OBJECT_BYTES}
+ * @author Jens Wilke
+ */
+@Builder(toBuilder = true)
+public record DiskCacheConfig(
+    String directory, int maxMegabytes, int segmentMegabytes, int minObjectBytes) {
+
+  public static final int DEFAULT_MAX_MEGABYTES = 1024;
+  public static final int DEFAULT_SEGMENT_MEGABYTES = 64;
+  public static final int DEFAULT_MIN_OBJECT_BYTES = 64 * 1024;
+}
@@ -0,0 +1,159 @@
+package org.sensepitch.edge;
+
+/**
+ * Index of the {@link DiskCache} from a 64 bit hash of the key to the location of the record. The
+ * entries are kept in parallel primitive arrays with open addressing and linear probing, so the
+ * index needs no object per entry. Two keys with the same hash share an entry, the key stored in
+ * the record is checked on a lookup. Not thread safe.
+ *
+ * @author Jens Wilke
+ */
+public class DiskCacheIndex {
+
+  private static final long EMPTY = 0;
+  private static final long REMOVED = 1;
+
+  private long[] hashes;
+  private int[] segments;
+  private int[] offsets;
+  private int[] lengths;
+  private long[] expires;
+  private boolean[] accessed;
+  private int mask;
+  private int size;
+
+  /** Entries plus removed slots */
+  private int used;
+
+  public DiskCacheIndex() {
+    allocate(1024);
+  }
+
+  /** Hash of the key, never one of the values marking a free slot */
+  public static long hash(String key) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      h ^= key.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h == EMPTY || h == REMOVED ? h + 2 : h;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return slot of the entry or -1
+   */
+  public int find(long hash) {
+    for (int i = (int) spread(hash) & mask; ; i = (i + 1) & mask) {
+      long h = hashes[i];
+      if (h == hash) {
+        return i;
+      }
+      if (h == EMPTY) {
+        return -1;
+      }
+    }
+  }
+
+  /** Insert or replace the entry. Replaced locations need to be accounted before. */
+  public void put(long hash, int segment, int offset, int length, long expiresAtMillis) {
+    int slot = find(hash);
+    if (slot < 0) {
+      if ((used + 1) * 2 > hashes.length) {
+        rehash(size * 4 > hashes.length ? hashes.length * 2 : hashes.length);
+      }
+      slot = (int) spread(hash) & mask;
+      while (hashes[slot] != EMPTY && hashes[slot] != REMOVED) {
+        slot = (slot + 1) & mask;
+      }
+      if (hashes[slot] == EMPTY) {
+        used++;
+      }
+      size++;
+    }
+    hashes[slot] = hash;
+    segments[slot] = segment;
+    offsets[slot] = offset;
+    lengths[slot] = length;
+    expires[slot] = expiresAtMillis;
+    accessed[slot] = false;
+  }
+
+  public void remove(int slot) {
+    hashes[slot] = REMOVED;
+    size--;
+  }
+
+  public int segment(int slot) {
+    return segments[slot];
+  }
+
+  public int offset(int slot) {
+    return offsets[slot];
+  }
+
+  public int length(int slot) {
+    return lengths[slot];
+  }
+
+  public long expiresAtMillis(int slot) {
+    return expires[slot];
+  }
+
+  public void markAccessed(int slot) {
+    accessed[slot] = true;
+  }
+
+  public boolean isAccessed(int slot) {
+    return accessed[slot];
+  }
+
+  private void rehash(int capacity) {
+    long[] oldHashes = hashes;
+    int[] oldSegments = segments;
+    int[] oldOffsets = offsets;
+    int[] oldLengths = lengths;
+    long[] oldExpires = expires;
+    boolean[] oldAccessed = accessed;
+    allocate(capacity);
+    for (int i = 0; i < oldHashes.length; i++) {
+      long h = oldHashes[i];
+      if (h != EMPTY && h != REMOVED) {
+        int slot = (int) spread(h) & mask;
+        while (hashes[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        hashes[slot] = h;
+        segments[slot] = oldSegments[i];
+        offsets[slot] = oldOffsets[i];
+        lengths[slot] = oldLengths[i];
+        expires[slot] = oldExpires[i];
+        accessed[slot] = oldAccessed[i];
+        used++;
+        size++;
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    hashes = new long[capacity];
+    segments = new int[capacity];
+    offsets = new int[capacity];
+    lengths = new int[capacity];
+    expires = new long[capacity];
+    accessed = new boolean[capacity];
+    mask = capacity - 1;
+    size = 0;
+    used = 0;
+  }
+
+  private static long spread(long hash) {
+    return hash ^ (hash >>> 32);
+  }
+}
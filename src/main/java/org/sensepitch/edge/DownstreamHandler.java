@@ -18,6 +18,7 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2StreamChannel;
 import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.FutureListener;
@@ -26,7 +27,7 @@ import java.net.InetSocketAddress;
 /**
  * @author Jens Wilke
  */
-public class DownstreamHandler extends ChannelDuplexHandler {
+public class DownstreamHandler extends ChannelDuplexHandler implements ReusableHandler {
 
   static final ProxyLogger DEBUG = ProxyLogger.get(DownstreamHandler.class);
 
@@ -43,6 +44,17 @@ public class DownstreamHandler extends ChannelDuplexHandler {
     this.upstream = upstream;
   }
 
+  /** Reusable after the response was sent and the upstream channel was given back */
+  @Override
+  public boolean resetForNextRequest() {
+    if (upstreamChannelFuture != null) {
+      return false;
+    }
+    ingressRequestComplete = false;
+    returnUpstreamToPool = false;
+    return true;
+  }
+
   @Override
   public void channelRead(ChannelHandlerContext ctx, Object msg) {
     if (msg instanceof HttpRequest request) {
@@ -125,12 +137,15 @@ public class DownstreamHandler extends ChannelDuplexHandler {
       ReferenceCountUtil.release(msg);
       Throwable cause = future.cause();
       // TODO: counter!
-      if (cause instanceof IllegalStateException
-          && cause.getMessage() != null
-          && cause.getMessage().contains("Too many outstanding acquire operations")) {
+      if (cause instanceof DefaultUpstream.PoolExhaustedException) {
         completeWithError(ctx, HttpResponseStatus.valueOf(509, "Bandwidth Limit Exceeded"));
         return;
       }
+      if (cause instanceof AdaptiveConcurrencyLimiter.LimitExceededException
+          || cause instanceof BalancedUpstream.NoHealthyTargetException) {
+        completeWithError(ctx, HttpResponseStatus.SERVICE_UNAVAILABLE);
+        return;
+      }
       DEBUG.error(ctx.channel(), "unknown upstream connection problem", future.cause());
       ctx.pipeline().get(RequestLoggingHandler.class).setException(cause);
       completeWithError(ctx, HttpResponseStatus.valueOf(502, "Upstream connection problem"));
@@ -204,7 +219,7 @@ public class DownstreamHandler extends ChannelDuplexHandler {
    */
   @Override
   public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
-    if (upstreamChannelFuture == null || !upstreamChannelFuture.isDone()) {
+    if (upstreamChannelFuture == null || !upstreamChannelFuture.isSuccess()) {
       return;
     }
     if (ctx.channel().isWritable()) {
@@ -212,6 +227,11 @@ public class DownstreamHandler extends ChannelDuplexHandler {
       return;
     }
     upstreamChannelFuture.resultNow().config().setAutoRead(false);
+    if (ctx.channel() instanceof Http2StreamChannel) {
+      // writability of a stream follows the flow control window, no need to flush repeatedly
+      ctx.flush();
+      return;
+    }
     if (flushTask == null) {
       flushTask =
           () ->
@@ -231,19 +251,22 @@ public class DownstreamHandler extends ChannelDuplexHandler {
   }
 
   /**
-   * If the channel becomes inactive, make sure upstream reads are enabled, so upstream read is
-   * completed and the connection is put back into the pool.
-   *
-   * <p>That should work okay for small responses. For longer responses it might be better to close
-   * the upstream channel to avoid transferring data needlessly.
+   * If the channel becomes inactive before the response is complete, the upstream channel is
+   * discarded. The rest of the response is not read, so the upstream connection is not reused, but
+   * the upstream gives back its resources, e.g. the concurrency permit. After the close the
+   * handlers are removed, so the last content would never pass {@link #write}.
    *
    * <p>TODO: track and log if the close was unexpected
    */
   @Override
   public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-    if (upstreamChannelFuture != null && upstreamChannelFuture.isDone()) {
-      upstreamChannelFuture.resultNow().config().setAutoRead(true);
-    }
+    discardUpstream();
+  }
+
+  /** Replaced while a response is outstanding, e.g. when the client pipelines requests */
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    discardUpstream();
   }
 
   /**
@@ -261,6 +284,9 @@ public class DownstreamHandler extends ChannelDuplexHandler {
     if (msg instanceof HttpResponse response) {
       // NGINX will send Connection: close after 100 requests
       returnUpstreamToPool = HttpUtil.isKeepAlive(response);
+      if (upstreamChannelFuture != null && upstreamChannelFuture.isSuccess()) {
+        upstream.responseReceived(upstreamChannelFuture.resultNow(), response);
+      }
       // DEBUG.trace(ctx.channel(), upstreamChannelFuture.resultNow(),
       //  "connection=" + response.headers().get(HttpHeaderNames.CONNECTION) +
       //  ", keepAlive=" + response.headers().get(HttpHeaderNames.KEEP_ALIVE) +
@@ -271,24 +297,58 @@ public class DownstreamHandler extends ChannelDuplexHandler {
     if (msg instanceof LastHttpContent) {
       // we can release upstream channel to pool only as soon as we cleared out
       // the reference here to ensure no more throttling is done
-      if (returnUpstreamToPool) {
+      if (returnUpstreamToPool
+          && upstreamChannelFuture != null
+          && upstreamChannelFuture.isSuccess()) {
         upstream.release(upstreamChannelFuture.resultNow());
+        upstreamChannelFuture = null;
       } else {
-        upstreamChannelFuture.resultNow().close();
+        discardUpstream();
       }
-      upstreamChannelFuture = null;
     }
     super.write(ctx, msg, promise);
   }
 
+  /** An exception from the upstream is passed on, so it counts as failure of the upstream */
   @Override
   public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-    if (upstreamChannelFuture != null && upstreamChannelFuture.isDone()) {
-      upstreamChannelFuture.resultNow().close();
-    }
+    discardUpstream(cause instanceof ForwardHandler.UpstreamException ? cause : null);
     super.exceptionCaught(ctx, cause);
   }
 
+  private void discardUpstream() {
+    discardUpstream(null);
+  }
+
+  /**
+   * Close the upstream channel of the current request, if any. If the upstream is still connecting
+   * or waiting for the concurrency limit, e.g. on an error response, the channel is discarded once
+   * it is there.
+   *
+   * @param upstreamFailure cause if the upstream failed the request or {@code null}
+   */
+  private void discardUpstream(Throwable upstreamFailure) {
+    if (upstreamChannelFuture == null) {
+      return;
+    }
+    if (upstreamChannelFuture.isSuccess()) {
+      if (upstreamFailure != null) {
+        upstream.discard(upstreamChannelFuture.resultNow(), upstreamFailure);
+      } else {
+        upstream.discard(upstreamChannelFuture.resultNow());
+      }
+    } else if (!upstreamChannelFuture.isDone()) {
+      upstreamChannelFuture.addListener(
+          (FutureListener<Channel>)
+              future -> {
+                if (future.isSuccess()) {
+                  upstream.discard(future.resultNow());
+                }
+              });
+    }
+    upstreamChannelFuture = null;
+  }
+
   // TODO: discuss @Sharable
   @Override
   public boolean isSharable() {
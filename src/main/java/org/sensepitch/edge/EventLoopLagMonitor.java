@@ -0,0 +1,138 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import io.prometheus.metrics.core.datapoints.DistributionDataPoint;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the scheduling lag of each event loop. A probe task is scheduled on every event loop and
+ * records how late it runs, together with the depth of the task queue. The state of an event loop
+ * is only written and read within the event loop itself, so no synchronization is needed. A probe
+ * that is overdue counts as lag already, so an event loop that is stuck is detected before the
+ * probe runs.
+ *
+ * @author Jens Wilke
+ */
+public class EventLoopLagMonitor {
+
+  static final int NORMAL = 0;
+  static final int SHED_UNADMITTED = 1;
+  static final int SHED_ALL = 2;
+
+  private final long intervalNanos;
+  private final long lagThresholdNanos;
+  private final long admittedLagThresholdNanos;
+  private final int maxPendingTasks;
+  private final DistributionDataPoint lagHistogram;
+
+  /** Probe per event loop. Not modified after construction. */
+  private final Map<EventLoop, Probe> probes = new IdentityHashMap<>();
+
+  public EventLoopLagMonitor(
+      LoadSheddingConfig cfg, EventLoopGroup eventLoopGroup, ProxyMetrics metrics) {
+    intervalNanos =
+        TimeUnit.MILLISECONDS.toNanos(
+            cfg.probeIntervalMillis() > 0
+                ? cfg.probeIntervalMillis()
+                : LoadSheddingConfig.DEFAULT_PROBE_INTERVAL_MILLIS);
+    lagThresholdNanos =
+        TimeUnit.MILLISECONDS.toNanos(
+            cfg.lagThresholdMillis() > 0
+                ? cfg.lagThresholdMillis()
+                : LoadSheddingConfig.DEFAULT_LAG_THRESHOLD_MILLIS);
+    admittedLagThresholdNanos =
+        Math.max(
+            lagThresholdNanos,
+            TimeUnit.MILLISECONDS.toNanos(
+                cfg.admittedLagThresholdMillis() > 0
+                    ? cfg.admittedLagThresholdMillis()
+                    : LoadSheddingConfig.DEFAULT_ADMITTED_LAG_THRESHOLD_MILLIS));
+    maxPendingTasks =
+        cfg.maxPendingTasks() > 0
+            ? cfg.maxPendingTasks()
+            : LoadSheddingConfig.DEFAULT_MAX_PENDING_TASKS;
+    lagHistogram = metrics.eventLoopLagHistogram;
+    for (EventExecutor executor : eventLoopGroup) {
+      EventLoop eventLoop = (EventLoop) executor;
+      Probe probe = new Probe(eventLoop);
+      probes.put(eventLoop, probe);
+      eventLoop.execute(probe::schedule);
+    }
+  }
+
+  /**
+   * Load level of the event loop, must be called within the event loop.
+   *
+   * @return {@link #NORMAL}, {@link #SHED_UNADMITTED} or {@link #SHED_ALL}
+   */
+  public int level(EventLoop eventLoop) {
+    Probe probe = probes.get(eventLoop);
+    if (probe == null) {
+      return NORMAL;
+    }
+    long lag = probe.lagNanos;
+    if (probe.pending) {
+      lag = Math.max(lag, System.nanoTime() - probe.dueNanos);
+    }
+    if (lag >= admittedLagThresholdNanos) {
+      return SHED_ALL;
+    }
+    if (lag >= lagThresholdNanos || probe.pendingTasks >= maxPendingTasks) {
+      return SHED_UNADMITTED;
+    }
+    return NORMAL;
+  }
+
+  public void close() {
+    for (Probe probe : probes.values()) {
+      probe.eventLoop.execute(probe::cancel);
+    }
+  }
+
+  private final class Probe implements Runnable {
+
+    final EventLoop eventLoop;
+
+    /** A probe is scheduled, {@link #dueNanos} is valid */
+    boolean pending;
+
+    long dueNanos;
+    long lagNanos;
+    int pendingTasks;
+    ScheduledFuture<?> future;
+
+    Probe(EventLoop eventLoop) {
+      this.eventLoop = eventLoop;
+    }
+
+    void schedule() {
+      dueNanos = System.nanoTime() + intervalNanos;
+      pending = true;
+      future = eventLoop.schedule(this, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void cancel() {
+      if (future != null) {
+        future.cancel(false);
+      }
+      pending = false;
+    }
+
+    @Override
+    public void run() {
+      pending = false;
+      lagNanos = Math.max(0, System.nanoTime() - dueNanos);
+      if (eventLoop instanceof SingleThreadEventExecutor executor) {
+        pendingTasks = executor.pendingTasks();
+      }
+      lagHistogram.observe(lagNanos / 1e9);
+      schedule();
+    }
+  }
+}
@@ -10,6 +10,7 @@ import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2StreamChannel;
 import io.netty.handler.ssl.NotSslRecordException;
 import io.netty.handler.ssl.SslClosedEngineException;
 import io.netty.handler.ssl.SslHandshakeCompletionEvent;
@@ -34,6 +35,15 @@ public class ExceptionHandler extends ChannelInboundHandlerAdapter {
     this.metrics = metrics;
   }
 
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    // an HTTP/2 stream is only created after the TLS handshake of the connection
+    if (ctx.channel() instanceof Http2StreamChannel) {
+      sslHandshakeComplete = true;
+    }
+    super.handlerAdded(ctx);
+  }
+
   @Override
   public void userEventTriggered(ChannelHandlerContext ctx, Object event) throws Exception {
     if (event instanceof SslHandshakeCompletionEvent sslEvent) {
@@ -122,6 +132,18 @@ public class ExceptionHandler extends ChannelInboundHandlerAdapter {
     // logging handler does know exact state
     RequestLoggingHandler loggingHandler =
         ctx.channel().pipeline().get(RequestLoggingHandler.class);
+    if (loggingHandler == null) {
+      // HTTP/2 connection, errors within a request are handled in the stream pipeline
+      String phase = "connection";
+      if (connectionReset) {
+        metrics.ingressErrorCounter.labelValues(phase, "reset").inc();
+      } else {
+        metrics.ingressErrorCounter.labelValues(phase, "other").inc();
+        LOG.downstreamError(ctx.channel(), "phase=" + phase, cause);
+      }
+      completeAndClose(ctx);
+      return;
+    }
     loggingHandler.setException(cause);
     String phase;
     if (!loggingHandler.isRequestReceived()) {
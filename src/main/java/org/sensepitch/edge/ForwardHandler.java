@@ -9,6 +9,9 @@ import io.netty.channel.ChannelOption;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2ResetFrame;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.util.ReferenceCountUtil;
 
 /**
  * Handler for upstream communication, receives response from upstream and pass it on downstream
@@ -19,20 +22,39 @@ public class ForwardHandler extends ChannelInboundHandlerAdapter {
 
   static ProxyLogger LOG = ProxyLogger.get(ForwardHandler.class);
   private Channel downstream;
+  private long idleSinceNanos;
 
   public ForwardHandler(Channel ingress) {
     this.downstream = ingress;
   }
 
+  /** Connect a pooled upstream channel to the next ingress. */
+  void attach(Channel ingress) {
+    this.downstream = ingress;
+  }
+
+  /** Upstream channel goes back to the pool. */
+  void detach(long nowNanos) {
+    downstream = null;
+    idleSinceNanos = nowNanos;
+  }
+
+  long getIdleSinceNanos() {
+    return idleSinceNanos;
+  }
+
+  /**
+   * The upstream closed before the response was complete, e.g. before the response head or in the
+   * middle of the body. Fail the request downstream, like on an exception, so the upstream channel
+   * is discarded and the ingress does not wait forever. If the ingress is gone already, there is
+   * nobody to tell.
+   */
   @Override
   public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-    if (downstream != null) {
-      LOG.error(
-          "upstream closed but request still in flight, downstream="
-              + downstream.id()
-              + ", upstream="
-              + ctx.channel().id());
+    if (downstream != null && downstream.isActive()) {
+      exceptionCaught(ctx, new ChannelException("Upstream closed before response was complete"));
     }
+    downstream = null;
     super.channelInactive(ctx);
   }
 
@@ -43,6 +65,8 @@ public class ForwardHandler extends ChannelInboundHandlerAdapter {
           ctx.channel(),
           msg.getClass().getName()
               + " -> downstream is null, getting unexpected data from upstream");
+      ReferenceCountUtil.release(msg);
+      ctx.close();
       return;
     }
     if (msg instanceof HttpResponse) {
@@ -79,9 +103,14 @@ public class ForwardHandler extends ChannelInboundHandlerAdapter {
   /**
    * Flush output to upstream. If we don't stop reading from ingress fast enough it may happen that
    * the output buffer is already filled again when the flush is complete. Issue another flush until
-   * writable again.
+   * writable again. For an HTTP/2 stream, writability follows the flow control window, so a flush
+   * is sufficient.
    */
   void flush(ChannelHandlerContext ctx) {
+    if (ctx.channel() instanceof Http2StreamChannel) {
+      ctx.flush();
+      return;
+    }
     ctx.channel()
         .writeAndFlush(Unpooled.EMPTY_BUFFER)
         .addListener(
@@ -94,6 +123,17 @@ public class ForwardHandler extends ChannelInboundHandlerAdapter {
             });
   }
 
+  /** The upstream reset the HTTP/2 stream, the stream channel will be closed. */
+  @Override
+  public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+    if (evt instanceof Http2ResetFrame reset && downstream != null) {
+      exceptionCaught(
+          ctx, new ChannelException("Upstream stream reset, error code " + reset.errorCode()));
+      return;
+    }
+    super.userEventTriggered(ctx, evt);
+  }
+
   @Override
   public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
     // DEBUG.trace(downstream, ctx.channel(), "upstream read exception closing downstream");
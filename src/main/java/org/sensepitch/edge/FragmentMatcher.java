@@ -0,0 +1,129 @@
+package org.sensepitch.edge;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds whether a text contains one of a fixed set of fragments, using an Aho-Corasick automaton.
+ * The text is scanned once, independent of the number of fragments. The automaton is compiled into
+ * primitive arrays: the transitions of a state are a sorted range in {@code edgeChars} which is
+ * searched binary, on a mismatch the failure link is followed.
+ *
+ * @author Jens Wilke
+ */
+public class FragmentMatcher {
+
+  public static final int NO_MATCH = -1;
+
+  /** Start of the transitions of a state, with one extra entry for the end of the last state */
+  private final int[] edgeStart;
+
+  private final char[] edgeChars;
+  private final int[] edgeTargets;
+  private final int[] failure;
+
+  /** Index of a fragment that ends in this state, directly or via the failure links */
+  private final int[] output;
+
+  /**
+   * @param fragments the index in the list is the match result
+   */
+  public FragmentMatcher(List<String> fragments) {
+    BuildNode root = new BuildNode();
+    for (int i = 0; i < fragments.size(); i++) {
+      String fragment = fragments.get(i);
+      if (fragment.isEmpty()) {
+        throw new IllegalArgumentException("Empty fragment");
+      }
+      BuildNode node = root;
+      for (int j = 0; j < fragment.length(); j++) {
+        node = node.children.computeIfAbsent(fragment.charAt(j), k -> new BuildNode());
+      }
+      if (node.output == NO_MATCH) {
+        node.output = i;
+      }
+    }
+    List<BuildNode> states = new ArrayList<>();
+    ArrayDeque<BuildNode> queue = new ArrayDeque<>();
+    root.id = 0;
+    states.add(root);
+    queue.add(root);
+    int edgeCount = 0;
+    while (!queue.isEmpty()) {
+      BuildNode node = queue.poll();
+      for (Map.Entry<Character, BuildNode> entry : node.children.entrySet()) {
+        BuildNode child = entry.getValue();
+        BuildNode fail = node.failure;
+        while (fail != null && !fail.children.containsKey(entry.getKey())) {
+          fail = fail.failure;
+        }
+        child.failure = fail == null ? root : fail.children.get(entry.getKey());
+        if (child.output == NO_MATCH) {
+          child.output = child.failure.output;
+        }
+        child.id = states.size();
+        states.add(child);
+        queue.add(child);
+        edgeCount++;
+      }
+    }
+    edgeStart = new int[states.size() + 1];
+    edgeChars = new char[edgeCount];
+    edgeTargets = new int[edgeCount];
+    failure = new int[states.size()];
+    output = new int[states.size()];
+    int edge = 0;
+    for (BuildNode node : states) {
+      edgeStart[node.id] = edge;
+      failure[node.id] = node.failure == null ? 0 : node.failure.id;
+      output[node.id] = node.output;
+      for (Map.Entry<Character, BuildNode> entry : node.children.entrySet()) {
+        edgeChars[edge] = entry.getKey();
+        edgeTargets[edge] = entry.getValue().id;
+        edge++;
+      }
+    }
+    edgeStart[states.size()] = edge;
+  }
+
+  public boolean matches(CharSequence text) {
+    return match(text) != NO_MATCH;
+  }
+
+  /**
+   * @return index of the first fragment found in the text or {@link #NO_MATCH}
+   */
+  public int match(CharSequence text) {
+    int state = 0;
+    int length = text.length();
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      int next;
+      while ((next = transition(state, c)) < 0 && state != 0) {
+        state = failure[state];
+      }
+      state = Math.max(next, 0);
+      if (output[state] != NO_MATCH) {
+        return output[state];
+      }
+    }
+    return NO_MATCH;
+  }
+
+  private int transition(int state, char c) {
+    int idx = Arrays.binarySearch(edgeChars, edgeStart[state], edgeStart[state + 1], c);
+    return idx < 0 ? -1 : edgeTargets[idx];
+  }
+
+  /** Mutable trie node while building, the tree map keeps the transitions sorted */
+  private static final class BuildNode {
+    final TreeMap<Character, BuildNode> children = new TreeMap<>();
+    BuildNode failure;
+    int output = NO_MATCH;
+    int id;
+  }
+}
@@ -0,0 +1,77 @@
+package org.sensepitch.edge;
+
+/**
+ * Approximate access frequency of keys in a count-min sketch with four bit counters, as used by the
+ * TinyLFU admission policy. Each {@code long} holds sixteen counters, four for each of the four
+ * hash functions. When the number of increments reaches ten times the table size all counters are
+ * halved, so the frequency reflects recent history. Not thread safe.
+ *
+ * @author Jens Wilke
+ */
+public class FrequencySketch {
+
+  private static final long[] SEEDS = {
+    0x9e3779b97f4a7c15L, 0xbf58476d1ce4e5b9L, 0x94d049bb133111ebL, 0xd6e8feb86659fd93L
+  };
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  private final long[] table;
+  private final int mask;
+  private final int sampleSize;
+  private int additions;
+
+  /**
+   * @param expectedEntries number of distinct keys expected in the cache, rounded up to the next
+   *     power of two
+   */
+  public FrequencySketch(int expectedEntries) {
+    int size = Integer.highestOneBit(Math.max(16, expectedEntries) - 1) << 1;
+    table = new long[size];
+    mask = size - 1;
+    sampleSize = size * 10;
+  }
+
+  /** Estimated frequency between 0 and 15. */
+  public int frequency(int hash) {
+    int min = 15;
+    for (int i = 0; i < 4; i++) {
+      long h = rehash(hash, i);
+      int shift = counterShift(h, i);
+      min = Math.min(min, (int) ((table[(int) h & mask] >>> shift) & 0xf));
+    }
+    return min;
+  }
+
+  public void increment(int hash) {
+    boolean added = false;
+    for (int i = 0; i < 4; i++) {
+      long h = rehash(hash, i);
+      int index = (int) h & mask;
+      int shift = counterShift(h, i);
+      if (((table[index] >>> shift) & 0xf) < 15) {
+        table[index] += 1L << shift;
+        added = true;
+      }
+    }
+    if (added && ++additions == sampleSize) {
+      reset();
+    }
+  }
+
+  private void reset() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    additions >>>= 1;
+  }
+
+  private static long rehash(int hash, int i) {
+    long h = (hash + SEEDS[i]) * SEEDS[(i + 1) & 3];
+    return h ^ (h >>> 32);
+  }
+
+  /** Counters 4i to 4i+3 of a long belong to hash function i. */
+  private static int counterShift(long h, int i) {
+    return ((i << 2) + (int) ((h >>> 40) & 3)) << 2;
+  }
+}
@@ -0,0 +1,40 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * Health tracking of the upstream targets. A target is ejected after consecutive failures, which
+ * are connect failures, connections reset before the response and responses with status 5xx.
+ * Requests go to the remaining targets, or are answered with status 503 if all targets are ejected.
+ * An ejected target is admitted again after the ejection time, which doubles with every ejection in
+ * a row, up to the maximum. A successful request resets the ejection time.
+ *
+ * @param path if set, each target is probed actively with a {@code GET} request of this path. A
+ *     response below status 500 admits an ejected target immediately, a failed probe counts as
+ *     failure.
+ * @param intervalMillis time between active probes, default {@value #DEFAULT_INTERVAL_MILLIS}
+ * @param timeoutMillis time for a probe to complete, default {@value #DEFAULT_TIMEOUT_MILLIS}
+ * @param consecutiveFailures failures in a row that eject a target, default {@value
+ *     #DEFAULT_CONSECUTIVE_FAILURES}
+ * @param baseEjectionMillis ejection time of the first ejection, default {@value
+ *     #DEFAULT_BASE_EJECTION_MILLIS}
+ * @param maxEjectionMillis maximum ejection time, default {@value #DEFAULT_MAX_EJECTION_MILLIS}
+ * @param disable no health tracking, same as without this configuration
+ * @author Jens Wilke
+ */
+@Builder(toBuilder = true)
+public record HealthCheckConfig(
+    String path,
+    int intervalMillis,
+    int timeoutMillis,
+    int consecutiveFailures,
+    int baseEjectionMillis,
+    int maxEjectionMillis,
+    boolean disable) {
+
+  public static final int DEFAULT_INTERVAL_MILLIS = 5000;
+  public static final int DEFAULT_TIMEOUT_MILLIS = 2000;
+  public static final int DEFAULT_CONSECUTIVE_FAILURES = 5;
+  public static final int DEFAULT_BASE_EJECTION_MILLIS = 10_000;
+  public static final int DEFAULT_MAX_EJECTION_MILLIS = 300_000;
+}
@@ -0,0 +1,47 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * Detection of clients with a high request volume, see {@link HeavyHitterDetector}. Requests are
+ * counted per IP prefix, per ASN and per admission token over a sliding time window. A client that
+ * exceeds a limit is challenged again, even with a valid admission token, or receives a cheap
+ * {@code 429} response.
+ *
+ * @param windowSeconds length of a sub-window, default is {@value DEFAULT_WINDOW_SECONDS}
+ * @param windows number of sub-windows forming the sliding window, default is {@value
+ *     DEFAULT_WINDOWS}
+ * @param width counters per hash function of the count-min sketch, rounded up to a power of two,
+ *     default is {@value DEFAULT_WIDTH}
+ * @param topK number of heavy hitter candidates tracked per event loop and sub-window, default is
+ *     {@value DEFAULT_TOP_K}
+ * @param maxRequestsPerIpPrefix limit for an IPv4 /24 or IPv6 /48 prefix in the sliding window,
+ *     default is {@value DEFAULT_MAX_REQUESTS_PER_IP_PREFIX}
+ * @param maxRequestsPerAsn limit for an ASN in the sliding window, default is no limit. An ASN of a
+ *     large provider carries the traffic of many users, so the limit needs to be sized to the
+ *     traffic of the site
+ * @param maxRequestsPerToken limit for an admission token in the sliding window, default is {@value
+ *     DEFAULT_MAX_REQUESTS_PER_TOKEN}
+ * @param reject respond with {@code 429} instead of the challenge page
+ * @author Jens Wilke
+ */
+@Builder(toBuilder = true)
+public record HeavyHitterConfig(
+    int windowSeconds,
+    int windows,
+    int width,
+    int topK,
+    int maxRequestsPerIpPrefix,
+    int maxRequestsPerAsn,
+    int maxRequestsPerToken,
+    boolean reject) {
+
+  public static final int DEFAULT_WINDOW_SECONDS = 10;
+  public static final int DEFAULT_WINDOWS = 6;
+  public static final int DEFAULT_WIDTH = 2048;
+  public static final int DEFAULT_TOP_K = 32;
+  public static final int DEFAULT_MAX_REQUESTS_PER_IP_PREFIX = 3000;
+  public static final int DEFAULT_MAX_REQUESTS_PER_TOKEN = 1200;
+
+  public static final HeavyHitterConfig DEFAULT = builder().build();
+}
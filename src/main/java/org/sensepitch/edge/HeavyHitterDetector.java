@@ -0,0 +1,291 @@
+package org.sensepitch.edge;
+
+import io.netty.util.concurrent.FastThreadLocal;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Finds the keys with the highest request volume in a sliding time window, using a count-min sketch
+ * for the counts and Space-Saving for the top-K candidates. Memory use is fixed, no matter how many
+ * distinct keys are seen.
+ *
+ * <p>Counting is lock-free: each event loop thread counts into its own sketch and candidate list.
+ * When a sub-window ends, the thread adds its counts to the shared sketch of that sub-window and
+ * hands over its candidates. The first thread that enters a new sub-window merges: it sums the
+ * shared sketches of the sliding window for each candidate and publishes the keys above their limit
+ * as a sorted array. A lookup of the verdict is a binary search in this array, in addition the
+ * local count of the current sub-window is checked, so a flood is detected before the next merge.
+ *
+ * <p>Keys are 64 bit values with the kind in the top byte, see {@link #ipPrefixKey}, {@link
+ * #asnKey} and {@link #tokenKey}. Counts are approximate, a late thread may lose its counts of a
+ * sub-window.
+ *
+ * @author Jens Wilke
+ */
+public class HeavyHitterDetector {
+
+  static final int DEPTH = 4;
+  static final int KIND_IP_PREFIX = 1;
+  static final int KIND_ASN = 2;
+  static final int KIND_TOKEN = 3;
+
+  private static final long[] SEEDS = {
+    0x9e3779b97f4a7c15L, 0xbf58476d1ce4e5b9L, 0x94d049bb133111ebL, 0xd6e8feb86659fd93L
+  };
+
+  private final long windowNanos;
+  private final int windows;
+  private final int width;
+  private final int topK;
+
+  /** Limit per key kind, indexed by the kind */
+  private final int[] limits = new int[4];
+
+  private final LongSupplier clock;
+
+  /** Shared sketch per sub-window, indexed by epoch modulo windows */
+  private final AtomicIntegerArray[] ring;
+
+  /** Sub-window of the last merge */
+  private final AtomicLong mergedEpoch = new AtomicLong(Long.MIN_VALUE);
+
+  /** Candidates handed over by the threads since the last merge */
+  private final ConcurrentLinkedQueue<long[]> candidates = new ConcurrentLinkedQueue<>();
+
+  /** Keys above their limit, sorted */
+  private volatile long[] heavyKeys = new long[0];
+
+  private final FastThreadLocal<Local> local =
+      new FastThreadLocal<>() {
+        @Override
+        protected Local initialValue() {
+          return new Local();
+        }
+      };
+
+  public HeavyHitterDetector(HeavyHitterConfig cfg) {
+    this(cfg, System::nanoTime);
+  }
+
+  HeavyHitterDetector(HeavyHitterConfig cfg, LongSupplier clock) {
+    this.clock = clock;
+    windowNanos =
+        TimeUnit.SECONDS.toNanos(
+            cfg.windowSeconds() > 0
+                ? cfg.windowSeconds()
+                : HeavyHitterConfig.DEFAULT_WINDOW_SECONDS);
+    windows = cfg.windows() > 0 ? cfg.windows() : HeavyHitterConfig.DEFAULT_WINDOWS;
+    int w = cfg.width() > 0 ? cfg.width() : HeavyHitterConfig.DEFAULT_WIDTH;
+    width = Integer.highestOneBit(Math.max(16, w) - 1) << 1;
+    topK = cfg.topK() > 0 ? cfg.topK() : HeavyHitterConfig.DEFAULT_TOP_K;
+    limits[KIND_IP_PREFIX] =
+        cfg.maxRequestsPerIpPrefix() > 0
+            ? cfg.maxRequestsPerIpPrefix()
+            : HeavyHitterConfig.DEFAULT_MAX_REQUESTS_PER_IP_PREFIX;
+    limits[KIND_ASN] = cfg.maxRequestsPerAsn() > 0 ? cfg.maxRequestsPerAsn() : Integer.MAX_VALUE;
+    limits[KIND_TOKEN] =
+        cfg.maxRequestsPerToken() > 0
+            ? cfg.maxRequestsPerToken()
+            : HeavyHitterConfig.DEFAULT_MAX_REQUESTS_PER_TOKEN;
+    ring = new AtomicIntegerArray[windows];
+    for (int i = 0; i < windows; i++) {
+      ring[i] = new AtomicIntegerArray(DEPTH * width);
+    }
+  }
+
+  /** Key for the IPv4 /24 or IPv6 /48 prefix of the address */
+  public static long ipPrefixKey(InetAddress address) {
+    byte[] bytes = address.getAddress();
+    long prefix;
+    if (address instanceof Inet4Address) {
+      prefix = ((bytes[0] & 0xffL) << 16) | ((bytes[1] & 0xffL) << 8) | (bytes[2] & 0xffL);
+    } else {
+      prefix = 1L << 48;
+      for (int i = 0; i < 6; i++) {
+        prefix |= (bytes[i] & 0xffL) << (40 - i * 8);
+      }
+    }
+    return withKind(KIND_IP_PREFIX, prefix);
+  }
+
+  public static long asnKey(long asn) {
+    return withKind(KIND_ASN, asn);
+  }
+
+  public static long tokenKey(CharSequence token) {
+    long h = 0;
+    for (int i = 0; i < token.length(); i++) {
+      h = 31 * h + token.charAt(i);
+    }
+    return withKind(KIND_TOKEN, mix(h));
+  }
+
+  private static long withKind(int kind, long value) {
+    return ((long) kind << 56) | (value & 0x00ffffffffffffffL);
+  }
+
+  /**
+   * Count a request of the key.
+   *
+   * @return true, if the key is above its limit
+   */
+  public boolean recordAndCheck(long key) {
+    long epoch = clock.getAsLong() / windowNanos;
+    Local l = local.get();
+    if (l.epoch != epoch) {
+      flush(l);
+      l.reset(epoch);
+      long merged = mergedEpoch.get();
+      if (merged < epoch && mergedEpoch.compareAndSet(merged, epoch)) {
+        merge(merged, epoch);
+      }
+    }
+    int localCount = l.increment(key);
+    return localCount > limits[kind(key)] || Arrays.binarySearch(heavyKeys, key) >= 0;
+  }
+
+  /** True, if the key was above its limit at the last merge */
+  public boolean isHeavy(long key) {
+    return Arrays.binarySearch(heavyKeys, key) >= 0;
+  }
+
+  /** False, if there is no limit per ASN and ASN keys need no counting */
+  public boolean limitsAsn() {
+    return limits[KIND_ASN] != Integer.MAX_VALUE;
+  }
+
+  /** Retry delay for a rejected client, the time until the key leaves the sliding window */
+  public long windowSeconds() {
+    return TimeUnit.NANOSECONDS.toSeconds(windowNanos * windows);
+  }
+
+  private static int kind(long key) {
+    return (int) (key >>> 56);
+  }
+
+  /** Add the local counts to the shared sketch of the sub-window and hand over the candidates */
+  private void flush(Local l) {
+    if (l.size == 0 || l.epoch + windows <= mergedEpoch.get()) {
+      return;
+    }
+    AtomicIntegerArray shared = ring[(int) Math.floorMod(l.epoch, (long) windows)];
+    int[] counts = l.counts;
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] != 0) {
+        shared.addAndGet(i, counts[i]);
+      }
+    }
+    candidates.add(Arrays.copyOf(l.keys, l.size));
+  }
+
+  /**
+   * Clear the shared sketches that are reused, then estimate the candidates and the previous heavy
+   * keys over the sliding window. Sub-windows between the last merge and this one had no requests,
+   * their sketches are cleared as well.
+   */
+  private void merge(long previous, long epoch) {
+    long first = previous == Long.MIN_VALUE ? epoch : Math.max(previous + 1, epoch - windows + 1);
+    for (long e = first; e <= epoch; e++) {
+      AtomicIntegerArray reused = ring[(int) Math.floorMod(e, (long) windows)];
+      for (int i = 0; i < reused.length(); i++) {
+        reused.set(i, 0);
+      }
+    }
+    long[] keys = heavyKeys;
+    long[] batch;
+    while ((batch = candidates.poll()) != null) {
+      int n = keys.length;
+      keys = Arrays.copyOf(keys, n + batch.length);
+      System.arraycopy(batch, 0, keys, n, batch.length);
+    }
+    Arrays.sort(keys);
+    long[] heavy = new long[keys.length];
+    int count = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (i > 0 && keys[i] == keys[i - 1]) {
+        continue;
+      }
+      if (estimate(keys[i]) > limits[kind(keys[i])]) {
+        heavy[count++] = keys[i];
+      }
+    }
+    heavyKeys = Arrays.copyOf(heavy, count);
+  }
+
+  /** Count-min estimate over all sub-windows */
+  int estimate(long key) {
+    int min = Integer.MAX_VALUE;
+    for (int d = 0; d < DEPTH; d++) {
+      int index = index(key, d);
+      int sum = 0;
+      for (AtomicIntegerArray shared : ring) {
+        sum += shared.get(index);
+      }
+      min = Math.min(min, sum);
+    }
+    return min;
+  }
+
+  private int index(long key, int d) {
+    return d * width + (int) (mix(key + SEEDS[d]) & (width - 1));
+  }
+
+  private static long mix(long h) {
+    h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+    h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return h ^ (h >>> 33);
+  }
+
+  /** Counts of one thread in the current sub-window */
+  private final class Local {
+    long epoch = Long.MIN_VALUE;
+    final int[] counts = new int[DEPTH * width];
+
+    /** Space-Saving candidates, the count includes the overestimation of a replaced key */
+    final long[] keys = new long[topK];
+
+    final int[] keyCounts = new int[topK];
+    int size;
+
+    void reset(long epoch) {
+      this.epoch = epoch;
+      Arrays.fill(counts, 0);
+      size = 0;
+    }
+
+    /**
+     * @return count-min estimate of the key in this sub-window
+     */
+    int increment(long key) {
+      int min = Integer.MAX_VALUE;
+      for (int d = 0; d < DEPTH; d++) {
+        int index = index(key, d);
+        min = Math.min(min, ++counts[index]);
+      }
+      int minSlot = 0;
+      for (int i = 0; i < size; i++) {
+        if (keys[i] == key) {
+          keyCounts[i]++;
+          return min;
+        }
+        if (keyCounts[i] < keyCounts[minSlot]) {
+          minSlot = i;
+        }
+      }
+      if (size < topK) {
+        keys[size] = key;
+        keyCounts[size++] = 1;
+      } else {
+        keys[minSlot] = key;
+        keyCounts[minSlot]++;
+      }
+      return min;
+    }
+  }
+}
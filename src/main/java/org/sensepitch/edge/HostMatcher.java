@@ -0,0 +1,167 @@
+package org.sensepitch.edge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Matches a host name against a fixed list of host names and wildcard patterns like {@code
+ * *.example.com}. A wildcard matches any number of additional labels, like in NGINX. An exact host
+ * wins over a wildcard and a longer wildcard over a shorter one. A single {@code *} matches every
+ * host.
+ *
+ * <p>The patterns are compiled into a trie of the host labels in reversed order, e.g. {@code com},
+ * {@code example}, {@code www}. The children of a node are a sorted array searched binary, so a
+ * lookup walks the labels of the host from right to left without allocating, and its cost depends
+ * on the number of labels, not on the number of hosts. Comparison ignores the ASCII case.
+ *
+ * @author Jens Wilke
+ */
+public class HostMatcher {
+
+  public static final int NO_MATCH = -1;
+
+  private final Node root;
+
+  /**
+   * @param hosts host names and wildcard patterns, the index in the list is the match result
+   * @throws IllegalArgumentException if a host is listed twice
+   */
+  public HostMatcher(List<String> hosts) {
+    BuildNode buildRoot = new BuildNode();
+    for (int i = 0; i < hosts.size(); i++) {
+      String host = hosts.get(i).toLowerCase(Locale.ROOT);
+      boolean wildcard = false;
+      if (host.equals("*")) {
+        host = "";
+        wildcard = true;
+      } else if (host.startsWith("*.")) {
+        host = host.substring(2);
+        wildcard = true;
+      }
+      if (host.contains("*")) {
+        throw new IllegalArgumentException("Only a leading wildcard label is supported: " + host);
+      }
+      BuildNode node = buildRoot;
+      if (!host.isEmpty()) {
+        String[] labels = host.split("\\.", -1);
+        for (int j = labels.length - 1; j >= 0; j--) {
+          node = node.children.computeIfAbsent(labels[j], k -> new BuildNode());
+        }
+      }
+      int previous = wildcard ? node.wildcard : node.exact;
+      if (previous != NO_MATCH) {
+        throw new IllegalArgumentException("Duplicate host: " + hosts.get(i));
+      }
+      if (wildcard) {
+        node.wildcard = i;
+      } else {
+        node.exact = i;
+      }
+    }
+    root = buildRoot.compile();
+  }
+
+  /** Convenience for a set of hosts that only need a yes or no answer */
+  public static HostMatcher of(Iterable<String> hosts) {
+    List<String> list = new ArrayList<>();
+    hosts.forEach(list::add);
+    return new HostMatcher(list);
+  }
+
+  public boolean matches(String host) {
+    return match(host) != NO_MATCH;
+  }
+
+  /**
+   * @return index of the most specific matching host or {@link #NO_MATCH}
+   */
+  public int match(String host) {
+    if (host == null || host.isEmpty()) {
+      return NO_MATCH;
+    }
+    Node node = root;
+    int best = NO_MATCH;
+    int end = host.length();
+    for (; ; ) {
+      if (node.wildcard != NO_MATCH) {
+        best = node.wildcard;
+      }
+      int dot = host.lastIndexOf('.', end - 1);
+      Node child = node.find(host, dot + 1, end);
+      if (child == null) {
+        return best;
+      }
+      if (dot < 0) {
+        return child.exact != NO_MATCH ? child.exact : best;
+      }
+      node = child;
+      end = dot;
+    }
+  }
+
+  /** Compare a region of the host with a lower case label, ignoring ASCII case */
+  private static int compare(String host, int start, int end, String label) {
+    int len = Math.min(end - start, label.length());
+    for (int i = 0; i < len; i++) {
+      char c = host.charAt(start + i);
+      if (c >= 'A' && c <= 'Z') {
+        c += 'a' - 'A';
+      }
+      int diff = c - label.charAt(i);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return (end - start) - label.length();
+  }
+
+  private static final class Node {
+    final String[] labels;
+    final Node[] children;
+    final int exact;
+    final int wildcard;
+
+    Node(String[] labels, Node[] children, int exact, int wildcard) {
+      this.labels = labels;
+      this.children = children;
+      this.exact = exact;
+      this.wildcard = wildcard;
+    }
+
+    Node find(String host, int start, int end) {
+      int low = 0;
+      int high = labels.length - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int cmp = compare(host, start, end, labels[mid]);
+        if (cmp > 0) {
+          low = mid + 1;
+        } else if (cmp < 0) {
+          high = mid - 1;
+        } else {
+          return children[mid];
+        }
+      }
+      return null;
+    }
+  }
+
+  /** Mutable node while building, the tree map keeps the labels sorted */
+  private static final class BuildNode {
+    final Map<String, BuildNode> children = new TreeMap<>();
+    int exact = NO_MATCH;
+    int wildcard = NO_MATCH;
+
+    Node compile() {
+      String[] labels = children.keySet().toArray(new String[0]);
+      Node[] nodes = new Node[labels.length];
+      for (int i = 0; i < labels.length; i++) {
+        nodes[i] = children.get(labels[i]).compile();
+      }
+      return new Node(labels, nodes, exact, wildcard);
+    }
+  }
+}
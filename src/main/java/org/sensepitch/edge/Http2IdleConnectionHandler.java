@@ -0,0 +1,30 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+
+/**
+ * Closes an HTTP/2 connection which had no traffic and no active streams for the read timeout.
+ * Timeouts of the individual requests are handled by the {@link IngressTimeoutHandler} within each
+ * stream, this covers the keep alive phase of the connection.
+ *
+ * @author Jens Wilke
+ */
+public class Http2IdleConnectionHandler extends IdleStateHandler {
+
+  public Http2IdleConnectionHandler(ConnectionConfig config) {
+    super(0, 0, config.readTimeoutSeconds());
+  }
+
+  @Override
+  protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent evt) {
+    Http2FrameCodec codec = ctx.pipeline().get(Http2FrameCodec.class);
+    if (codec != null && codec.connection().numActiveStreams() > 0) {
+      return;
+    }
+    // Http2FrameCodec sends a GOAWAY before closing
+    ctx.close();
+  }
+}
@@ -0,0 +1,46 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http2.Http2StreamFrame;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import java.util.List;
+
+/**
+ * Translates the frames of an HTTP/2 stream to HTTP/1.1 objects, so the stream can be handled by
+ * the same handler chain as an HTTP/1.1 connection. Used for ingress streams and for upstream
+ * streams. The conversion adds extension headers, like {@code x-http2-stream-id}, which are only
+ * meaningful within this connection. These are removed, so they don't end up in the upstream
+ * request or in the response to the client.
+ *
+ * @author Jens Wilke
+ */
+@ChannelHandler.Sharable
+public class Http2StreamToHttpCodec extends Http2StreamFrameToHttpObjectCodec {
+
+  public Http2StreamToHttpCodec(boolean isServer) {
+    super(isServer);
+  }
+
+  @Override
+  protected void decode(ChannelHandlerContext ctx, Http2StreamFrame frame, List<Object> out)
+      throws Exception {
+    int start = out.size();
+    super.decode(ctx, frame, out);
+    for (int i = start; i < out.size(); i++) {
+      if (out.get(i) instanceof HttpMessage message) {
+        removeExtensionHeaders(message.headers());
+      }
+    }
+  }
+
+  static void removeExtensionHeaders(HttpHeaders headers) {
+    for (HttpConversionUtil.ExtensionHeaderNames name :
+        HttpConversionUtil.ExtensionHeaderNames.values()) {
+      headers.remove(name.text());
+    }
+  }
+}
@@ -0,0 +1,307 @@
+package org.sensepitch.edge;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelException;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Talks HTTP/2 without TLS (h2c with prior knowledge) to the upstream. Every request is sent as a
+ * stream, so many requests share a few upstream connections. Like {@link DefaultUpstream} the
+ * connections are kept per event loop and used only by ingress channels of the same event loop.
+ *
+ * <p>The upstream channel handed out by {@link #connect(ChannelHandlerContext)} is the stream
+ * channel, which reads and writes HTTP/1.1 objects. Writability of the stream channel follows the
+ * HTTP/2 flow control window, and turning off auto read of the stream channel stops sending window
+ * updates to the upstream. So back pressure between ingress and upstream works the same as with
+ * HTTP/1.1 upstream connections.
+ *
+ * @author Jens Wilke
+ */
+public class Http2Upstream implements Upstream {
+
+  private static final ProxyLogger LOG = ProxyLogger.get(Http2Upstream.class);
+
+  private final Http2StreamToHttpCodec streamCodec = new Http2StreamToHttpCodec(false);
+  private final Bootstrap bootstrap;
+  private final TargetAddresses addresses;
+  private final ConnectionPoolConfig poolCfg;
+  private final int maxConcurrentStreams;
+
+  /** Pool per event loop of the ingress group. Not modified after construction. */
+  private final Map<EventLoop, LocalPool> pools = new IdentityHashMap<>();
+
+  public Http2Upstream(ProxyContext ctx, UpstreamConfig cfg) {
+    this(ctx, cfg, TargetAddresses.of(ctx, cfg));
+  }
+
+  public Http2Upstream(ProxyContext ctx, UpstreamConfig cfg, TargetAddresses addresses) {
+    this.addresses = addresses;
+    poolCfg = cfg.connectionPool() != null ? cfg.connectionPool() : ConnectionPoolConfig.DEFAULT;
+    maxConcurrentStreams =
+        cfg.http2MaxConcurrentStreams() > 0
+            ? cfg.http2MaxConcurrentStreams()
+            : UpstreamConfig.DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS;
+    bootstrap = DefaultUpstream.newBootstrap(ctx);
+    for (EventExecutor executor : ctx.eventLoopGroup()) {
+      EventLoop eventLoop = (EventLoop) executor;
+      pools.put(eventLoop, new LocalPool(eventLoop));
+    }
+  }
+
+  @Override
+  public Future<Channel> connect(ChannelHandlerContext ingressCtx) {
+    Channel ingress = ingressCtx.channel();
+    LocalPool pool = pools.get(ingress.eventLoop());
+    if (pool == null) {
+      return ingressCtx
+          .executor()
+          .newFailedFuture(
+              new IllegalStateException("Ingress channel not within proxy event loop group"));
+    }
+    return pool.acquire(ingress);
+  }
+
+  /**
+   * Closing the stream channel after the response is complete does not reset the stream. If the
+   * response is complete, but the request is still sending, the stream is reset, which is correct.
+   */
+  @Override
+  public void release(Channel ch) {
+    ch.close();
+  }
+
+  /**
+   * Upstream connections of one event loop. All methods are called within the event loop, so there
+   * is no locking. New streams go to the first connection with capacity, so with less load the
+   * later connections become idle and are closed.
+   */
+  class LocalPool {
+
+    private final EventLoop eventLoop;
+    private final Bootstrap loopBootstrap;
+    private final List<Connection> connections = new ArrayList<>();
+    private final long idleTimeoutNanos;
+
+    /** Selects the target address of the next connection */
+    private int connectSequence;
+
+    LocalPool(EventLoop eventLoop) {
+      this.eventLoop = eventLoop;
+      loopBootstrap = bootstrap.clone(eventLoop);
+      idleTimeoutNanos = TimeUnit.SECONDS.toNanos(poolCfg.idleTimeoutSeconds());
+      if (!poolCfg.disable() && poolCfg.idleTimeoutSeconds() > 0) {
+        long checkInterval = Math.max(1, poolCfg.idleTimeoutSeconds() / 2);
+        eventLoop.scheduleWithFixedDelay(
+            this::closeIdleConnections, checkInterval, checkInterval, TimeUnit.SECONDS);
+      }
+    }
+
+    Future<Channel> acquire(Channel ingress) {
+      for (Connection connection : connections) {
+        if (connection.hasCapacity()) {
+          return connection.openStream(ingress);
+        }
+      }
+      if (poolCfg.maxSize() > 0 && connections.size() >= poolCfg.maxSize()) {
+        return eventLoop.newFailedFuture(new DefaultUpstream.PoolExhaustedException());
+      }
+      InetSocketAddress address = addresses.select(connectSequence++);
+      if (address == null) {
+        return DefaultUpstream.unresolved(eventLoop, addresses);
+      }
+      Connection connection = new Connection(this, address);
+      connections.add(connection);
+      return connection.openStream(ingress);
+    }
+
+    void closeIdleConnections() {
+      long now = eventLoop.ticker().nanoTime();
+      for (Connection connection : new ArrayList<>(connections)) {
+        if (connection.streams == 0 && now - connection.idleSinceNanos >= idleTimeoutNanos) {
+          connection.channel().close();
+        }
+      }
+    }
+  }
+
+  /** Upstream connection with the number of streams in use. */
+  class Connection extends ChannelInboundHandlerAdapter {
+
+    private final LocalPool pool;
+    private final Channel channel;
+
+    /**
+     * Completes when the connection preface is sent. The connect future completes before the
+     * channel is active and the HTTP/2 codec sends the preface.
+     */
+    private final Promise<Channel> ready;
+
+    private int streams;
+    private long idleSinceNanos;
+
+    Connection(LocalPool pool, InetSocketAddress address) {
+      this.pool = pool;
+      ready = pool.eventLoop.newPromise();
+      ChannelFuture connectFuture =
+          pool.loopBootstrap
+              .clone()
+              .remoteAddress(address)
+              .handler(
+                  new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                      ch.pipeline()
+                          .addLast(
+                              Http2FrameCodecBuilder.forClient()
+                                  .initialSettings(
+                                      Http2Settings.defaultSettings().pushEnabled(false))
+                                  .build());
+                      ch.pipeline().addLast(new Http2MultiplexHandler(RejectPushHandler.INSTANCE));
+                      ch.pipeline().addLast(Connection.this);
+                    }
+                  })
+              .connect();
+      channel = connectFuture.channel();
+      connectFuture.addListener(
+          (ChannelFutureListener)
+              future -> {
+                if (!future.isSuccess()) {
+                  ready.tryFailure(future.cause());
+                }
+              });
+      channel.closeFuture().addListener(future -> pool.connections.remove(this));
+    }
+
+    Channel channel() {
+      return channel;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+      super.channelActive(ctx);
+      ready.trySuccess(ctx.channel());
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+      ready.tryFailure(new ChannelException("Upstream connection closed"));
+      super.channelInactive(ctx);
+    }
+
+    /**
+     * Errors on the connection level. Errors within a stream are propagated to the ingress by the
+     * {@link ForwardHandler}.
+     */
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      LOG.upstreamError(ctx.channel(), "h2c connection", cause);
+      ctx.close();
+    }
+
+    /**
+     * True, if another stream can be opened. While connecting, the stream limit announced by the
+     * upstream is not yet known, so our limit applies.
+     */
+    boolean hasCapacity() {
+      if (poolCfg.disable() && streams > 0) {
+        return false;
+      }
+      if (!ready.isDone()) {
+        return streams < maxConcurrentStreams;
+      }
+      if (!channel.isActive()) {
+        return false;
+      }
+      Http2FrameCodec codec = channel.pipeline().get(Http2FrameCodec.class);
+      if (codec == null || codec.connection().goAwayReceived()) {
+        return false;
+      }
+      int limit = Math.min(maxConcurrentStreams, codec.connection().local().maxActiveStreams());
+      return streams < limit;
+    }
+
+    Future<Channel> openStream(Channel ingress) {
+      streams++;
+      Promise<Channel> promise = pool.eventLoop.newPromise();
+      ready.addListener(
+          (FutureListener<Channel>)
+              readyFuture -> {
+                if (!readyFuture.isSuccess()) {
+                  streamClosed();
+                  promise.setFailure(readyFuture.cause());
+                  return;
+                }
+                new Http2StreamChannelBootstrap(channel)
+                    .handler(
+                        new ChannelInitializer<Http2StreamChannel>() {
+                          @Override
+                          protected void initChannel(Http2StreamChannel ch) {
+                            ch.pipeline().addLast(streamCodec);
+                            ch.pipeline().addLast("forward", new ForwardHandler(ingress));
+                          }
+                        })
+                    .open()
+                    .addListener(
+                        (FutureListener<Http2StreamChannel>)
+                            future -> {
+                              if (future.isSuccess()) {
+                                future
+                                    .getNow()
+                                    .closeFuture()
+                                    .addListener(closeFuture -> streamClosed());
+                                promise.setSuccess(future.getNow());
+                              } else {
+                                streamClosed();
+                                promise.setFailure(future.cause());
+                              }
+                            });
+              });
+      return promise;
+    }
+
+    private void streamClosed() {
+      if (--streams == 0) {
+        idleSinceNanos = pool.eventLoop.ticker().nanoTime();
+        if (poolCfg.disable()) {
+          channel.close();
+        }
+      }
+    }
+  }
+
+  /** We disable push in the settings, a stream initiated by the upstream is closed right away. */
+  @ChannelHandler.Sharable
+  static class RejectPushHandler extends ChannelInboundHandlerAdapter {
+
+    static final RejectPushHandler INSTANCE = new RejectPushHandler();
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+      ctx.close();
+    }
+  }
+}
@@ -0,0 +1,225 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.concurrent.EventExecutor;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Upstream response of a cache miss that is shared with identical requests arriving while it is in
+ * flight (collapsed forwarding). The leader, which sends the request upstream, passes the response
+ * head and copies of the body chunks. A subscriber joining later first receives everything so far
+ * and then each new chunk as it arrives. Every event is delivered in the event loop of the
+ * subscriber, so subscribers may run on other event loops than the leader.
+ *
+ * <p>If the response turns out not to be shareable, e.g. it is not cacheable or varies on request
+ * headers with different values, the waiting subscribers fall back to an independent upstream
+ * request. If the response is not stored after all, e.g. because it exceeds the size limit,
+ * subscribers which received the head still get the rest of the response, but no new subscribers
+ * are accepted.
+ *
+ * @see ResponseCacheHandler
+ * @author Jens Wilke
+ */
+public class InFlightResponse {
+
+  private enum State {
+    WAITING,
+    STREAMING,
+    /** Passing content to the current subscribers only, chunks are not kept */
+    DRAINING,
+    COMPLETE,
+    ABANDONED
+  }
+
+  /** Receives the shared response, all methods are called within the executor */
+  public interface Subscriber {
+
+    EventExecutor executor();
+
+    HttpHeaders requestHeaders();
+
+    void onHead(HttpResponseStatus status, HttpHeaders headers);
+
+    /**
+     * Receives the content, the last one is a {@link io.netty.handler.codec.http.LastHttpContent}
+     */
+    void onContent(HttpContent content);
+
+    /** Response cannot be shared, send the request upstream */
+    void onFallback();
+
+    /** The leader failed after the head was delivered */
+    void onAbort();
+  }
+
+  private final String primaryKey;
+  private final HttpHeaders leaderRequestHeaders;
+  private final List<Subscriber> subscribers = new ArrayList<>();
+  private final List<ByteBuf> chunks = new ArrayList<>();
+  private State state = State.WAITING;
+  private HttpResponseStatus status;
+  private HttpHeaders headers;
+  private String[] varyNames;
+  private String variantKey;
+
+  public InFlightResponse(String primaryKey, HttpHeaders leaderRequestHeaders) {
+    this.primaryKey = primaryKey;
+    this.leaderRequestHeaders = leaderRequestHeaders;
+  }
+
+  public String primaryKey() {
+    return primaryKey;
+  }
+
+  /**
+   * Subscribe to the response. Everything received so far is delivered to the subscriber.
+   *
+   * @return false, if the response cannot be shared with the subscriber
+   */
+  public synchronized boolean subscribe(Subscriber subscriber) {
+    switch (state) {
+      case WAITING -> subscribers.add(subscriber);
+      case STREAMING, COMPLETE -> {
+        if (!sameVariant(subscriber)) {
+          return false;
+        }
+        post(subscriber, () -> subscriber.onHead(status, headers));
+        int lastIndex = chunks.size() - 1;
+        for (int i = 0; i <= lastIndex; i++) {
+          postContent(subscriber, chunks.get(i), state == State.COMPLETE && i == lastIndex);
+        }
+        if (state == State.STREAMING) {
+          subscribers.add(subscriber);
+        }
+      }
+      default -> {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Remove a subscriber waiting for the head.
+   *
+   * @return false, if the head or the fallback was already delivered
+   */
+  public synchronized boolean unsubscribe(Subscriber subscriber) {
+    return state == State.WAITING && subscribers.remove(subscriber);
+  }
+
+  /**
+   * The leader received the response head. Subscribers with a different variant fall back.
+   *
+   * @param headers response headers which are not modified after this call
+   */
+  public synchronized void head(HttpResponseStatus status, HttpHeaders headers) {
+    if (state != State.WAITING) {
+      return;
+    }
+    this.status = status;
+    this.headers = headers;
+    varyNames = ResponseCache.varyNames(headers);
+    variantKey = ResponseCache.variantKey(primaryKey, varyNames, leaderRequestHeaders);
+    state = State.STREAMING;
+    subscribers.removeIf(
+        s -> {
+          if (sameVariant(s)) {
+            post(s, () -> s.onHead(status, headers));
+            return false;
+          }
+          post(s, s::onFallback);
+          return true;
+        });
+  }
+
+  /**
+   * The leader received a body chunk. The in flight response takes over the buffer.
+   *
+   * @param chunk copy of the content, not shared with the leader
+   */
+  public synchronized void content(ByteBuf chunk, boolean last) {
+    if (state != State.STREAMING && state != State.DRAINING) {
+      chunk.release();
+      return;
+    }
+    for (Subscriber s : subscribers) {
+      postContent(s, chunk, last);
+    }
+    if (state == State.DRAINING) {
+      chunk.release();
+    } else {
+      chunks.add(chunk);
+    }
+    if (last) {
+      state = state == State.DRAINING ? State.ABANDONED : State.COMPLETE;
+      subscribers.clear();
+    }
+  }
+
+  /**
+   * The response is not stored, so it is not shared with new subscribers. Subscribers still waiting
+   * for the head fall back, subscribers which received the head get the remaining content.
+   */
+  public synchronized void stopSharing() {
+    if (state == State.WAITING) {
+      abandon();
+      return;
+    }
+    if (state == State.STREAMING) {
+      releaseChunks();
+      state = State.DRAINING;
+    }
+  }
+
+  /**
+   * The response is not shareable or the leader failed. Subscribers still waiting for the head fall
+   * back, subscribers which received the head are aborted.
+   */
+  public synchronized void abandon() {
+    if (state == State.ABANDONED) {
+      return;
+    }
+    boolean headSent = state != State.WAITING;
+    for (Subscriber s : subscribers) {
+      post(s, headSent ? s::onAbort : s::onFallback);
+    }
+    subscribers.clear();
+    releaseChunks();
+    state = State.ABANDONED;
+  }
+
+  /**
+   * Release the chunks after the response was complete and is not reachable for new subscribers.
+   */
+  public synchronized void release() {
+    releaseChunks();
+    state = State.ABANDONED;
+  }
+
+  private void releaseChunks() {
+    chunks.forEach(ByteBuf::release);
+    chunks.clear();
+  }
+
+  private boolean sameVariant(Subscriber s) {
+    return varyNames.length == 0
+        || variantKey.equals(ResponseCache.variantKey(primaryKey, varyNames, s.requestHeaders()));
+  }
+
+  private static void postContent(Subscriber s, ByteBuf chunk, boolean last) {
+    ByteBuf buf = chunk.retainedDuplicate();
+    HttpContent content = last ? new DefaultLastHttpContent(buf) : new DefaultHttpContent(buf);
+    post(s, () -> s.onContent(content));
+  }
+
+  private static void post(Subscriber s, Runnable task) {
+    s.executor().execute(task);
+  }
+}
@@ -0,0 +1,275 @@
+package org.sensepitch.edge;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lookup of the labels for all prefixes containing an IP address. Inserted prefixes are compiled
+ * into a multibit trie with a stride of 8 bits, so an IPv4 lookup takes at most 4 steps and an IPv6
+ * lookup at most 16. The compiled table consists of a few primitive arrays only.
+ *
+ * <p>Labels of shorter prefixes are pushed down into the longer prefixes, so the lookup result is
+ * the entry where the walk ends. Each distinct combination of labels is interned and identified by
+ * an integer, the lookup returns the same immutable list every time and does not allocate.
+ *
+ * <p>Like in Poptrie, a node does not keep 256 entries. It has a bitmap of the entries that have a
+ * child and a bitmap of the entries where the label set changes. The child or the label set is
+ * found via counting the bits in front of the entry, the children of a node and the label sets of a
+ * node are stored consecutively.
+ *
+ * <p>Inserts are collected and the table is compiled at the first lookup. Inserting after a lookup
+ * is possible, but leads to recompilation.
+ *
+ * @author Jens Wilke
+ */
+public class IpPrefixTable implements AnyVersionIpLookup {
+
+  private static final int STRIDE = 8;
+  private static final int ENTRIES = 1 << STRIDE;
+  private static final int WORDS = ENTRIES / 64;
+
+  private final List<Prefix> prefixes = new ArrayList<>();
+  private volatile Table table;
+
+  /** Insert a CIDR like "66.249.64.0/19" or "2001:4860::/32" */
+  @Override
+  public synchronized void insert(String cidrStr, String label) {
+    String[] parts = cidrStr.split("/");
+    byte[] address;
+    try {
+      address = InetAddress.getByName(parts[0]).getAddress();
+    } catch (UnknownHostException e) {
+      throw new RuntimeException(e);
+    }
+    int prefixLen = Integer.parseInt(parts[1]);
+    if (prefixLen < 0 || prefixLen > address.length * 8) {
+      throw new IllegalArgumentException("Invalid prefix length: " + cidrStr);
+    }
+    prefixes.add(new Prefix(address, prefixLen, label));
+    table = null;
+  }
+
+  /**
+   * @return labels of all prefixes containing the address, shorter prefixes first, or {@code null}
+   *     if nothing matches. The list is shared and must not be modified.
+   */
+  @Override
+  public List<String> findLabelMatching(byte[] addr) {
+    Table t = table;
+    if (t == null) {
+      t = compile();
+    }
+    return t.lookup(addr);
+  }
+
+  @Override
+  public int getNodeCount() {
+    Table t = table;
+    if (t == null) {
+      t = compile();
+    }
+    return t.leafBase.length;
+  }
+
+  private synchronized Table compile() {
+    if (table == null) {
+      table = new Builder(prefixes).build();
+    }
+    return table;
+  }
+
+  private record Prefix(byte[] address, int length, String label) {}
+
+  /** The compiled, immutable lookup structure. */
+  private static class Table {
+
+    /** Per node four words, bit set if the entry has a child */
+    private final long[] childBits;
+
+    /** Per node index of the first child node */
+    private final int[] childBase;
+
+    /** Per node four words, bit set if the label set changes at this entry */
+    private final long[] leafBits;
+
+    /** Per node index of the first label set in {@link #leaves} */
+    private final int[] leafBase;
+
+    /** Label set id for runs of entries, index via {@link #leafBase} */
+    private final int[] leaves;
+
+    /** Label set by id. Id 0 is no labels and maps to {@code null} */
+    private final List<String>[] labelSets;
+
+    Table(
+        long[] childBits,
+        int[] childBase,
+        long[] leafBits,
+        int[] leafBase,
+        int[] leaves,
+        List<String>[] labelSets) {
+      this.childBits = childBits;
+      this.childBase = childBase;
+      this.leafBits = leafBits;
+      this.leafBase = leafBase;
+      this.leaves = leaves;
+      this.labelSets = labelSets;
+    }
+
+    List<String> lookup(byte[] addr) {
+      int node = 0;
+      for (byte value : addr) {
+        int entry = value & 0xff;
+        int bitsOffset = node * WORDS;
+        int word = entry >>> 6;
+        long bit = 1L << entry;
+        if ((childBits[bitsOffset + word] & bit) != 0) {
+          node = childBase[node] + countBits(childBits, bitsOffset, word, bit - 1);
+          continue;
+        }
+        int run = countBits(leafBits, bitsOffset, word, bit | (bit - 1)) - 1;
+        return labelSets[leaves[leafBase[node] + run]];
+      }
+      return null;
+    }
+
+    /** Count set bits in the words before {@code word} plus the masked bits of {@code word} */
+    private static int countBits(long[] bits, int offset, int word, long mask) {
+      int count = Long.bitCount(bits[offset + word] & mask);
+      for (int i = 0; i < word; i++) {
+        count += Long.bitCount(bits[offset + i]);
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Builds the uncompressed trie with 256 entries per node and compresses it to a {@link Table}.
+   * Prefixes are inserted from short to long. A node is created by a longer prefix only and starts
+   * with the labels of its parent entry, so labels of shorter prefixes are pushed down.
+   */
+  private static class Builder {
+
+    private final List<Prefix> prefixes;
+    private final List<int[]> nodeLabelSets = new ArrayList<>();
+    private final List<int[]> nodeChildren = new ArrayList<>();
+    private final List<List<String>> labelSets = new ArrayList<>();
+    private final Map<List<String>, Integer> labelSetIds = new HashMap<>();
+    private final Map<String, Integer> labelIds = new HashMap<>();
+    private final Map<Long, Integer> labelSetAddCache = new HashMap<>();
+
+    Builder(List<Prefix> prefixes) {
+      this.prefixes = new ArrayList<>(prefixes);
+      this.prefixes.sort(Comparator.comparingInt(Prefix::length));
+      labelSets.add(List.of());
+      labelSetIds.put(List.of(), 0);
+      newNode(0);
+    }
+
+    private int newNode(int labelSet) {
+      int[] labels = new int[ENTRIES];
+      Arrays.fill(labels, labelSet);
+      nodeLabelSets.add(labels);
+      nodeChildren.add(new int[ENTRIES]);
+      return nodeChildren.size() - 1;
+    }
+
+    /** Id of the label set with the label added. */
+    private int addLabel(int labelSet, String label) {
+      int labelId = labelIds.computeIfAbsent(label, k -> labelIds.size());
+      long key = ((long) labelSet << 32) | labelId;
+      Integer cached = labelSetAddCache.get(key);
+      if (cached != null) {
+        return cached;
+      }
+      List<String> set = labelSets.get(labelSet);
+      int id = labelSet;
+      if (!set.contains(label)) {
+        List<String> extended = new ArrayList<>(set);
+        extended.add(label);
+        List<String> newSet = List.copyOf(extended);
+        id =
+            labelSetIds.computeIfAbsent(
+                newSet,
+                k -> {
+                  labelSets.add(newSet);
+                  return labelSets.size() - 1;
+                });
+      }
+      labelSetAddCache.put(key, id);
+      return id;
+    }
+
+    private void insert(Prefix prefix) {
+      int level = prefix.length() == 0 ? 0 : (prefix.length() - 1) / STRIDE;
+      int node = 0;
+      for (int i = 0; i < level; i++) {
+        int entry = prefix.address()[i] & 0xff;
+        int child = nodeChildren.get(node)[entry];
+        if (child == 0) {
+          child = newNode(nodeLabelSets.get(node)[entry]);
+          nodeChildren.get(node)[entry] = child;
+        }
+        node = child;
+      }
+      int bits = prefix.length() - level * STRIDE;
+      int first = prefix.address()[level] & (0xff << (STRIDE - bits)) & 0xff;
+      int[] labels = nodeLabelSets.get(node);
+      for (int entry = first; entry < first + (1 << (STRIDE - bits)); entry++) {
+        labels[entry] = addLabel(labels[entry], prefix.label());
+      }
+    }
+
+    /** Numbers the nodes breadth first, so the children of a node are consecutive. */
+    @SuppressWarnings("unchecked")
+    Table build() {
+      for (Prefix prefix : prefixes) {
+        insert(prefix);
+      }
+      int nodeCount = nodeChildren.size();
+      long[] childBits = new long[nodeCount * WORDS];
+      int[] childBase = new int[nodeCount];
+      long[] leafBits = new long[nodeCount * WORDS];
+      int[] leafBase = new int[nodeCount];
+      int[] leaves = new int[ENTRIES];
+      int leafCount = 0;
+      int[] queue = new int[nodeCount];
+      int queueSize = 1;
+      for (int index = 0; index < nodeCount; index++) {
+        int node = queue[index];
+        int[] children = nodeChildren.get(node);
+        int[] labels = nodeLabelSets.get(node);
+        childBase[index] = queueSize;
+        leafBase[index] = leafCount;
+        int previous = -1;
+        for (int entry = 0; entry < ENTRIES; entry++) {
+          long bit = 1L << entry;
+          int word = index * WORDS + (entry >>> 6);
+          if (children[entry] != 0) {
+            childBits[word] |= bit;
+            queue[queueSize++] = children[entry];
+          } else if (labels[entry] != previous) {
+            leafBits[word] |= bit;
+            if (leafCount == leaves.length) {
+              leaves = Arrays.copyOf(leaves, leaves.length * 2);
+            }
+            leaves[leafCount++] = labels[entry];
+            previous = labels[entry];
+          }
+        }
+      }
+      List<String>[] sets = new List[labelSets.size()];
+      for (int i = 1; i < sets.length; i++) {
+        sets[i] = labelSets.get(i);
+      }
+      return new Table(
+          childBits, childBase, leafBits, leafBase, Arrays.copyOf(leaves, leafCount), sets);
+    }
+  }
+}
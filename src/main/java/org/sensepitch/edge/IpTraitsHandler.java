@@ -18,6 +18,7 @@ public class IpTraitsHandler extends ChannelInboundHandlerAdapter {
   private final IpTraitsLookup ipTraitsLookup;
   private String traits = null;
   private IpTraits ipTraits = null;
+  private boolean lookupDone;
 
   public IpTraitsHandler(IpTraitsLookup ipTraitsLookup) {
     this.ipTraitsLookup = ipTraitsLookup;
@@ -27,8 +28,29 @@ public class IpTraitsHandler extends ChannelInboundHandlerAdapter {
     return request.headers().get(TRAITS_HEADER);
   }
 
+  /**
+   * The handler is added after the channel is active, when the protocol is negotiated via ALPN or
+   * for an HTTP/2 stream.
+   */
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    if (ctx.channel().isActive()) {
+      lookupTraits(ctx);
+    }
+    super.handlerAdded(ctx);
+  }
+
   @Override
   public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    lookupTraits(ctx);
+    super.channelActive(ctx);
+  }
+
+  private void lookupTraits(ChannelHandlerContext ctx) throws Exception {
+    if (lookupDone) {
+      return;
+    }
+    lookupDone = true;
     // Debug.INSTANCE.trace(ctx.channel(), "IpTraitsHandler channelActive");
     if (ctx.channel().remoteAddress() instanceof InetSocketAddress) {
       InetAddress address = ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress();
@@ -61,7 +83,6 @@ public class IpTraitsHandler extends ChannelInboundHandlerAdapter {
       traits = collectTraits.toString();
       // Debug.INSTANCE.trace(ctx.channel(), "trais: " + traits);
     }
-    super.channelActive(ctx);
   }
 
   @Override
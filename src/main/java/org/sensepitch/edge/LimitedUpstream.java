@@ -0,0 +1,107 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * Upstream with an adaptive concurrency limit. A connect first acquires a permit from the limiter,
+ * the permit is attached to the upstream channel and given back when the channel is released or
+ * discarded. The response time for the limiter is measured from the permit until the upstream
+ * response header arrives, so a slow client that downloads a large response does not count as
+ * upstream latency.
+ *
+ * @see AdaptiveConcurrencyLimiter
+ * @author Jens Wilke
+ */
+public class LimitedUpstream implements Upstream {
+
+  static final AttributeKey<Permit> PERMIT = AttributeKey.valueOf(LimitedUpstream.class, "permit");
+
+  private final Upstream upstream;
+  private final AdaptiveConcurrencyLimiter limiter;
+
+  public LimitedUpstream(Upstream upstream, AdaptiveConcurrencyLimiter limiter) {
+    this.upstream = upstream;
+    this.limiter = limiter;
+  }
+
+  @Override
+  public Future<Channel> connect(ChannelHandlerContext downstreamContext) {
+    Promise<Channel> promise = downstreamContext.executor().newPromise();
+    limiter
+        .acquire(downstreamContext.executor())
+        .addListener(
+            permitFuture -> {
+              if (!permitFuture.isSuccess()) {
+                promise.setFailure(permitFuture.cause());
+                return;
+              }
+              Permit permit = new Permit(System.nanoTime());
+              upstream
+                  .connect(downstreamContext)
+                  .addListener(
+                      (Future<Channel> future) -> {
+                        if (future.isSuccess()) {
+                          future.getNow().attr(PERMIT).set(permit);
+                          promise.setSuccess(future.getNow());
+                        } else {
+                          limiter.release(System.nanoTime() - permit.startNanos, true);
+                          promise.setFailure(future.cause());
+                        }
+                      });
+            });
+    return promise;
+  }
+
+  @Override
+  public void responseReceived(Channel ch, HttpResponse response) {
+    Permit permit = ch.attr(PERMIT).get();
+    if (permit != null && permit.rttNanos == 0) {
+      permit.rttNanos = Math.max(1, System.nanoTime() - permit.startNanos);
+    }
+    upstream.responseReceived(ch, response);
+  }
+
+  @Override
+  public void release(Channel ch) {
+    givePermitBack(ch);
+    upstream.release(ch);
+  }
+
+  @Override
+  public void discard(Channel ch) {
+    givePermitBack(ch);
+    upstream.discard(ch);
+  }
+
+  @Override
+  public void discard(Channel ch, Throwable cause) {
+    givePermitBack(ch);
+    upstream.discard(ch, cause);
+  }
+
+  /** A channel closed before the response counts as failed request */
+  private void givePermitBack(Channel ch) {
+    Permit permit = ch.attr(PERMIT).getAndSet(null);
+    if (permit != null) {
+      limiter.release(permit.rttNanos, permit.rttNanos == 0);
+    }
+  }
+
+  AdaptiveConcurrencyLimiter limiter() {
+    return limiter;
+  }
+
+  static final class Permit {
+    final long startNanos;
+    long rttNanos;
+
+    Permit(long startNanos) {
+      this.startNanos = startNanos;
+    }
+  }
+}
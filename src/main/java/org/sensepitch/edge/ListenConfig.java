@@ -10,6 +10,20 @@ import lombok.Builder;
  *     names.
  * @param letsEncryptPrefix Directory prefix for the let's encrypt keys and certificates. Default is
  *     {@value #DEFAULT_LETS_ENCRYPT_PREFIX}.
+ * @param transport Netty transport for ingress and upstream channels, one of {@code auto}, {@code
+ *     nio}, {@code epoll} or {@code io_uring}. Default is {@code auto}, which uses io_uring or
+ *     epoll when available and NIO otherwise.
+ * @param acceptors number of listeners bound to the HTTPS port with {@code SO_REUSEPORT}, so the
+ *     kernel spreads accepts across event loops. Only effective with a native transport, otherwise
+ *     a single acceptor thread is used. Default is the number of event loops.
+ * @param tcpFastOpen queue length for TCP fast open on the listening socket, or 0 to disable. Only
+ *     effective with a native transport.
+ * @param tcpDeferAcceptSeconds only wake up the acceptor when data arrives on a new connection, or
+ *     0 to disable. Only effective with a native transport.
+ * @param disableHttp2 only offer HTTP/1.1 via ALPN. Default is to negotiate HTTP/2 with clients
+ *     that support it, so a client can use one connection for parallel requests.
+ * @param http2MaxConcurrentStreams maximum number of concurrent streams per HTTP/2 connection.
+ *     Default is {@value #DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS}.
  * @author Jens Wilke
  */
 @Builder(toBuilder = true)
@@ -20,10 +34,17 @@ public record ListenConfig(
     String letsEncryptPrefix,
     List<String> hosts,
     List<SniConfig> snis,
-    int httpsPort) {
+    int httpsPort,
+    String transport,
+    int acceptors,
+    int tcpFastOpen,
+    int tcpDeferAcceptSeconds,
+    boolean disableHttp2,
+    int http2MaxConcurrentStreams) {
 
   public static final String DEFAULT_LETS_ENCRYPT_PREFIX = "/etc/letsencrypt/live/";
   public static final int DEFAULT_HTTPS_PORT = 17443;
+  public static final int DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS = 100;
 
   public static final ListenConfig DEFAULT =
       ListenConfig.builder()
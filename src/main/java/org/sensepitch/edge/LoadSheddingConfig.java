@@ -0,0 +1,34 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * Shed new requests with status 503 when an event loop falls behind. Each event loop measures its
+ * own scheduling lag with a periodic probe task. Above {@code lagThresholdMillis}, or if more than
+ * {@code maxPendingTasks} are queued, requests without admission cookie are shed. Above {@code
+ * admittedLagThresholdMillis} all requests are shed.
+ *
+ * @param probeIntervalMillis interval of the probe task, default {@value
+ *     #DEFAULT_PROBE_INTERVAL_MILLIS}
+ * @param lagThresholdMillis lag to shed requests of visitors that are not admitted yet, default
+ *     {@value #DEFAULT_LAG_THRESHOLD_MILLIS}
+ * @param admittedLagThresholdMillis lag to shed all requests, default {@value
+ *     #DEFAULT_ADMITTED_LAG_THRESHOLD_MILLIS}
+ * @param maxPendingTasks task queue depth of an event loop that counts as lag above the threshold,
+ *     default {@value #DEFAULT_MAX_PENDING_TASKS}
+ * @param disable no load shedding, same as without this configuration
+ * @author Jens Wilke
+ */
+@Builder(toBuilder = true)
+public record LoadSheddingConfig(
+    int probeIntervalMillis,
+    int lagThresholdMillis,
+    int admittedLagThresholdMillis,
+    int maxPendingTasks,
+    boolean disable) {
+
+  public static final int DEFAULT_PROBE_INTERVAL_MILLIS = 50;
+  public static final int DEFAULT_LAG_THRESHOLD_MILLIS = 100;
+  public static final int DEFAULT_ADMITTED_LAG_THRESHOLD_MILLIS = 500;
+  public static final int DEFAULT_MAX_PENDING_TASKS = 10_000;
+}
@@ -0,0 +1,105 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sheds requests early in the ingress pipeline, before the site is selected, when the event loop of
+ * the connection falls behind. The traffic flavor is not known yet at this stage, so requests that
+ * carry the admission cookie count as admitted users and are shed last. The cookie is not
+ * validated, a forged cookie only moves a client into the second tier. The 503 response is prepared
+ * once, per request only the response object and a copy of the headers are created.
+ *
+ * @see EventLoopLagMonitor
+ * @author Jens Wilke
+ */
+@ChannelHandler.Sharable
+public class LoadSheddingHandler extends ChannelInboundHandlerAdapter {
+
+  private static final AttributeKey<Boolean> SKIP_CONTENT =
+      AttributeKey.valueOf(LoadSheddingHandler.class, "skipContent");
+
+  private static final String ADMISSION_COOKIE_PREFIX = Deflector.TOKEN_COOKIE_NAME + "=";
+
+  private final EventLoopLagMonitor monitor;
+  private final HttpHeaders headers;
+  private final ByteBuf body;
+  private final CounterDataPoint shedUnadmittedCounter;
+  private final CounterDataPoint shedAdmittedCounter;
+
+  public LoadSheddingHandler(EventLoopLagMonitor monitor, ProxyMetrics metrics) {
+    this.monitor = monitor;
+    byte[] ba = "Service overloaded, please retry\n".getBytes(StandardCharsets.US_ASCII);
+    body =
+        Unpooled.unreleasableBuffer(Unpooled.directBuffer(ba.length).writeBytes(ba).asReadOnly());
+    headers = new DefaultHttpHeaders();
+    headers.set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN);
+    headers.set(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
+    headers.set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_STORE);
+    headers.set(HttpHeaderNames.RETRY_AFTER, 1);
+    shedUnadmittedCounter = metrics.loadShedCounter.labelValues("unadmitted");
+    shedAdmittedCounter = metrics.loadShedCounter.labelValues("admitted");
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof HttpRequest request) {
+      int level = monitor.level(ctx.channel().eventLoop());
+      if (level != EventLoopLagMonitor.NORMAL && shed(request, level)) {
+        ReferenceCountUtil.release(request);
+        if (!(request instanceof LastHttpContent)) {
+          ctx.channel().attr(SKIP_CONTENT).set(Boolean.TRUE);
+        }
+        FullHttpResponse response =
+            new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE, body.duplicate());
+        response.headers().set(headers);
+        ctx.writeAndFlush(response);
+        return;
+      }
+    } else if (msg instanceof HttpContent) {
+      Attribute<Boolean> skip = ctx.channel().attr(SKIP_CONTENT);
+      if (skip.get() != null) {
+        ReferenceCountUtil.release(msg);
+        if (msg instanceof LastHttpContent) {
+          skip.set(null);
+        }
+        return;
+      }
+    }
+    ctx.fireChannelRead(msg);
+  }
+
+  private boolean shed(HttpRequest request, int level) {
+    String cookie = request.headers().get(HttpHeaderNames.COOKIE);
+    boolean admitted = cookie != null && cookie.contains(ADMISSION_COOKIE_PREFIX);
+    if (!admitted) {
+      shedUnadmittedCounter.inc();
+      return true;
+    }
+    if (level == EventLoopLagMonitor.SHED_ALL) {
+      shedAdmittedCounter.inc();
+      return true;
+    }
+    return false;
+  }
+}
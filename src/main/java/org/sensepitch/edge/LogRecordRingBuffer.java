@@ -0,0 +1,102 @@
+package org.sensepitch.edge;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded queue of byte records for many producers and a single consumer. Records are copied into
+ * preallocated slots of a fixed size, so passing a record does not allocate. If the queue is full a
+ * producer does not wait, the offer fails.
+ *
+ * <p>The algorithm is the bounded queue by Dmitry Vyukov: each slot has a sequence number telling
+ * whether it is free for the producer of a given position or filled for the consumer of a given
+ * position. Producers claim a position via compare and set.
+ *
+ * @author Jens Wilke
+ */
+public class LogRecordRingBuffer {
+
+  private final int mask;
+  private final int slotBytes;
+  private final byte[][] slots;
+  private final int[] lengths;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();
+
+  /** Next position to read, only used by the consumer */
+  private long head;
+
+  /**
+   * @param capacity number of records, rounded up to the next power of two
+   * @param slotBytes maximum length of a record
+   */
+  public LogRecordRingBuffer(int capacity, int slotBytes) {
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    mask = size - 1;
+    this.slotBytes = slotBytes;
+    slots = new byte[size][slotBytes];
+    lengths = new int[size];
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  public int slotBytes() {
+    return slotBytes;
+  }
+
+  /**
+   * Copy the record into the queue.
+   *
+   * @param length number of bytes, at most {@link #slotBytes()}
+   * @return false, if the queue is full
+   */
+  public boolean offer(byte[] record, int length) {
+    long pos = tail.get();
+    int index;
+    for (; ; ) {
+      index = (int) pos & mask;
+      long diff = sequences.get(index) - pos;
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          break;
+        }
+        pos = tail.get();
+      } else if (diff < 0) {
+        return false;
+      } else {
+        pos = tail.get();
+      }
+    }
+    System.arraycopy(record, 0, slots[index], 0, length);
+    lengths[index] = length;
+    sequences.set(index, pos + 1);
+    return true;
+  }
+
+  /**
+   * Move complete records into the buffer as long as they fit. Only called by the consumer.
+   *
+   * @return number of records moved
+   */
+  public int drainTo(ByteBuffer target) {
+    int count = 0;
+    for (; ; ) {
+      int index = (int) head & mask;
+      if (sequences.get(index) != head + 1 || lengths[index] > target.remaining()) {
+        return count;
+      }
+      target.put(slots[index], 0, lengths[index]);
+      sequences.set(index, head + mask + 1);
+      head++;
+      count++;
+    }
+  }
+
+  /** True if no record is available. Only called by the consumer. */
+  public boolean isEmpty() {
+    return sequences.get((int) head & mask) != head + 1;
+  }
+}
@@ -34,13 +34,12 @@ public class Protection {
       plugins.add(new DeflectorHandler(deflector));
     }
     if (!plugins.isEmpty()) {
-      ProtectionPlugin plugin =
-          plugins.size() == 1 ? plugins.get(0) : new ProtectionChain(plugins);
+      ProtectionPlugin plugin = plugins.size() == 1 ? plugins.get(0) : new ProtectionChain(plugins);
       if (bypass != null) {
         plugin = new BypassProtectionPlugin(bypass, plugin);
       }
-      ProtectionPlugin finalPlugin = plugin;
-      return () -> new ProtectionHandler(finalPlugin);
+      ProtectionHandler handler = new ProtectionHandler(plugin);
+      return () -> handler;
     }
     return null;
   }
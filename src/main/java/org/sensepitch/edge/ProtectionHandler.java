@@ -1,15 +1,27 @@
 package org.sensepitch.edge;
 
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
 import io.netty.util.ReferenceCountUtil;
 
 /**
- * Common handler logic for {@link ProtectionPlugin} implementations.
+ * Common handler logic for {@link ProtectionPlugin} implementations. One instance is shared by all
+ * connections of a site. The only state, whether the content of an intercepted request needs to be
+ * skipped, is kept in a channel attribute.
  *
  * @author Jens Wilke
  */
-public class ProtectionHandler extends SkippingChannelInboundHandlerAdapter {
+@ChannelHandler.Sharable
+public class ProtectionHandler extends ChannelInboundHandlerAdapter {
+
+  private static final AttributeKey<Boolean> SKIP_CONTENT =
+      AttributeKey.valueOf(ProtectionHandler.class, "skipContent");
 
   private final ProtectionPlugin plugin;
 
@@ -22,12 +34,24 @@ public class ProtectionHandler extends SkippingChannelInboundHandlerAdapter {
     if (msg instanceof HttpRequest request) {
       if (plugin.mightIntercept(request, ctx)) {
         ReferenceCountUtil.release(request);
-        skipFollowingContent(ctx);
+        if (!(request instanceof LastHttpContent)) {
+          ctx.channel().attr(SKIP_CONTENT).set(Boolean.TRUE);
+        }
       } else {
         ctx.fireChannelRead(msg);
       }
+    } else if (msg instanceof HttpContent) {
+      Attribute<Boolean> skip = ctx.channel().attr(SKIP_CONTENT);
+      if (skip.get() != null) {
+        ReferenceCountUtil.release(msg);
+        if (msg instanceof LastHttpContent) {
+          skip.set(null);
+        }
+        return;
+      }
+      ctx.fireChannelRead(msg);
     } else {
-      super.channelRead(ctx, msg);
+      ctx.fireChannelRead(msg);
     }
   }
 }
@@ -2,10 +2,15 @@ package org.sensepitch.edge;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioIoHandler;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
 import io.netty.handler.ssl.ClientAuth;
 import io.netty.handler.ssl.OpenSsl;
 import io.netty.handler.ssl.SniHandler;
@@ -18,8 +23,11 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Set;
 import javax.net.ssl.SSLException;
 import org.sensepitch.edge.config.KeyInjector;
@@ -28,7 +36,11 @@ import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.introspector.BeanAccess;
 import org.yaml.snakeyaml.representer.Representer;
 
-/** Minimal HTTP/1.1 proxy without aggregation, with keep-alive and basic logging */
+/**
+ * Minimal HTTP/1.1 and HTTP/2 proxy without aggregation, with keep-alive and basic logging. HTTP/2
+ * streams are translated to HTTP/1.1 objects and handled by the same handler chain as an HTTP/1.1
+ * connection, upstream requests are always HTTP/1.1.
+ */
 public class Proxy implements ProxyContext {
 
   ProxyLogger LOG = ProxyLogger.get(Proxy.class);
@@ -45,10 +57,26 @@ public class Proxy implements ProxyContext {
   // private final DownstreamHandler downstreamHandler;
   // private final UpstreamRouter upstreamRouter;
   private final IpTraitsLookup ipTraitsLookup;
+  private final CrawlerVerifier crawlerVerifier;
+  private final EventLoopLagMonitor lagMonitor;
+  private final LoadSheddingHandler loadSheddingHandler;
+  private final Transport transport;
   private final EventLoopGroup eventLoopGroup;
+  private final RequestLogger accessLogger;
   private final RequestLogger requestLogger;
   private final SanitizeHostHandler sanitizeHostHandler;
   private final SiteSelector siteSelector;
+  private final Http2StreamToHttpCodec http2StreamToHttpCodec = new Http2StreamToHttpCodec(true);
+  private final ChannelInitializer<Http2StreamChannel> http2StreamInitializer =
+      new ChannelInitializer<>() {
+        @Override
+        protected void initChannel(Http2StreamChannel ch) {
+          ChannelPipeline pipeline = ch.pipeline();
+          pipeline.addLast(new CountByteIoHandler());
+          pipeline.addLast(http2StreamToHttpCodec);
+          addHttpHandlers(pipeline, true);
+        }
+      };
 
   public Proxy(ProxyConfig config) {
     config = KeyInjector.injectAllMapKeys(config);
@@ -60,7 +88,8 @@ public class Proxy implements ProxyContext {
     } else {
       connectionConfig = config.listen().connection();
     }
-    eventLoopGroup = new MultiThreadIoEventLoopGroup(NioIoHandler.newFactory());
+    transport = Transport.select(config.listen().transport());
+    eventLoopGroup = new MultiThreadIoEventLoopGroup(transport.newIoHandlerFactory());
     this.config = config;
     metricsBridge = initializeMetrics();
     metricsBridge.expose(metrics);
@@ -84,10 +113,10 @@ public class Proxy implements ProxyContext {
       knownHosts.addAll(config.listen().hosts());
     }
     sanitizeHostHandler = new SanitizeHostHandler(knownHosts);
+    accessLogger = initializeAccessLogger(config.accessLog());
     requestLogger =
         new DistributingRequestLogger(
-            new StandardOutRequestLogger(),
-            metricsBridge.expose(new ExposeRequestCountPerStatusCodeHandler()));
+            accessLogger, metricsBridge.expose(new ExposeRequestCountPerStatusCodeHandler()));
     try {
       if (config.ipLookup() != null) {
         ipTraitsLookup = new CombinedIpTraitsLookup(config.ipLookup());
@@ -97,6 +126,19 @@ public class Proxy implements ProxyContext {
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
+    if (config.crawlerVerification() != null && !config.crawlerVerification().disable()) {
+      crawlerVerifier =
+          new CrawlerVerifier(config.crawlerVerification(), eventLoopGroup, transport);
+    } else {
+      crawlerVerifier = null;
+    }
+    if (config.loadShedding() != null && !config.loadShedding().disable()) {
+      lagMonitor = new EventLoopLagMonitor(config.loadShedding(), eventLoopGroup, metrics);
+      loadSheddingHandler = new LoadSheddingHandler(lagMonitor, metrics);
+    } else {
+      lagMonitor = null;
+      loadSheddingHandler = null;
+    }
   }
 
   public static void dumpConfig(ProxyConfig proxyConfig) {
@@ -110,6 +152,23 @@ public class Proxy implements ProxyContext {
     System.out.println(yaml.dump(proxyConfig));
   }
 
+  RequestLogger initializeAccessLogger(AccessLogConfig cfg) {
+    if (cfg == null) {
+      cfg = AccessLogConfig.DEFAULT;
+    }
+    if (!cfg.async()) {
+      if (cfg.file() != null) {
+        throw new IllegalArgumentException("Access log file requires async mode");
+      }
+      return new StandardOutRequestLogger();
+    }
+    try {
+      return new AsyncRequestLogger(cfg, metrics);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
   MetricsBridge initializeMetrics() {
     MetricsConfig metricsConfig = config.metrics();
     if (metricsConfig == null) {
@@ -134,21 +193,23 @@ public class Proxy implements ProxyContext {
     var contexts = new LinkedHashMap<String, SslContext>();
     if (cfg.letsEncrypt()) {
       for (String host : knownHosts) {
+        // certbot names the directory of a wildcard certificate after the domain
+        String certName = host.startsWith("*.") ? host.substring(2) : host;
         final SslConfig sslCfg =
             new SslConfig(
-                cfg.letsEncryptPrefix() + host + "/privkey.pem",
-                cfg.letsEncryptPrefix() + host + "/fullchain.pem");
-        contexts.put(host, createSslContext(sslCfg));
+                cfg.letsEncryptPrefix() + certName + "/privkey.pem",
+                cfg.letsEncryptPrefix() + certName + "/fullchain.pem");
+        contexts.put(host, createSslContext(sslCfg, !cfg.disableHttp2()));
       }
     }
     if (cfg.snis() != null) {
       for (SniConfig sni : cfg.snis()) {
-        contexts.put(sni.host(), createSslContext(sni.ssl()));
+        contexts.put(sni.host(), createSslContext(sni.ssl(), !cfg.disableHttp2()));
       }
     }
     SslContext defaultContext = null;
     if (cfg.ssl() != null) {
-      defaultContext = createSslContext(cfg.ssl());
+      defaultContext = createSslContext(cfg.ssl(), !cfg.disableHttp2());
     }
     if (defaultContext == null && !contexts.isEmpty()) {
       defaultContext = contexts.sequencedValues().getFirst();
@@ -166,12 +227,26 @@ public class Proxy implements ProxyContext {
     return builder.build();
   }
 
-  static SslContext createSslContext(SslConfig cfg) {
+  /**
+   * @param http2 advertise h2 and http/1.1 via ALPN. Clients not supporting ALPN continue with
+   *     HTTP/1.1
+   */
+  static SslContext createSslContext(SslConfig cfg, boolean http2) {
     try {
-      return SslContextBuilder.forServer(open(cfg.certPath()), open(cfg.keyPath()))
-          .clientAuth(ClientAuth.NONE)
-          .sslProvider(SslProvider.OPENSSL)
-          .build();
+      SslContextBuilder builder =
+          SslContextBuilder.forServer(open(cfg.certPath()), open(cfg.keyPath()))
+              .clientAuth(ClientAuth.NONE)
+              .sslProvider(SslProvider.OPENSSL);
+      if (http2) {
+        builder.applicationProtocolConfig(
+            new ApplicationProtocolConfig(
+                ApplicationProtocolConfig.Protocol.ALPN,
+                ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                ApplicationProtocolNames.HTTP_2,
+                ApplicationProtocolNames.HTTP_1_1));
+      }
+      return builder.build();
     } catch (SSLException e) {
       throw new RuntimeException(e);
     } catch (IOException e) {
@@ -198,64 +273,188 @@ public class Proxy implements ProxyContext {
 
   public void start() throws Exception {
     dumpConfig(config);
-    EventLoopGroup bossGroup = new MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory());
+    ListenConfig listen = config.listen();
+    int acceptors = listen.acceptors();
+    if (acceptors <= 0) {
+      acceptors =
+          eventLoopGroup instanceof MultiThreadIoEventLoopGroup group ? group.executorCount() : 1;
+    }
+    if (!transport.isReusePortSupported()) {
+      acceptors = 1;
+    }
+    // with SO_REUSEPORT the server channels are spread over the worker event loops,
+    // otherwise a single separate acceptor thread is used
+    EventLoopGroup bossGroup =
+        acceptors > 1 ? null : new MultiThreadIoEventLoopGroup(1, transport.newIoHandlerFactory());
     try {
       ServerBootstrap sb = new ServerBootstrap();
-      sb.group(bossGroup, eventLoopGroup)
-          .channel(NioServerSocketChannel.class)
+      if (bossGroup != null) {
+        sb.group(bossGroup, eventLoopGroup);
+      } else {
+        sb.group(eventLoopGroup);
+      }
+      sb.channel(transport.serverSocketChannelClass())
           // .option(ChannelOption.SO_SNDBUF, 1 * 1024) // testing
           .childHandler(
               new ChannelInitializer<SocketChannel>() {
                 @Override
                 protected void initChannel(SocketChannel ch) {
-                  final ChannelPipeline pipeline = ch.pipeline();
-                  pipeline.addLast(trackIngressConnectionsHandler);
-                  pipeline.addLast(new SniHandler(sniMapping));
-                  pipeline.addLast(new CountByteIoHandler());
-                  pipeline.addLast(new HttpServerCodec());
-                  addHttpHandlers(pipeline);
+                  addIngressHandlers(ch.pipeline());
                 }
               });
-      int port = config.listen().httpsPort();
-      ChannelFuture f = sb.bind(port).sync();
+      transport.applyServerOptions(sb, listen.toBuilder().acceptors(acceptors).build());
+      int port = listen.httpsPort();
+      List<Channel> serverChannels = new ArrayList<>();
+      for (int i = 0; i < acceptors; i++) {
+        serverChannels.add(sb.bind(port).sync().channel());
+      }
       System.out.println("Open SSL: " + OpenSsl.versionString());
-      System.out.println("Proxy listening on port " + port);
+      System.out.println(
+          "Proxy listening on port "
+              + port
+              + ", transport="
+              + transport.name()
+              + ", acceptors="
+              + acceptors);
       LOG.trace("tracing enabled");
-      f.channel().closeFuture().sync();
+      for (Channel channel : serverChannels) {
+        channel.closeFuture().sync();
+      }
     } finally {
-      bossGroup.shutdownGracefully();
+      if (bossGroup != null) {
+        bossGroup.shutdownGracefully();
+      }
       shutdown();
     }
   }
 
   void shutdown() {
+    if (crawlerVerifier != null) {
+      crawlerVerifier.close();
+    }
+    if (lagMonitor != null) {
+      lagMonitor.close();
+    }
     eventLoopGroup.shutdownGracefully();
+    // the disk caches are written from the event loops
+    eventLoopGroup.terminationFuture().addListener(future -> siteSelector.close());
+    if (accessLogger instanceof AsyncRequestLogger asyncLogger) {
+      eventLoopGroup.terminationFuture().addListener(future -> asyncLogger.close());
+    }
+  }
+
+  /** Handlers for a new TLS ingress connection */
+  void addIngressHandlers(ChannelPipeline pipeline) {
+    pipeline.addLast(trackIngressConnectionsHandler);
+    pipeline.addLast(new SniHandler(sniMapping));
+    pipeline.addLast(new CountByteIoHandler());
+    if (config.listen().disableHttp2()) {
+      pipeline.addLast(new HttpServerCodec());
+      addHttpHandlers(pipeline);
+    } else {
+      pipeline.addLast(new HttpProtocolNegotiationHandler());
+      pipeline.addLast("exception", new ExceptionHandler(metrics));
+    }
   }
 
   void addHttpHandlers(ChannelPipeline pipeline) {
+    addHttpHandlers(pipeline, false);
+  }
+
+  /**
+   * Handlers processing a request and its response.
+   *
+   * @param http2Stream the pipeline is for an HTTP/2 stream, which carries only one request
+   */
+  void addHttpHandlers(ChannelPipeline pipeline, boolean http2Stream) {
     pipeline.addLast(sanitizeHostHandler);
     // logger sits between codec and rest so it sees header modifications
     // from timeout and keep alive below
     // pipeline.addLast(new LoggingHandler(LogLevel.INFO, ByteBufFormat.SIMPLE));
     pipeline.addLast(new RequestLoggingHandler(metrics, requestLogger));
     pipeline.addLast(new IngressTimeoutHandler(connectionConfig, metrics));
-    pipeline.addLast(new HttpServerKeepAliveHandler());
+    if (!http2Stream) {
+      pipeline.addLast(new HttpServerKeepAliveHandler());
+    }
+    if (loadSheddingHandler != null) {
+      pipeline.addLast(loadSheddingHandler);
+    }
     pipeline.addLast(new IpTraitsHandler(ipTraitsLookup));
     //            ch.pipeline().addLast(new ReportIoErrorsHandler("downstream"));
     if (unservicedHost != null) {
       pipeline.addLast(unservicedHost.newHandler());
     }
+    if (crawlerVerifier != null) {
+      pipeline.addLast(new CrawlerVerificationHandler(crawlerVerifier, metrics));
+    }
     pipeline.addLast("siteSelector", new SiteSelectorHandler(siteSelector));
     pipeline.addLast("protection", dummy404Handler);
+    pipeline.addLast("waitingRoom", dummy404Handler);
+    pipeline.addLast("cache", dummy404Handler);
+    pipeline.addLast("compression", dummy404Handler);
     pipeline.addLast("proxy", dummy404Handler);
     pipeline.addLast("exception", new ExceptionHandler(metrics));
   }
 
+  /**
+   * Sets up the pipeline for HTTP/1.1 or HTTP/2 after the TLS handshake, depending on the protocol
+   * negotiated via ALPN. Until the handshake completes, errors are passed to the connection
+   * exception handler, which counts handshake errors.
+   */
+  class HttpProtocolNegotiationHandler extends ApplicationProtocolNegotiationHandler {
+
+    HttpProtocolNegotiationHandler() {
+      super(ApplicationProtocolNames.HTTP_1_1);
+    }
+
+    @Override
+    protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+      ChannelPipeline pipeline = ctx.pipeline();
+      metrics.ingressProtocolCounter.labelValues(protocol).inc();
+      if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+        int maxStreams = config.listen().http2MaxConcurrentStreams();
+        if (maxStreams <= 0) {
+          maxStreams = ListenConfig.DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS;
+        }
+        pipeline.addBefore("exception", null, new Http2IdleConnectionHandler(connectionConfig));
+        pipeline.addBefore(
+            "exception",
+            null,
+            Http2FrameCodecBuilder.forServer()
+                .initialSettings(Http2Settings.defaultSettings().maxConcurrentStreams(maxStreams))
+                .build());
+        pipeline.addBefore("exception", null, new Http2MultiplexHandler(http2StreamInitializer));
+      } else if (ApplicationProtocolNames.HTTP_1_1.equals(protocol)) {
+        pipeline.remove("exception");
+        pipeline.addLast(new HttpServerCodec());
+        addHttpHandlers(pipeline);
+      } else {
+        throw new IllegalStateException("Unsupported protocol: " + protocol);
+      }
+    }
+
+    /** Exception was already passed on to the exception handler */
+    @Override
+    protected void handshakeFailure(ChannelHandlerContext ctx, Throwable cause) {
+      ctx.close();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      ctx.fireExceptionCaught(cause);
+    }
+  }
+
   @Override
   public EventLoopGroup eventLoopGroup() {
     return eventLoopGroup;
   }
 
+  @Override
+  public Transport transport() {
+    return transport;
+  }
+
   @Override
   public ProxyMetrics metrics() {
     return metrics;
@@ -4,6 +4,7 @@ import java.util.Map;
 import lombok.Builder;
 
 /**
+ * @param loadShedding shed requests when an event loop falls behind, disabled if missing
  * @author Jens Wilke
  */
 @Builder(toBuilder = true)
@@ -14,4 +15,8 @@ public record ProxyConfig(
     IpLookupConfig ipLookup,
     UpstreamConfig upstream,
     ProtectionConfig protection,
+    CrawlerVerificationConfig crawlerVerification,
+    LoadSheddingConfig loadShedding,
+    CompressionConfig compression,
+    AccessLogConfig accessLog,
     Map<String, SiteConfig> sites) {}
@@ -9,5 +9,8 @@ public interface ProxyContext {
 
   EventLoopGroup eventLoopGroup();
 
+  /** Transport of the event loop group, upstream channels need to use the same. */
+  Transport transport();
+
   ProxyMetrics metrics();
 }
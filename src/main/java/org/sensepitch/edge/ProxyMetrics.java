@@ -2,6 +2,8 @@ package org.sensepitch.edge;
 
 import io.prometheus.metrics.core.datapoints.CounterDataPoint;
 import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.Gauge;
+import io.prometheus.metrics.core.metrics.Histogram;
 import io.prometheus.metrics.model.registry.Collector;
 import io.prometheus.metrics.model.snapshots.CounterSnapshot;
 import io.prometheus.metrics.model.snapshots.GaugeSnapshot;
@@ -33,6 +35,151 @@ public class ProxyMetrics implements HasMultipleMetrics {
   public final CounterDataPoint ingressReceiveTimeoutKeepAlive =
       ingressReceiveTimeoutCounter.labelValues("keep_alive");
 
+  public final Counter ingressProtocolCounter =
+      metricSet.add(
+          Counter.builder()
+              .name("sensepitch_ingress_connections_protocol")
+              .help("Ingress connections by protocol negotiated via ALPN")
+              .labelNames("protocol")
+              .build());
+
+  public final Counter accessLogDroppedCounter =
+      metricSet.add(
+          Counter.builder()
+              .name("sensepitch_access_log_dropped")
+              .help("Access log records dropped or truncated by the asynchronous writer")
+              .labelNames("reason")
+              .build());
+
+  public final Counter cacheRequestCounter =
+      metricSet.add(
+          Counter.builder()
+              .name("sensepitch_cache_requests")
+              .help("Requests to sites with response cache, by hit, miss or bypass")
+              .labelNames("result")
+              .build());
+
+  public final Counter cacheStoreCounter =
+      metricSet.add(
+          Counter.builder()
+              .name("sensepitch_cache_store")
+              .help("Cacheable responses stored or rejected by the admission policy")
+              .labelNames("result")
+              .build());
+
+  public final Counter cacheEvictionCounter =
+      metricSet.add(
+          Counter.builder()
+              .name("sensepitch_cache_evictions")
+              .help("Cached responses removed because of size limit or expiry")
+              .labelNames("reason")
+              .build());
+
+  public final Counter cacheDiskCounter =
+      metricSet.add(
+          Counter.builder()
+              .name("sensepitch_cache_disk_records")
+              .help(
+                  "Records of the disk cache stored, evicted when dropping a segment or relocated"
+                      + " by compaction")
+              .labelNames("event")
+              .build());
+
+  public final Counter cacheCollapseCounter =
+      metricSet.add(
+          Counter.builder()
+              .name("sensepitch_cache_collapse")
+              .help(
+                  "Requests waiting for a response in flight, joined or forwarded after timeout,"
+                      + " not shareable response or aborted because the leading request failed")
+              .labelNames("result")
+              .build());
+
+  public final Counter compressionCounter =
+      metricSet.add(
+          Counter.builder()
+              .name("sensepitch_compression_responses")
+              .help(
+                  "Compressible responses by the negotiated encoding, identity if the client"
+                      + " accepts no encoding we produce")
+              .labelNames("encoding")
+              .build());
+
+  public final Counter crawlerVerificationCounter =
+      metricSet.add(
+          Counter.builder()
+              .name("sensepitch_crawler_verification_requests")
+              .help("Requests with a crawler user agent verified or failed via reverse DNS")
+              .labelNames("result")
+              .build());
+
+  public final Counter waitingRoomCounter =
+      metricSet.add(
+          Counter.builder()
+              .name("sensepitch_waiting_room_requests")
+              .help(
+                  "Requests to sites with waiting room, with a valid pass, admitted from the queue"
+                      + " or without ticket, or answered with the queue page")
+              .labelNames("result")
+              .build());
+
+  public final Histogram eventLoopLagHistogram =
+      metricSet.add(
+          Histogram.builder()
+              .name("sensepitch_event_loop_lag_seconds")
+              .help("Delay of the periodic probe task of each event loop")
+              .classicOnly()
+              .classicUpperBounds(0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5)
+              .build());
+
+  public final Counter loadShedCounter =
+      metricSet.add(
+          Counter.builder()
+              .name("sensepitch_load_shed_requests")
+              .help("Requests rejected with 503 because the event loop fell behind")
+              .labelNames("flavor")
+              .build());
+
+  public final Gauge upstreamConcurrencyLimitGauge =
+      metricSet.add(
+          Gauge.builder()
+              .name("sensepitch_upstream_concurrency_limit")
+              .help("Current adaptive limit of concurrent requests per upstream")
+              .labelNames("upstream")
+              .build());
+
+  public final Gauge upstreamQueueDepthGauge =
+      metricSet.add(
+          Gauge.builder()
+              .name("sensepitch_upstream_queue_depth")
+              .help("Requests waiting because the upstream is at its concurrency limit")
+              .labelNames("upstream")
+              .build());
+
+  public final Counter upstreamRejectionCounter =
+      metricSet.add(
+          Counter.builder()
+              .name("sensepitch_upstream_rejections")
+              .help("Requests rejected because the upstream queue was full or the wait timed out")
+              .labelNames("upstream", "reason")
+              .build());
+
+  public final Counter upstreamEjectionCounter =
+      metricSet.add(
+          Counter.builder()
+              .name("sensepitch_upstream_ejections")
+              .help("Upstream targets ejected after consecutive failures")
+              .labelNames("upstream")
+              .build());
+
+  public final Counter upstreamHealthCheckCounter =
+      metricSet.add(
+          Counter.builder()
+              .name("sensepitch_upstream_health_checks")
+              .help("Active health check probes of upstream targets")
+              .labelNames("upstream", "result")
+              .build());
+
   public final LongAdder ingressRequestsStarted = new LongAdder();
   public final LongAdder ingressRequestsCompleted = new LongAdder();
   public final LongAdder ingressRequestsAborted = new LongAdder();
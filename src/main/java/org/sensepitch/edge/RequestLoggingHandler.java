@@ -84,14 +84,31 @@ public class RequestLoggingHandler extends ChannelDuplexHandler implements Reque
     super.channelRegistered(ctx);
   }
 
+  /**
+   * The handler is added after the channel is active, when the protocol is negotiated via ALPN or
+   * for an HTTP/2 stream.
+   */
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    ticker = ctx.executor().ticker();
+    if (ctx.channel().isActive()) {
+      initialize(ctx);
+    }
+    super.handlerAdded(ctx);
+  }
+
   @Override
   public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    initialize(ctx);
+    super.channelActive(ctx);
+  }
+
+  private void initialize(ChannelHandlerContext ctx) {
     countByteIoHandler = ctx.pipeline().get(CountByteIoHandler.class);
     if (countByteIoHandler == null) {
       countByteIoHandler = DUMMY_COUNT_BYTE_IO_HANDLER;
     }
     connectionEstablishedNanos = ticker.nanoTime();
-    super.channelActive(ctx);
   }
 
   @Override
@@ -2,14 +2,19 @@ package org.sensepitch.edge;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URLConnection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 /**
- * A fixed set of static files we serve for the challenge.
+ * A fixed set of static files we serve for the challenge. Files with a compressible content type
+ * are also kept gzip compressed, so they are compressed once at startup and not per request.
  *
  * @author Jens Wilke
  */
@@ -32,7 +37,29 @@ public class ResourceFiles {
   private void add(String name) {
     byte[] ba = ResourceLoader.loadBinaryFile(name);
     ByteBuf buf = Unpooled.copiedBuffer(ba);
-    map.put(new File(name).getName(), new FileInfo(buf, deriveMimeType(name)));
+    String mimeType = deriveMimeType(name);
+    ByteBuf gzipBuf = null;
+    if (isCompressible(mimeType)) {
+      byte[] compressed = gzip(ba);
+      if (compressed.length < ba.length) {
+        gzipBuf = Unpooled.copiedBuffer(compressed);
+      }
+    }
+    map.put(new File(name).getName(), new FileInfo(buf, mimeType, gzipBuf));
+  }
+
+  private static boolean isCompressible(String mimeType) {
+    return CompressionConfig.DEFAULT_CONTENT_TYPES.stream().anyMatch(mimeType::startsWith);
+  }
+
+  private static byte[] gzip(byte[] ba) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(ba.length);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(ba);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
   }
 
   private String deriveMimeType(String fileName) {
@@ -47,5 +74,8 @@ public class ResourceFiles {
     return mimeType;
   }
 
-  public record FileInfo(ByteBuf buf, String mimeType) {}
+  /**
+   * @param gzipBuf gzip compressed content or {@code null} if not compressible
+   */
+  public record FileInfo(ByteBuf buf, String mimeType, ByteBuf gzipBuf) {}
 }
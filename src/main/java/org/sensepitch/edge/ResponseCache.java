@@ -0,0 +1,685 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cached responses of a site, shared by all event loops. The cache key is the host and the URI of
+ * the request, if the response has a {@code Vary} header, the values of the listed request headers
+ * are part of the key.
+ *
+ * <p>The memory is bounded by the configured number of bytes. Eviction uses a segmented LRU: a new
+ * entry goes into the probation segment and moves into the protected segment on its first hit.
+ * Entries dropping out of the protected segment go back to probation. The victim is the least
+ * recently used entry of probation. Additionally, TinyLFU admission keeps a new entry out, if it
+ * was requested less frequently than the entry it would evict. This way, a scan of rarely requested
+ * URIs does not flush the popular responses.
+ *
+ * <p>If a disk tier is configured, large responses are stored in the {@link DiskCache} instead, a
+ * lookup checks the memory first.
+ *
+ * <p>With collapsed forwarding enabled, the cache also keeps track of the responses in flight, so
+ * identical requests can wait for them. These are kept in a concurrent map.
+ *
+ * <p>The memory cache is split into stripes by the hash of host and URI, each with its own lock,
+ * eviction segments and a share of the memory, so event loops rarely contend for a lock. Small
+ * caches have a single stripe, so that a stripe always fits a few responses of the maximum size.
+ * The lock is only held for the table and list updates, a body is never copied under the lock.
+ *
+ * @see ResponseCacheHandler
+ * @author Jens Wilke
+ */
+public class ResponseCache {
+
+  private static final int PROTECTED_PERCENT = 80;
+
+  /** Estimated size of an entry in addition to key, headers and body */
+  private static final int ENTRY_OVERHEAD = 128;
+
+  /** Estimated average response size for sizing the frequency sketch */
+  private static final int ESTIMATED_AVERAGE_BYTES = 8 * 1024;
+
+  /** A stripe holds at least this many responses of the maximum size */
+  private static final int MIN_OBJECTS_PER_STRIPE = 4;
+
+  private static final String[] NO_VARY = new String[0];
+
+  private final int maxObjectBytes;
+  private final Stripe[] stripes;
+  private final int stripeMask;
+  private final Map<String, InFlightResponse> inFlight = new ConcurrentHashMap<>();
+  private final boolean collapse;
+  private final long collapseTimeoutMillis;
+  private final DiskCache diskCache;
+  private final CounterDataPoint hitCounter;
+  private final CounterDataPoint diskHitCounter;
+  private final CounterDataPoint missCounter;
+  private final CounterDataPoint storedCounter;
+  private final CounterDataPoint rejectedCounter;
+  private final CounterDataPoint sizeEvictionCounter;
+  private final CounterDataPoint expiredEvictionCounter;
+
+  public ResponseCache(CacheConfig cfg, ProxyMetrics metrics) {
+    this(cfg, metrics, Runtime.getRuntime().availableProcessors());
+  }
+
+  ResponseCache(CacheConfig cfg, ProxyMetrics metrics, int concurrency) {
+    int maxBytes = cfg.maxBytes() > 0 ? cfg.maxBytes() : CacheConfig.DEFAULT_MAX_BYTES;
+    maxObjectBytes =
+        cfg.maxObjectBytes() > 0 ? cfg.maxObjectBytes() : CacheConfig.DEFAULT_MAX_OBJECT_BYTES;
+    collapse = cfg.collapse();
+    collapseTimeoutMillis =
+        cfg.collapseTimeoutMillis() > 0
+            ? cfg.collapseTimeoutMillis()
+            : CacheConfig.DEFAULT_COLLAPSE_TIMEOUT_MILLIS;
+    int maxStripes = (int) Math.max(1, maxBytes / ((long) maxObjectBytes * MIN_OBJECTS_PER_STRIPE));
+    int stripeCount = concurrency <= 1 ? 1 : Integer.highestOneBit(concurrency - 1) << 1;
+    stripes = new Stripe[Math.min(stripeCount, Integer.highestOneBit(maxStripes))];
+    stripeMask = stripes.length - 1;
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe(maxBytes / stripes.length);
+    }
+    diskCache = cfg.disk() != null ? new DiskCache(cfg.disk(), metrics) : null;
+    hitCounter = metrics.cacheRequestCounter.labelValues("hit");
+    diskHitCounter = metrics.cacheRequestCounter.labelValues("disk_hit");
+    missCounter = metrics.cacheRequestCounter.labelValues("miss");
+    storedCounter = metrics.cacheStoreCounter.labelValues("stored");
+    rejectedCounter = metrics.cacheStoreCounter.labelValues("rejected");
+    sizeEvictionCounter = metrics.cacheEvictionCounter.labelValues("size");
+    expiredEvictionCounter = metrics.cacheEvictionCounter.labelValues("expired");
+  }
+
+  /** Responses with a larger body are not stored */
+  public int maxObjectBytes() {
+    return maxObjectBytes;
+  }
+
+  /** Disk tier for large responses or {@code null} */
+  public DiskCache diskCache() {
+    return diskCache;
+  }
+
+  public boolean isCollapse() {
+    return collapse;
+  }
+
+  public long collapseTimeoutMillis() {
+    return collapseTimeoutMillis;
+  }
+
+  /** Response in flight for the host and URI or {@code null} */
+  public InFlightResponse findInFlight(String primaryKey) {
+    return inFlight.get(primaryKey);
+  }
+
+  /**
+   * Register a response in flight, unless another request registered first.
+   *
+   * @return {@code null} if registered, otherwise the response in flight of the other request
+   */
+  public InFlightResponse startInFlight(String primaryKey, InFlightResponse response) {
+    return inFlight.putIfAbsent(primaryKey, response);
+  }
+
+  public void endInFlight(String primaryKey, InFlightResponse response) {
+    inFlight.remove(primaryKey, response);
+  }
+
+  /**
+   * Find a fresh response for the request in memory or on disk. The body of the returned entry is
+   * retained and needs to be released by the caller, e.g. by writing it.
+   *
+   * @return the entry or {@code null}
+   */
+  public Entry lookup(HttpRequest request, long nowMillis) {
+    String host = host(request);
+    int hash = hash(host, request.uri());
+    Entry e = stripe(hash).lookup(hash, host, request, nowMillis);
+    if (e != null) {
+      hitCounter.inc();
+      return e;
+    }
+    if (diskCache != null) {
+      e = diskCache.lookup(primaryKey(request), nowMillis);
+      if (e != null) {
+        diskHitCounter.inc();
+        return e;
+      }
+    }
+    missCounter.inc();
+    return null;
+  }
+
+  /**
+   * Store the response. The cache takes over the body buffer, it is released if the response is not
+   * admitted.
+   *
+   * @param headers response headers which are not modified after this call
+   * @param storedAtMillis time the response was generated by the upstream, including its reported
+   *     age
+   * @return true if stored
+   */
+  public boolean put(
+      HttpRequest request,
+      HttpResponseStatus status,
+      HttpHeaders headers,
+      ByteBuf body,
+      long storedAtMillis,
+      long expiresAtMillis) {
+    String host = host(request);
+    String uri = request.uri();
+    int hash = hash(host, uri);
+    String[] names = varyNames(headers);
+    String[] values = NO_VARY;
+    if (names.length > 0) {
+      values = new String[names.length];
+      for (int i = 0; i < names.length; i++) {
+        String value = request.headers().get(names[i]);
+        values[i] = value != null ? value : "";
+      }
+    }
+    Entry e =
+        new Entry(
+            host, uri, hash, names, values, status, headers, body, storedAtMillis, expiresAtMillis);
+    return stripe(hash).put(e);
+  }
+
+  /** Stop the disk tier, if any. Stored responses stay on disk for the next start. */
+  public void close() {
+    if (diskCache != null) {
+      diskCache.close();
+    }
+  }
+
+  /** Number of cached responses */
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      size += stripe.size();
+    }
+    return size;
+  }
+
+  /** Estimated memory used by the cached responses */
+  public long weightedBytes() {
+    long bytes = 0;
+    for (Stripe stripe : stripes) {
+      bytes += stripe.weightedBytes();
+    }
+    return bytes;
+  }
+
+  /** Remove all entries and release their buffers */
+  public void clear() {
+    for (Stripe stripe : stripes) {
+      stripe.clear();
+    }
+  }
+
+  int stripeCount() {
+    return stripes.length;
+  }
+
+  private Stripe stripe(int hash) {
+    return stripes[((hash * 0x9e3779b9) >>> 16) & stripeMask];
+  }
+
+  private static String host(HttpRequest request) {
+    String host = request.headers().get(HttpHeaderNames.HOST);
+    return host != null ? host : "";
+  }
+
+  /** Hash of host and URI, computed from the string hashes without building the key */
+  private static int hash(String host, String uri) {
+    int h = host.hashCode() * 31 + uri.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Part of the cache with its own lock, hash table, eviction segments and frequency sketch. The
+   * stripe is selected by the hash of host and URI, so all variants of a URI are in the same
+   * stripe. The table is chained through the entries and is searched with the host and URI of the
+   * request, so a lookup does not allocate a key.
+   */
+  private final class Stripe {
+
+    private final int maxBytes;
+    private final long protectedMaxBytes;
+    private final Entry probation = new Entry();
+    private final Entry protectedSegment = new Entry();
+    private final FrequencySketch sketch;
+    private Entry[] table = new Entry[16];
+    private int size;
+    private long probationBytes;
+    private long protectedBytes;
+
+    Stripe(int maxBytes) {
+      this.maxBytes = maxBytes;
+      protectedMaxBytes = (long) maxBytes * PROTECTED_PERCENT / 100;
+      sketch = new FrequencySketch(maxBytes / ESTIMATED_AVERAGE_BYTES);
+    }
+
+    synchronized Entry lookup(int hash, String host, HttpRequest request, long nowMillis) {
+      sketch.increment(hash);
+      String uri = request.uri();
+      Entry e = table[hash & (table.length - 1)];
+      while (e != null
+          && !(e.hash == hash
+              && e.host.equals(host)
+              && e.uri.equals(uri)
+              && e.matchesVary(request.headers()))) {
+        e = e.chain;
+      }
+      if (e == null) {
+        return null;
+      }
+      if (nowMillis >= e.expiresAtMillis) {
+        remove(e);
+        expiredEvictionCounter.inc();
+        return null;
+      }
+      if (e.segment == probation) {
+        moveToProtected(e);
+      } else {
+        unlink(e);
+        linkLast(protectedSegment, e);
+      }
+      e.body.retain();
+      return e;
+    }
+
+    /**
+     * Replaces the entry of the same variant. Variants stored with other {@code Vary} header names
+     * are removed, since the upstream changed how the response varies.
+     */
+    synchronized boolean put(Entry e) {
+      Entry old = table[e.hash & (table.length - 1)];
+      while (old != null) {
+        Entry next = old.chain;
+        if (old.hash == e.hash
+            && old.host.equals(e.host)
+            && old.uri.equals(e.uri)
+            && (!Arrays.equals(old.varyNames, e.varyNames)
+                || Arrays.equals(old.varyValues, e.varyValues))) {
+          remove(old);
+        }
+        old = next;
+      }
+      if (e.weight > maxBytes || !admit(e)) {
+        e.body.release();
+        rejectedCounter.inc();
+        return false;
+      }
+      if (++size > table.length * 3 / 4) {
+        resize();
+      }
+      int index = e.hash & (table.length - 1);
+      e.chain = table[index];
+      table[index] = e;
+      e.segment = probation;
+      linkLast(probation, e);
+      probationBytes += e.weight;
+      storedCounter.inc();
+      return true;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    synchronized long weightedBytes() {
+      return probationBytes + protectedBytes;
+    }
+
+    synchronized void clear() {
+      while (probation.next != probation) {
+        remove(probation.next);
+      }
+      while (protectedSegment.next != protectedSegment) {
+        remove(protectedSegment.next);
+      }
+    }
+
+    /** Evict until the candidate fits, if it is more popular than the first victim. */
+    private boolean admit(Entry candidate) {
+      if (probationBytes + protectedBytes + candidate.weight <= maxBytes) {
+        return true;
+      }
+      Entry victim = nextVictim();
+      if (victim != null && sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+        return false;
+      }
+      while (probationBytes + protectedBytes + candidate.weight > maxBytes
+          && (victim = nextVictim()) != null) {
+        remove(victim);
+        sizeEvictionCounter.inc();
+      }
+      return true;
+    }
+
+    private Entry nextVictim() {
+      if (probation.next != probation) {
+        return probation.next;
+      }
+      if (protectedSegment.next != protectedSegment) {
+        return protectedSegment.next;
+      }
+      return null;
+    }
+
+    private void moveToProtected(Entry e) {
+      unlink(e);
+      probationBytes -= e.weight;
+      e.segment = protectedSegment;
+      linkLast(protectedSegment, e);
+      protectedBytes += e.weight;
+      while (protectedBytes > protectedMaxBytes) {
+        Entry demoted = protectedSegment.next;
+        unlink(demoted);
+        protectedBytes -= demoted.weight;
+        demoted.segment = probation;
+        linkLast(probation, demoted);
+        probationBytes += demoted.weight;
+      }
+    }
+
+    private void remove(Entry e) {
+      unlink(e);
+      if (e.segment == probation) {
+        probationBytes -= e.weight;
+      } else {
+        protectedBytes -= e.weight;
+      }
+      int index = e.hash & (table.length - 1);
+      if (table[index] == e) {
+        table[index] = e.chain;
+      } else {
+        Entry prev = table[index];
+        while (prev.chain != e) {
+          prev = prev.chain;
+        }
+        prev.chain = e.chain;
+      }
+      e.chain = null;
+      size--;
+      e.body.release();
+    }
+
+    private void resize() {
+      Entry[] old = table;
+      table = new Entry[old.length * 2];
+      for (Entry e : old) {
+        while (e != null) {
+          Entry next = e.chain;
+          int index = e.hash & (table.length - 1);
+          e.chain = table[index];
+          table[index] = e;
+          e = next;
+        }
+      }
+    }
+  }
+
+  private static void linkLast(Entry segment, Entry e) {
+    e.prev = segment.prev;
+    e.next = segment;
+    segment.prev.next = e;
+    segment.prev = e;
+  }
+
+  private static void unlink(Entry e) {
+    e.prev.next = e.next;
+    e.next.prev = e.prev;
+    e.prev = e.next = null;
+  }
+
+  static String primaryKey(HttpRequest request) {
+    return request.headers().get(HttpHeaderNames.HOST) + request.uri();
+  }
+
+  static String variantKey(String primaryKey, String[] names, HttpHeaders requestHeaders) {
+    StringBuilder sb = new StringBuilder(primaryKey);
+    for (String name : names) {
+      String value = requestHeaders.get(name);
+      sb.append('\n').append(value != null ? value : "");
+    }
+    return sb.toString();
+  }
+
+  /** Header names of the {@code Vary} response header in lower case */
+  static String[] varyNames(HttpHeaders headers) {
+    String vary = headers.get(HttpHeaderNames.VARY);
+    if (vary == null || vary.isBlank()) {
+      return NO_VARY;
+    }
+    return Arrays.stream(vary.split(","))
+        .map(s -> s.trim().toLowerCase(Locale.ROOT))
+        .filter(s -> !s.isEmpty())
+        .toArray(String[]::new);
+  }
+
+  /**
+   * Only {@code GET} and {@code HEAD} requests are served from the cache. Requests with credentials
+   * are passed through, as well as requests with {@code Cache-Control: no-store}. Other request
+   * cache directives, like {@code max-age=0} on a browser reload, are ignored, like NGINX does.
+   */
+  public static boolean isCacheableRequest(HttpRequest request) {
+    HttpMethod method = request.method();
+    if (!HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method)) {
+      return false;
+    }
+    HttpHeaders headers = request.headers();
+    if (headers.contains(HttpHeaderNames.AUTHORIZATION)
+        || !headers.contains(HttpHeaderNames.HOST)) {
+      return false;
+    }
+    return !headers.containsValue(HttpHeaderNames.CACHE_CONTROL, "no-store", true);
+  }
+
+  /**
+   * Expiry time of the response if it may be stored in a shared cache. The freshness lifetime is
+   * only taken from {@code s-maxage}, {@code max-age} or {@code Expires}, there is no heuristic
+   * freshness. Responses with {@code no-store}, {@code no-cache}, {@code private}, {@code
+   * Set-Cookie} or {@code Vary: *} are not stored.
+   *
+   * @return the expiry time in millis or -1 if not storable
+   */
+  public static long expiresAtMillis(HttpResponse response, long nowMillis) {
+    if (!isCacheableStatus(response.status().code())) {
+      return -1;
+    }
+    HttpHeaders headers = response.headers();
+    if (headers.contains(HttpHeaderNames.SET_COOKIE)) {
+      return -1;
+    }
+    String vary = headers.get(HttpHeaderNames.VARY);
+    if (vary != null && vary.contains("*")) {
+      return -1;
+    }
+    long maxAge = -1;
+    long sharedMaxAge = -1;
+    for (String cacheControl : headers.getAll(HttpHeaderNames.CACHE_CONTROL)) {
+      for (String directive : cacheControl.split(",")) {
+        String d = directive.trim().toLowerCase(Locale.ROOT);
+        if (d.equals("no-store")
+            || d.equals("no-cache")
+            || d.startsWith("no-cache=")
+            || d.equals("private")
+            || d.startsWith("private=")) {
+          return -1;
+        }
+        if (d.startsWith("s-maxage=")) {
+          sharedMaxAge = parseSeconds(d.substring(9));
+        } else if (d.startsWith("max-age=")) {
+          maxAge = parseSeconds(d.substring(8));
+        }
+      }
+    }
+    long freshnessMillis;
+    if (sharedMaxAge >= 0) {
+      freshnessMillis = sharedMaxAge * 1000;
+    } else if (maxAge >= 0) {
+      freshnessMillis = maxAge * 1000;
+    } else {
+      String expires = headers.get(HttpHeaderNames.EXPIRES);
+      if (expires == null) {
+        return -1;
+      }
+      Date expiresDate = DateFormatter.parseHttpDate(expires);
+      if (expiresDate == null) {
+        return -1;
+      }
+      Date date = DateFormatter.parseHttpDate(headers.get(HttpHeaderNames.DATE, ""));
+      freshnessMillis = expiresDate.getTime() - (date != null ? date.getTime() : nowMillis);
+    }
+    freshnessMillis -= ageSeconds(response) * 1000;
+    if (freshnessMillis <= 0) {
+      return -1;
+    }
+    return nowMillis + freshnessMillis;
+  }
+
+  /** Value of the {@code Age} header or 0 */
+  static long ageSeconds(HttpResponse response) {
+    String age = response.headers().get(HttpHeaderNames.AGE);
+    return age != null ? Math.max(0, parseSeconds(age)) : 0;
+  }
+
+  private static boolean isCacheableStatus(int code) {
+    return switch (code) {
+      case 200, 203, 300, 301, 308, 404, 410 -> true;
+      default -> false;
+    };
+  }
+
+  /** Delta seconds, invalid values yield 0, which means stale */
+  private static long parseSeconds(String s) {
+    s = s.trim();
+    if (s.length() >= 2 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"') {
+      s = s.substring(1, s.length() - 1);
+    }
+    try {
+      return Math.max(0, Long.parseLong(s));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /** A cached response, the fields are not modified after construction. */
+  public static final class Entry {
+
+    private final String host;
+    private final String uri;
+    private final int hash;
+    private final String[] varyNames;
+    private final String[] varyValues;
+    private final HttpResponseStatus status;
+    private final HttpHeaders headers;
+    private final ByteBuf body;
+    private final long storedAtMillis;
+    private final long expiresAtMillis;
+    private final int weight;
+    private Entry segment;
+    private Entry prev;
+    private Entry next;
+    private Entry chain;
+
+    /** Response from the disk tier, which is not part of the memory cache */
+    static Entry transientEntry(
+        HttpResponseStatus status,
+        HttpHeaders headers,
+        ByteBuf body,
+        long storedAtMillis,
+        long expiresAtMillis) {
+      return new Entry(
+          null, null, 0, NO_VARY, NO_VARY, status, headers, body, storedAtMillis, expiresAtMillis);
+    }
+
+    /** List head of a segment */
+    private Entry() {
+      this(null, null, 0, NO_VARY, NO_VARY, null, null, null, 0, 0);
+      prev = next = this;
+    }
+
+    private Entry(
+        String host,
+        String uri,
+        int hash,
+        String[] varyNames,
+        String[] varyValues,
+        HttpResponseStatus status,
+        HttpHeaders headers,
+        ByteBuf body,
+        long storedAtMillis,
+        long expiresAtMillis) {
+      this.host = host;
+      this.uri = uri;
+      this.hash = hash;
+      this.varyNames = varyNames;
+      this.varyValues = varyValues;
+      this.status = status;
+      this.headers = headers;
+      this.body = body;
+      this.storedAtMillis = storedAtMillis;
+      this.expiresAtMillis = expiresAtMillis;
+      this.weight = host != null ? weigh() : 0;
+    }
+
+    private int weigh() {
+      int chars = host.length() + uri.length();
+      for (String value : varyValues) {
+        chars += value.length() + 1;
+      }
+      int weight = ENTRY_OVERHEAD + chars * 2 + body.readableBytes();
+      Iterator<Map.Entry<CharSequence, CharSequence>> it = headers.iteratorCharSequence();
+      while (it.hasNext()) {
+        Map.Entry<CharSequence, CharSequence> header = it.next();
+        weight += (header.getKey().length() + header.getValue().length()) * 2;
+      }
+      return weight;
+    }
+
+    /** The request has the same values of the headers the response varies on */
+    private boolean matchesVary(HttpHeaders requestHeaders) {
+      for (int i = 0; i < varyNames.length; i++) {
+        String value = requestHeaders.get(varyNames[i]);
+        if (!varyValues[i].equals(value != null ? value : "")) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    public HttpResponseStatus status() {
+      return status;
+    }
+
+    /** Stored response headers, must not be modified */
+    public HttpHeaders headers() {
+      return headers;
+    }
+
+    /** Complete response body */
+    public ByteBuf body() {
+      return body;
+    }
+
+    /** Value for the {@code Age} header */
+    public long ageSeconds(long nowMillis) {
+      return Math.max(0, (nowMillis - storedAtMillis) / 1000);
+    }
+  }
+}
@@ -0,0 +1,601 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves a request from the {@link ResponseCache} or stores the upstream response. Sits before the
+ * {@link DownstreamHandler}, so a hit is answered without an upstream connection. On a miss the
+ * response passes this handler on its way to the ingress and the body is copied into pooled direct
+ * buffers. The copy is added to the cache when the response is complete and within the size limit.
+ *
+ * <p>With collapsed forwarding, the first request of a miss becomes the leader and registers an
+ * {@link InFlightResponse}. Identical requests arriving meanwhile subscribe to it and receive the
+ * response as it arrives, instead of being forwarded. If the response head does not arrive within
+ * the timeout or turns out not to be shareable, a waiting request is forwarded after all. If the
+ * response is not stored after the head was shared, e.g. it exceeds the size limit, the subscribers
+ * still receive the complete response. They are only aborted if the response of the leader ends
+ * prematurely.
+ *
+ * <p>An instance is used per connection and reused for following requests of the same site.
+ *
+ * <p>A response is only stored, if no other response of the connection was outstanding when its
+ * request arrived, so the next response passing this handler is the one of the request. A pipelined
+ * request bypasses the cache, since a hit would also be sent before the outstanding response.
+ *
+ * @author Jens Wilke
+ */
+public class ResponseCacheHandler extends ChannelDuplexHandler implements ReusableHandler {
+
+  /**
+   * Requests of the connection which are forwarded or wait for a response in flight and are not
+   * answered yet. Kept in the channel, since the handlers are replaced when the next request
+   * arrives before the response is complete.
+   */
+  private static final AttributeKey<Integer> OUTSTANDING =
+      AttributeKey.valueOf(ResponseCacheHandler.class, "outstanding");
+
+  private final ResponseCache cache;
+  private final boolean normalizeAcceptEncoding;
+  private final CounterDataPoint bypassCounter;
+  private final CounterDataPoint collapseJoinedCounter;
+  private final CounterDataPoint collapseTimeoutCounter;
+  private final CounterDataPoint collapseNotSharedCounter;
+  private final CounterDataPoint collapseAbortedCounter;
+  private boolean skipContent;
+
+  /** Request of a miss, if the response may be stored */
+  private HttpRequest missRequest;
+
+  private HttpResponse storeResponse;
+  private HttpHeaders storeHeaders;
+  private CompositeByteBuf storeBody;
+  private long storeExpiresAtMillis;
+  private DiskCache.Writer diskWriter;
+
+  /** Response in flight if this request is the leader of collapsed forwarding */
+  private InFlightResponse leading;
+
+  /** Subscription if this request waits for the response of another request */
+  private Waiter waiter;
+
+  public ResponseCacheHandler(ResponseCache cache, ProxyMetrics metrics) {
+    this(cache, metrics, false);
+  }
+
+  /**
+   * @param normalizeAcceptEncoding replace {@code Accept-Encoding} by the encoding the {@link
+   *     ResponseCompressionHandler} chooses, if compression is enabled for the site
+   */
+  public ResponseCacheHandler(
+      ResponseCache cache, ProxyMetrics metrics, boolean normalizeAcceptEncoding) {
+    this.cache = cache;
+    this.normalizeAcceptEncoding = normalizeAcceptEncoding;
+    this.bypassCounter = metrics.cacheRequestCounter.labelValues("bypass");
+    this.collapseJoinedCounter = metrics.cacheCollapseCounter.labelValues("joined");
+    this.collapseTimeoutCounter = metrics.cacheCollapseCounter.labelValues("timeout");
+    this.collapseNotSharedCounter = metrics.cacheCollapseCounter.labelValues("not_shared");
+    this.collapseAbortedCounter = metrics.cacheCollapseCounter.labelValues("aborted");
+  }
+
+  /** Reusable if the previous response is not being stored or waited for */
+  @Override
+  public boolean resetForNextRequest() {
+    return missRequest == null
+        && storeBody == null
+        && diskWriter == null
+        && leading == null
+        && (waiter == null || waiter.done);
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof HttpRequest request) {
+      if (outstanding(ctx) > 0) {
+        // pipelined request, the next response written belongs to an earlier request
+        bypassCounter.inc();
+        addOutstanding(ctx, 1);
+        ctx.fireChannelRead(msg);
+        return;
+      }
+      missRequest = null;
+      abortStore();
+      cancelWaiting();
+      if (!ResponseCache.isCacheableRequest(request)) {
+        bypassCounter.inc();
+        addOutstanding(ctx, 1);
+        ctx.fireChannelRead(msg);
+        return;
+      }
+      if (normalizeAcceptEncoding) {
+        ResponseCompressionHandler.normalizeAcceptEncoding(request.headers());
+      }
+      ResponseCache.Entry entry = cache.lookup(request, System.currentTimeMillis());
+      if (entry != null) {
+        skipContent = !(msg instanceof LastHttpContent);
+        ReferenceCountUtil.release(msg);
+        writeCachedResponse(ctx, request, entry);
+        return;
+      }
+      if (HttpMethod.GET.equals(request.method())) {
+        missRequest = request;
+        if (cache.isCollapse() && !hasContent(request) && joinInFlight(ctx, request)) {
+          missRequest = null;
+          skipContent = !(msg instanceof LastHttpContent);
+          return;
+        }
+      }
+      addOutstanding(ctx, 1);
+    } else if (skipContent && msg instanceof HttpContent) {
+      ReferenceCountUtil.release(msg);
+      if (msg instanceof LastHttpContent) {
+        skipContent = false;
+      }
+      return;
+    }
+    ctx.fireChannelRead(msg);
+  }
+
+  private static int outstanding(ChannelHandlerContext ctx) {
+    Integer count = ctx.channel().attr(OUTSTANDING).get();
+    return count != null ? count : 0;
+  }
+
+  private static void addOutstanding(ChannelHandlerContext ctx, int delta) {
+    Attribute<Integer> attr = ctx.channel().attr(OUTSTANDING);
+    Integer count = attr.get();
+    attr.set(Math.max(0, (count != null ? count : 0) + delta));
+  }
+
+  private static boolean hasContent(HttpRequest request) {
+    return HttpUtil.getContentLength(request, 0L) > 0
+        || HttpUtil.isTransferEncodingChunked(request);
+  }
+
+  /**
+   * Become the leader or subscribe to the response in flight.
+   *
+   * @return true, if subscribed and the request must not be forwarded
+   */
+  private boolean joinInFlight(ChannelHandlerContext ctx, HttpRequest request) {
+    String key = ResponseCache.primaryKey(request);
+    InFlightResponse current = cache.findInFlight(key);
+    if (current == null) {
+      InFlightResponse mine = new InFlightResponse(key, request.headers());
+      current = cache.startInFlight(key, mine);
+      if (current == null) {
+        leading = mine;
+        return false;
+      }
+    }
+    Waiter w = new Waiter(ctx, request, current);
+    if (!current.subscribe(w)) {
+      collapseNotSharedCounter.inc();
+      return false;
+    }
+    waiter = w;
+    addOutstanding(ctx, 1);
+    w.timeout =
+        ctx.executor().schedule(w::timeout, cache.collapseTimeoutMillis(), TimeUnit.MILLISECONDS);
+    return true;
+  }
+
+  /**
+   * Respond with a copy of the stored headers and a duplicate of the body. Only an unconditional
+   * request or a request with a matching {@code If-None-Match} is answered.
+   */
+  private void writeCachedResponse(
+      ChannelHandlerContext ctx, HttpRequest request, ResponseCache.Entry entry) {
+    long now = System.currentTimeMillis();
+    ByteBuf body = entry.body().duplicate();
+    HttpResponseStatus status = entry.status();
+    String etag = entry.headers().get(HttpHeaderNames.ETAG);
+    boolean headOnly = HttpMethod.HEAD.equals(request.method());
+    if (etag != null && status.code() == 200 && matchesEtag(request, etag)) {
+      status = HttpResponseStatus.NOT_MODIFIED;
+      headOnly = true;
+    }
+    HttpResponse response =
+        new DefaultHttpResponse(HttpVersion.HTTP_1_1, status, entry.headers().copy());
+    response.headers().set(HttpHeaderNames.AGE, entry.ageSeconds(now));
+    if (status == HttpResponseStatus.NOT_MODIFIED) {
+      response.headers().remove(HttpHeaderNames.CONTENT_LENGTH);
+    }
+    ctx.write(response);
+    if (headOnly) {
+      body.release();
+      ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+    } else {
+      ctx.writeAndFlush(new DefaultLastHttpContent(body));
+    }
+  }
+
+  private static boolean matchesEtag(HttpRequest request, String etag) {
+    String ifNoneMatch = request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      if (candidate.trim().equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+      throws Exception {
+    if (missRequest != null) {
+      if (msg instanceof HttpResponse response) {
+        startStore(ctx, response);
+      }
+      if (diskWriter != null && msg instanceof HttpContent content) {
+        writeToDisk(content);
+      } else if (storeBody != null && msg instanceof HttpContent content) {
+        copyContent(content);
+      }
+    } else if (leading != null && msg instanceof HttpContent content) {
+      relayContent(content);
+    }
+    if (msg instanceof LastHttpContent) {
+      addOutstanding(ctx, -1);
+    }
+    ctx.write(msg, promise);
+  }
+
+  private void startStore(ChannelHandlerContext ctx, HttpResponse response) {
+    if (storeBody != null || diskWriter != null) {
+      // another response before the stored one is complete, e.g. an error response
+      abortStore();
+      missRequest = null;
+      return;
+    }
+    long now = System.currentTimeMillis();
+    long expiresAt = ResponseCache.expiresAtMillis(response, now);
+    long contentLength = HttpUtil.getContentLength(response, -1L);
+    if (expiresAt >= 0 && startDiskStore(response, contentLength, now, expiresAt)) {
+      return;
+    }
+    if (expiresAt < 0 || contentLength > cache.maxObjectBytes()) {
+      missRequest = null;
+      abandonLeading();
+      return;
+    }
+    storeResponse = response;
+    storeHeaders = response.headers().copy();
+    storeExpiresAtMillis = expiresAt;
+    storeBody = ctx.alloc().compositeDirectBuffer(Integer.MAX_VALUE);
+    if (leading != null) {
+      leading.head(response.status(), storeHeaders.copy());
+    }
+  }
+
+  /** Large responses with known length are written to disk directly, without collecting them. */
+  private boolean startDiskStore(
+      HttpResponse response, long contentLength, long now, long expiresAt) {
+    DiskCache disk = cache.diskCache();
+    if (disk == null
+        || contentLength < disk.minObjectBytes()
+        || contentLength > Integer.MAX_VALUE
+        || response.headers().contains(HttpHeaderNames.VARY)) {
+      return false;
+    }
+    HttpHeaders headers = response.headers().copy();
+    headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
+    headers.remove(HttpHeaderNames.AGE);
+    diskWriter =
+        disk.begin(
+            ResponseCache.primaryKey(missRequest),
+            response.status(),
+            headers,
+            (int) contentLength,
+            now - ResponseCache.ageSeconds(response) * 1000,
+            expiresAt);
+    if (diskWriter == null) {
+      return false;
+    }
+    if (leading != null) {
+      leading.head(response.status(), response.headers().copy());
+    }
+    return true;
+  }
+
+  /** Subscribers get the written part of the segment, no extra copy */
+  private void writeToDisk(HttpContent content) {
+    ByteBuf buf = content.content();
+    boolean last = content instanceof LastHttpContent;
+    if (buf.isReadable()) {
+      ByteBuf written = diskWriter.write(buf);
+      if (written == null) {
+        stopStore();
+        relayContent(content);
+        return;
+      }
+      if (leading != null) {
+        leading.content(written, last);
+      } else {
+        written.release();
+      }
+    } else if (last && leading != null) {
+      leading.content(Unpooled.EMPTY_BUFFER, true);
+    }
+    if (last) {
+      diskWriter.commit();
+      diskWriter = null;
+      missRequest = null;
+      completeLeading();
+    }
+  }
+
+  /** Copy, since the content buffer is released after it is written to the ingress */
+  private void copyContent(HttpContent content) {
+    ByteBuf buf = content.content();
+    int length = buf.readableBytes();
+    if (storeBody.readableBytes() + length > cache.maxObjectBytes()) {
+      stopStore();
+      relayContent(content);
+      return;
+    }
+    boolean last = content instanceof LastHttpContent;
+    if (length > 0) {
+      ByteBuf copy = storeBody.alloc().directBuffer(length);
+      copy.writeBytes(buf, buf.readerIndex(), length);
+      storeBody.addComponent(true, copy);
+      if (leading != null) {
+        leading.content(copy.retainedDuplicate(), last);
+      }
+    } else if (last && leading != null) {
+      leading.content(Unpooled.EMPTY_BUFFER, true);
+    }
+    if (last) {
+      completeStore();
+    }
+  }
+
+  /** Pass a copy of the content of a response which is not stored to the subscribers */
+  private void relayContent(HttpContent content) {
+    if (leading == null) {
+      return;
+    }
+    ByteBuf buf = content.content();
+    int length = buf.readableBytes();
+    boolean last = content instanceof LastHttpContent;
+    ByteBuf copy = Unpooled.EMPTY_BUFFER;
+    if (length > 0) {
+      copy = buf.alloc().directBuffer(length);
+      copy.writeBytes(buf, buf.readerIndex(), length);
+    }
+    leading.content(copy, last);
+    if (last) {
+      leading.release();
+      leading = null;
+    }
+  }
+
+  private void completeStore() {
+    storeHeaders.remove(HttpHeaderNames.TRANSFER_ENCODING);
+    storeHeaders.remove(HttpHeaderNames.AGE);
+    storeHeaders.set(HttpHeaderNames.CONTENT_LENGTH, storeBody.readableBytes());
+    long now = System.currentTimeMillis();
+    long storedAt = now - ResponseCache.ageSeconds(storeResponse) * 1000;
+    cache.put(
+        missRequest,
+        storeResponse.status(),
+        storeHeaders,
+        storeBody,
+        storedAt,
+        storeExpiresAtMillis);
+    storeBody = null;
+    storeResponse = null;
+    storeHeaders = null;
+    missRequest = null;
+    completeLeading();
+  }
+
+  private void completeLeading() {
+    if (leading != null) {
+      // new requests find the cache entry, subscribers received all content
+      cache.endInFlight(leading.primaryKey(), leading);
+      leading.release();
+      leading = null;
+    }
+  }
+
+  /**
+   * Stop storing the response, e.g. it exceeds the size limit. New requests do not join anymore,
+   * subscribers which received the head still get the remaining content.
+   */
+  private void stopStore() {
+    discardStore();
+    missRequest = null;
+    if (leading != null) {
+      cache.endInFlight(leading.primaryKey(), leading);
+      leading.stopSharing();
+    }
+  }
+
+  /**
+   * The response of the leader ends prematurely, e.g. the connection is closed, which also discards
+   * the upstream channel. Subscribers which received the head are aborted.
+   */
+  private void abortStore() {
+    discardStore();
+    abandonLeading();
+  }
+
+  private void discardStore() {
+    if (diskWriter != null) {
+      diskWriter.abort();
+      diskWriter = null;
+    }
+    if (storeBody != null) {
+      storeBody.release();
+      storeBody = null;
+    }
+    storeResponse = null;
+    storeHeaders = null;
+  }
+
+  private void abandonLeading() {
+    if (leading != null) {
+      leading.abandon();
+      cache.endInFlight(leading.primaryKey(), leading);
+      leading = null;
+    }
+  }
+
+  private void cancelWaiting() {
+    if (waiter != null) {
+      waiter.cancel();
+      waiter = null;
+    }
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    abortStore();
+    cancelWaiting();
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    abortStore();
+    cancelWaiting();
+    super.channelInactive(ctx);
+  }
+
+  /** Request waiting for the response of another request, runs in the ingress event loop. */
+  private class Waiter implements InFlightResponse.Subscriber {
+
+    private final ChannelHandlerContext ctx;
+    private final HttpRequest request;
+    private final InFlightResponse inFlight;
+    private ScheduledFuture<?> timeout;
+    private boolean headReceived;
+    private boolean done;
+
+    Waiter(ChannelHandlerContext ctx, HttpRequest request, InFlightResponse inFlight) {
+      this.ctx = ctx;
+      this.request = request;
+      this.inFlight = inFlight;
+    }
+
+    @Override
+    public EventExecutor executor() {
+      return ctx.executor();
+    }
+
+    @Override
+    public HttpHeaders requestHeaders() {
+      return request.headers();
+    }
+
+    @Override
+    public void onHead(HttpResponseStatus status, HttpHeaders headers) {
+      if (done) {
+        return;
+      }
+      timeout.cancel(false);
+      headReceived = true;
+      collapseJoinedCounter.inc();
+      ReferenceCountUtil.release(request);
+      ctx.write(new DefaultHttpResponse(HttpVersion.HTTP_1_1, status, headers.copy()));
+    }
+
+    @Override
+    public void onContent(HttpContent content) {
+      if (done || !headReceived) {
+        content.release();
+        return;
+      }
+      if (content instanceof LastHttpContent) {
+        done = true;
+        addOutstanding(ctx, -1);
+      }
+      ctx.writeAndFlush(content);
+    }
+
+    @Override
+    public void onFallback() {
+      if (done) {
+        return;
+      }
+      collapseNotSharedCounter.inc();
+      forward();
+    }
+
+    @Override
+    public void onAbort() {
+      if (done) {
+        return;
+      }
+      done = true;
+      addOutstanding(ctx, -1);
+      collapseAbortedCounter.inc();
+      ctx.close();
+    }
+
+    void timeout() {
+      if (!done && inFlight.unsubscribe(this)) {
+        collapseTimeoutCounter.inc();
+        forward();
+      }
+    }
+
+    /**
+     * Send the request upstream and store its response, like for a miss without collapsing. The
+     * request stays outstanding until its response passes this handler.
+     */
+    private void forward() {
+      done = true;
+      timeout.cancel(false);
+      waiter = null;
+      if (outstanding(ctx) == 1) {
+        missRequest = request;
+      }
+      ctx.fireChannelRead(request);
+      if (!(request instanceof LastHttpContent)) {
+        // the actual request end is skipped
+        ctx.fireChannelRead(LastHttpContent.EMPTY_LAST_CONTENT);
+      }
+    }
+
+    /** The request or the channel is gone */
+    void cancel() {
+      if (done) {
+        return;
+      }
+      done = true;
+      addOutstanding(ctx, -1);
+      timeout.cancel(false);
+      inFlight.unsubscribe(this);
+      if (!headReceived) {
+        ReferenceCountUtil.release(request);
+      }
+    }
+  }
+}
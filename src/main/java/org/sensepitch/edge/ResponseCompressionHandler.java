@@ -0,0 +1,350 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.Brotli;
+import io.netty.handler.codec.compression.BrotliEncoder;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.handler.codec.compression.Zstd;
+import io.netty.handler.codec.compression.ZstdEncoder;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compresses responses passing from the upstream to the client with the encoding negotiated from
+ * the {@code Accept-Encoding} request header. Sits between the cache and the {@link
+ * DownstreamHandler}, so the cache stores the compressed response. A response that could be
+ * compressed always gets {@code Vary: Accept-Encoding}, also when the client accepts no encoding,
+ * so the cache keeps a variant per encoding. The handler is created per connection and site.
+ *
+ * @see CompressionConfig
+ * @author Jens Wilke
+ */
+public class ResponseCompressionHandler extends ChannelDuplexHandler implements ReusableHandler {
+
+  public static final String BR = "br";
+  public static final String ZSTD = "zstd";
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+  public static final String IDENTITY = "identity";
+
+  /** Encodings we can produce, in the order of preference */
+  static final List<String> ENCODINGS = availableEncodings();
+
+  private static List<String> availableEncodings() {
+    List<String> list = new ArrayList<>();
+    if (Brotli.isAvailable()) {
+      list.add(BR);
+    }
+    if (Zstd.isAvailable()) {
+      list.add(ZSTD);
+    }
+    list.add(GZIP);
+    list.add(DEFLATE);
+    return List.copyOf(list);
+  }
+
+  private final int minBytes;
+  private final List<String> contentTypes;
+  private final int level;
+  private final ProxyMetrics metrics;
+
+  /** Negotiated encoding of the current request or {@code null} for identity */
+  private String encoding;
+
+  /** Compressor of the current response or {@code null} if passed as is */
+  private EmbeddedChannel compressor;
+
+  public ResponseCompressionHandler(CompressionConfig cfg, ProxyMetrics metrics) {
+    this.minBytes = cfg.minBytes() > 0 ? cfg.minBytes() : CompressionConfig.DEFAULT_MIN_BYTES;
+    this.contentTypes =
+        cfg.contentTypes() != null ? cfg.contentTypes() : CompressionConfig.DEFAULT_CONTENT_TYPES;
+    this.level = cfg.level() > 0 ? cfg.level() : CompressionConfig.DEFAULT_LEVEL;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Choose the encoding with the highest quality value. Ties are decided by the order of the
+   * offered encodings. An encoding not mentioned gets the quality of {@code *}, if present.
+   *
+   * @return the chosen encoding or {@code null} if none of the offered encodings is acceptable
+   */
+  public static String negotiate(String acceptEncoding, List<String> offered) {
+    if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+      return null;
+    }
+    float[] quality = new float[offered.size()];
+    Arrays.fill(quality, -1);
+    float wildcard = 0;
+    for (String element : acceptEncoding.split(",")) {
+      int semicolon = element.indexOf(';');
+      String token =
+          (semicolon < 0 ? element : element.substring(0, semicolon))
+              .trim()
+              .toLowerCase(Locale.ROOT);
+      float q = semicolon < 0 ? 1 : parseQuality(element.substring(semicolon + 1));
+      if (token.equals("*")) {
+        wildcard = q;
+        continue;
+      }
+      if (token.equals("x-gzip")) {
+        token = GZIP;
+      }
+      int idx = offered.indexOf(token);
+      if (idx >= 0) {
+        quality[idx] = q;
+      }
+    }
+    String best = null;
+    float bestQuality = 0;
+    for (int i = 0; i < quality.length; i++) {
+      float q = quality[i] >= 0 ? quality[i] : wildcard;
+      if (q > bestQuality) {
+        best = offered.get(i);
+        bestQuality = q;
+      }
+    }
+    return best;
+  }
+
+  /** Negotiate from all encodings we can produce */
+  public static String negotiate(String acceptEncoding) {
+    return negotiate(acceptEncoding, ENCODINGS);
+  }
+
+  private static float parseQuality(String params) {
+    for (String param : params.split(";")) {
+      param = param.trim();
+      if (param.startsWith("q=") || param.startsWith("Q=")) {
+        try {
+          return Float.parseFloat(param.substring(2).trim());
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Replace the {@code Accept-Encoding} header by the negotiated encoding. Used by the cache, so
+   * the variants of a response differ only by the encodings we produce and not by every combination
+   * clients send. The upstream sees the normalized header as well and cannot choose an encoding
+   * that another client of the same variant does not understand.
+   */
+  public static void normalizeAcceptEncoding(HttpHeaders headers) {
+    String chosen = negotiate(headers.get(HttpHeaderNames.ACCEPT_ENCODING));
+    headers.set(HttpHeaderNames.ACCEPT_ENCODING, chosen != null ? chosen : IDENTITY);
+  }
+
+  @Override
+  public boolean resetForNextRequest() {
+    if (compressor != null) {
+      return false;
+    }
+    encoding = null;
+    return true;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof HttpRequest request) {
+      encoding =
+          HttpMethod.HEAD.equals(request.method())
+              ? null
+              : negotiate(request.headers().get(HttpHeaderNames.ACCEPT_ENCODING));
+    }
+    ctx.fireChannelRead(msg);
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+      throws Exception {
+    if (msg instanceof HttpResponse response) {
+      if (response.status().codeClass() == HttpStatusClass.INFORMATIONAL) {
+        ctx.write(msg, promise);
+        return;
+      }
+      finishCompressor();
+      if (!isCompressible(response)) {
+        ctx.write(msg, promise);
+        return;
+      }
+      addVaryAcceptEncoding(response.headers());
+      if (encoding == null) {
+        metrics.compressionCounter.labelValues(IDENTITY).inc();
+        ctx.write(msg, promise);
+        return;
+      }
+      metrics.compressionCounter.labelValues(encoding).inc();
+      compressor = new EmbeddedChannel(newEncoder(encoding));
+      response.headers().set(HttpHeaderNames.CONTENT_ENCODING, encoding);
+      weakenEtag(response.headers());
+      if (msg instanceof FullHttpResponse full) {
+        ByteBuf compressed = compress(ctx, full.content(), true);
+        compressor = null;
+        FullHttpResponse out = full.replace(compressed);
+        out.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, compressed.readableBytes());
+        full.release();
+        ctx.write(out, promise);
+        return;
+      }
+      response.headers().remove(HttpHeaderNames.CONTENT_LENGTH);
+      HttpUtil.setTransferEncodingChunked(response, true);
+      ctx.write(msg, promise);
+      return;
+    }
+    if (compressor != null && msg instanceof HttpContent content) {
+      boolean last = msg instanceof LastHttpContent;
+      ByteBuf compressed = compress(ctx, content.content(), last);
+      if (last) {
+        compressor = null;
+        LastHttpContent out = new DefaultLastHttpContent(compressed);
+        out.trailingHeaders().set(((LastHttpContent) msg).trailingHeaders());
+        content.release();
+        ctx.write(out, promise);
+      } else {
+        content.release();
+        ctx.write(new DefaultHttpContent(compressed), promise);
+      }
+      return;
+    }
+    ctx.write(msg, promise);
+  }
+
+  /**
+   * Compress if the client could get a different encoding: a response with content which is not
+   * encoded yet and has a content type and size that we compress. A status without a body or a
+   * partial response is not compressed, as well as a response with {@code Cache-Control:
+   * no-transform}.
+   */
+  private boolean isCompressible(HttpResponse response) {
+    int code = response.status().code();
+    if (code == 204 || code == 206 || code == 304) {
+      return false;
+    }
+    HttpHeaders headers = response.headers();
+    String contentEncoding = headers.get(HttpHeaderNames.CONTENT_ENCODING);
+    if (contentEncoding != null && !contentEncoding.equalsIgnoreCase(IDENTITY)) {
+      return false;
+    }
+    if (headers.contains(HttpHeaderNames.CONTENT_RANGE)
+        || headers.containsValue(
+            HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_TRANSFORM, true)) {
+      return false;
+    }
+    long length =
+        response instanceof FullHttpResponse full
+            ? full.content().readableBytes()
+            : HttpUtil.getContentLength(response, -1L);
+    if (length >= 0 && length < minBytes) {
+      return false;
+    }
+    return matchesContentType(headers.get(HttpHeaderNames.CONTENT_TYPE));
+  }
+
+  private boolean matchesContentType(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    String type = contentType.toLowerCase(Locale.ROOT);
+    for (String prefix : contentTypes) {
+      if (type.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void addVaryAcceptEncoding(HttpHeaders headers) {
+    String vary = headers.get(HttpHeaderNames.VARY);
+    if (vary == null || vary.isBlank()) {
+      headers.set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+      return;
+    }
+    for (String name : ResponseCache.varyNames(headers)) {
+      if (name.equals("*") || HttpHeaderNames.ACCEPT_ENCODING.contentEqualsIgnoreCase(name)) {
+        return;
+      }
+    }
+    headers.set(HttpHeaderNames.VARY, vary + ", " + HttpHeaderNames.ACCEPT_ENCODING);
+  }
+
+  /** The compressed body is not byte identical to the original, like NGINX does */
+  private static void weakenEtag(HttpHeaders headers) {
+    String etag = headers.get(HttpHeaderNames.ETAG);
+    if (etag != null && !etag.startsWith("W/")) {
+      headers.set(HttpHeaderNames.ETAG, "W/" + etag);
+    }
+  }
+
+  private ChannelHandler newEncoder(String encoding) {
+    return switch (encoding) {
+      case BR -> new BrotliEncoder();
+      case ZSTD -> new ZstdEncoder();
+      case GZIP -> ZlibCodecFactory.newZlibEncoder(ZlibWrapper.GZIP, level);
+      case DEFLATE -> ZlibCodecFactory.newZlibEncoder(ZlibWrapper.ZLIB, level);
+      default -> throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+    };
+  }
+
+  /** Feed the content into the compressor and collect the output, finishing it if last. */
+  private ByteBuf compress(ChannelHandlerContext ctx, ByteBuf in, boolean last) {
+    if (in.isReadable()) {
+      compressor.writeOutbound(in.retain());
+    }
+    if (last) {
+      compressor.finish();
+    }
+    CompositeByteBuf out = ctx.alloc().compositeBuffer(Integer.MAX_VALUE);
+    ByteBuf buf;
+    while ((buf = compressor.readOutbound()) != null) {
+      if (buf.isReadable()) {
+        out.addComponent(true, buf);
+      } else {
+        buf.release();
+      }
+    }
+    return out;
+  }
+
+  /** Release an unfinished compressor, e.g. if the response was aborted */
+  private void finishCompressor() {
+    if (compressor != null) {
+      compressor.finishAndReleaseAll();
+      compressor = null;
+    }
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) {
+    finishCompressor();
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    finishCompressor();
+    super.channelInactive(ctx);
+  }
+}
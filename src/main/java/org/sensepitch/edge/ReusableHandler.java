@@ -0,0 +1,20 @@
+package org.sensepitch.edge;
+
+/**
+ * Handler in a site slot of the pipeline that keeps per-request state and can serve the next
+ * request on the same connection, if it goes to the same site. This avoids replacing the handlers
+ * in the pipeline for every request of a keep-alive connection. Handlers without state are {@link
+ * io.netty.channel.ChannelHandler.Sharable} singletons instead.
+ *
+ * @see SiteSelectorHandler
+ * @author Jens Wilke
+ */
+public interface ReusableHandler {
+
+  /**
+   * Prepare for the next request.
+   *
+   * @return false, if the previous request is still in progress, the handler is replaced then
+   */
+  boolean resetForNextRequest();
+}
@@ -7,6 +7,7 @@ import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -52,11 +53,17 @@ public class SanitizeHostHandler extends ChannelInboundHandlerAdapter {
 
   public static final Set<String> UNSUPPORTED_HTTP_METHODS = Set.of("CONNECT", "TRACE");
 
-  private final Set<String> knownHosts;
+  private final HostMatcher knownHosts;
 
+  /**
+   * @param knownHosts host names, may contain wildcard patterns like {@code *.example.com}
+   */
   public SanitizeHostHandler(Collection<String> knownHosts) {
     this.knownHosts =
-        knownHosts.stream().filter(s -> !SPECIAL_HOSTS.contains(s)).collect(Collectors.toSet());
+        HostMatcher.of(
+            knownHosts.stream()
+                .filter(s -> !SPECIAL_HOSTS.contains(s))
+                .collect(Collectors.toCollection(LinkedHashSet::new)));
   }
 
   @Override
@@ -72,7 +79,7 @@ public class SanitizeHostHandler extends ChannelInboundHandlerAdapter {
           host = sa[0];
           request.headers().set(HttpHeaderNames.HOST, host);
         }
-        if (!knownHosts.contains(host)) {
+        if (!knownHosts.matches(host)) {
           request.headers().set(HttpHeaderNames.HOST, UNKNOWN_HOST);
         }
       }
@@ -3,6 +3,7 @@ package org.sensepitch.edge;
 import lombok.Builder;
 
 /**
+ * @param waitingRoom queue visitors when the site is over its capacity, disabled if missing
  * @author Jens Wilke
  */
 @Builder(toBuilder = true)
@@ -12,5 +13,8 @@ public record SiteConfig(
     String uri,
     ResponseConfig response,
     UpstreamConfig upstream,
-    ProtectionConfig protection)
+    ProtectionConfig protection,
+    CacheConfig cache,
+    CompressionConfig compression,
+    WaitingRoomConfig waitingRoom)
     implements HasKey {}
@@ -0,0 +1,127 @@
+package org.sensepitch.edge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Routes a request to a site by host and URI prefix. Compiled once at startup and immutable
+ * afterwards. The host is matched by the {@link HostMatcher}, which supports wildcard hosts. Each
+ * host has a radix trie of the URI prefixes and the longest matching prefix wins, so nested
+ * prefixes like {@code /api/} and {@code /api/v2/} are resolved correctly. A lookup does not
+ * allocate and returns the index of the site.
+ *
+ * @author Jens Wilke
+ */
+public class SiteRouter {
+
+  public static final int NO_SITE = -1;
+
+  private final HostMatcher hostMatcher;
+  private final PathNode[] pathTries;
+
+  /**
+   * @param host host name or wildcard pattern
+   * @param uriPrefix the empty string matches every URI
+   * @param site index of the site returned when routed here
+   */
+  public record Route(String host, String uriPrefix, int site) {}
+
+  /**
+   * @throws IllegalArgumentException if two routes have the same host and prefix
+   */
+  public SiteRouter(List<Route> routes) {
+    Map<String, PathBuildNode> hosts = new LinkedHashMap<>();
+    for (Route route : routes) {
+      PathBuildNode node = hosts.computeIfAbsent(route.host(), k -> new PathBuildNode());
+      String prefix = route.uriPrefix();
+      for (int i = 0; i < prefix.length(); i++) {
+        node = node.children.computeIfAbsent(prefix.charAt(i), k -> new PathBuildNode());
+      }
+      if (node.site != NO_SITE) {
+        throw new IllegalArgumentException(
+            "Duplicate site for host " + route.host() + " and uri " + prefix + "*");
+      }
+      node.site = route.site();
+    }
+    hostMatcher = new HostMatcher(new ArrayList<>(hosts.keySet()));
+    pathTries = hosts.values().stream().map(n -> n.compile("")).toArray(PathNode[]::new);
+  }
+
+  /**
+   * @return index of the site or {@link #NO_SITE}
+   */
+  public int route(String host, String uri) {
+    int hostIndex = hostMatcher.match(host);
+    if (hostIndex == HostMatcher.NO_MATCH) {
+      return NO_SITE;
+    }
+    return pathTries[hostIndex].longestPrefix(uri);
+  }
+
+  /** Radix trie node, the fragment is the part of the prefix leading to this node */
+  private static final class PathNode {
+    final String fragment;
+    final char[] firstChars;
+    final PathNode[] children;
+    final int site;
+
+    PathNode(String fragment, char[] firstChars, PathNode[] children, int site) {
+      this.fragment = fragment;
+      this.firstChars = firstChars;
+      this.children = children;
+      this.site = site;
+    }
+
+    int longestPrefix(String uri) {
+      PathNode node = this;
+      int best = site;
+      int pos = 0;
+      int length = uri.length();
+      while (pos < length) {
+        int idx = Arrays.binarySearch(node.firstChars, uri.charAt(pos));
+        if (idx < 0) {
+          break;
+        }
+        PathNode child = node.children[idx];
+        if (!uri.startsWith(child.fragment, pos)) {
+          break;
+        }
+        pos += child.fragment.length();
+        node = child;
+        if (node.site != NO_SITE) {
+          best = node.site;
+        }
+      }
+      return best;
+    }
+  }
+
+  /** Mutable trie with a node per character, compressed into the radix trie */
+  private static final class PathBuildNode {
+    final TreeMap<Character, PathBuildNode> children = new TreeMap<>();
+    int site = NO_SITE;
+
+    PathNode compile(String fragment) {
+      PathBuildNode node = this;
+      StringBuilder sb = new StringBuilder(fragment);
+      while (node.site == NO_SITE && node.children.size() == 1 && !sb.isEmpty()) {
+        var entry = node.children.firstEntry();
+        sb.append(entry.getKey());
+        node = entry.getValue();
+      }
+      char[] firstChars = new char[node.children.size()];
+      PathNode[] nodes = new PathNode[firstChars.length];
+      int i = 0;
+      for (var entry : node.children.entrySet()) {
+        firstChars[i] = entry.getKey();
+        nodes[i] = entry.getValue().compile(String.valueOf(entry.getKey()));
+        i++;
+      }
+      return new PathNode(sb.toString(), firstChars, nodes, node.site);
+    }
+  }
+}
@@ -1,29 +1,14 @@
 package org.sensepitch.edge;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelOutboundHandlerAdapter;
-import io.netty.channel.ChannelPromise;
-import io.netty.channel.embedded.EmbeddedChannel;
-import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.FullHttpResponse;
-import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpRequest;
-import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.HttpVersion;
-import io.netty.util.ReferenceCountUtil;
-import io.netty.util.concurrent.Future;
-import io.netty.util.concurrent.Promise;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  * @author Jens Wilke
@@ -31,9 +16,12 @@ import java.util.function.Supplier;
 public class SiteSelector {
 
   private static final SiteConfig SITE_CONFIG_DEFAULT = SiteConfig.builder().build();
+  private static final PassThroughHandler PASS_THROUGH = new PassThroughHandler();
   private final Upstream defaultUpstream;
-  private final Map<String, Suppliers> directHostMatch = new HashMap<>();
-  private final Map<String, TreeMap<String, Suppliers>> sitePrefixUriMatch = new HashMap<>();
+  private final List<Suppliers> sites = new ArrayList<>();
+  private final Set<String> servicedHosts = new LinkedHashSet<>();
+  private final List<ResponseCache> caches = new ArrayList<>();
+  private final SiteRouter router;
 
   public SiteSelector(ProxyContext ctx, ProxyConfig config) {
     if (config.sites() == null || config.sites().isEmpty()) {
@@ -44,6 +32,7 @@ public class SiteSelector {
     } else {
       defaultUpstream = null;
     }
+    List<SiteRouter.Route> routes = new ArrayList<>();
     config
         .sites()
         .values()
@@ -60,7 +49,24 @@ public class SiteSelector {
                 throw new IllegalArgumentException(
                     "Site requires protection scheme or explicit disable");
               }
-              var suppliers = new Suppliers(protectionSupplier, proxySupplier);
+              CompressionConfig compression = site.compression();
+              if (compression == null) {
+                compression = config.compression();
+              }
+              if (compression != null && compression.disable()) {
+                compression = null;
+              }
+              Supplier<ChannelHandler> cacheSupplier =
+                  constructCacheSupplier(ctx, site, compression != null);
+              Supplier<ChannelHandler> compressionSupplier =
+                  constructCompressionSupplier(ctx, compression);
+              var suppliers =
+                  new Suppliers(
+                      protectionSupplier,
+                      constructWaitingRoomSupplier(ctx, site.waitingRoom()),
+                      cacheSupplier,
+                      compressionSupplier,
+                      proxySupplier);
               String host = site.host();
               if (host == null) {
                 host = site.key();
@@ -68,95 +74,72 @@ public class SiteSelector {
               if (host == null) {
                 throw new IllegalArgumentException("Site requires host or key");
               }
-              if (host.contains("*")) {
-                // TODO: support wildcard hosts
-                throw new IllegalArgumentException("Host wildcards are not yet supported");
-              }
+              String matchUri;
               if (site.uri() == null || site.uri().equals("*") || site.uri().equals("/*")) {
-                directHostMatch.put(host, suppliers);
+                matchUri = "";
               } else if (site.uri().endsWith("*")) {
-                String matchUri = site.uri().substring(0, site.uri().length() - 1);
-                var tree = sitePrefixUriMatch.computeIfAbsent(host, k -> new TreeMap<>());
-                tree.put(matchUri, suppliers);
+                matchUri = site.uri().substring(0, site.uri().length() - 1);
               } else {
                 throw new IllegalArgumentException("Site match uri needs to be prefix");
               }
+              routes.add(new SiteRouter.Route(host, matchUri, sites.size()));
+              sites.add(suppliers);
+              servicedHosts.add(host);
             });
+    router = new SiteRouter(routes);
+  }
+
+  /** Close the response caches of all sites */
+  public void close() {
+    caches.forEach(ResponseCache::close);
+  }
+
+  /** Sites with the given handler suppliers, for testing */
+  SiteSelector(List<SiteRouter.Route> routes, List<Suppliers> sites) {
+    defaultUpstream = null;
+    this.sites.addAll(sites);
+    routes.forEach(route -> servicedHosts.add(route.host()));
+    router = new SiteRouter(routes);
+  }
+
+  /**
+   * The cache is shared by all requests of the site, the handler is per connection. With
+   * compression the cache normalizes {@code Accept-Encoding}, so it stores one variant per
+   * encoding.
+   */
+  private Supplier<ChannelHandler> constructCacheSupplier(
+      ProxyContext ctx, SiteConfig site, boolean compression) {
+    if (site.cache() == null) {
+      return () -> PASS_THROUGH;
+    }
+    ResponseCache cache = new ResponseCache(site.cache(), ctx.metrics());
+    caches.add(cache);
+    return () -> new ResponseCacheHandler(cache, ctx.metrics(), compression);
+  }
+
+  /** The waiting room state is shared by all connections of the site */
+  private static Supplier<ChannelHandler> constructWaitingRoomSupplier(
+      ProxyContext ctx, WaitingRoomConfig waitingRoom) {
+    if (waitingRoom == null || waitingRoom.disable()) {
+      return () -> PASS_THROUGH;
+    }
+    WaitingRoom room = new WaitingRoom(waitingRoom, ctx.metrics());
+    return () -> new WaitingRoomHandler(room);
+  }
+
+  private static Supplier<ChannelHandler> constructCompressionSupplier(
+      ProxyContext ctx, CompressionConfig compression) {
+    if (compression == null) {
+      return () -> PASS_THROUGH;
+    }
+    return () -> new ResponseCompressionHandler(compression, ctx.metrics());
   }
 
   private Supplier<ChannelHandler> constructProxySupplier(ProxyContext ctx, SiteConfig site) {
     Upstream upstream;
     if (site.response() != null) {
-      ResponseConfig response = site.response();
-      HttpResponseStatus status;
-      String location;
-      if (response.permanentRedirect() != null) {
-        location = response.permanentRedirect();
-        status = HttpResponseStatus.PERMANENT_REDIRECT;
-      } else if (response.temporaryRedirect() != null) {
-        location = response.temporaryRedirect();
-        status = HttpResponseStatus.TEMPORARY_REDIRECT;
-      } else if (response.location() != null) {
-        location = response.location();
-        if (response.status() != 0) {
-          status = HttpResponseStatus.valueOf(response.status());
-        } else {
-          status = HttpResponseStatus.FOUND;
-        }
-      } else {
-        location = null;
-        if (response.status() != 0) {
-          status = HttpResponseStatus.valueOf(response.status());
-        } else {
-          status = HttpResponseStatus.OK;
-        }
-      }
-      String text = response.text();
-      if (text == null && location == null) {
-        throw new IllegalArgumentException("Response requires redirect location or text");
-      }
-      upstream =
-          new Upstream() {
-            @Override
-            public Future<Channel> connect(ChannelHandlerContext ingressContext) {
-              Promise<Channel> promise = ingressContext.executor().newPromise();
-              Channel ingressChannel = ingressContext.channel();
-              Channel upstreamChannel =
-                  EmbeddedChannel.builder()
-                      .handlers(
-                          new ChannelOutboundHandlerAdapter() {
-                            @Override
-                            public void write(
-                                ChannelHandlerContext ctx1, Object msg, ChannelPromise promise) {
-                              if (msg instanceof HttpRequest) {
-                                ByteBuf content = Unpooled.EMPTY_BUFFER;
-                                if (text != null) {
-                                  content = Unpooled.copiedBuffer(text, StandardCharsets.US_ASCII);
-                                }
-                                FullHttpResponse response =
-                                    new DefaultFullHttpResponse(
-                                        HttpVersion.HTTP_1_1, status, content);
-                                response
-                                    .headers()
-                                    .set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
-                                if (location != null) {
-                                  response.headers().set(HttpHeaderNames.LOCATION, location);
-                                }
-                                ingressChannel.writeAndFlush(response);
-                              }
-                              ReferenceCountUtil.release(msg);
-                            }
-                          })
-                      .build();
-              promise.setSuccess(upstreamChannel);
-              return promise;
-            }
-
-            @Override
-            public void release(Channel ch) {
-              // ignore, embedded
-            }
-          };
+      StaticResponseHandler handler = new StaticResponseHandler(site.response());
+      return () -> handler;
     } else if (site.upstream() != null) {
       upstream = constructUpstream(ctx, site.upstream());
     } else if (defaultUpstream != null) {
@@ -168,31 +151,88 @@ public class SiteSelector {
     return proxySupplier;
   }
 
-  private static DefaultUpstream constructUpstream(ProxyContext ctx, UpstreamConfig cfg) {
-    return new DefaultUpstream(ctx, cfg);
+  private static Upstream constructUpstream(ProxyContext ctx, UpstreamConfig cfg) {
+    Upstream upstream;
+    List<UpstreamTargetConfig> targetConfigs = cfg.targets();
+    if (targetConfigs == null || targetConfigs.isEmpty()) {
+      targetConfigs = List.of(UpstreamTargetConfig.builder().target(cfg.target()).build());
+    }
+    HealthCheckConfig healthCheck = cfg.healthCheck();
+    if (healthCheck != null && healthCheck.disable()) {
+      healthCheck = null;
+    }
+    if (targetConfigs.size() > 1 || healthCheck != null) {
+      List<Upstream> targets = new ArrayList<>();
+      int[] weights = new int[targetConfigs.size()];
+      TargetHealth[] health = healthCheck != null ? new TargetHealth[weights.length] : null;
+      for (int i = 0; i < weights.length; i++) {
+        UpstreamTargetConfig target = targetConfigs.get(i);
+        UpstreamConfig targetConfig = cfg.toBuilder().target(target.target()).targets(null).build();
+        TargetAddresses addresses = TargetAddresses.of(ctx, targetConfig);
+        targets.add(constructTargetUpstream(ctx, targetConfig, addresses));
+        weights[i] = target.weight() > 0 ? target.weight() : UpstreamTargetConfig.DEFAULT_WEIGHT;
+        if (health != null) {
+          health[i] = new TargetHealth(healthCheck, ctx.metrics(), target.target());
+          health[i].startProbing(
+              healthCheck,
+              DefaultUpstream.newBootstrap(ctx),
+              addresses,
+              ctx.eventLoopGroup().next());
+        }
+      }
+      upstream = new BalancedUpstream(targets, weights, health);
+    } else {
+      upstream = constructTargetUpstream(ctx, cfg, TargetAddresses.of(ctx, cfg));
+    }
+    String label =
+        targetConfigs.stream().map(UpstreamTargetConfig::target).collect(Collectors.joining(","));
+    ConcurrencyLimitConfig limit = cfg.concurrencyLimit();
+    if (limit != null && !limit.disable()) {
+      upstream =
+          new LimitedUpstream(
+              upstream, new AdaptiveConcurrencyLimiter(limit, ctx.metrics(), label));
+    }
+    return upstream;
   }
 
+  private static Upstream constructTargetUpstream(
+      ProxyContext ctx, UpstreamConfig cfg, TargetAddresses addresses) {
+    Upstream upstream;
+    if (cfg.protocol() == null || UpstreamConfig.HTTP_1_1.equals(cfg.protocol())) {
+      upstream = new DefaultUpstream(ctx, cfg, addresses);
+    } else if (UpstreamConfig.H2C.equals(cfg.protocol())) {
+      upstream = new Http2Upstream(ctx, cfg, addresses);
+    } else {
+      throw new IllegalArgumentException("Unknown upstream protocol: " + cfg.protocol());
+    }
+    return upstream;
+  }
+
+  /** Host names of all sites, including wildcard patterns like {@code *.example.com} */
   public Set<String> getServicedHosts() {
-    Set<String> hosts = new HashSet<>();
-    hosts.addAll(directHostMatch.keySet());
-    hosts.addAll(sitePrefixUriMatch.keySet());
-    return hosts;
+    return Collections.unmodifiableSet(servicedHosts);
+  }
+
+  /**
+   * @return index of the site in the configuration order or {@link SiteRouter#NO_SITE}
+   */
+  public int getSiteIndex(HttpRequest request, String host) {
+    return router.route(host, request.uri());
   }
 
   public Suppliers getSuppliers(HttpRequest request, String host) {
-    var suppliers = directHostMatch.get(host);
-    if (suppliers == null) {
-      var tree = sitePrefixUriMatch.get(host);
-      if (tree != null) {
-        var entry = tree.floorEntry(request.uri());
-        if (entry != null && request.uri().startsWith(entry.getKey())) {
-          suppliers = entry.getValue();
-        }
-      }
-    }
-    return suppliers;
+    int index = getSiteIndex(request, host);
+    return index == SiteRouter.NO_SITE ? null : sites.get(index);
+  }
+
+  public Suppliers getSuppliers(int siteIndex) {
+    return sites.get(siteIndex);
   }
 
   record Suppliers(
-      Supplier<ChannelHandler> protectionSupplier, Supplier<ChannelHandler> proxySupplier) {}
+      Supplier<ChannelHandler> protectionSupplier,
+      Supplier<ChannelHandler> waitingRoomSupplier,
+      Supplier<ChannelHandler> cacheSupplier,
+      Supplier<ChannelHandler> compressionSupplier,
+      Supplier<ChannelHandler> proxySupplier) {}
 }
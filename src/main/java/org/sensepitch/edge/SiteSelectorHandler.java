@@ -1,18 +1,31 @@
 package org.sensepitch.edge;
 
 import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerAdapter;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
 
 /**
+ * Routes the request to a site and installs the handlers of the site in the pipeline. If the next
+ * request on a keep-alive connection goes to the same site, the installed handlers are kept and
+ * only reset. A sharable handler is never replaced by the same instance.
+ *
+ * @see ReusableHandler
  * @author Jens Wilke
  */
 public class SiteSelectorHandler extends SkippingChannelInboundHandlerAdapter {
 
+  private static final String[] SLOTS = {
+    "protection", "waitingRoom", "cache", "compression", "proxy"
+  };
+
   SiteSelector siteSelector;
 
+  private int currentSite = SiteRouter.NO_SITE;
+  private final ChannelHandler[] installed = new ChannelHandler[SLOTS.length];
+
   public SiteSelectorHandler(SiteSelector siteSelector) {
     this.siteSelector = siteSelector;
   }
@@ -21,16 +34,43 @@ public class SiteSelectorHandler extends SkippingChannelInboundHandlerAdapter {
   public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
     if (msg instanceof HttpRequest request) {
       var host = request.headers().get(HttpHeaderNames.HOST);
-      var suppliers = siteSelector.getSuppliers(request, host);
-      if (suppliers == null) {
+      int site = siteSelector.getSiteIndex(request, host);
+      if (site == SiteRouter.NO_SITE) {
         rejectRequest(ctx, HttpResponseStatus.NOT_FOUND);
         return;
       }
-      ChannelHandler protection = suppliers.protectionSupplier().get();
-      ChannelHandler proxy = suppliers.proxySupplier().get();
-      ctx.pipeline().replace("protection", "protection", protection);
-      ctx.pipeline().replace("proxy", "proxy", proxy);
+      if (site != currentSite || !resetInstalled()) {
+        var suppliers = siteSelector.getSuppliers(site);
+        install(ctx, 0, suppliers.protectionSupplier().get());
+        install(ctx, 1, suppliers.waitingRoomSupplier().get());
+        install(ctx, 2, suppliers.cacheSupplier().get());
+        install(ctx, 3, suppliers.compressionSupplier().get());
+        install(ctx, 4, suppliers.proxySupplier().get());
+        currentSite = site;
+      }
     }
     super.channelRead(ctx, msg);
   }
+
+  /**
+   * @return true, if all installed handlers can serve the next request
+   */
+  private boolean resetInstalled() {
+    boolean reusable = true;
+    for (ChannelHandler handler : installed) {
+      if (handler instanceof ReusableHandler r) {
+        reusable &= r.resetForNextRequest();
+      } else if (!(handler instanceof ChannelHandlerAdapter a && a.isSharable())) {
+        reusable = false;
+      }
+    }
+    return reusable;
+  }
+
+  private void install(ChannelHandlerContext ctx, int slot, ChannelHandler handler) {
+    if (installed[slot] != handler) {
+      ctx.pipeline().replace(SLOTS[slot], SLOTS[slot], handler);
+      installed[slot] = handler;
+    }
+  }
 }
@@ -0,0 +1,94 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Answers every request of a site with a fixed response, e.g. a redirect from the apex domain to
+ * {@code www}. Status, headers and body are prepared once from the {@link ResponseConfig}, per
+ * request only the response object, a copy of the headers and a duplicate of the shared body are
+ * created. Used instead of the {@link DownstreamHandler} in the {@code proxy} slot of the pipeline.
+ * The request content is discarded.
+ *
+ * @author Jens Wilke
+ */
+@ChannelHandler.Sharable
+public class StaticResponseHandler extends ChannelInboundHandlerAdapter {
+
+  private final HttpResponseStatus status;
+
+  /** Prepared headers, copied into each response, never modified */
+  private final HttpHeaders headers;
+
+  /** Shared body, never released */
+  private final ByteBuf body;
+
+  public StaticResponseHandler(ResponseConfig response) {
+    String location;
+    if (response.permanentRedirect() != null) {
+      location = response.permanentRedirect();
+      status = HttpResponseStatus.PERMANENT_REDIRECT;
+    } else if (response.temporaryRedirect() != null) {
+      location = response.temporaryRedirect();
+      status = HttpResponseStatus.TEMPORARY_REDIRECT;
+    } else if (response.location() != null) {
+      location = response.location();
+      if (response.status() != 0) {
+        status = HttpResponseStatus.valueOf(response.status());
+      } else {
+        status = HttpResponseStatus.FOUND;
+      }
+    } else {
+      location = null;
+      if (response.status() != 0) {
+        status = HttpResponseStatus.valueOf(response.status());
+      } else {
+        status = HttpResponseStatus.OK;
+      }
+    }
+    String text = response.text();
+    if (text == null && location == null) {
+      throw new IllegalArgumentException("Response requires redirect location or text");
+    }
+    ByteBuf buf = Unpooled.EMPTY_BUFFER;
+    if (text != null) {
+      byte[] ba = text.getBytes(StandardCharsets.US_ASCII);
+      buf = Unpooled.directBuffer(ba.length).writeBytes(ba);
+    }
+    body = Unpooled.unreleasableBuffer(buf.asReadOnly());
+    headers = new DefaultHttpHeaders();
+    headers.set(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
+    if (location != null) {
+      headers.set(HttpHeaderNames.LOCATION, location);
+    }
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof HttpRequest) {
+      FullHttpResponse response =
+          new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, body.duplicate());
+      response.headers().set(headers);
+      ctx.writeAndFlush(response);
+    }
+    if (msg instanceof HttpRequest || msg instanceof HttpContent) {
+      ReferenceCountUtil.release(msg);
+      return;
+    }
+    ctx.fireChannelRead(msg);
+  }
+}
@@ -0,0 +1,302 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelException;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.dns.DefaultDnsQuestion;
+import io.netty.handler.codec.dns.DnsRawRecord;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.resolver.DefaultHostsFileEntriesResolver;
+import io.netty.resolver.ResolvedAddressTypes;
+import io.netty.resolver.dns.DnsNameResolver;
+import io.netty.resolver.dns.DnsNameResolverBuilder;
+import io.netty.resolver.dns.NoopDnsCache;
+import io.netty.resolver.dns.SequentialDnsServerAddressStreamProvider;
+import io.netty.util.NetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Addresses of an upstream target. An IP address or a name in the hosts file is used as is. Other
+ * host names are resolved with the Netty DNS resolver in one event loop and refreshed in the
+ * background when the TTL of the records expires. The resolver does not cache, the TTL is taken
+ * from the records and bounded by the configuration. The addresses are published in a volatile
+ * array, so a connect only reads it and never waits for DNS.
+ *
+ * <p>Only the configured address families are queried, by default AAAA records are skipped when
+ * IPv6 is not usable. The queries of both families run in parallel. The first addresses of the
+ * preferred family are published as soon as they arrive, so the startup does not wait for a slow
+ * answer of the other family.
+ *
+ * @see UpstreamDnsConfig
+ * @author Jens Wilke
+ */
+public class TargetAddresses {
+
+  static final ProxyLogger LOG = ProxyLogger.get(TargetAddresses.class);
+
+  private static final InetSocketAddress[] NO_ADDRESSES = new InetSocketAddress[0];
+
+  private final String host;
+  private final int port;
+  private final EventLoop eventLoop;
+  private final DnsNameResolver resolver;
+  private final long minTtlSeconds;
+  private final long maxTtlSeconds;
+
+  /** Record types to query, the preferred family first */
+  private final DnsRecordType[] queryTypes;
+
+  private final Promise<Void> resolved;
+  private volatile InetSocketAddress[] addresses = NO_ADDRESSES;
+
+  /**
+   * Addresses of the upstream target. For a host name, waits for the first resolution, unless
+   * called within an event loop.
+   */
+  public static TargetAddresses of(ProxyContext ctx, UpstreamConfig cfg) {
+    UpstreamDnsConfig dns = cfg.dns() != null ? cfg.dns() : UpstreamDnsConfig.DEFAULT;
+    TargetAddresses addresses = new TargetAddresses(ctx, cfg.target(), dns);
+    if (!addresses.eventLoop.inEventLoop()) {
+      long timeoutMillis =
+          dns.timeoutMillis() > 0 ? dns.timeoutMillis() : UpstreamDnsConfig.DEFAULT_TIMEOUT_MILLIS;
+      if (!addresses.resolved.awaitUninterruptibly(timeoutMillis)) {
+        LOG.error("upstream target not resolved yet, target=" + cfg.target());
+      }
+    }
+    return addresses;
+  }
+
+  TargetAddresses(ProxyContext ctx, String target, UpstreamDnsConfig cfg) {
+    String[] sa = target.split(":");
+    if (sa.length > 2) {
+      throw new IllegalArgumentException("Target: " + target);
+    }
+    host = sa[0];
+    port = sa.length > 1 ? Integer.parseInt(sa[1]) : 80;
+    eventLoop = ctx.eventLoopGroup().next();
+    resolved = eventLoop.newPromise();
+    minTtlSeconds =
+        cfg.minTtlSeconds() > 0 ? cfg.minTtlSeconds() : UpstreamDnsConfig.DEFAULT_MIN_TTL_SECONDS;
+    maxTtlSeconds =
+        Math.max(
+            minTtlSeconds,
+            cfg.maxTtlSeconds() > 0
+                ? cfg.maxTtlSeconds()
+                : UpstreamDnsConfig.DEFAULT_MAX_TTL_SECONDS);
+    ResolvedAddressTypes addressTypes =
+        cfg.addressTypes() != null
+            ? ResolvedAddressTypes.valueOf(cfg.addressTypes().toUpperCase(Locale.ROOT))
+            : defaultAddressTypes();
+    queryTypes =
+        switch (addressTypes) {
+          case IPV4_ONLY -> new DnsRecordType[] {DnsRecordType.A};
+          case IPV6_ONLY -> new DnsRecordType[] {DnsRecordType.AAAA};
+          case IPV4_PREFERRED -> new DnsRecordType[] {DnsRecordType.A, DnsRecordType.AAAA};
+          case IPV6_PREFERRED -> new DnsRecordType[] {DnsRecordType.AAAA, DnsRecordType.A};
+        };
+    List<InetAddress> fixed = fixedAddresses(host, addressTypes);
+    if (fixed != null && !fixed.isEmpty()) {
+      addresses =
+          fixed.stream()
+              .map(address -> new InetSocketAddress(address, port))
+              .toArray(InetSocketAddress[]::new);
+      resolver = null;
+      resolved.setSuccess(null);
+      return;
+    }
+    DnsNameResolverBuilder builder =
+        new DnsNameResolverBuilder(eventLoop)
+            .datagramChannelType(ctx.transport().datagramChannelClass())
+            .resolveCache(NoopDnsCache.INSTANCE)
+            .resolvedAddressTypes(addressTypes)
+            .queryTimeoutMillis(
+                cfg.timeoutMillis() > 0
+                    ? cfg.timeoutMillis()
+                    : UpstreamDnsConfig.DEFAULT_TIMEOUT_MILLIS);
+    if (cfg.nameServers() != null && !cfg.nameServers().isEmpty()) {
+      List<InetSocketAddress> servers =
+          cfg.nameServers().stream().map(CrawlerVerifier::parseNameServer).toList();
+      builder.nameServerProvider(new SequentialDnsServerAddressStreamProvider(servers));
+    }
+    resolver = builder.build();
+    eventLoop.execute(this::refresh);
+  }
+
+  /**
+   * Same default as the Netty resolver: IPv4 only, if the IPv4 stack is preferred or no interface
+   * has a global IPv6 address.
+   */
+  static ResolvedAddressTypes defaultAddressTypes() {
+    if (NetUtil.isIpV4StackPreferred() || !anyInterfaceSupportsIpV6()) {
+      return ResolvedAddressTypes.IPV4_ONLY;
+    }
+    return NetUtil.isIpV6AddressesPreferred()
+        ? ResolvedAddressTypes.IPV6_PREFERRED
+        : ResolvedAddressTypes.IPV4_PREFERRED;
+  }
+
+  private static boolean anyInterfaceSupportsIpV6() {
+    for (NetworkInterface iface : NetUtil.NETWORK_INTERFACES) {
+      for (InetAddress address : Collections.list(iface.getInetAddresses())) {
+        if (address instanceof Inet6Address
+            && !address.isAnyLocalAddress()
+            && !address.isLoopbackAddress()
+            && !address.isLinkLocalAddress()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** IP address or entries of the hosts file, which never change */
+  private static List<InetAddress> fixedAddresses(String host, ResolvedAddressTypes addressTypes) {
+    byte[] ip = NetUtil.createByteArrayFromIpAddressString(host);
+    if (ip != null) {
+      try {
+        return List.of(InetAddress.getByAddress(ip));
+      } catch (UnknownHostException e) {
+        throw new IllegalArgumentException("Target: " + host, e);
+      }
+    }
+    return new DefaultHostsFileEntriesResolver().addresses(host, addressTypes);
+  }
+
+  /**
+   * Address for a new connection. Callers pass a sequence number, so connections go to all
+   * addresses in turn without shared counters.
+   *
+   * @return the address or {@code null} if the host name is not resolved yet
+   */
+  public InetSocketAddress select(int sequence) {
+    InetSocketAddress[] a = addresses;
+    if (a.length == 0) {
+      return null;
+    }
+    return a[(sequence & Integer.MAX_VALUE) % a.length];
+  }
+
+  public List<InetSocketAddress> addresses() {
+    return List.of(addresses);
+  }
+
+  public String host() {
+    return host;
+  }
+
+  /** Query the record types in parallel */
+  private void refresh() {
+    Resolution resolution = new Resolution();
+    for (int i = 0; i < queryTypes.length; i++) {
+      int index = i;
+      resolver
+          .resolveAll(new DefaultDnsQuestion(host, queryTypes[i]))
+          .addListener((Future<List<DnsRecord>> future) -> resolution.done(index, future));
+    }
+  }
+
+  /** Results of one refresh, only used in the event loop of the resolver */
+  private class Resolution {
+
+    @SuppressWarnings("unchecked")
+    private final List<InetSocketAddress>[] results = new List[queryTypes.length];
+
+    private final long[] ttls = new long[queryTypes.length];
+    private Throwable cause;
+    private int pending = queryTypes.length;
+
+    void done(int index, Future<List<DnsRecord>> future) {
+      List<InetSocketAddress> result = new ArrayList<>();
+      ttls[index] = collect(future, result);
+      results[index] = result;
+      if (cause == null) {
+        cause = future.cause();
+      }
+      if (--pending == 0) {
+        complete();
+      } else if (index == 0 && !result.isEmpty() && addresses.length == 0) {
+        // first resolution, do not wait for the other family
+        publish(result);
+      }
+    }
+
+    /** Use the first family with addresses, in order of preference */
+    private void complete() {
+      long nextSeconds = minTtlSeconds;
+      List<InetSocketAddress> result = null;
+      for (int i = 0; i < results.length && result == null; i++) {
+        if (!results[i].isEmpty()) {
+          result = results[i];
+          nextSeconds = Math.min(maxTtlSeconds, Math.max(minTtlSeconds, ttls[i]));
+        }
+      }
+      if (result == null) {
+        LOG.error("upstream target resolution failed, host=" + host, cause);
+      } else {
+        publish(result);
+      }
+      if (!eventLoop.isShuttingDown()) {
+        eventLoop.schedule(TargetAddresses.this::refresh, nextSeconds, TimeUnit.SECONDS);
+      }
+    }
+  }
+
+  /**
+   * Adds the addresses of A and AAAA records to the result
+   *
+   * @return the minimum TTL of the records
+   */
+  private long collect(Future<List<DnsRecord>> future, List<InetSocketAddress> result) {
+    long ttl = Long.MAX_VALUE;
+    if (!future.isSuccess()) {
+      return ttl;
+    }
+    try {
+      for (DnsRecord record : future.getNow()) {
+        if (record instanceof DnsRawRecord raw
+            && (record.type() == DnsRecordType.A || record.type() == DnsRecordType.AAAA)) {
+          byte[] ip = ByteBufUtil.getBytes(raw.content());
+          try {
+            result.add(new InetSocketAddress(InetAddress.getByAddress(host, ip), port));
+            ttl = Math.min(ttl, record.timeToLive());
+          } catch (UnknownHostException e) {
+            // malformed record, skip
+          }
+        }
+      }
+    } finally {
+      future.getNow().forEach(ReferenceCountUtil::release);
+    }
+    return ttl;
+  }
+
+  private void publish(List<InetSocketAddress> result) {
+    if (!Set.copyOf(result).equals(Set.copyOf(List.of(addresses)))) {
+      LOG.info("upstream target resolved, host=" + host + ", addresses=" + result);
+    }
+    addresses = result.toArray(NO_ADDRESSES);
+    resolved.trySuccess(null);
+  }
+
+  /** The host name of the target was not resolved yet. */
+  static class UnresolvedTargetException extends ChannelException {
+
+    public UnresolvedTargetException(String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,248 @@
+package org.sensepitch.edge;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Health of one upstream target. Outcomes of requests are reported from all event loops, the
+ * consecutive failures are counted in an atomic that is only written when it changes. Routing reads
+ * the ejection time from a volatile field, ejection and admission are rare and synchronized.
+ *
+ * <p>With a probe path, a probe request is sent on a new connection after each interval. The next
+ * probe is scheduled after the previous completed, so probes never overlap. Probes stop with the
+ * shutdown of the event loop group.
+ *
+ * @see HealthCheckConfig
+ * @author Jens Wilke
+ */
+public class TargetHealth {
+
+  static final ProxyLogger LOG = ProxyLogger.get(TargetHealth.class);
+
+  private final String target;
+  private final int consecutiveFailuresThreshold;
+  private final long baseEjectionNanos;
+  private final long maxEjectionNanos;
+  private final CounterDataPoint ejectionCounter;
+  private final CounterDataPoint probeSuccessCounter;
+  private final CounterDataPoint probeFailureCounter;
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+  /** Target receives no requests before this time, or 0 if not ejected */
+  private volatile long ejectedUntilNanos;
+
+  /** Ejections since the last successful request, for the exponential backoff */
+  private volatile int ejections;
+
+  /** Probes go to all addresses of the target in turn, only used in the probe event loop */
+  private int probeSequence;
+
+  public TargetHealth(HealthCheckConfig cfg, ProxyMetrics metrics, String target) {
+    this.target = target;
+    consecutiveFailuresThreshold =
+        cfg.consecutiveFailures() > 0
+            ? cfg.consecutiveFailures()
+            : HealthCheckConfig.DEFAULT_CONSECUTIVE_FAILURES;
+    baseEjectionNanos =
+        TimeUnit.MILLISECONDS.toNanos(
+            cfg.baseEjectionMillis() > 0
+                ? cfg.baseEjectionMillis()
+                : HealthCheckConfig.DEFAULT_BASE_EJECTION_MILLIS);
+    maxEjectionNanos =
+        Math.max(
+            baseEjectionNanos,
+            TimeUnit.MILLISECONDS.toNanos(
+                cfg.maxEjectionMillis() > 0
+                    ? cfg.maxEjectionMillis()
+                    : HealthCheckConfig.DEFAULT_MAX_EJECTION_MILLIS));
+    ejectionCounter = metrics.upstreamEjectionCounter.labelValues(target);
+    probeSuccessCounter = metrics.upstreamHealthCheckCounter.labelValues(target, "success");
+    probeFailureCounter = metrics.upstreamHealthCheckCounter.labelValues(target, "failure");
+  }
+
+  /** Target may receive requests. Called for every request, so only reads a volatile field. */
+  public boolean isAvailable(long nowNanos) {
+    long until = ejectedUntilNanos;
+    return until == 0 || nowNanos - until >= 0;
+  }
+
+  public void success() {
+    if (consecutiveFailures.get() != 0) {
+      consecutiveFailures.set(0);
+    }
+    if (ejections != 0) {
+      resetEjections();
+    }
+  }
+
+  public void failure(long nowNanos) {
+    if (consecutiveFailures.incrementAndGet() >= consecutiveFailuresThreshold) {
+      eject(nowNanos);
+    }
+  }
+
+  private synchronized void eject(long nowNanos) {
+    if (!isAvailable(nowNanos) || consecutiveFailures.get() < consecutiveFailuresThreshold) {
+      return;
+    }
+    consecutiveFailures.set(0);
+    long duration = Math.min(maxEjectionNanos, baseEjectionNanos << Math.min(ejections, 20));
+    ejections++;
+    long until = nowNanos + duration;
+    ejectedUntilNanos = until == 0 ? 1 : until;
+    ejectionCounter.inc();
+    LOG.info(
+        "upstream target ejected, target="
+            + target
+            + ", seconds="
+            + TimeUnit.NANOSECONDS.toSeconds(duration));
+  }
+
+  private synchronized void resetEjections() {
+    ejections = 0;
+  }
+
+  /**
+   * A successful probe admits the target immediately. The ejections are only reset by a successful
+   * request, so the backoff keeps growing for a target that passes the probe but fails requests.
+   */
+  synchronized void admit(long nowNanos) {
+    if (!isAvailable(nowNanos)) {
+      LOG.info("upstream target admitted by probe, target=" + target);
+    }
+    ejectedUntilNanos = 0;
+    consecutiveFailures.set(0);
+  }
+
+  /** Start probing in the event loop, if the configuration has a probe path. */
+  public void startProbing(
+      HealthCheckConfig cfg, Bootstrap bootstrap, TargetAddresses addresses, EventLoop eventLoop) {
+    if (cfg.path() == null) {
+      return;
+    }
+    long intervalMillis =
+        cfg.intervalMillis() > 0 ? cfg.intervalMillis() : HealthCheckConfig.DEFAULT_INTERVAL_MILLIS;
+    int timeoutMillis =
+        cfg.timeoutMillis() > 0 ? cfg.timeoutMillis() : HealthCheckConfig.DEFAULT_TIMEOUT_MILLIS;
+    Bootstrap probeBootstrap =
+        bootstrap.clone(eventLoop).option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeoutMillis);
+    Runnable[] probe = new Runnable[1];
+    probe[0] =
+        () ->
+            probe(
+                probeBootstrap,
+                addresses,
+                cfg.path(),
+                timeoutMillis,
+                () -> eventLoop.schedule(probe[0], intervalMillis, TimeUnit.MILLISECONDS));
+    eventLoop.schedule(probe[0], intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void probe(
+      Bootstrap bootstrap,
+      TargetAddresses addresses,
+      String path,
+      int timeoutMillis,
+      Runnable next) {
+    ProbeHandler handler = new ProbeHandler(next);
+    InetSocketAddress address = addresses.select(probeSequence++);
+    if (address == null) {
+      handler.complete(false);
+      return;
+    }
+    bootstrap
+        .remoteAddress(address)
+        .handler(
+            new ChannelInitializer<Channel>() {
+              @Override
+              protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(new HttpClientCodec(), handler);
+              }
+            })
+        .connect()
+        .addListener(
+            (ChannelFutureListener)
+                future -> {
+                  if (!future.isSuccess()) {
+                    handler.complete(false);
+                    return;
+                  }
+                  Channel ch = future.channel();
+                  ch.eventLoop().schedule(() -> ch.close(), timeoutMillis, TimeUnit.MILLISECONDS);
+                  FullHttpRequest request =
+                      new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
+                  request.headers().set(HttpHeaderNames.HOST, target);
+                  request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+                  request.headers().set(HttpHeaderNames.USER_AGENT, "sensepitch-health-check");
+                  ch.writeAndFlush(request);
+                });
+  }
+
+  /** Reports the status of the probe response, anything else before close is a failure */
+  private class ProbeHandler extends SimpleChannelInboundHandler<HttpObject> {
+
+    private final Runnable next;
+    private boolean healthy;
+    private boolean completed;
+
+    ProbeHandler(Runnable next) {
+      this.next = next;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+      if (msg instanceof HttpResponse response) {
+        healthy = response.status().code() < 500;
+      }
+      if (msg instanceof LastHttpContent) {
+        complete(healthy);
+        ctx.close();
+      }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+      complete(false);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      ctx.close();
+    }
+
+    void complete(boolean success) {
+      if (completed) {
+        return;
+      }
+      completed = true;
+      if (success) {
+        probeSuccessCounter.inc();
+        admit(System.nanoTime());
+      } else {
+        probeFailureCounter.inc();
+        failure(System.nanoTime());
+      }
+      next.run();
+    }
+  }
+}
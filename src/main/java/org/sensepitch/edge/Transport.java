@@ -0,0 +1,244 @@
+package org.sensepitch.edge;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.IoHandlerFactory;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollIoHandler;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.unix.UnixChannelOption;
+import io.netty.channel.uring.IoUringChannelOption;
+import io.netty.channel.uring.IoUringDatagramChannel;
+import io.netty.channel.uring.IoUringIoHandler;
+import io.netty.channel.uring.IoUringServerSocketChannel;
+import io.netty.channel.uring.IoUringSocketChannel;
+
+/**
+ * Netty transport used for ingress and upstream channels. The portable NIO transport works
+ * everywhere, the native transports are only available on Linux but save the selector overhead and
+ * support {@code SO_REUSEPORT}, so multiple listeners can be bound to the same port and the kernel
+ * distributes accepts across event loops.
+ *
+ * @author Jens Wilke
+ * @see ListenConfig#transport()
+ */
+public interface Transport {
+
+  String NIO = "nio";
+  String EPOLL = "epoll";
+  String IO_URING = "io_uring";
+
+  /** Use io_uring if available, then epoll, otherwise NIO */
+  String AUTO = "auto";
+
+  static Transport select(String name) {
+    return select(name, IoUring.INSTANCE, Epoll.INSTANCE, Nio.INSTANCE);
+  }
+
+  /**
+   * Select the transport by name, or the first available one for {@link #AUTO}.
+   *
+   * @param transports known transports in order of preference
+   */
+  static Transport select(String name, Transport... transports) {
+    if (name == null || AUTO.equals(name)) {
+      for (Transport transport : transports) {
+        if (transport.isAvailable()) {
+          return transport;
+        }
+      }
+      throw new IllegalArgumentException("No transport available on this system");
+    }
+    for (Transport transport : transports) {
+      if (transport.name().equals(name)) {
+        if (!transport.isAvailable()) {
+          throw new IllegalArgumentException("Transport not available on this system: " + name);
+        }
+        return transport;
+      }
+    }
+    throw new IllegalArgumentException("Unknown transport: " + name);
+  }
+
+  String name();
+
+  boolean isAvailable();
+
+  IoHandlerFactory newIoHandlerFactory();
+
+  Class<? extends ServerSocketChannel> serverSocketChannelClass();
+
+  Class<? extends SocketChannel> socketChannelClass();
+
+  /** Used for DNS queries */
+  Class<? extends DatagramChannel> datagramChannelClass();
+
+  /** Multiple server channels can be bound to the same port. */
+  boolean isReusePortSupported();
+
+  /**
+   * Apply the socket options from the listen configuration that are specific to this transport.
+   * Options not supported by the transport are ignored.
+   */
+  void applyServerOptions(ServerBootstrap bootstrap, ListenConfig cfg);
+
+  class Nio implements Transport {
+
+    static final Transport INSTANCE = new Nio();
+
+    @Override
+    public String name() {
+      return NIO;
+    }
+
+    @Override
+    public boolean isAvailable() {
+      return true;
+    }
+
+    @Override
+    public IoHandlerFactory newIoHandlerFactory() {
+      return NioIoHandler.newFactory();
+    }
+
+    @Override
+    public Class<? extends ServerSocketChannel> serverSocketChannelClass() {
+      return NioServerSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends SocketChannel> socketChannelClass() {
+      return NioSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends DatagramChannel> datagramChannelClass() {
+      return NioDatagramChannel.class;
+    }
+
+    @Override
+    public boolean isReusePortSupported() {
+      return false;
+    }
+
+    @Override
+    public void applyServerOptions(ServerBootstrap bootstrap, ListenConfig cfg) {}
+  }
+
+  class Epoll implements Transport {
+
+    static final Transport INSTANCE = new Epoll();
+
+    @Override
+    public String name() {
+      return EPOLL;
+    }
+
+    @Override
+    public boolean isAvailable() {
+      return io.netty.channel.epoll.Epoll.isAvailable();
+    }
+
+    @Override
+    public IoHandlerFactory newIoHandlerFactory() {
+      return EpollIoHandler.newFactory();
+    }
+
+    @Override
+    public Class<? extends ServerSocketChannel> serverSocketChannelClass() {
+      return EpollServerSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends SocketChannel> socketChannelClass() {
+      return EpollSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends DatagramChannel> datagramChannelClass() {
+      return EpollDatagramChannel.class;
+    }
+
+    @Override
+    public boolean isReusePortSupported() {
+      return true;
+    }
+
+    @Override
+    public void applyServerOptions(ServerBootstrap bootstrap, ListenConfig cfg) {
+      if (cfg.acceptors() > 1) {
+        bootstrap.option(UnixChannelOption.SO_REUSEPORT, true);
+      }
+      if (cfg.tcpFastOpen() > 0
+          && io.netty.channel.epoll.Epoll.isTcpFastOpenServerSideAvailable()) {
+        bootstrap.option(ChannelOption.TCP_FASTOPEN, cfg.tcpFastOpen());
+      }
+      if (cfg.tcpDeferAcceptSeconds() > 0) {
+        bootstrap.option(EpollChannelOption.TCP_DEFER_ACCEPT, cfg.tcpDeferAcceptSeconds());
+      }
+    }
+  }
+
+  class IoUring implements Transport {
+
+    static final Transport INSTANCE = new IoUring();
+
+    @Override
+    public String name() {
+      return IO_URING;
+    }
+
+    @Override
+    public boolean isAvailable() {
+      return io.netty.channel.uring.IoUring.isAvailable();
+    }
+
+    @Override
+    public IoHandlerFactory newIoHandlerFactory() {
+      return IoUringIoHandler.newFactory();
+    }
+
+    @Override
+    public Class<? extends ServerSocketChannel> serverSocketChannelClass() {
+      return IoUringServerSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends SocketChannel> socketChannelClass() {
+      return IoUringSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends DatagramChannel> datagramChannelClass() {
+      return IoUringDatagramChannel.class;
+    }
+
+    @Override
+    public boolean isReusePortSupported() {
+      return true;
+    }
+
+    @Override
+    public void applyServerOptions(ServerBootstrap bootstrap, ListenConfig cfg) {
+      if (cfg.acceptors() > 1) {
+        bootstrap.option(UnixChannelOption.SO_REUSEPORT, true);
+      }
+      if (cfg.tcpFastOpen() > 0
+          && io.netty.channel.uring.IoUring.isTcpFastOpenServerSideAvailable()) {
+        bootstrap.option(ChannelOption.TCP_FASTOPEN, cfg.tcpFastOpen());
+      }
+      if (cfg.tcpDeferAcceptSeconds() > 0) {
+        bootstrap.option(IoUringChannelOption.TCP_DEFER_ACCEPT, cfg.tcpDeferAcceptSeconds());
+      }
+    }
+  }
+}
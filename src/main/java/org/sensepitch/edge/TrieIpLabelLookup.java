@@ -9,8 +9,8 @@ import java.util.List;
  */
 public class TrieIpLabelLookup implements IpLabelLookup {
 
-  AnyVersionIpLookup trieIpv4 = new IpTrie();
-  AnyVersionIpLookup trieIpv6 = new IpTrie();
+  AnyVersionIpLookup trieIpv4 = new IpPrefixTable();
+  AnyVersionIpLookup trieIpv6 = new IpPrefixTable();
 
   public AnyVersionIpLookup getIpv4LookupStructure() {
     return trieIpv4;
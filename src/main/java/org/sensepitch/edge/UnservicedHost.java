@@ -22,18 +22,20 @@ import java.util.Set;
 public class UnservicedHost {
 
   private final Set<String> servicedDomains;
+  private final HostMatcher servicedMatcher;
   private final String defaultLocation;
   private final Map<String, String> redirectToWWW = new HashMap<>();
   public static final String NOT_FOUND_URI = "/NOT_FOUND";
 
   public UnservicedHost(UnservicedHostConfig cfg) {
     this.servicedDomains = Set.copyOf(cfg.servicedDomains());
+    this.servicedMatcher = HostMatcher.of(servicedDomains);
     this.defaultLocation = cfg.defaultLocation();
     String WWW_PREFIX = "www.";
     servicedDomains.stream()
         .filter(s -> s.startsWith(WWW_PREFIX))
         .map(s -> s.substring(WWW_PREFIX.length()))
-        .filter(s -> !servicedDomains.contains(s))
+        .filter(s -> !servicedMatcher.matches(s))
         .forEach(s -> redirectToWWW.put(s, "https://" + WWW_PREFIX + s));
   }
 
@@ -52,7 +54,7 @@ public class UnservicedHost {
             || SanitizeHostHandler.UNKNOWN_HOST.equals(host)) {
           rejectRequest(ctx, HttpResponseStatus.BAD_REQUEST);
           return;
-        } else if (!servicedDomains.contains(host)) {
+        } else if (!servicedMatcher.matches(host)) {
           String target = redirectToWWW.get(host);
           HttpResponseStatus status;
           if (target != null) {
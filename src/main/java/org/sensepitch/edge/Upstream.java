@@ -2,6 +2,7 @@ package org.sensepitch.edge;
 
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.util.concurrent.Future;
 
 /**
@@ -20,4 +21,20 @@ public interface Upstream {
 
   /** Release the channel back to the connection pool if enabled. */
   void release(Channel ch);
+
+  /** Close the channel instead of releasing it, e.g. the upstream wants to close the connection. */
+  default void discard(Channel ch) {
+    ch.close();
+  }
+
+  /**
+   * Close the channel, since the upstream failed the request, e.g. it reset or closed the
+   * connection before the response was complete.
+   */
+  default void discard(Channel ch, Throwable cause) {
+    discard(ch);
+  }
+
+  /** The response header from the upstream channel arrived. */
+  default void responseReceived(Channel ch, HttpResponse response) {}
 }
@@ -1,11 +1,37 @@
 package org.sensepitch.edge;
 
+import java.util.List;
 import lombok.Builder;
 
 /**
- * @param target target host with optional port number. Names are supported, however the standard *
- *     Java DNS resolver is used
+ * @param target target host with optional port number. Host names are resolved asynchronously and
+ *     refreshed according to the TTL, see {@code dns}. Either {@code target} or {@code targets} is
+ *     specified.
+ * @param targets multiple weighted targets. Requests are balanced by picking the better of two
+ *     random targets, judged by outstanding requests and response time.
+ * @param protocol protocol to talk to the upstream, either {@value #HTTP_1_1} or {@value #H2C}.
+ *     With {@code h2c} HTTP/2 without TLS is used with prior knowledge, and requests are
+ *     multiplexed as streams over few connections per event loop. Default is {@value #HTTP_1_1}.
+ * @param http2MaxConcurrentStreams maximum number of streams per upstream connection with {@code
+ *     h2c}, before another connection is opened. The upstream might announce a lower limit, which
+ *     is respected. Default is {@value #DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS}.
+ * @param concurrencyLimit adaptive limit of concurrent requests to the upstream, no limit if
+ *     missing
+ * @param healthCheck eject failing targets and optionally probe them, no health tracking if missing
  * @author Jens Wilke
  */
 @Builder(toBuilder = true)
-public record UpstreamConfig(String target, ConnectionPoolConfig connectionPool) {}
+public record UpstreamConfig(
+    String target,
+    List<UpstreamTargetConfig> targets,
+    ConnectionPoolConfig connectionPool,
+    String protocol,
+    int http2MaxConcurrentStreams,
+    ConcurrencyLimitConfig concurrencyLimit,
+    HealthCheckConfig healthCheck,
+    UpstreamDnsConfig dns) {
+
+  public static final String HTTP_1_1 = "http/1.1";
+  public static final String H2C = "h2c";
+  public static final int DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS = 100;
+}
@@ -0,0 +1,37 @@
+package org.sensepitch.edge;
+
+import java.util.List;
+import lombok.Builder;
+
+/**
+ * Resolution of upstream host names. Names are resolved asynchronously in the background and
+ * refreshed when the TTL of the records expires. Connections go to all returned addresses in turn.
+ * If a refresh fails, the previous addresses stay in use.
+ *
+ * @param nameServers name servers as {@code host:port} or {@code host}, default is the system
+ *     configuration
+ * @param timeoutMillis timeout of a DNS query, default is {@value #DEFAULT_TIMEOUT_MILLIS}
+ * @param minTtlSeconds refresh not more often than this, also the retry interval after a failure,
+ *     default is {@value #DEFAULT_MIN_TTL_SECONDS}
+ * @param maxTtlSeconds refresh at least this often, default is {@value #DEFAULT_MAX_TTL_SECONDS}
+ * @param addressTypes address families to resolve, one of {@code IPV4_ONLY}, {@code IPV6_ONLY},
+ *     {@code IPV4_PREFERRED} or {@code IPV6_PREFERRED}. With a preferred family, the other family
+ *     is only used if the host has no records of the preferred one. Default is {@code IPV4_ONLY} if
+ *     the IPv4 stack is preferred or no network interface has an IPv6 address, otherwise the family
+ *     preferred by {@code java.net.preferIPv6Addresses}
+ * @author Jens Wilke
+ */
+@Builder(toBuilder = true)
+public record UpstreamDnsConfig(
+    List<String> nameServers,
+    long timeoutMillis,
+    int minTtlSeconds,
+    int maxTtlSeconds,
+    String addressTypes) {
+
+  public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+  public static final int DEFAULT_MIN_TTL_SECONDS = 5;
+  public static final int DEFAULT_MAX_TTL_SECONDS = 300;
+
+  public static final UpstreamDnsConfig DEFAULT = builder().build();
+}
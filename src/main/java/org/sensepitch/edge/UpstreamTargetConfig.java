@@ -0,0 +1,16 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * One server of an upstream with multiple targets.
+ *
+ * @param target host with optional port number
+ * @param weight relative share of the requests, default {@value #DEFAULT_WEIGHT}
+ * @author Jens Wilke
+ */
+@Builder(toBuilder = true)
+public record UpstreamTargetConfig(String target, int weight) {
+
+  public static final int DEFAULT_WEIGHT = 1;
+}
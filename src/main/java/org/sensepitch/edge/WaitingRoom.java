@@ -0,0 +1,376 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.codec.http.cookie.DefaultCookie;
+import io.netty.handler.codec.http.cookie.ServerCookieEncoder;
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Shared state of the waiting room of one site. Queue positions are handed out by an atomic ticket
+ * counter and admitted first in first out by advancing an atomic horizon: a ticket is admitted if
+ * its number is below the horizon. The horizon advances at the configured rate, but only while the
+ * site is below its capacity and never beyond the last issued ticket. No lock and no list of
+ * waiting visitors is needed.
+ *
+ * <p>The position and the issue time are carried in the cookie, signed with SipHash-2-4. The cookie
+ * value is fixed length hex: kind, ticket number, issue time in seconds and the MAC. The check
+ * reads the value directly from the cookie header and does not allocate, so serving the queue page
+ * to a flood of visitors costs little more than a static response.
+ *
+ * @author Jens Wilke
+ */
+public class WaitingRoom {
+
+  static final char KIND_TICKET = 'T';
+  static final char KIND_PASS = 'P';
+  static final int VALUE_LENGTH = 1 + 16 + 8 + 16;
+
+  /** Check results */
+  static final int NO_TICKET = 0;
+
+  static final int PASS = 1;
+  static final int ADMITTED = 2;
+  static final int WAITING = 3;
+
+  static final String DEFAULT_PAGE =
+      "<!DOCTYPE html><html><head><meta charset=\"utf-8\"><title>Please wait</title></head>"
+          + "<body><h1>You are in the queue</h1><p>The site is very busy at the moment. This page"
+          + " reloads automatically, please keep it open.</p></body></html>";
+
+  private final long k0;
+  private final long k1;
+  private final int maxInFlight;
+  private final int admitPerSecond;
+  private final int sessionSeconds;
+  private final int refreshSeconds;
+  private final String cookieName;
+  private final LongSupplier clock;
+  private final ByteBuf page;
+  private final CounterDataPoint passCounter;
+  private final CounterDataPoint admittedCounter;
+  private final CounterDataPoint queuedCounter;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicLong nextTicket = new AtomicLong();
+  private final AtomicLong admittedHorizon = new AtomicLong();
+  private final AtomicLong lastAdmitMillis;
+
+  public WaitingRoom(WaitingRoomConfig cfg, ProxyMetrics metrics) {
+    this(cfg, metrics, System::currentTimeMillis);
+  }
+
+  WaitingRoom(WaitingRoomConfig cfg, ProxyMetrics metrics, LongSupplier clock) {
+    this.clock = clock;
+    maxInFlight =
+        cfg.maxInFlight() > 0 ? cfg.maxInFlight() : WaitingRoomConfig.DEFAULT_MAX_IN_FLIGHT;
+    admitPerSecond =
+        cfg.admitPerSecond() > 0
+            ? cfg.admitPerSecond()
+            : WaitingRoomConfig.DEFAULT_ADMIT_PER_SECOND;
+    sessionSeconds =
+        cfg.sessionSeconds() > 0 ? cfg.sessionSeconds() : WaitingRoomConfig.DEFAULT_SESSION_SECONDS;
+    refreshSeconds =
+        cfg.refreshSeconds() > 0 ? cfg.refreshSeconds() : WaitingRoomConfig.DEFAULT_REFRESH_SECONDS;
+    cookieName =
+        cfg.cookieName() != null ? cfg.cookieName() : WaitingRoomConfig.DEFAULT_COOKIE_NAME;
+    byte[] key;
+    if (cfg.secret() != null) {
+      key =
+          ChallengeGenerationAndVerification.sha256(cfg.secret().getBytes(StandardCharsets.UTF_8));
+    } else {
+      key = new byte[16];
+      new SecureRandom().nextBytes(key);
+    }
+    k0 = toLong(key, 0);
+    k1 = toLong(key, 8);
+    String html = cfg.pageHtml() != null ? cfg.pageHtml() : DEFAULT_PAGE;
+    byte[] ba = html.getBytes(StandardCharsets.UTF_8);
+    page =
+        Unpooled.unreleasableBuffer(Unpooled.directBuffer(ba.length).writeBytes(ba).asReadOnly());
+    lastAdmitMillis = new AtomicLong(clock.getAsLong());
+    passCounter = metrics.waitingRoomCounter.labelValues("pass");
+    admittedCounter = metrics.waitingRoomCounter.labelValues("admitted");
+    queuedCounter = metrics.waitingRoomCounter.labelValues("queued");
+  }
+
+  /**
+   * Check the cookie of a request.
+   *
+   * @param cookieHeader value of the cookie header, may be null
+   * @return {@link #PASS}, {@link #ADMITTED} if the ticket reached the front of the queue, {@link
+   *     #WAITING} or {@link #NO_TICKET} if there is no valid cookie
+   */
+  public int check(String cookieHeader) {
+    int start = findValue(cookieHeader);
+    if (start < 0) {
+      return NO_TICKET;
+    }
+    char kind = cookieHeader.charAt(start);
+    if (kind != KIND_TICKET && kind != KIND_PASS) {
+      return NO_TICKET;
+    }
+    long number = parseHex(cookieHeader, start + 1, 16);
+    long seconds = parseHex(cookieHeader, start + 17, 8);
+    if (number < 0 || seconds < 0) {
+      return NO_TICKET;
+    }
+    long mac = sipHash24(k0, k1, number, ((long) kind << 32) | seconds);
+    if (!hexEquals(cookieHeader, start + 25, mac)) {
+      return NO_TICKET;
+    }
+    long now = clock.getAsLong() / 1000;
+    // allow some clock skew between servers
+    if (seconds > now + 60 || now - seconds >= sessionSeconds) {
+      return NO_TICKET;
+    }
+    if (kind == KIND_PASS) {
+      passCounter.inc();
+      return PASS;
+    }
+    if (number < admittedHorizon()) {
+      admittedCounter.inc();
+      return ADMITTED;
+    }
+    queuedCounter.inc();
+    return WAITING;
+  }
+
+  /**
+   * True, if a visitor without a ticket needs to queue, because the site is at its capacity or
+   * others are waiting already.
+   */
+  public boolean isQueueing() {
+    return inFlight.get() >= maxInFlight || nextTicket.get() > admittedHorizon();
+  }
+
+  /** Count a visitor that is admitted without a ticket */
+  public void admitWithoutTicket() {
+    admittedCounter.inc();
+  }
+
+  /** Count a visitor that gets the queue page without a ticket */
+  public void queueWithoutTicket() {
+    queuedCounter.inc();
+  }
+
+  /** Take the next position in the queue */
+  public long newTicket() {
+    queuedCounter.inc();
+    return nextTicket.getAndIncrement();
+  }
+
+  /** A request of an admitted visitor starts */
+  public void enter() {
+    inFlight.incrementAndGet();
+  }
+
+  /** A request of an admitted visitor completed */
+  public void exit() {
+    inFlight.decrementAndGet();
+  }
+
+  /**
+   * Ticket cookie with the same number and a new issue time, so a visitor that keeps the queue page
+   * open does not lose the position when waiting longer than the session time. Returns null while
+   * the ticket is younger than half the session time, so most refreshes do not allocate. Only valid
+   * after {@link #check} returned {@link #WAITING} for the same header.
+   */
+  public String renewTicketCookie(String cookieHeader) {
+    int start = findValue(cookieHeader);
+    long seconds = parseHex(cookieHeader, start + 17, 8);
+    if (clock.getAsLong() / 1000 - seconds < sessionSeconds / 2) {
+      return null;
+    }
+    return ticketCookie(parseHex(cookieHeader, start + 1, 16));
+  }
+
+  public String ticketCookie(long number) {
+    return encodeCookie(KIND_TICKET, number);
+  }
+
+  public String passCookie() {
+    return encodeCookie(KIND_PASS, 0);
+  }
+
+  /** Queue page, with the ticket cookie if one was issued */
+  public FullHttpResponse queueResponse(String setCookie) {
+    FullHttpResponse response =
+        new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE, page.duplicate());
+    response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=utf-8");
+    response.headers().set(HttpHeaderNames.CONTENT_LENGTH, page.readableBytes());
+    response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_STORE);
+    response.headers().set(HttpHeaderNames.RETRY_AFTER, refreshSeconds);
+    response.headers().set("Refresh", refreshSeconds);
+    if (setCookie != null) {
+      response.headers().set(HttpHeaderNames.SET_COOKIE, setCookie);
+    }
+    return response;
+  }
+
+  int inFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * Tickets below the horizon are admitted. Advances the horizon by the tokens accumulated since
+   * the last advance, at most one second worth, so the admission rate holds after an idle period.
+   */
+  long admittedHorizon() {
+    long now = clock.getAsLong();
+    long last = lastAdmitMillis.get();
+    long admit = (now - last) * admitPerSecond / 1000;
+    if (admit > 0 && inFlight.get() < maxInFlight) {
+      long next = admit >= admitPerSecond ? now : last + admit * 1000 / admitPerSecond;
+      if (lastAdmitMillis.compareAndSet(last, next)) {
+        admit = Math.min(admit, admitPerSecond);
+        long issued = nextTicket.get();
+        long current;
+        while ((current = admittedHorizon.get()) < issued
+            && !admittedHorizon.compareAndSet(current, Math.min(issued, current + admit))) {}
+      }
+    }
+    return admittedHorizon.get();
+  }
+
+  private String encodeCookie(char kind, long number) {
+    long seconds = clock.getAsLong() / 1000;
+    long mac = sipHash24(k0, k1, number, ((long) kind << 32) | seconds);
+    StringBuilder sb = new StringBuilder(VALUE_LENGTH).append(kind);
+    appendHex(sb, number, 16);
+    appendHex(sb, seconds, 8);
+    appendHex(sb, mac, 16);
+    Cookie cookie = new DefaultCookie(cookieName, sb.toString());
+    cookie.setHttpOnly(true);
+    cookie.setSecure(true);
+    cookie.setPath("/");
+    cookie.setMaxAge(sessionSeconds);
+    return ServerCookieEncoder.STRICT.encode(cookie);
+  }
+
+  /**
+   * @return start of the cookie value or -1 if the cookie is missing or has the wrong length
+   */
+  private int findValue(String header) {
+    if (header == null) {
+      return -1;
+    }
+    int nameLength = cookieName.length();
+    int idx = 0;
+    while ((idx = header.indexOf(cookieName, idx)) >= 0) {
+      int start = idx + nameLength + 1;
+      boolean boundary = idx == 0 || header.charAt(idx - 1) == ' ' || header.charAt(idx - 1) == ';';
+      if (boundary
+          && start <= header.length()
+          && header.charAt(start - 1) == '='
+          && start + VALUE_LENGTH <= header.length()
+          && (start + VALUE_LENGTH == header.length()
+              || header.charAt(start + VALUE_LENGTH) == ';')) {
+        return start;
+      }
+      idx += nameLength;
+    }
+    return -1;
+  }
+
+  /**
+   * @return the value or -1 if a char is not a lower case hex digit
+   */
+  static long parseHex(CharSequence s, int start, int length) {
+    long value = 0;
+    for (int i = start; i < start + length; i++) {
+      int digit = hexDigit(s.charAt(i));
+      if (digit < 0) {
+        return -1;
+      }
+      value = (value << 4) | digit;
+    }
+    return value;
+  }
+
+  /** Compare with the hex chars of the expected value, without exit on the first mismatch */
+  private static boolean hexEquals(CharSequence s, int start, long expected) {
+    int diff = 0;
+    for (int i = 0; i < 16; i++) {
+      int digit = (int) (expected >>> (60 - i * 4)) & 0xf;
+      diff |= hexDigit(s.charAt(start + i)) ^ digit;
+    }
+    return diff == 0;
+  }
+
+  private static int hexDigit(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    } else if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    }
+    return -1;
+  }
+
+  private static void appendHex(StringBuilder sb, long value, int digits) {
+    for (int i = digits - 1; i >= 0; i--) {
+      sb.append(Character.forDigit((int) (value >>> (i * 4)) & 0xf, 16));
+    }
+  }
+
+  private static long toLong(byte[] bytes, int offset) {
+    long value = 0;
+    for (int i = 0; i < 8; i++) {
+      value = (value << 8) | (bytes[offset + i] & 0xff);
+    }
+    return value;
+  }
+
+  /** SipHash-2-4 of a 16 byte message given as two words */
+  static long sipHash24(long k0, long k1, long m0, long m1) {
+    long v0 = 0x736f6d6570736575L ^ k0;
+    long v1 = 0x646f72616e646f6dL ^ k1;
+    long v2 = 0x6c7967656e657261L ^ k0;
+    long v3 = 0x7465646279746573L ^ k1;
+    long b = 16L << 56;
+    // three message blocks with 2 rounds each and 4 finalization rounds
+    for (int block = 0; block < 4; block++) {
+      long m = block == 0 ? m0 : block == 1 ? m1 : b;
+      int rounds = 2;
+      if (block < 3) {
+        v3 ^= m;
+      } else {
+        v2 ^= 0xff;
+        rounds = 4;
+      }
+      for (int i = 0; i < rounds; i++) {
+        v0 += v1;
+        v1 = Long.rotateLeft(v1, 13);
+        v1 ^= v0;
+        v0 = Long.rotateLeft(v0, 32);
+        v2 += v3;
+        v3 = Long.rotateLeft(v3, 16);
+        v3 ^= v2;
+        v0 += v3;
+        v3 = Long.rotateLeft(v3, 21);
+        v3 ^= v0;
+        v2 += v1;
+        v1 = Long.rotateLeft(v1, 17);
+        v1 ^= v2;
+        v2 = Long.rotateLeft(v2, 32);
+      }
+      if (block < 3) {
+        v0 ^= m;
+      }
+    }
+    return v0 ^ v1 ^ v2 ^ v3;
+  }
+}
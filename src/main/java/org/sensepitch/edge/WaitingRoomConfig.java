@@ -0,0 +1,42 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * Waiting room of a site. If the site has {@code maxInFlight} requests in flight, new visitors get
+ * a queue page and a signed ticket cookie with their position. Tickets are admitted first in first
+ * out at {@code admitPerSecond}, as long as the site is below its capacity. An admitted visitor
+ * receives a pass cookie and is not queued again for {@code sessionSeconds}.
+ *
+ * @param maxInFlight capacity of the site, concurrent requests before visitors are queued, default
+ *     {@value #DEFAULT_MAX_IN_FLIGHT}
+ * @param admitPerSecond rate of admitting queued visitors, default {@value
+ *     #DEFAULT_ADMIT_PER_SECOND}
+ * @param sessionSeconds validity of the pass and the ticket cookie, default {@value
+ *     #DEFAULT_SESSION_SECONDS}
+ * @param refreshSeconds the queue page reloads after this time, default {@value
+ *     #DEFAULT_REFRESH_SECONDS}
+ * @param cookieName name of the ticket cookie, default {@value #DEFAULT_COOKIE_NAME}
+ * @param secret key to sign the cookie, if missing a random key is used and cookies are invalid
+ *     after a restart or on another server
+ * @param pageHtml content of the queue page, a simple default page is used if missing
+ * @param disable no waiting room, same as without this configuration
+ * @author Jens Wilke
+ */
+@Builder(toBuilder = true)
+public record WaitingRoomConfig(
+    int maxInFlight,
+    int admitPerSecond,
+    int sessionSeconds,
+    int refreshSeconds,
+    String cookieName,
+    String secret,
+    String pageHtml,
+    boolean disable) {
+
+  public static final int DEFAULT_MAX_IN_FLIGHT = 100;
+  public static final int DEFAULT_ADMIT_PER_SECOND = 20;
+  public static final int DEFAULT_SESSION_SECONDS = 1800;
+  public static final int DEFAULT_REFRESH_SECONDS = 10;
+  public static final String DEFAULT_COOKIE_NAME = "sensepitch-queue";
+}
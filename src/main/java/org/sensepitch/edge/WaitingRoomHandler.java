@@ -0,0 +1,124 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Waiting room stage of a site, placed after the protection. Requests of admitted visitors are
+ * counted while in flight, visitors that need to wait get the queue page. The pass cookie is added
+ * to the first response after admission. A ticket is only issued to requests that accept HTML, so
+ * that scripts and subresources do not take positions in the queue which are never used. One
+ * instance per connection, reset between requests.
+ *
+ * @see WaitingRoom
+ * @author Jens Wilke
+ */
+public class WaitingRoomHandler extends ChannelDuplexHandler implements ReusableHandler {
+
+  private final WaitingRoom room;
+  private boolean inFlight;
+  private boolean skipContent;
+  private String setCookie;
+
+  public WaitingRoomHandler(WaitingRoom room) {
+    this.room = room;
+  }
+
+  @Override
+  public boolean resetForNextRequest() {
+    if (inFlight) {
+      return false;
+    }
+    skipContent = false;
+    setCookie = null;
+    return true;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof HttpRequest request) {
+      String cookieHeader = request.headers().get(HttpHeaderNames.COOKIE);
+      int state = room.check(cookieHeader);
+      switch (state) {
+        case WaitingRoom.PASS -> {}
+        case WaitingRoom.ADMITTED -> setCookie = room.passCookie();
+        case WaitingRoom.WAITING -> {
+          queue(ctx, request, room.renewTicketCookie(cookieHeader));
+          return;
+        }
+        default -> {
+          if (room.isQueueing()) {
+            String ticketCookie = null;
+            if (acceptsHtml(request)) {
+              ticketCookie = room.ticketCookie(room.newTicket());
+            } else {
+              room.queueWithoutTicket();
+            }
+            queue(ctx, request, ticketCookie);
+            return;
+          }
+          room.admitWithoutTicket();
+          setCookie = room.passCookie();
+        }
+      }
+      inFlight = true;
+      room.enter();
+    } else if (msg instanceof HttpContent && skipContent) {
+      ReferenceCountUtil.release(msg);
+      if (msg instanceof LastHttpContent) {
+        skipContent = false;
+      }
+      return;
+    }
+    ctx.fireChannelRead(msg);
+  }
+
+  private static boolean acceptsHtml(HttpRequest request) {
+    String accept = request.headers().get(HttpHeaderNames.ACCEPT);
+    return accept != null && accept.contains("text/html");
+  }
+
+  private void queue(ChannelHandlerContext ctx, HttpRequest request, String ticketCookie) {
+    ReferenceCountUtil.release(request);
+    skipContent = !(request instanceof LastHttpContent);
+    ctx.writeAndFlush(room.queueResponse(ticketCookie));
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+      throws Exception {
+    if (msg instanceof HttpResponse response && setCookie != null) {
+      response.headers().add(HttpHeaderNames.SET_COOKIE, setCookie);
+      setCookie = null;
+    }
+    if (msg instanceof LastHttpContent && inFlight) {
+      inFlight = false;
+      room.exit();
+    }
+    super.write(ctx, msg, promise);
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    if (inFlight) {
+      inFlight = false;
+      room.exit();
+    }
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    if (inFlight) {
+      inFlight = false;
+      room.exit();
+    }
+  }
+}
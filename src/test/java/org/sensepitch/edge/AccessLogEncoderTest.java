@@ -0,0 +1,117 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Jens Wilke
+ */
+public class AccessLogEncoderTest {
+
+  AccessLogEncoder encoder = new AccessLogEncoder();
+
+  @Test
+  public void line() {
+    HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/x?y=1");
+    request.headers().set(HttpHeaderNames.HOST, "example.com");
+    request.headers().set(HttpHeaderNames.USER_AGENT, "agent \"quoted\" äöü €");
+    String line =
+        encode(
+            new LogInfo(
+                request,
+                new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK),
+                null,
+                120_000,
+                2_345_000_000L));
+    assertThat(line)
+        .matches(
+            "RQ0 4711 example.com - \"-\" - \\[[0-9]{2}/[A-Z][a-z]{2}/[0-9]{4}:[0-9:]{8} [+-][0-9]{4}\\]"
+                + " GET /x\\?y=1 HTTP/1.1 200 10240 412>10480 0<2.345=2.345"
+                + " \"-\" \"agent \\\\quoted\\\\ äöü €\" - \"-\" \"-\" \"host, user-agent\"\n");
+  }
+
+  @Test
+  public void errorAndServerError() {
+    HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/");
+    HttpResponse response =
+        new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_GATEWAY);
+    assertThat(encode(new LogInfo(request, response, null, 0, 1_000_000)))
+        .contains(" 0<0.001=0.001 ")
+        .contains("\"Bad Gateway\"");
+    assertThat(encode(new LogInfo(request, response, new Exception("boom"), 0, 0)))
+        .contains("\"boom\"");
+  }
+
+  String encode(RequestLogInfo info) {
+    int length = encoder.encode(info);
+    return new String(encoder.buffer(), 0, length, StandardCharsets.UTF_8);
+  }
+
+  record LogInfo(
+      HttpRequest request,
+      HttpResponse response,
+      Throwable error,
+      long receiveDurationNanos,
+      long responseTimeNanos)
+      implements RequestLogInfo {
+
+    @Override
+    public Channel channel() {
+      return new EmbeddedChannel();
+    }
+
+    @Override
+    public String requestId() {
+      return "4711";
+    }
+
+    @Override
+    public String requestHeaderHost() {
+      return "example.com";
+    }
+
+    @Override
+    public long contentBytes() {
+      return 10240;
+    }
+
+    @Override
+    public long bytesSent() {
+      return 10480;
+    }
+
+    @Override
+    public long bytesReceived() {
+      return 412;
+    }
+
+    @Override
+    public long requestStartTimeMillis() {
+      return 0;
+    }
+
+    @Override
+    public HttpHeaders trailingHeaders() {
+      return EmptyHttpHeaders.INSTANCE;
+    }
+
+    @Override
+    public long totalDurationNanos() {
+      return responseTimeNanos;
+    }
+  }
+}
@@ -0,0 +1,230 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Jens Wilke
+ */
+public class AdaptiveConcurrencyLimiterTest {
+
+  static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+  static final HttpResponse OK =
+      new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+
+  EventLoop executor = new DefaultEventLoop();
+  ProxyMetrics metrics = new ProxyMetrics();
+  EmbeddedChannel upstreamChannel;
+
+  @AfterEach
+  void tearDown() {
+    executor.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+  }
+
+  AdaptiveConcurrencyLimiter newLimiter(ConcurrencyLimitConfig cfg) {
+    return new AdaptiveConcurrencyLimiter(cfg, metrics, "test");
+  }
+
+  @Test
+  public void queuedUntilRelease() throws Exception {
+    AdaptiveConcurrencyLimiter limiter =
+        newLimiter(
+            ConcurrencyLimitConfig.builder().initialLimit(4).minLimit(4).maxLimit(4).build());
+    for (int i = 0; i < 4; i++) {
+      assertThat(limiter.acquire(executor).isSuccess()).isTrue();
+    }
+    Future<Void> waiting = limiter.acquire(executor);
+    assertThat(waiting.isDone()).isFalse();
+    assertThat(limiter.queueDepth()).isEqualTo(1);
+    assertThat(metrics.upstreamQueueDepthGauge.labelValues("test").get()).isEqualTo(1.0);
+    limiter.release(10 * MILLIS, false);
+    assertThat(waiting.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(waiting.isSuccess()).isTrue();
+    assertThat(limiter.inFlight()).isEqualTo(4);
+    assertThat(limiter.queueDepth()).isZero();
+  }
+
+  @Test
+  public void rejectWhenQueueFull() {
+    AdaptiveConcurrencyLimiter limiter =
+        newLimiter(
+            ConcurrencyLimitConfig.builder()
+                .initialLimit(4)
+                .minLimit(4)
+                .maxLimit(4)
+                .queueSize(2)
+                .build());
+    for (int i = 0; i < 6; i++) {
+      limiter.acquire(executor);
+    }
+    Future<Void> rejected = limiter.acquire(executor);
+    assertThat(rejected.cause())
+        .isInstanceOf(AdaptiveConcurrencyLimiter.LimitExceededException.class);
+    assertThat(metrics.upstreamRejectionCounter.labelValues("test", "queue_full").get())
+        .isEqualTo(1.0);
+  }
+
+  @Test
+  public void rejectAfterDeadline() throws Exception {
+    AdaptiveConcurrencyLimiter limiter =
+        newLimiter(
+            ConcurrencyLimitConfig.builder()
+                .initialLimit(4)
+                .minLimit(4)
+                .maxLimit(4)
+                .queueTimeoutMillis(50)
+                .build());
+    for (int i = 0; i < 4; i++) {
+      limiter.acquire(executor);
+    }
+    Future<Void> waiting = limiter.acquire(executor);
+    assertThat(waiting.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(waiting.cause())
+        .isInstanceOf(AdaptiveConcurrencyLimiter.LimitExceededException.class);
+    assertThat(limiter.queueDepth()).isZero();
+    assertThat(metrics.upstreamRejectionCounter.labelValues("test", "timeout").get())
+        .isEqualTo(1.0);
+    limiter.release(10 * MILLIS, false);
+    assertThat(limiter.inFlight()).isEqualTo(3);
+  }
+
+  @Test
+  public void limitGrowsWithFlatLatencyAndShrinksWhenLatencyRises() {
+    AdaptiveConcurrencyLimiter limiter =
+        newLimiter(ConcurrencyLimitConfig.builder().initialLimit(10).maxLimit(200).build());
+    for (int i = 0; i < 200; i++) {
+      saturateAndRelease(limiter, 10 * MILLIS);
+    }
+    int grown = limiter.limit();
+    assertThat(grown).isGreaterThan(50);
+    assertThat(metrics.upstreamConcurrencyLimitGauge.labelValues("test").get())
+        .isEqualTo((double) grown);
+    saturateAndRelease(limiter, 100 * MILLIS);
+    assertThat(limiter.limit()).isLessThan(grown / 2);
+  }
+
+  @Test
+  public void failuresReduceLimitDownToMinimum() {
+    AdaptiveConcurrencyLimiter limiter =
+        newLimiter(ConcurrencyLimitConfig.builder().initialLimit(100).minLimit(5).build());
+    for (int i = 0; i < 100; i++) {
+      limiter.acquire(executor);
+      limiter.release(0, true);
+    }
+    assertThat(limiter.limit()).isEqualTo(5);
+  }
+
+  @Test
+  public void limitedUpstreamReturnsPermitOnce() throws Exception {
+    AdaptiveConcurrencyLimiter limiter =
+        newLimiter(
+            ConcurrencyLimitConfig.builder().initialLimit(4).minLimit(4).maxLimit(4).build());
+    EmbeddedChannel upstreamChannel = new EmbeddedChannel();
+    Upstream upstream =
+        new LimitedUpstream(
+            new Upstream() {
+              @Override
+              public Future<Channel> connect(ChannelHandlerContext downstreamContext) {
+                return downstreamContext.executor().newSucceededFuture(upstreamChannel);
+              }
+
+              @Override
+              public void release(Channel ch) {}
+            },
+            limiter);
+    EmbeddedChannel ingress = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    Future<Channel> future = upstream.connect(ingress.pipeline().firstContext());
+    ingress.runPendingTasks();
+    assertThat(future.getNow()).isSameAs(upstreamChannel);
+    assertThat(limiter.inFlight()).isEqualTo(1);
+    upstream.responseReceived(upstreamChannel, OK);
+    upstream.release(upstreamChannel);
+    upstream.discard(upstreamChannel);
+    assertThat(limiter.inFlight()).isZero();
+    assertThat(limiter.limit()).isEqualTo(4);
+  }
+
+  @Test
+  public void clientDisconnectReturnsPermit() {
+    AdaptiveConcurrencyLimiter limiter =
+        newLimiter(
+            ConcurrencyLimitConfig.builder().initialLimit(4).minLimit(4).maxLimit(4).build());
+    EmbeddedChannel ingress = newProxiedIngress(limiter);
+    ingress.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/"));
+    assertThat(limiter.inFlight()).isEqualTo(1);
+    upstreamChannel.writeInbound(
+        new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+    ingress.close();
+    assertThat(limiter.inFlight()).isZero();
+    assertThat(upstreamChannel.isActive()).isFalse();
+    ingress.finishAndReleaseAll();
+  }
+
+  @Test
+  public void upstreamCloseFailsRequestAndReturnsPermit() {
+    AdaptiveConcurrencyLimiter limiter =
+        newLimiter(
+            ConcurrencyLimitConfig.builder().initialLimit(4).minLimit(4).maxLimit(4).build());
+    EmbeddedChannel ingress = newProxiedIngress(limiter);
+    ingress.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/"));
+    assertThat(limiter.inFlight()).isEqualTo(1);
+    upstreamChannel.close();
+    assertThat(limiter.inFlight()).isZero();
+    assertThatThrownBy(ingress::checkException)
+        .isInstanceOf(ForwardHandler.UpstreamException.class)
+        .hasMessageContaining("Upstream closed");
+    ingress.finishAndReleaseAll();
+  }
+
+  /**
+   * Ingress with a downstream handler, the upstream is an embedded channel which forwards the
+   * response to the ingress, like a real upstream connection.
+   */
+  private EmbeddedChannel newProxiedIngress(AdaptiveConcurrencyLimiter limiter) {
+    Upstream upstream =
+        new LimitedUpstream(
+            new Upstream() {
+              @Override
+              public Future<Channel> connect(ChannelHandlerContext downstreamContext) {
+                upstreamChannel =
+                    new EmbeddedChannel(new ForwardHandler(downstreamContext.channel()));
+                return downstreamContext.executor().newSucceededFuture(upstreamChannel);
+              }
+
+              @Override
+              public void release(Channel ch) {}
+            },
+            limiter);
+    EmbeddedChannel ingress = new EmbeddedChannel(new DownstreamHandler(upstream, metrics));
+    ingress.runPendingTasks();
+    return ingress;
+  }
+
+  /** Fill up to the limit, then complete all requests with the same response time */
+  private void saturateAndRelease(AdaptiveConcurrencyLimiter limiter, long rttNanos) {
+    int n = limiter.limit();
+    for (int i = 0; i < n; i++) {
+      limiter.acquire(executor);
+    }
+    for (int i = 0; i < n; i++) {
+      limiter.release(rttNanos, false);
+    }
+  }
+}
@@ -4,6 +4,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.sensepitch.edge.DefaultAdmissionTokenGenerator.*;
 
 import java.util.Arrays;
+import java.util.Random;
 import org.junit.jupiter.api.Test;
 
 /**
@@ -38,11 +39,25 @@ public class AdmissionTokenTest {
     assertThat(maxTime.length()).isEqualTo(TIME_CHARS);
     for (long time : new long[] {0, 123, 999, 0x7fffffff}) {
       String timeChars = calculateTimeChars(time);
-      long decodedTime = decodeLittleEndianToLong(timeChars, ENCODING_RADIX);
+      long decodedTime = decodeLittleEndianChecked(timeChars, 0, TIME_CHARS, ENCODING_RADIX);
       assertThat(decodedTime).isEqualTo(time);
     }
   }
 
+  @Test
+  public void testChecksumDecode() {
+    byte[] bytes = new byte[CHECKSUM_BYTES];
+    for (long value : new long[] {0, 1, 61, 62, 0x7fffffffL, 0xffffffffL}) {
+      for (int i = 0; i < CHECKSUM_BYTES; i++) {
+        bytes[i] = (byte) (value >>> (8 * (CHECKSUM_BYTES - 1 - i)));
+      }
+      String chars = encodeChecksum(bytes);
+      assertThat(decodeLittleEndianChecked(chars, 0, chars.length(), ENCODING_RADIX))
+          .isEqualTo(value);
+    }
+    assertThat(decodeLittleEndianChecked("00-000", 0, 6, ENCODING_RADIX)).isEqualTo(-1);
+  }
+
   @Test
   public void testToken() {
     String token = admissionHandler.newAdmission();
@@ -86,6 +101,26 @@ public class AdmissionTokenTest {
     }
   }
 
+  @Test
+  public void testIssueTime() {
+    long before = System.currentTimeMillis();
+    long issued = admissionHandler.checkAdmission(admissionHandler.newAdmission());
+    assertThat(issued).isBetween(before - 1000, System.currentTimeMillis());
+  }
+
+  /** Issue times with every digit value in every time char position */
+  @Test
+  public void testIssueTimeRoundTrip() {
+    Random random = new Random(4711);
+    for (int i = 0; i < 10_000; i++) {
+      long seconds = i < 100 ? i : random.nextLong() & 0xffffffffL;
+      String token = admissionHandler.newAdmission(seconds);
+      assertThat(admissionHandler.checkAdmission(token))
+          .as(token)
+          .isEqualTo(seconds * 1000 + MILLIS_START_TIME);
+    }
+  }
+
   @Test
   public void testInvalid() {
     assertThat(admissionHandler.checkAdmission("")).isEqualTo(0L);
@@ -95,7 +130,9 @@ public class AdmissionTokenTest {
         new String[] {
           "XxzOs00M2QihLfB9VLB46000UISkx1",
           "XxzO000Sk9MODlb6VLB46000A8Wn3x",
-          "XxzO000sj4B5ORlBVLB46000nsyFO9"
+          "XxzO000sj4B5ORlBVLB46000nsyFO9",
+          "XxzO000M2QihLfB9VLB46000UIS-x1",
+          "YxzO000M2QihLfB9VLB46000UISkx1"
         }) {
       assertThat(admissionHandler.checkAdmission(another)).isEqualTo(0);
     }
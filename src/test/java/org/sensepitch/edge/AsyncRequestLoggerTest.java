@@ -0,0 +1,84 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author Jens Wilke
+ */
+public class AsyncRequestLoggerTest {
+
+  ProxyMetrics metrics = new ProxyMetrics();
+
+  @Test
+  public void linesWrittenToFile(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("access.log");
+    AsyncRequestLogger logger =
+        new AsyncRequestLogger(
+            AccessLogConfig.builder().async(true).file(file.toString()).build(), metrics);
+    for (int i = 0; i < 100; i++) {
+      logger.logRequest(newInfo("/" + i));
+    }
+    logger.close();
+    List<String> lines = Files.readAllLines(file);
+    assertThat(lines).hasSize(100);
+    assertThat(lines.get(0)).startsWith("RQ0 4711 ").contains(" GET /0 HTTP/1.1 200 ");
+    assertThat(lines.get(99)).contains(" GET /99 HTTP/1.1 200 ");
+  }
+
+  @Test
+  public void longLineTruncated() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    AsyncRequestLogger logger =
+        new AsyncRequestLogger(
+            AccessLogConfig.builder().async(true).maxRecordBytes(100).build(),
+            metrics,
+            Channels.newChannel(out),
+            true);
+    logger.logRequest(newInfo("/" + "x".repeat(200)));
+    logger.close();
+    String text = out.toString(StandardCharsets.UTF_8);
+    assertThat(text).hasSize(100).endsWith("\n");
+    assertThat(metrics.accessLogDroppedCounter.labelValues("truncated").get()).isEqualTo(1.0);
+  }
+
+  @Test
+  public void ringBufferFull() {
+    LogRecordRingBuffer ringBuffer = new LogRecordRingBuffer(3, 16);
+    byte[] record = "line\n".getBytes(StandardCharsets.US_ASCII);
+    for (int i = 0; i < 4; i++) {
+      assertThat(ringBuffer.offer(record, record.length)).isTrue();
+    }
+    assertThat(ringBuffer.offer(record, record.length)).isFalse();
+    ByteBuffer target = ByteBuffer.allocate(12);
+    assertThat(ringBuffer.drainTo(target)).isEqualTo(2);
+    assertThat(ringBuffer.isEmpty()).isFalse();
+    assertThat(ringBuffer.offer(record, record.length)).isTrue();
+    target = ByteBuffer.allocate(100);
+    assertThat(ringBuffer.drainTo(target)).isEqualTo(3);
+    assertThat(ringBuffer.isEmpty()).isTrue();
+  }
+
+  static RequestLogInfo newInfo(String uri) {
+    return new AccessLogEncoderTest.LogInfo(
+        new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri),
+        new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK),
+        null,
+        0,
+        0);
+  }
+}
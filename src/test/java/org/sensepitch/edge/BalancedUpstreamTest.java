@@ -0,0 +1,323 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelException;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Jens Wilke
+ */
+public class BalancedUpstreamTest {
+
+  static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+  static final HttpResponse SERVER_ERROR =
+      new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE);
+  static final HttpResponse OK =
+      new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+
+  long now = 1_000_000 * MILLIS;
+
+  @Test
+  public void distributionFollowsWeights() {
+    FakeTarget a = new FakeTarget();
+    FakeTarget b = new FakeTarget();
+    BalancedUpstream upstream = newUpstream(List.of(a, b), new int[] {1, 3});
+    for (int i = 0; i < 4000; i++) {
+      Channel ch = upstream.connect(null).getNow();
+      now += MILLIS;
+      upstream.responseReceived(ch, OK);
+      upstream.release(ch);
+    }
+    assertThat(a.connects + b.connects).isEqualTo(4000);
+    assertThat(b.connects).isGreaterThan(2 * a.connects);
+    assertThat(a.released + b.released).isEqualTo(4000);
+  }
+
+  @Test
+  public void slowTargetAvoided() {
+    FakeTarget fast = new FakeTarget();
+    FakeTarget slow = new FakeTarget();
+    BalancedUpstream upstream = newUpstream(List.of(fast, slow), new int[] {1, 1});
+    for (int i = 0; i < 1000; i++) {
+      Channel ch = upstream.connect(null).getNow();
+      now += ch.attr(BalancedUpstream.PICK).get().index == 0 ? MILLIS : 100 * MILLIS;
+      upstream.responseReceived(ch, OK);
+      upstream.release(ch);
+    }
+    assertThat(slow.connects).isLessThan(100);
+  }
+
+  /** After a half-life, old average and new sample have the same weight */
+  @Test
+  public void lowerLatencyAveragedByElapsedTime() {
+    BalancedUpstream upstream = newUpstream(List.of(new FakeTarget()), new int[] {1});
+    Channel ch = upstream.connect(null).getNow();
+    now += 100 * MILLIS;
+    upstream.responseReceived(ch, OK);
+    upstream.release(ch);
+    assertThat(upstream.ewmaNanos(0)).isEqualTo(100.0 * MILLIS);
+    now += Math.round(BalancedUpstream.DECAY_NANOS * Math.log(2)) - 20 * MILLIS;
+    ch = upstream.connect(null).getNow();
+    now += 20 * MILLIS;
+    upstream.responseReceived(ch, OK);
+    upstream.release(ch);
+    assertThat(upstream.ewmaNanos(0)).isCloseTo(60.0 * MILLIS, within(0.01 * MILLIS));
+  }
+
+  @Test
+  public void latencyMeasuredUnderConcurrencyLimit() {
+    FakeTarget fast = new FakeTarget();
+    FakeTarget slow = new FakeTarget();
+    BalancedUpstream balanced = newUpstream(List.of(fast, slow), new int[] {1, 1});
+    Upstream upstream =
+        new LimitedUpstream(
+            balanced,
+            new AdaptiveConcurrencyLimiter(
+                ConcurrencyLimitConfig.builder().build(), new ProxyMetrics(), "test"));
+    EmbeddedChannel ingress = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    for (int i = 0; i < 1000; i++) {
+      Future<Channel> future = upstream.connect(ingress.pipeline().firstContext());
+      ingress.runPendingTasks();
+      Channel ch = future.getNow();
+      now += ch.attr(BalancedUpstream.PICK).get().index == 0 ? MILLIS : 100 * MILLIS;
+      upstream.responseReceived(ch, OK);
+      upstream.release(ch);
+    }
+    assertThat(slow.connects).isLessThan(100);
+    assertThat(fast.released + slow.released).isEqualTo(1000);
+  }
+
+  @Test
+  public void outstandingRequestsSpread() {
+    FakeTarget a = new FakeTarget();
+    FakeTarget b = new FakeTarget();
+    BalancedUpstream upstream = newUpstream(List.of(a, b), new int[] {1, 1});
+    List<Channel> channels = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      channels.add(upstream.connect(null).getNow());
+    }
+    assertThat(Math.abs(upstream.outstanding(0) - upstream.outstanding(1))).isLessThanOrEqualTo(1);
+    channels.forEach(upstream::discard);
+    assertThat(upstream.outstanding(0)).isZero();
+    assertThat(upstream.outstanding(1)).isZero();
+    assertThat(a.discarded + b.discarded).isEqualTo(100);
+  }
+
+  @Test
+  public void connectFailurePenalized() {
+    FakeTarget good = new FakeTarget();
+    FakeTarget broken = new FakeTarget();
+    broken.fail = true;
+    BalancedUpstream upstream = newUpstream(List.of(good, broken), new int[] {1, 1});
+    int failures = 0;
+    for (int i = 0; i < 1000; i++) {
+      Future<Channel> future = upstream.connect(null);
+      now += MILLIS;
+      if (!future.isSuccess()) {
+        failures++;
+        continue;
+      }
+      upstream.responseReceived(future.getNow(), OK);
+      upstream.release(future.getNow());
+    }
+    assertThat(failures).isLessThan(50);
+    assertThat(upstream.outstanding(1)).isZero();
+  }
+
+  @Test
+  public void ejectedTargetSkipped() {
+    FakeTarget good = new FakeTarget();
+    FakeTarget broken = new FakeTarget();
+    TargetHealth[] health = newHealth(2);
+    BalancedUpstream upstream =
+        new BalancedUpstream(List.of(good, broken), new int[] {1, 1}, health, () -> now);
+    for (int i = 0; i < 3; i++) {
+      Channel ch = new EmbeddedChannel();
+      ch.attr(BalancedUpstream.PICK).set(new BalancedUpstream.Pick(1, now));
+      upstream.responseReceived(ch, SERVER_ERROR);
+    }
+    assertThat(health[1].isAvailable(now)).isFalse();
+    for (int i = 0; i < 100; i++) {
+      upstream.release(upstream.connect(null).getNow());
+    }
+    assertThat(good.connects).isEqualTo(100);
+    assertThat(broken.connects).isZero();
+  }
+
+  @Test
+  public void ejectedDuringDraw() {
+    EmbeddedChannel ingress = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    for (int i = 0; i < 100; i++) {
+      FakeTarget stable = new FakeTarget();
+      FakeTarget ejected = new FakeTarget();
+      TargetHealth[] health = {newHealth(1)[0], new EjectedAfterFirstCheck()};
+      BalancedUpstream upstream =
+          new BalancedUpstream(List.of(stable, ejected), new int[] {1, 1}, health, () -> now);
+      Future<Channel> future = upstream.connect(ingress.pipeline().firstContext());
+      assertThat(future.isSuccess()).isTrue();
+      assertThat(stable.connects).isEqualTo(1);
+    }
+    for (int i = 0; i < 100; i++) {
+      FakeTarget a = new FakeTarget();
+      FakeTarget b = new FakeTarget();
+      TargetHealth[] health = {new EjectedAfterFirstCheck(), new EjectedAfterFirstCheck()};
+      BalancedUpstream upstream =
+          new BalancedUpstream(List.of(a, b), new int[] {1, 1}, health, () -> now);
+      assertThat(upstream.connect(ingress.pipeline().firstContext()).cause())
+          .isInstanceOf(BalancedUpstream.NoHealthyTargetException.class);
+    }
+  }
+
+  /** Available when the total weight is computed, ejected by another event loop afterwards */
+  static class EjectedAfterFirstCheck extends TargetHealth {
+
+    int checks;
+
+    EjectedAfterFirstCheck() {
+      super(HealthCheckConfig.builder().build(), new ProxyMetrics(), "ejected");
+    }
+
+    @Override
+    public boolean isAvailable(long nowNanos) {
+      return checks++ == 0;
+    }
+  }
+
+  @Test
+  public void allEjectedFailsImmediately() {
+    FakeTarget target = new FakeTarget();
+    target.fail = true;
+    TargetHealth[] health = newHealth(1);
+    BalancedUpstream upstream =
+        new BalancedUpstream(List.of(target), new int[] {1}, health, () -> now);
+    EmbeddedChannel ingress = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    for (int i = 0; i < 10; i++) {
+      assertThat(upstream.connect(ingress.pipeline().firstContext()).isSuccess()).isFalse();
+    }
+    assertThat(target.connects).isEqualTo(3);
+    assertThat(upstream.connect(ingress.pipeline().firstContext()).cause())
+        .isInstanceOf(BalancedUpstream.NoHealthyTargetException.class);
+    now += TimeUnit.SECONDS.toNanos(10);
+    target.fail = false;
+    assertThat(upstream.connect(ingress.pipeline().firstContext()).isSuccess()).isTrue();
+  }
+
+  @Test
+  public void upstreamResetCountsAsFailure() {
+    FakeTarget target = new FakeTarget();
+    TargetHealth[] health = newHealth(1);
+    BalancedUpstream upstream =
+        new BalancedUpstream(List.of(target), new int[] {1}, health, () -> now);
+    for (int i = 0; i < 3; i++) {
+      // e.g. the client went away
+      upstream.discard(upstream.connect(null).getNow());
+    }
+    assertThat(health[0].isAvailable(now)).isTrue();
+    for (int i = 0; i < 3; i++) {
+      Channel ch = upstream.connect(null).getNow();
+      upstream.discard(ch, new ChannelException("Connection reset"));
+    }
+    assertThat(health[0].isAvailable(now)).isFalse();
+  }
+
+  /** Reset and close of the upstream connection reach the balancer via the handlers */
+  @Test
+  public void upstreamResetOrCloseBeforeResponseCountsAsFailure() {
+    FakeTarget target = new FakeTarget();
+    TargetHealth[] health = newHealth(1);
+    BalancedUpstream upstream =
+        new BalancedUpstream(List.of(target), new int[] {1}, health, () -> now);
+    for (int i = 0; i < 3; i++) {
+      EmbeddedChannel ingress =
+          new EmbeddedChannel(new DownstreamHandler(upstream, new ProxyMetrics()));
+      ingress.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/"));
+      if (i % 2 == 0) {
+        target.channel.pipeline().fireExceptionCaught(new IOException("Connection reset by peer"));
+      } else {
+        target.channel.close();
+      }
+      assertThatThrownBy(ingress::checkException)
+          .isInstanceOf(ForwardHandler.UpstreamException.class);
+      ingress.finishAndReleaseAll();
+    }
+    assertThat(target.discarded).isEqualTo(3);
+    assertThat(health[0].isAvailable(now)).isFalse();
+  }
+
+  TargetHealth[] newHealth(int count) {
+    TargetHealth[] health = new TargetHealth[count];
+    for (int i = 0; i < count; i++) {
+      health[i] =
+          new TargetHealth(
+              HealthCheckConfig.builder().consecutiveFailures(3).baseEjectionMillis(10_000).build(),
+              new ProxyMetrics(),
+              "target" + i);
+    }
+    return health;
+  }
+
+  @Test
+  public void releaseWithoutPickCloses() {
+    BalancedUpstream upstream = newUpstream(List.of(new FakeTarget()), new int[] {1});
+    EmbeddedChannel ch = new EmbeddedChannel();
+    upstream.release(ch);
+    assertThat(ch.isOpen()).isFalse();
+  }
+
+  BalancedUpstream newUpstream(List<Upstream> targets, int[] weights) {
+    return new BalancedUpstream(targets, weights, null, () -> now);
+  }
+
+  static class FakeTarget implements Upstream {
+
+    boolean fail;
+    int connects;
+    int released;
+    int discarded;
+    EmbeddedChannel channel;
+
+    /** The channel forwards the response to the ingress, if there is a downstream context */
+    @Override
+    public Future<Channel> connect(ChannelHandlerContext downstreamContext) {
+      connects++;
+      if (fail) {
+        return ImmediateEventExecutor.INSTANCE.newFailedFuture(
+            new ChannelException("connection refused"));
+      }
+      channel =
+          downstreamContext != null
+              ? new EmbeddedChannel(new ForwardHandler(downstreamContext.channel()))
+              : new EmbeddedChannel();
+      return ImmediateEventExecutor.INSTANCE.newSucceededFuture(channel);
+    }
+
+    @Override
+    public void release(Channel ch) {
+      released++;
+    }
+
+    @Override
+    public void discard(Channel ch) {
+      discarded++;
+    }
+  }
+}
@@ -0,0 +1,276 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.codec.dns.DatagramDnsQuery;
+import io.netty.handler.codec.dns.DatagramDnsQueryDecoder;
+import io.netty.handler.codec.dns.DatagramDnsResponse;
+import io.netty.handler.codec.dns.DatagramDnsResponseEncoder;
+import io.netty.handler.codec.dns.DefaultDnsPtrRecord;
+import io.netty.handler.codec.dns.DefaultDnsRawRecord;
+import io.netty.handler.codec.dns.DnsQuestion;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsResponseCode;
+import io.netty.handler.codec.dns.DnsSection;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Crawler verification against a local stand-in DNS server.
+ *
+ * @author Jens Wilke
+ */
+public class CrawlerVerificationTest {
+
+  static final String GOOGLEBOT =
+      "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)";
+
+  static final Map<String, String> PTR =
+      Map.of(
+          "1.0.0.127.in-addr.arpa", "crawl-1.googlebot.com.",
+          "2.0.0.127.in-addr.arpa", "fake.googlebot.com.",
+          "6.0.0.127.in-addr.arpa", "6.0.0.127.bc.googleusercontent.com.");
+
+  static final Map<String, String> A =
+      Map.of(
+          "crawl-1.googlebot.com", "127.0.0.1",
+          "fake.googlebot.com", "10.0.0.1",
+          "6.0.0.127.bc.googleusercontent.com", "127.0.0.6");
+
+  EventLoopGroup group = new MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory());
+  AtomicInteger queries = new AtomicInteger();
+  Channel dnsServer;
+  CrawlerVerifier verifier;
+  ProxyMetrics metrics = new ProxyMetrics();
+
+  @BeforeEach
+  void setUp() throws Exception {
+    dnsServer =
+        new Bootstrap()
+            .group(group)
+            .channel(NioDatagramChannel.class)
+            .handler(
+                new ChannelInitializer<DatagramChannel>() {
+                  @Override
+                  protected void initChannel(DatagramChannel ch) {
+                    ch.pipeline()
+                        .addLast(
+                            new DatagramDnsQueryDecoder(),
+                            new DatagramDnsResponseEncoder(),
+                            new StandInDnsHandler());
+                  }
+                })
+            .bind("127.0.0.1", 0)
+            .sync()
+            .channel();
+    int port = ((InetSocketAddress) dnsServer.localAddress()).getPort();
+    verifier =
+        new CrawlerVerifier(
+            CrawlerVerificationConfig.builder()
+                .nameServers(List.of("127.0.0.1:" + port))
+                .failureTtlSeconds(1)
+                .timeoutMillis(500)
+                .build(),
+            group,
+            Transport.Nio.INSTANCE);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    verifier.close();
+    dnsServer.close().sync();
+    group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+  }
+
+  @Test
+  public void forwardConfirmedAndCached() throws Exception {
+    InetAddress address = InetAddress.getByName("127.0.0.1");
+    String[] names = verifier.lookup(address).get(5, TimeUnit.SECONDS);
+    assertThat(names).containsExactly("crawl-1.googlebot.com");
+    assertThat(CrawlerVerifier.matches(names, verifier.verifyDomains(GOOGLEBOT))).isTrue();
+    assertThat(CrawlerVerifier.matches(names, new String[] {"search.msn.com"})).isFalse();
+    int count = queries.get();
+    assertThat(verifier.lookup(address).isDone()).isTrue();
+    assertThat(queries.get()).isEqualTo(count);
+  }
+
+  @Test
+  public void forwardMismatchNotVerified() throws Exception {
+    InetAddress address = InetAddress.getByName("127.0.0.2");
+    assertThat(verifier.lookup(address).get(5, TimeUnit.SECONDS)).isEmpty();
+    assertThat(verifier.lookup(InetAddress.getByName("127.0.0.3")).get(5, TimeUnit.SECONDS))
+        .isEmpty();
+  }
+
+  /** Any cloud VM has a forward confirmed PTR record below googleusercontent.com */
+  @Test
+  public void cloudVmNotGooglebot() throws Exception {
+    String[] names = verifier.lookup(InetAddress.getByName("127.0.0.6")).get(5, TimeUnit.SECONDS);
+    assertThat(names).containsExactly("6.0.0.127.bc.googleusercontent.com");
+    assertThat(CrawlerVerifier.matches(names, verifier.verifyDomains(GOOGLEBOT))).isFalse();
+  }
+
+  @Test
+  public void notFoundCached() throws Exception {
+    InetAddress address = InetAddress.getByName("127.0.0.3");
+    assertThat(verifier.lookup(address).get(5, TimeUnit.SECONDS)).isEmpty();
+    int count = queries.get();
+    Thread.sleep(1500);
+    assertThat(verifier.lookup(address).isDone()).isTrue();
+    assertThat(queries.get()).isEqualTo(count);
+  }
+
+  @Test
+  public void serverFailureRetriedSoon() throws Exception {
+    assertRetriedSoon(InetAddress.getByName("127.0.0.4"));
+  }
+
+  @Test
+  public void timeoutRetriedSoon() throws Exception {
+    assertRetriedSoon(InetAddress.getByName("127.0.0.5"));
+  }
+
+  private void assertRetriedSoon(InetAddress address) throws Exception {
+    assertThat(verifier.lookup(address).get(5, TimeUnit.SECONDS)).isEmpty();
+    int count = queries.get();
+    assertThat(verifier.lookup(address).isDone()).isTrue();
+    Thread.sleep(1500);
+    assertThat(verifier.lookup(address).get(5, TimeUnit.SECONDS)).isEmpty();
+    assertThat(queries.get()).isGreaterThan(count);
+  }
+
+  @Test
+  public void handlerHoldsRequestUntilVerified() throws Exception {
+    DetectCrawler detectCrawler = new DetectCrawler(DetectCrawlerConfig.builder().build());
+    EmbeddedChannel channel = newChannel("127.0.0.1");
+    HttpRequest request = newRequest(GOOGLEBOT);
+    channel.writeInbound(request);
+    awaitInbound(channel);
+    assertThat((Object) channel.readInbound()).isSameAs(request);
+    assertThat(channel.attr(CrawlerVerificationHandler.VERIFIED).get()).isTrue();
+    assertThat(detectCrawler.allowBypass(channel, request)).isTrue();
+    assertThat(request.headers().get(BypassCheck.HEADER)).isEqualTo("crawler-dns-verified");
+    HttpRequest browser = newRequest("Mozilla/5.0 (X11; Linux x86_64)");
+    channel.writeInbound(browser);
+    assertThat((Object) channel.readInbound()).isSameAs(browser);
+    assertThat(channel.attr(CrawlerVerificationHandler.VERIFIED).get()).isNull();
+    channel.finishAndReleaseAll();
+    assertThat(metrics.crawlerVerificationCounter.labelValues("verified").get()).isEqualTo(1.0);
+  }
+
+  @Test
+  public void spoofedCrawlerNotBypassed() throws Exception {
+    DetectCrawler detectCrawler = new DetectCrawler(DetectCrawlerConfig.builder().build());
+    EmbeddedChannel channel = newChannel("127.0.0.2");
+    HttpRequest request = newRequest(GOOGLEBOT);
+    channel.writeInbound(request);
+    awaitInbound(channel);
+    assertThat((Object) channel.readInbound()).isSameAs(request);
+    assertThat(channel.attr(CrawlerVerificationHandler.VERIFIED).get()).isFalse();
+    assertThat(detectCrawler.allowBypass(channel, request)).isFalse();
+    assertThat(detectCrawler.allowBypass(null, request)).isTrue();
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void reverseName() throws Exception {
+    assertThat(CrawlerVerifier.reverseName(InetAddress.getByName("66.249.66.1")))
+        .isEqualTo("1.66.249.66.in-addr.arpa.");
+    assertThat(CrawlerVerifier.reverseName(InetAddress.getByName("2001:db8::1")))
+        .isEqualTo("1.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.8.b.d.0.1.0.0.2.ip6.arpa.");
+  }
+
+  private EmbeddedChannel newChannel(String remoteIp) {
+    InetSocketAddress remote = new InetSocketAddress(remoteIp, 4711);
+    EmbeddedChannel channel =
+        new EmbeddedChannel() {
+          @Override
+          protected SocketAddress remoteAddress0() {
+            return remote;
+          }
+        };
+    channel.pipeline().addLast(new CrawlerVerificationHandler(verifier, metrics));
+    return channel;
+  }
+
+  private static void awaitInbound(EmbeddedChannel channel) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (channel.inboundMessages().isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      channel.runPendingTasks();
+    }
+  }
+
+  private static HttpRequest newRequest(String agent) {
+    HttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+    request.headers().set(HttpHeaderNames.USER_AGENT, agent);
+    return request;
+  }
+
+  /**
+   * Answers PTR and A queries from the maps above, everything else is not found. The PTR query of
+   * 127.0.0.4 fails with a server failure, the one of 127.0.0.5 gets no answer.
+   */
+  class StandInDnsHandler extends SimpleChannelInboundHandler<DatagramDnsQuery> {
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, DatagramDnsQuery query)
+        throws Exception {
+      queries.incrementAndGet();
+      DnsQuestion question = query.recordAt(DnsSection.QUESTION);
+      String name = question.name().toLowerCase(Locale.ROOT);
+      if (name.endsWith(".")) {
+        name = name.substring(0, name.length() - 1);
+      }
+      DatagramDnsResponse response =
+          new DatagramDnsResponse(query.recipient(), query.sender(), query.id());
+      response.addRecord(DnsSection.QUESTION, question);
+      if (name.equals("5.0.0.127.in-addr.arpa")) {
+        response.release();
+        return;
+      }
+      if (name.equals("4.0.0.127.in-addr.arpa")) {
+        response.setCode(DnsResponseCode.SERVFAIL);
+      } else if (question.type() == DnsRecordType.PTR && PTR.containsKey(name)) {
+        response.addRecord(
+            DnsSection.ANSWER,
+            new DefaultDnsPtrRecord(question.name(), DnsRecord.CLASS_IN, 60, PTR.get(name)));
+      } else if (question.type() == DnsRecordType.A && A.containsKey(name)) {
+        byte[] ip = InetAddress.getByName(A.get(name)).getAddress();
+        response.addRecord(
+            DnsSection.ANSWER,
+            new DefaultDnsRawRecord(
+                question.name(), DnsRecordType.A, 60, Unpooled.wrappedBuffer(ip)));
+      } else if (!A.containsKey(name)) {
+        response.setCode(DnsResponseCode.NXDOMAIN);
+      }
+      ctx.writeAndFlush(response);
+    }
+  }
+}
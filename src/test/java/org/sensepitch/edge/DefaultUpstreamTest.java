@@ -0,0 +1,159 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Jens Wilke
+ */
+public class DefaultUpstreamTest {
+
+  Transport transport = Transport.select(Transport.NIO);
+  EventLoopGroup group = new MultiThreadIoEventLoopGroup(1, transport.newIoHandlerFactory());
+  AtomicInteger upstreamConnections = new AtomicInteger();
+
+  ProxyContext proxyContext =
+      new ProxyContext() {
+        @Override
+        public EventLoopGroup eventLoopGroup() {
+          return group;
+        }
+
+        @Override
+        public Transport transport() {
+          return transport;
+        }
+
+        @Override
+        public ProxyMetrics metrics() {
+          return new ProxyMetrics();
+        }
+      };
+
+  @AfterEach
+  void tearDown() {
+    group.shutdownGracefully();
+  }
+
+  @Test
+  public void keepAliveRequestsReuseUpstreamConnection() throws Exception {
+    int upstreamPort = startUpstream();
+    Upstream upstream =
+        new DefaultUpstream(
+            proxyContext, UpstreamConfig.builder().target("127.0.0.1:" + upstreamPort).build());
+    int ingressPort = startIngress(upstream);
+    HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    for (int i = 0; i < 5; i++) {
+      HttpResponse<String> response =
+          client.send(
+              HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + ingressPort + "/")).build(),
+              HttpResponse.BodyHandlers.ofString());
+      assertThat(response.statusCode()).isEqualTo(200);
+      assertThat(response.body()).isEqualTo("hello");
+    }
+    assertThat(upstreamConnections.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void poolDisabledOpensConnectionPerRequest() throws Exception {
+    int upstreamPort = startUpstream();
+    Upstream upstream =
+        new DefaultUpstream(
+            proxyContext,
+            UpstreamConfig.builder()
+                .target("127.0.0.1:" + upstreamPort)
+                .connectionPool(ConnectionPoolConfig.DEFAULT.toBuilder().disable(true).build())
+                .build());
+    int ingressPort = startIngress(upstream);
+    HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    for (int i = 0; i < 3; i++) {
+      HttpResponse<String> response =
+          client.send(
+              HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + ingressPort + "/")).build(),
+              HttpResponse.BodyHandlers.ofString());
+      assertThat(response.statusCode()).isEqualTo(200);
+    }
+    assertThat(upstreamConnections.get()).isEqualTo(3);
+  }
+
+  int startIngress(Upstream upstream) throws InterruptedException {
+    Channel ch =
+        new ServerBootstrap()
+            .group(group)
+            .channel(transport.serverSocketChannelClass())
+            .childHandler(
+                new ChannelInitializer<SocketChannel>() {
+                  @Override
+                  protected void initChannel(SocketChannel ch) {
+                    ch.pipeline().addLast(new HttpServerCodec());
+                    ch.pipeline().addLast(new DownstreamHandler(upstream, new ProxyMetrics()));
+                  }
+                })
+            .bind(0)
+            .sync()
+            .channel();
+    return ((InetSocketAddress) ch.localAddress()).getPort();
+  }
+
+  int startUpstream() throws InterruptedException {
+    Channel ch =
+        new ServerBootstrap()
+            .group(group)
+            .channel(transport.serverSocketChannelClass())
+            .childHandler(
+                new ChannelInitializer<SocketChannel>() {
+                  @Override
+                  protected void initChannel(SocketChannel ch) {
+                    upstreamConnections.incrementAndGet();
+                    ch.pipeline().addLast(new HttpServerCodec());
+                    ch.pipeline()
+                        .addLast(
+                            new ChannelInboundHandlerAdapter() {
+                              @Override
+                              public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                if (msg instanceof LastHttpContent) {
+                                  FullHttpResponse response =
+                                      new DefaultFullHttpResponse(
+                                          HttpVersion.HTTP_1_1,
+                                          HttpResponseStatus.OK,
+                                          Unpooled.copiedBuffer("hello", StandardCharsets.UTF_8));
+                                  response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 5);
+                                  ctx.writeAndFlush(response);
+                                }
+                                ReferenceCountUtil.release(msg);
+                              }
+                            });
+                  }
+                })
+            .bind(0)
+            .sync()
+            .channel();
+    return ((InetSocketAddress) ch.localAddress()).getPort();
+  }
+}
@@ -11,6 +11,7 @@ import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
@@ -139,6 +140,115 @@ public class DeflectorHandlerTest {
     assertThat(passed).isTrue();
   }
 
+  @Test
+  public void testChallengePageRendered() throws Exception {
+    DeflectorConfig cfg = getDeflectorConfig();
+    init(cfg);
+    request("/default");
+    FullHttpResponse response = (FullHttpResponse) messageWritten;
+    String challenge = findCookieValue(response, Deflector.CHALLENGE_COOKIE_NAME);
+    String html = response.content().toString(StandardCharsets.UTF_8);
+    assertThat(html)
+        .contains("var CHALLENGE = '" + challenge + "';")
+        .contains("var TARGET_PREFIX = '8';")
+        .contains(Deflector.CHALLENGE_RESOURCES_URL + "/script.js")
+        .doesNotContain("{{");
+    assertThat(response.headers().getInt(HttpHeaderNames.CONTENT_LENGTH))
+        .isEqualTo(response.content().readableBytes());
+    assertThat(response.headers().get(HttpHeaderNames.SET_COOKIE))
+        .contains("Max-Age=2592000", "Path=/", "Secure", "HTTPOnly");
+    response.release();
+  }
+
+  @Test
+  public void testHeavyHitterRejected() throws Exception {
+    DeflectorConfig cfg =
+        getDeflectorConfig().toBuilder()
+            .heavyHitter(HeavyHitterConfig.builder().maxRequestsPerAsn(3).reject(true).build())
+            .build();
+    init(cfg);
+    for (int i = 0; i < 3; i++) {
+      requestFromAsn("/default");
+      expectResponseIsChallenge();
+    }
+    requestFromAsn("/default");
+    assertThat(passed).isFalse();
+    assertThat(messageWritten)
+        .isInstanceOfSatisfying(
+            HttpResponse.class,
+            response -> {
+              assertThat(response.status().code()).isEqualTo(429);
+              assertThat(response.headers().getInt(HttpHeaderNames.RETRY_AFTER)).isEqualTo(60);
+            });
+    requestFromAsn(Deflector.CHALLENGE_RESOURCES_URL + "/script.js");
+    expectResponseIsNoCacheOk("text/javascript; charset=utf-8");
+  }
+
+  @Test
+  public void testChallengeRequestsNotCounted() throws Exception {
+    DeflectorConfig cfg =
+        getDeflectorConfig().toBuilder()
+            .heavyHitter(HeavyHitterConfig.builder().maxRequestsPerAsn(3).reject(true).build())
+            .build();
+    init(cfg);
+    for (int i = 0; i < 3; i++) {
+      requestFromAsn(Deflector.CHALLENGE_STEP_URL);
+      requestFromAsn(Deflector.CHALLENGE_RESOURCES_URL + "/script.js");
+      expectResponseIsNoCacheOk("text/javascript; charset=utf-8");
+    }
+    requestFromAsn("/default");
+    expectResponseIsChallenge();
+  }
+
+  @Test
+  public void testSolvedChallengeNotDeflectedAgain() throws Exception {
+    DeflectorConfig cfg =
+        getDeflectorConfig().toBuilder()
+            .heavyHitter(HeavyHitterConfig.builder().maxRequestsPerAsn(3).build())
+            .build();
+    init(cfg);
+    for (int i = 0; i < 4; i++) {
+      requestFromAsn("/default");
+      expectResponseIsChallenge();
+    }
+    String challenge =
+        findCookieValue((HttpResponse) messageWritten, Deflector.CHALLENGE_COOKIE_NAME);
+    String nonce = findNonce(challenge, cfg.hashTargetPrefix(), cfg.powMaxIterations());
+    requestFromAsn(Deflector.CHALLENGE_ANSWER_URL + "?challenge=" + challenge + "&nonce=" + nonce);
+    String token = findCookieValue((HttpResponse) messageWritten, Deflector.TOKEN_COOKIE_NAME);
+    assertThat(token).isNotNull();
+    DefaultHttpRequest req =
+        new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/default");
+    req.headers().set(IpTraitsHandler.ASN_HEADER, "64500");
+    req.headers()
+        .set(
+            HttpHeaderNames.COOKIE,
+            ServerCookieEncoder.STRICT.encode(
+                new DefaultCookie(Deflector.TOKEN_COOKIE_NAME, token)));
+    request(req);
+    assertThat(passed).isTrue();
+  }
+
+  @Test
+  public void testNoAsnLimitByDefault() throws Exception {
+    DeflectorConfig cfg =
+        getDeflectorConfig().toBuilder()
+            .heavyHitter(HeavyHitterConfig.builder().reject(true).build())
+            .build();
+    init(cfg);
+    for (int i = 0; i < 100; i++) {
+      requestFromAsn("/default");
+      expectResponseIsChallenge();
+    }
+    assertThat(new HeavyHitterDetector(HeavyHitterConfig.DEFAULT).limitsAsn()).isFalse();
+  }
+
+  private void requestFromAsn(String uri) throws Exception {
+    DefaultHttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    req.headers().set(IpTraitsHandler.ASN_HEADER, "64500");
+    request(req);
+  }
+
   private static DeflectorConfig getDeflectorConfig() {
     DeflectorConfig cfg =
         DeflectorConfig.builder()
@@ -7,6 +7,7 @@ import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpVersion;
+import java.util.List;
 import org.junit.jupiter.api.Test;
 
 /**
@@ -23,6 +24,33 @@ public class DetectCrawlerTest {
     assertThat(checkBypass(detectCrawler, "+https://openai.com/gptbot")).isTrue();
   }
 
+  @Test
+  public void fragmentMatcher() {
+    FragmentMatcher matcher = new FragmentMatcher(List.of("he", "she", "his", "hers", "http://x"));
+    assertThat(matcher.match("ushers")).isEqualTo(1);
+    assertThat(matcher.match("ahishers")).isEqualTo(2);
+    assertThat(matcher.match("xhex")).isEqualTo(0);
+    assertThat(matcher.match("+http://x/bot")).isEqualTo(4);
+    assertThat(matcher.match("http://y")).isEqualTo(FragmentMatcher.NO_MATCH);
+    assertThat(matcher.match("")).isEqualTo(FragmentMatcher.NO_MATCH);
+    assertThat(new FragmentMatcher(List.of()).matches("anything")).isFalse();
+  }
+
+  @Test
+  public void verdictCached() {
+    DetectCrawler detectCrawler = new DetectCrawler(DetectCrawlerConfig.builder().build());
+    String agent = "Mozilla/5.0 (compatible; +https://openai.com/gptbot)";
+    assertThat(detectCrawler.verdict(agent).check())
+        .isSameAs(DetectCrawler.FRAGMENT_AGENT_MATCH_BYPASS);
+    assertThat(detectCrawler.verdict(agent).check())
+        .isSameAs(DetectCrawler.FRAGMENT_AGENT_MATCH_BYPASS);
+    assertThat(detectCrawler.verdict("Twitterbot/1.0").check())
+        .isSameAs(DetectCrawler.AGENT_MATCH_BYPASS);
+    assertThat(checkBypass(detectCrawler, agent)).isTrue();
+    assertThat(checkBypass(detectCrawler, "Mozilla/5.0 (X11; Linux x86_64)")).isFalse();
+    assertThat(checkBypass(detectCrawler, "Mozilla/5.0 (X11; Linux x86_64)")).isFalse();
+  }
+
   private static boolean checkBypass(DetectCrawler detectCrawler, String userAgent) {
     HttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
     if (userAgent != null) {
@@ -0,0 +1,127 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author Jens Wilke
+ */
+public class DiskCacheTest {
+
+  @TempDir Path dir;
+  ProxyMetrics metrics = new ProxyMetrics();
+  DiskCache cache;
+  long now = System.currentTimeMillis();
+
+  @AfterEach
+  void tearDown() {
+    if (cache != null) {
+      cache.close();
+    }
+  }
+
+  DiskCache open(int maxMegabytes) {
+    return new DiskCache(
+        DiskCacheConfig.builder()
+            .directory(dir.toString())
+            .segmentMegabytes(1)
+            .maxMegabytes(maxMegabytes)
+            .build(),
+        metrics,
+        false);
+  }
+
+  @Test
+  public void storeAndLookup() {
+    cache = open(4);
+    store("example.com/a", "hello disk");
+    ResponseCache.Entry entry = cache.lookup("example.com/a", now);
+    assertThat(entry).isNotNull();
+    assertThat(entry.status()).isEqualTo(HttpResponseStatus.OK);
+    assertThat(entry.headers().get(HttpHeaderNames.CONTENT_TYPE)).isEqualTo("text/plain");
+    assertThat(entry.body().toString(StandardCharsets.UTF_8)).isEqualTo("hello disk");
+    assertThat(entry.body().isDirect()).isTrue();
+    entry.body().release();
+    assertThat(cache.lookup("example.com/b", now)).isNull();
+    assertThat(cache.lookup("example.com/a", now + 60_000)).isNull();
+  }
+
+  @Test
+  public void indexRebuiltAfterRestart() {
+    cache = open(4);
+    store("example.com/a", "first");
+    store("example.com/a", "second");
+    store("example.com/b", "other");
+    DiskCache.Writer incomplete = begin("example.com/c", 10);
+    incomplete.write(Unpooled.copiedBuffer("12345", StandardCharsets.UTF_8));
+    incomplete.abort();
+    cache.close();
+    cache = open(4);
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(body("example.com/a")).isEqualTo("second");
+    assertThat(body("example.com/b")).isEqualTo("other");
+    assertThat(cache.lookup("example.com/c", now)).isNull();
+  }
+
+  @Test
+  public void writeBeyondLengthRejected() {
+    cache = open(4);
+    DiskCache.Writer writer = begin("example.com/a", 3);
+    assertThat(writer.write(Unpooled.copiedBuffer("12345", StandardCharsets.UTF_8))).isNull();
+    assertThat(writer.commit()).isFalse();
+    assertThat(cache.lookup("example.com/a", now)).isNull();
+  }
+
+  /** The oldest segments are dropped, a record with a hit is kept */
+  @Test
+  public void reclaimKeepsAccessedRecords() {
+    cache = open(2);
+    String big = "x".repeat(300 * 1024);
+    store("example.com/hot", big);
+    for (int i = 0; i < 12; i++) {
+      store("example.com/cold" + i, big);
+    }
+    cache.lookup("example.com/hot", now).body().release();
+    assertThat(cache.segmentBytesTotal()).isGreaterThan(2 * 1024 * 1024);
+    cache.reclaim(now);
+    assertThat(cache.segmentBytesTotal()).isLessThanOrEqualTo(2 * 1024 * 1024);
+    assertThat(body("example.com/hot")).isEqualTo(big);
+    assertThat(cache.lookup("example.com/cold0", now)).isNull();
+    assertThat(metrics.cacheDiskCounter.labelValues("relocated").get()).isEqualTo(1.0);
+  }
+
+  private String body(String key) {
+    ResponseCache.Entry entry = cache.lookup(key, now);
+    assertThat(entry).isNotNull();
+    String s = entry.body().toString(StandardCharsets.UTF_8);
+    entry.body().release();
+    return s;
+  }
+
+  private DiskCache.Writer begin(String key, int length) {
+    HttpHeaders headers = new DefaultHttpHeaders();
+    headers.set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+    headers.set(HttpHeaderNames.CONTENT_LENGTH, length);
+    return cache.begin(key, HttpResponseStatus.OK, headers, length, now, now + 60_000);
+  }
+
+  private void store(String key, String content) {
+    byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+    DiskCache.Writer writer = begin(key, bytes.length);
+    int half = bytes.length / 2;
+    writer.write(Unpooled.wrappedBuffer(Arrays.copyOfRange(bytes, 0, half))).release();
+    writer.write(Unpooled.wrappedBuffer(Arrays.copyOfRange(bytes, half, bytes.length))).release();
+    assertThat(writer.commit()).isTrue();
+  }
+}
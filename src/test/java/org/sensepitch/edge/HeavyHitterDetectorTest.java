@@ -0,0 +1,107 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.net.InetAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Jens Wilke
+ */
+public class HeavyHitterDetectorTest {
+
+  static final long WINDOW = TimeUnit.SECONDS.toNanos(HeavyHitterConfig.DEFAULT_WINDOW_SECONDS);
+
+  long now = WINDOW;
+  HeavyHitterDetector detector =
+      new HeavyHitterDetector(
+          HeavyHitterConfig.builder().maxRequestsPerIpPrefix(100).build(), () -> now);
+  long key = HeavyHitterDetector.ipPrefixKey(address("192.0.2.17"));
+
+  @Test
+  public void keys() {
+    assertThat(HeavyHitterDetector.ipPrefixKey(address("192.0.2.200"))).isEqualTo(key);
+    assertThat(HeavyHitterDetector.ipPrefixKey(address("192.0.3.17"))).isNotEqualTo(key);
+    assertThat(HeavyHitterDetector.ipPrefixKey(address("2001:db8:1::1")))
+        .isEqualTo(HeavyHitterDetector.ipPrefixKey(address("2001:db8:1:ffff::2")));
+    assertThat(HeavyHitterDetector.asnKey(4711)).isNotEqualTo(HeavyHitterDetector.tokenKey("x"));
+  }
+
+  @Test
+  public void floodWithinSubWindowDetectedLocally() {
+    for (int i = 0; i < 100; i++) {
+      assertThat(detector.recordAndCheck(key)).isFalse();
+    }
+    assertThat(detector.recordAndCheck(key)).isTrue();
+  }
+
+  /** Neither sub-window exceeds the limit, the sliding window does */
+  @Test
+  public void slidingWindowMerged() {
+    record(key, 60);
+    now += WINDOW;
+    record(key, 60);
+    now += WINDOW;
+    assertThat(detector.recordAndCheck(key)).isTrue();
+    assertThat(detector.isHeavy(key)).isTrue();
+    now += WINDOW * HeavyHitterConfig.DEFAULT_WINDOWS;
+    assertThat(detector.recordAndCheck(key)).isFalse();
+    assertThat(detector.isHeavy(key)).isFalse();
+  }
+
+  /**
+   * Many distinct keys do not push out the heavy hitter and do not become heavy themselves.
+   * Space-Saving keeps every key with more than total / topK requests.
+   */
+  @Test
+  public void heavyHitterAmongManyKeys() {
+    for (int i = 0; i < 200; i++) {
+      detector.recordAndCheck(key);
+      for (int j = 0; j < 20; j++) {
+        detector.recordAndCheck(HeavyHitterDetector.tokenKey("t" + (i * 20 + j)));
+      }
+    }
+    now += WINDOW;
+    detector.recordAndCheck(key);
+    assertThat(detector.isHeavy(key)).isTrue();
+    assertThat(detector.isHeavy(HeavyHitterDetector.tokenKey("t1"))).isFalse();
+  }
+
+  /** Counts of different threads are merged */
+  @Test
+  public void mergedAcrossThreads() throws Exception {
+    ExecutorService a = Executors.newSingleThreadExecutor();
+    ExecutorService b = Executors.newSingleThreadExecutor();
+    try {
+      a.submit(() -> record(key, 60)).get();
+      b.submit(() -> record(key, 60)).get();
+      now += WINDOW;
+      a.submit(() -> detector.recordAndCheck(key)).get();
+      b.submit(() -> detector.recordAndCheck(key)).get();
+      assertThat(detector.isHeavy(key)).isFalse();
+      now += WINDOW;
+      a.submit(() -> detector.recordAndCheck(key)).get();
+      assertThat(detector.isHeavy(key)).isTrue();
+    } finally {
+      a.shutdown();
+      b.shutdown();
+    }
+  }
+
+  private void record(long key, int count) {
+    for (int i = 0; i < count; i++) {
+      detector.recordAndCheck(key);
+    }
+  }
+
+  private static InetAddress address(String ip) {
+    try {
+      return InetAddress.getByName(ip);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.socket.SocketChannel;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Requests via HTTP/2 and HTTP/1.1 against a TLS listener with ALPN.
+ *
+ * @author Jens Wilke
+ */
+public class Http2IngressTest {
+
+  Proxy proxy;
+  Channel serverChannel;
+
+  @AfterEach
+  void tearDown() {
+    if (serverChannel != null) {
+      serverChannel.close();
+    }
+    proxy.shutdown();
+  }
+
+  @Test
+  public void http2MultipleStreamsOnOneConnection() throws Exception {
+    int port = start(false);
+    HttpClient client = newClient(HttpClient.Version.HTTP_2);
+    // establish the connection first, otherwise the client opens a connection per request
+    client.send(
+        HttpRequest.newBuilder(URI.create("https://localhost:" + port + "/")).build(),
+        HttpResponse.BodyHandlers.discarding());
+    List<CompletableFuture<HttpResponse<String>>> futures = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      futures.add(
+          client.sendAsync(
+              HttpRequest.newBuilder(URI.create("https://localhost:" + port + "/" + i)).build(),
+              HttpResponse.BodyHandlers.ofString()));
+    }
+    for (CompletableFuture<HttpResponse<String>> future : futures) {
+      HttpResponse<String> response = future.get();
+      assertThat(response.version()).isEqualTo(HttpClient.Version.HTTP_2);
+      assertThat(response.statusCode()).isEqualTo(200);
+      assertThat(response.body()).isEqualTo("a test response");
+    }
+    assertThat(proxy.metrics().ingressProtocolCounter.labelValues("h2").get()).isEqualTo(1.0);
+  }
+
+  @Test
+  public void http11StillNegotiated() throws Exception {
+    int port = start(false);
+    HttpClient client = newClient(HttpClient.Version.HTTP_1_1);
+    HttpResponse<String> response =
+        client.send(
+            HttpRequest.newBuilder(URI.create("https://localhost:" + port + "/")).build(),
+            HttpResponse.BodyHandlers.ofString());
+    assertThat(response.version()).isEqualTo(HttpClient.Version.HTTP_1_1);
+    assertThat(response.statusCode()).isEqualTo(200);
+    assertThat(response.body()).isEqualTo("a test response");
+  }
+
+  @Test
+  public void http2Disabled() throws Exception {
+    int port = start(true);
+    HttpClient client = newClient(HttpClient.Version.HTTP_2);
+    HttpResponse<String> response =
+        client.send(
+            HttpRequest.newBuilder(URI.create("https://localhost:" + port + "/")).build(),
+            HttpResponse.BodyHandlers.ofString());
+    assertThat(response.version()).isEqualTo(HttpClient.Version.HTTP_1_1);
+    assertThat(response.statusCode()).isEqualTo(200);
+  }
+
+  int start(boolean disableHttp2) throws InterruptedException {
+    ProxyConfig config =
+        ProxyConfig.builder()
+            .listen(
+                ListenConfig.builder()
+                    .ssl(
+                        SslConfig.builder()
+                            .keyPath("classpath:ssl/test.key")
+                            .certPath("classpath:ssl/test.crt")
+                            .build())
+                    .disableHttp2(disableHttp2)
+                    .build())
+            .sites(
+                Map.of(
+                    "localhost",
+                    SiteConfig.builder()
+                        .response(ResponseConfig.builder().text("a test response").build())
+                        .protection(ProtectionConfig.builder().disable(true).build())
+                        .build()))
+            .metrics(MetricsConfig.builder().enable(false).build())
+            .build();
+    proxy = new Proxy(config);
+    serverChannel =
+        new ServerBootstrap()
+            .group(proxy.eventLoopGroup())
+            .channel(proxy.transport().serverSocketChannelClass())
+            .childHandler(
+                new ChannelInitializer<SocketChannel>() {
+                  @Override
+                  protected void initChannel(SocketChannel ch) {
+                    proxy.addIngressHandlers(ch.pipeline());
+                  }
+                })
+            .bind(0)
+            .sync()
+            .channel();
+    return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+  }
+
+  static HttpClient newClient(HttpClient.Version version) throws Exception {
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(null, new TrustManager[] {new TrustAllManager()}, null);
+    return HttpClient.newBuilder().version(version).sslContext(sslContext).build();
+  }
+
+  /** Accepts the self-signed test certificate and skips the host name check. */
+  static class TrustAllManager extends X509ExtendedTrustManager {
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {}
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {}
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {}
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {}
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+      return new X509Certificate[0];
+    }
+  }
+}
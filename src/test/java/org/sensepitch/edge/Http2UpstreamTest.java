@@ -0,0 +1,189 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Proxy HTTP/1.1 ingress requests to an h2c upstream.
+ *
+ * @author Jens Wilke
+ */
+public class Http2UpstreamTest {
+
+  Transport transport = Transport.select(Transport.NIO);
+  EventLoopGroup group = new MultiThreadIoEventLoopGroup(1, transport.newIoHandlerFactory());
+  AtomicInteger upstreamConnections = new AtomicInteger();
+
+  ProxyContext proxyContext =
+      new ProxyContext() {
+        @Override
+        public EventLoopGroup eventLoopGroup() {
+          return group;
+        }
+
+        @Override
+        public Transport transport() {
+          return transport;
+        }
+
+        @Override
+        public ProxyMetrics metrics() {
+          return new ProxyMetrics();
+        }
+      };
+
+  @AfterEach
+  void tearDown() throws Exception {
+    group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+  }
+
+  @Test
+  public void concurrentRequestsShareOneUpstreamConnection() throws Exception {
+    int ingressPort = startIngress(newUpstream());
+    HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    List<CompletableFuture<HttpResponse<String>>> futures = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      futures.add(
+          client.sendAsync(
+              HttpRequest.newBuilder(URI.create("http://localhost:" + ingressPort + "/" + i))
+                  .build(),
+              HttpResponse.BodyHandlers.ofString()));
+    }
+    for (CompletableFuture<HttpResponse<String>> future : futures) {
+      HttpResponse<String> response = future.get();
+      assertThat(response.statusCode()).isEqualTo(200);
+      assertThat(response.body()).startsWith("host=localhost:" + ingressPort);
+      assertThat(response.headers().firstValue("x-http2-stream-id")).isEmpty();
+    }
+    assertThat(upstreamConnections.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void requestBodyLargerThanFlowControlWindow() throws Exception {
+    int ingressPort = startIngress(newUpstream());
+    HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    byte[] body = new byte[300_000];
+    HttpResponse<String> response =
+        client.send(
+            HttpRequest.newBuilder(URI.create("http://localhost:" + ingressPort + "/"))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build(),
+            HttpResponse.BodyHandlers.ofString());
+    assertThat(response.statusCode()).isEqualTo(200);
+    assertThat(response.body()).endsWith("length=" + body.length);
+  }
+
+  Upstream newUpstream() throws InterruptedException {
+    int upstreamPort = startUpstream();
+    return new Http2Upstream(
+        proxyContext,
+        UpstreamConfig.builder()
+            .target("127.0.0.1:" + upstreamPort)
+            .protocol(UpstreamConfig.H2C)
+            .build());
+  }
+
+  int startIngress(Upstream upstream) throws InterruptedException {
+    Channel ch =
+        new ServerBootstrap()
+            .group(group)
+            .channel(transport.serverSocketChannelClass())
+            .childHandler(
+                new ChannelInitializer<SocketChannel>() {
+                  @Override
+                  protected void initChannel(SocketChannel ch) {
+                    ch.pipeline().addLast(new HttpServerCodec());
+                    ch.pipeline().addLast(new DownstreamHandler(upstream, new ProxyMetrics()));
+                  }
+                })
+            .bind(0)
+            .sync()
+            .channel();
+    return ((InetSocketAddress) ch.localAddress()).getPort();
+  }
+
+  /** Responds with the host header and the length of the request body. */
+  int startUpstream() throws InterruptedException {
+    ChannelInitializer<Http2StreamChannel> streamInitializer =
+        new ChannelInitializer<>() {
+          @Override
+          protected void initChannel(Http2StreamChannel ch) {
+            ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true));
+            ch.pipeline().addLast(new HttpObjectAggregator(1024 * 1024));
+            ch.pipeline()
+                .addLast(
+                    new SimpleChannelInboundHandler<FullHttpRequest>() {
+                      @Override
+                      protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) {
+                        String text =
+                            "host="
+                                + req.headers().get(HttpHeaderNames.HOST)
+                                + " length="
+                                + req.content().readableBytes();
+                        FullHttpResponse response =
+                            new DefaultFullHttpResponse(
+                                HttpVersion.HTTP_1_1,
+                                HttpResponseStatus.OK,
+                                Unpooled.copiedBuffer(text, StandardCharsets.UTF_8));
+                        response
+                            .headers()
+                            .set(
+                                HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+                        ctx.writeAndFlush(response);
+                      }
+                    });
+          }
+        };
+    Channel ch =
+        new ServerBootstrap()
+            .group(group)
+            .channel(transport.serverSocketChannelClass())
+            .childHandler(
+                new ChannelInitializer<SocketChannel>() {
+                  @Override
+                  protected void initChannel(SocketChannel ch) {
+                    upstreamConnections.incrementAndGet();
+                    ch.pipeline().addLast(Http2FrameCodecBuilder.forServer().build());
+                    ch.pipeline().addLast(new Http2MultiplexHandler(streamInitializer));
+                  }
+                })
+            .bind(0)
+            .sync()
+            .channel();
+    return ((InetSocketAddress) ch.localAddress()).getPort();
+  }
+}
@@ -0,0 +1,131 @@
+package org.sensepitch.edge;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Jens Wilke
+ */
+public class IpPrefixTableTest {
+
+  @Test
+  public void test() throws UnknownHostException {
+    IpPrefixTableWrapper trie = new IpPrefixTableWrapper();
+    trie.insert("66.249.77.64/27", "google");
+    trie.insert("127.0.0.1/8", "local");
+    trie.insert("127.0.0.1/32", "localhost");
+    Assertions.assertThat(trie.find("66.249.77.63")).isNull();
+    Assertions.assertThat(trie.find("66.249.77.64")).isNotNull().first().isEqualTo("google");
+    Assertions.assertThat(trie.find("66.249.77.69")).isNotNull().first().isEqualTo("google");
+    Assertions.assertThat(trie.find("127.0.0.1")).isNotNull().hasSize(2);
+  }
+
+  @Test
+  public void nestedPrefixesShorterFirst() throws UnknownHostException {
+    IpPrefixTableWrapper trie = new IpPrefixTableWrapper();
+    trie.insert("10.1.2.0/24", "c");
+    trie.insert("10.0.0.0/8", "a");
+    trie.insert("10.1.0.0/16", "b");
+    Assertions.assertThat(trie.find("10.1.2.3")).containsExactly("a", "b", "c");
+    Assertions.assertThat(trie.find("10.1.3.3")).containsExactly("a", "b");
+    Assertions.assertThat(trie.find("10.2.3.3")).containsExactly("a");
+    Assertions.assertThat(trie.find("11.2.3.3")).isNull();
+  }
+
+  @Test
+  public void ipv6AndDefaultRoute() throws UnknownHostException {
+    IpPrefixTableWrapper trie = new IpPrefixTableWrapper();
+    trie.insert("::/0", "any");
+    trie.insert("2001:4860:4801:10::/64", "crawler:googlebot");
+    Assertions.assertThat(trie.find("2001:4860:4801:10::1"))
+        .containsExactly("any", "crawler:googlebot");
+    Assertions.assertThat(trie.find("2001:4860:4801:11::1")).containsExactly("any");
+  }
+
+  @Test
+  public void insertAfterLookup() throws UnknownHostException {
+    IpPrefixTableWrapper trie = new IpPrefixTableWrapper();
+    trie.insert("192.168.0.0/16", "private");
+    Assertions.assertThat(trie.find("192.168.1.1")).containsExactly("private");
+    trie.insert("192.168.1.0/24", "office");
+    Assertions.assertThat(trie.find("192.168.1.1")).containsExactly("private", "office");
+  }
+
+  /** Compare with checking every prefix for random prefixes and addresses. */
+  @Test
+  public void randomAgainstLinearScan() {
+    Random random = new Random(4711);
+    IpPrefixTable table = new IpPrefixTable();
+    List<int[]> prefixes = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      int address = random.nextInt() & 0x0fffffff;
+      int length = random.nextInt(33);
+      prefixes.add(new int[] {address, length, i % 7});
+      table.insert(toString(address) + "/" + length, "label" + (i % 7));
+    }
+    for (int i = 0; i < 10_000; i++) {
+      int address =
+          i % 2 == 0
+              ? prefixes.get(random.nextInt(prefixes.size()))[0] ^ random.nextInt(256)
+              : random.nextInt();
+      List<String> expected = new ArrayList<>();
+      for (int[] prefix : prefixes) {
+        int mask = prefix[1] == 0 ? 0 : -1 << (32 - prefix[1]);
+        String label = "label" + prefix[2];
+        if ((prefix[0] & mask) == (address & mask) && !expected.contains(label)) {
+          expected.add(label);
+        }
+      }
+      List<String> actual = table.findLabelMatching(toBytes(address));
+      if (expected.isEmpty()) {
+        Assertions.assertThat(actual).isNull();
+      } else {
+        Assertions.assertThat(actual).containsExactlyInAnyOrderElementsOf(expected);
+      }
+    }
+  }
+
+  static String toString(int address) {
+    return (address >>> 24)
+        + "."
+        + (address >>> 16 & 0xff)
+        + "."
+        + (address >>> 8 & 0xff)
+        + "."
+        + (address & 0xff);
+  }
+
+  static byte[] toBytes(int address) {
+    return new byte[] {
+      (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address
+    };
+  }
+
+  static class IpPrefixTableWrapper implements AnyVersionIpLookup {
+    IpPrefixTable trie = new IpPrefixTable();
+
+    @Override
+    public void insert(String cidrStr, String label) {
+      trie.insert(cidrStr, label);
+    }
+
+    public List<String> find(String address) throws UnknownHostException {
+      return findLabelMatching(InetAddress.getByName(address).getAddress());
+    }
+
+    @Override
+    public List<String> findLabelMatching(byte[] addr) {
+      return trie.findLabelMatching(addr);
+    }
+
+    @Override
+    public int getNodeCount() {
+      return trie.getNodeCount();
+    }
+  }
+}
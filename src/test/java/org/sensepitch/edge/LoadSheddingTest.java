@@ -0,0 +1,137 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Jens Wilke
+ */
+public class LoadSheddingTest {
+
+  EventLoopGroup group = new MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory());
+  ProxyMetrics metrics = new ProxyMetrics();
+
+  @AfterEach
+  void tearDown() throws Exception {
+    group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+  }
+
+  @Test
+  public void blockedEventLoopDetected() throws Exception {
+    EventLoopLagMonitor monitor =
+        new EventLoopLagMonitor(
+            LoadSheddingConfig.builder()
+                .probeIntervalMillis(10)
+                .lagThresholdMillis(100)
+                .admittedLagThresholdMillis(400)
+                .build(),
+            group,
+            metrics);
+    EventLoop loop = group.next();
+    Thread.sleep(50);
+    assertThat(loop.submit(() -> monitor.level(loop)).get()).isEqualTo(EventLoopLagMonitor.NORMAL);
+    int level =
+        loop.submit(
+                () -> {
+                  Thread.sleep(200);
+                  return monitor.level(loop);
+                })
+            .get();
+    assertThat(level).isEqualTo(EventLoopLagMonitor.SHED_UNADMITTED);
+    level =
+        loop.submit(
+                () -> {
+                  Thread.sleep(500);
+                  return monitor.level(loop);
+                })
+            .get();
+    assertThat(level).isEqualTo(EventLoopLagMonitor.SHED_ALL);
+    Thread.sleep(100);
+    assertThat(loop.submit(() -> monitor.level(loop)).get()).isEqualTo(EventLoopLagMonitor.NORMAL);
+    assertThat(metrics.eventLoopLagHistogram.collect().getDataPoints().get(0).getCount())
+        .isGreaterThan(3);
+    monitor.close();
+  }
+
+  @Test
+  public void noLagAfterClose() throws Exception {
+    EventLoopLagMonitor monitor =
+        new EventLoopLagMonitor(
+            LoadSheddingConfig.builder().probeIntervalMillis(10).lagThresholdMillis(50).build(),
+            group,
+            metrics);
+    EventLoop loop = group.next();
+    monitor.close();
+    int level =
+        loop.submit(
+                () -> {
+                  Thread.sleep(100);
+                  return monitor.level(loop);
+                })
+            .get();
+    assertThat(level).isEqualTo(EventLoopLagMonitor.NORMAL);
+  }
+
+  @Test
+  public void admittedShedLast() {
+    int[] level = {EventLoopLagMonitor.SHED_UNADMITTED};
+    EventLoopLagMonitor monitor =
+        new EventLoopLagMonitor(LoadSheddingConfig.builder().build(), group, metrics) {
+          @Override
+          public int level(EventLoop eventLoop) {
+            return level[0];
+          }
+        };
+    EmbeddedChannel channel = new EmbeddedChannel(new LoadSheddingHandler(monitor, metrics));
+    HttpRequest admitted = newRequest(Deflector.TOKEN_COOKIE_NAME + "=abc");
+    channel.writeInbound(admitted);
+    assertThat((Object) channel.readInbound()).isSameAs(admitted);
+    channel.writeInbound(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/"));
+    channel.writeInbound(new DefaultLastHttpContent());
+    assertThat((Object) channel.readInbound()).isNull();
+    assertShed(channel);
+    level[0] = EventLoopLagMonitor.SHED_ALL;
+    channel.writeInbound(newRequest(Deflector.TOKEN_COOKIE_NAME + "=abc"));
+    assertThat((Object) channel.readInbound()).isNull();
+    assertShed(channel);
+    assertThat(metrics.loadShedCounter.labelValues("unadmitted").get()).isEqualTo(1.0);
+    assertThat(metrics.loadShedCounter.labelValues("admitted").get()).isEqualTo(1.0);
+    level[0] = EventLoopLagMonitor.NORMAL;
+    HttpRequest request = newRequest(null);
+    channel.writeInbound(request);
+    assertThat((Object) channel.readInbound()).isSameAs(request);
+    channel.finishAndReleaseAll();
+  }
+
+  private static void assertShed(EmbeddedChannel channel) {
+    FullHttpResponse response = channel.readOutbound();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.SERVICE_UNAVAILABLE);
+    assertThat(response.headers().get(HttpHeaderNames.RETRY_AFTER)).isEqualTo("1");
+    response.release();
+  }
+
+  private static HttpRequest newRequest(String cookie) {
+    HttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+    if (cookie != null) {
+      request.headers().set(HttpHeaderNames.COOKIE, cookie);
+    }
+    return request;
+  }
+}
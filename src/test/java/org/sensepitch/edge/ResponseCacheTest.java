@@ -0,0 +1,473 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * @author Jens Wilke
+ */
+public class ResponseCacheTest {
+
+  ProxyMetrics metrics = new ProxyMetrics();
+  ResponseCache cache = new ResponseCache(CacheConfig.DEFAULT, metrics);
+  int upstreamRequests;
+  boolean deferResponse;
+  boolean chunked;
+  List<Runnable> deferred = new ArrayList<>();
+  Consumer<HttpHeaders> responseHeaders = h -> h.set(HttpHeaderNames.CACHE_CONTROL, "max-age=60");
+
+  @AfterEach
+  void tearDown() {
+    cache.clear();
+  }
+
+  @Test
+  public void secondRequestIsHit() {
+    assertThat(request("/a")).isEqualTo("content of /a");
+    assertThat(request("/a")).isEqualTo("content of /a");
+    assertThat(upstreamRequests).isEqualTo(1);
+    assertThat(metrics.cacheRequestCounter.labelValues("hit").get()).isEqualTo(1.0);
+    assertThat(metrics.cacheRequestCounter.labelValues("miss").get()).isEqualTo(1.0);
+    assertThat(request("/b")).isEqualTo("content of /b");
+    assertThat(upstreamRequests).isEqualTo(2);
+  }
+
+  @Test
+  public void noStoreIsNotCached() {
+    responseHeaders = h -> h.set(HttpHeaderNames.CACHE_CONTROL, "public, no-store");
+    request("/a");
+    request("/a");
+    assertThat(upstreamRequests).isEqualTo(2);
+    assertThat(cache.size()).isZero();
+  }
+
+  @Test
+  public void noFreshnessIsNotCached() {
+    responseHeaders = h -> {};
+    request("/a");
+    request("/a");
+    assertThat(upstreamRequests).isEqualTo(2);
+  }
+
+  @Test
+  public void postBypassesCache() {
+    EmbeddedChannel channel = newChannel();
+    channel.writeInbound(newRequest(HttpMethod.POST, "/a"), new DefaultLastHttpContent());
+    channel.finishAndReleaseAll();
+    assertThat(upstreamRequests).isEqualTo(1);
+    assertThat(metrics.cacheRequestCounter.labelValues("bypass").get()).isEqualTo(1.0);
+  }
+
+  @Test
+  public void varyHeaderSelectsVariant() {
+    responseHeaders =
+        h -> {
+          h.set(HttpHeaderNames.CACHE_CONTROL, "s-maxage=60, max-age=0");
+          h.set(HttpHeaderNames.VARY, "Accept-Encoding");
+        };
+    request("/a", "gzip");
+    request("/a", "br");
+    request("/a", "gzip");
+    request("/a", "br");
+    assertThat(upstreamRequests).isEqualTo(2);
+    assertThat(cache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void headServedFromGet() {
+    request("/a");
+    EmbeddedChannel channel = newChannel();
+    channel.writeInbound(newRequest(HttpMethod.HEAD, "/a"));
+    HttpResponse response = channel.readOutbound();
+    assertThat(response.headers().getInt(HttpHeaderNames.CONTENT_LENGTH))
+        .isEqualTo("content of /a".length());
+    assertThat(response.headers().contains(HttpHeaderNames.AGE)).isTrue();
+    LastHttpContent last = channel.readOutbound();
+    assertThat(last.content().readableBytes()).isZero();
+    channel.finishAndReleaseAll();
+    assertThat(upstreamRequests).isEqualTo(1);
+  }
+
+  @Test
+  public void matchingEtagIsNotModified() {
+    responseHeaders =
+        h -> {
+          h.set(HttpHeaderNames.CACHE_CONTROL, "max-age=60");
+          h.set(HttpHeaderNames.ETAG, "\"v1\"");
+        };
+    request("/a");
+    EmbeddedChannel channel = newChannel();
+    HttpRequest request = newRequest(HttpMethod.GET, "/a");
+    request.headers().set(HttpHeaderNames.IF_NONE_MATCH, "\"v0\", \"v1\"");
+    channel.writeInbound(request);
+    HttpResponse response = channel.readOutbound();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.NOT_MODIFIED);
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void tooLargeIsNotCached() {
+    cache = new ResponseCache(CacheConfig.builder().maxObjectBytes(5).build(), metrics);
+    request("/a");
+    request("/a");
+    assertThat(upstreamRequests).isEqualTo(2);
+  }
+
+  @Test
+  public void freshnessFromHeaders() {
+    long now = 1_000_000_000L;
+    assertThat(expiresAt(now, "max-age=10", null)).isEqualTo(now + 10_000);
+    assertThat(expiresAt(now, "max-age=10, s-maxage=20", null)).isEqualTo(now + 20_000);
+    assertThat(expiresAt(now, "max-age=10", "4")).isEqualTo(now + 6_000);
+    assertThat(expiresAt(now, "max-age=10", "10")).isEqualTo(-1);
+    assertThat(expiresAt(now, "private, max-age=10", null)).isEqualTo(-1);
+    assertThat(expiresAt(now, "no-cache", null)).isEqualTo(-1);
+    assertThat(expiresAt(now, "max-age=abc", null)).isEqualTo(-1);
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.headers().set(HttpHeaderNames.DATE, "Sun, 06 Nov 1994 08:49:37 GMT");
+    response.headers().set(HttpHeaderNames.EXPIRES, "Sun, 06 Nov 1994 08:50:37 GMT");
+    assertThat(ResponseCache.expiresAtMillis(response, now)).isEqualTo(now + 60_000);
+    response.headers().set(HttpHeaderNames.SET_COOKIE, "a=b");
+    assertThat(ResponseCache.expiresAtMillis(response, now)).isEqualTo(-1);
+  }
+
+  /** A scan of URIs requested once does not replace a popular entry. */
+  @Test
+  public void admissionKeepsPopularEntry() {
+    cache = new ResponseCache(CacheConfig.builder().maxBytes(3000).build(), metrics);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 5; i++) {
+      cache.lookup(newRequest(HttpMethod.GET, "/popular"), now);
+    }
+    put("/popular", now);
+    for (int i = 0; i < 20; i++) {
+      HttpRequest scan = newRequest(HttpMethod.GET, "/scan" + i);
+      assertThat(cache.lookup(scan, now)).isNull();
+      put("/scan" + i, now);
+    }
+    ResponseCache.Entry entry = cache.lookup(newRequest(HttpMethod.GET, "/popular"), now);
+    assertThat(entry).isNotNull();
+    entry.body().release();
+    assertThat(cache.weightedBytes()).isLessThanOrEqualTo(3000);
+    assertThat(metrics.cacheStoreCounter.labelValues("rejected").get()).isPositive();
+  }
+
+  @Test
+  public void stripedByConcurrency() {
+    assertThat(new ResponseCache(CacheConfig.DEFAULT, metrics, 6).stripeCount()).isEqualTo(8);
+    assertThat(new ResponseCache(CacheConfig.DEFAULT, metrics, 1).stripeCount()).isEqualTo(1);
+    assertThat(
+            new ResponseCache(CacheConfig.builder().maxBytes(3000).build(), metrics, 8)
+                .stripeCount())
+        .isEqualTo(1);
+    cache = new ResponseCache(CacheConfig.DEFAULT, metrics, 8);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 1000; i++) {
+      put("/" + i, now);
+    }
+    assertThat(cache.size()).isEqualTo(1000);
+    for (int i = 0; i < 1000; i++) {
+      ResponseCache.Entry entry = cache.lookup(newRequest(HttpMethod.GET, "/" + i), now);
+      assertThat(entry).isNotNull();
+      entry.body().release();
+    }
+    for (int i = 0; i < 1000; i += 2) {
+      assertThat(cache.lookup(newRequest(HttpMethod.GET, "/" + i), now + 1000)).isNull();
+    }
+    assertThat(cache.size()).isEqualTo(500);
+    cache.clear();
+    assertThat(cache.size()).isZero();
+    assertThat(cache.weightedBytes()).isZero();
+  }
+
+  @Test
+  public void changedVaryReplacesVariants() {
+    long now = System.currentTimeMillis();
+    HttpHeaders varyEncoding =
+        new DefaultHttpHeaders().set(HttpHeaderNames.VARY, "Accept-Encoding");
+    HttpRequest gzip = newRequest(HttpMethod.GET, "/a");
+    gzip.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip");
+    HttpRequest br = newRequest(HttpMethod.GET, "/a");
+    br.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "br");
+    cache.put(gzip, HttpResponseStatus.OK, varyEncoding, Unpooled.buffer(), now, now + 1000);
+    cache.put(br, HttpResponseStatus.OK, varyEncoding, Unpooled.buffer(), now, now + 1000);
+    cache.put(gzip, HttpResponseStatus.OK, varyEncoding, Unpooled.buffer(), now, now + 1000);
+    assertThat(cache.size()).isEqualTo(2);
+    cache.put(
+        gzip, HttpResponseStatus.OK, new DefaultHttpHeaders(), Unpooled.buffer(), now, now + 1000);
+    assertThat(cache.size()).isEqualTo(1);
+    ResponseCache.Entry entry = cache.lookup(br, now);
+    assertThat(entry.headers().contains(HttpHeaderNames.VARY)).isFalse();
+    entry.body().release();
+  }
+
+  @Test
+  public void expiredEntryRemoved() {
+    long now = System.currentTimeMillis();
+    put("/a", now);
+    assertThat(cache.lookup(newRequest(HttpMethod.GET, "/a"), now + 1000)).isNull();
+    assertThat(cache.size()).isZero();
+    assertThat(metrics.cacheEvictionCounter.labelValues("expired").get()).isEqualTo(1.0);
+  }
+
+  @Test
+  public void concurrentMissCollapsed() {
+    cache = new ResponseCache(CacheConfig.builder().collapse(true).build(), metrics);
+    deferResponse = true;
+    EmbeddedChannel leader = newChannel();
+    leader.writeInbound(newRequest(HttpMethod.GET, "/a"), new DefaultLastHttpContent());
+    EmbeddedChannel waiter = newChannel();
+    waiter.writeInbound(newRequest(HttpMethod.GET, "/a"), new DefaultLastHttpContent());
+    assertThat(upstreamRequests).isEqualTo(1);
+    assertThat((Object) waiter.readOutbound()).isNull();
+    deferred.forEach(Runnable::run);
+    waiter.runPendingTasks();
+    assertThat(readResponse(leader)).isEqualTo("content of /a");
+    assertThat(readResponse(waiter)).isEqualTo("content of /a");
+    assertThat(metrics.cacheCollapseCounter.labelValues("joined").get()).isEqualTo(1.0);
+    assertThat(cache.findInFlight("example.com/a")).isNull();
+    assertThat(cache.size()).isEqualTo(1);
+    leader.finishAndReleaseAll();
+    waiter.finishAndReleaseAll();
+  }
+
+  @Test
+  public void collapseNotSharedForwarded() {
+    cache = new ResponseCache(CacheConfig.builder().collapse(true).build(), metrics);
+    responseHeaders = h -> h.set(HttpHeaderNames.CACHE_CONTROL, "private");
+    deferResponse = true;
+    EmbeddedChannel leader = newChannel();
+    leader.writeInbound(newRequest(HttpMethod.GET, "/a"), new DefaultLastHttpContent());
+    EmbeddedChannel waiter = newChannel();
+    waiter.writeInbound(newRequest(HttpMethod.GET, "/a"), new DefaultLastHttpContent());
+    deferred.get(0).run();
+    waiter.runPendingTasks();
+    assertThat(upstreamRequests).isEqualTo(2);
+    deferred.get(1).run();
+    assertThat(readResponse(waiter)).isEqualTo("content of /a");
+    assertThat(metrics.cacheCollapseCounter.labelValues("not_shared").get()).isEqualTo(1.0);
+    leader.finishAndReleaseAll();
+    waiter.finishAndReleaseAll();
+  }
+
+  @Test
+  public void collapseTimeoutForwarded() {
+    cache =
+        new ResponseCache(
+            CacheConfig.builder().collapse(true).collapseTimeoutMillis(100).build(), metrics);
+    deferResponse = true;
+    EmbeddedChannel leader = newChannel();
+    leader.writeInbound(newRequest(HttpMethod.GET, "/a"), new DefaultLastHttpContent());
+    EmbeddedChannel waiter = newChannel();
+    waiter.freezeTime();
+    waiter.writeInbound(newRequest(HttpMethod.GET, "/a"), new DefaultLastHttpContent());
+    waiter.advanceTimeBy(101, TimeUnit.MILLISECONDS);
+    waiter.runScheduledPendingTasks();
+    assertThat(upstreamRequests).isEqualTo(2);
+    assertThat(metrics.cacheCollapseCounter.labelValues("timeout").get()).isEqualTo(1.0);
+    deferred.forEach(Runnable::run);
+    waiter.runPendingTasks();
+    assertThat(readResponse(waiter)).isEqualTo("content of /a");
+    assertThat(readResponse(leader)).isEqualTo("content of /a");
+    leader.finishAndReleaseAll();
+    waiter.finishAndReleaseAll();
+  }
+
+  @Test
+  public void collapsedResponseTooLargeStillComplete() {
+    cache =
+        new ResponseCache(CacheConfig.builder().collapse(true).maxObjectBytes(8).build(), metrics);
+    chunked = true;
+    deferResponse = true;
+    EmbeddedChannel leader = newChannel();
+    leader.writeInbound(newRequest(HttpMethod.GET, "/a"), new DefaultLastHttpContent());
+    EmbeddedChannel waiter = newChannel();
+    waiter.writeInbound(newRequest(HttpMethod.GET, "/a"), new DefaultLastHttpContent());
+    deferred.forEach(Runnable::run);
+    waiter.runPendingTasks();
+    assertThat(upstreamRequests).isEqualTo(1);
+    assertThat(readResponse(leader)).isEqualTo("content of /a");
+    assertThat(readResponse(waiter)).isEqualTo("content of /a");
+    assertThat(waiter.isActive()).isTrue();
+    assertThat(metrics.cacheCollapseCounter.labelValues("aborted").get()).isZero();
+    assertThat(cache.findInFlight("example.com/a")).isNull();
+    assertThat(cache.size()).isZero();
+    assertThat(leader.finish()).isFalse();
+    assertThat(waiter.finish()).isFalse();
+  }
+
+  @Test
+  public void pipelinedResponseStoredUnderItsRequest() {
+    deferResponse = true;
+    EmbeddedChannel channel = newChannel();
+    channel.writeInbound(newRequest(HttpMethod.GET, "/a"), new DefaultLastHttpContent());
+    channel.writeInbound(newRequest(HttpMethod.GET, "/b"), new DefaultLastHttpContent());
+    assertThat(upstreamRequests).isEqualTo(2);
+    deferred.forEach(Runnable::run);
+    assertThat(readResponse(channel)).isEqualTo("content of /a");
+    assertThat(readResponse(channel)).isEqualTo("content of /b");
+    assertThat(channel.finish()).isFalse();
+    long now = System.currentTimeMillis();
+    assertThat(cache.lookup(newRequest(HttpMethod.GET, "/b"), now)).isNull();
+    ResponseCache.Entry entry = cache.lookup(newRequest(HttpMethod.GET, "/a"), now);
+    assertThat(entry.body().toString(StandardCharsets.UTF_8)).isEqualTo("content of /a");
+    entry.body().release();
+    assertThat(metrics.cacheRequestCounter.labelValues("bypass").get()).isEqualTo(1.0);
+  }
+
+  @Test
+  public void pipelinedHitNotSentBeforeOutstandingResponse() {
+    assertThat(request("/b")).isEqualTo("content of /b");
+    deferResponse = true;
+    EmbeddedChannel channel = newChannel();
+    channel.writeInbound(newRequest(HttpMethod.GET, "/a"), new DefaultLastHttpContent());
+    channel.writeInbound(newRequest(HttpMethod.GET, "/b"), new DefaultLastHttpContent());
+    assertThat((Object) channel.readOutbound()).isNull();
+    assertThat(upstreamRequests).isEqualTo(3);
+    deferred.forEach(Runnable::run);
+    assertThat(readResponse(channel)).isEqualTo("content of /a");
+    assertThat(readResponse(channel)).isEqualTo("content of /b");
+    assertThat(channel.finish()).isFalse();
+    assertThat(request("/a")).isEqualTo("content of /a");
+    assertThat(upstreamRequests).isEqualTo(3);
+  }
+
+  @Test
+  public void largeResponseServedFromDisk(@TempDir Path dir) {
+    cache =
+        new ResponseCache(
+            CacheConfig.builder()
+                .disk(DiskCacheConfig.builder().directory(dir.toString()).minObjectBytes(5).build())
+                .build(),
+            metrics);
+    assertThat(request("/a")).isEqualTo("content of /a");
+    assertThat(request("/a")).isEqualTo("content of /a");
+    assertThat(upstreamRequests).isEqualTo(1);
+    assertThat(cache.size()).isZero();
+    assertThat(cache.diskCache().size()).isEqualTo(1);
+    assertThat(metrics.cacheRequestCounter.labelValues("disk_hit").get()).isEqualTo(1.0);
+    cache.close();
+  }
+
+  private void put(String uri, long now) {
+    ByteBuf body = Unpooled.directBuffer(1000).writeZero(1000);
+    cache.put(
+        newRequest(HttpMethod.GET, uri),
+        HttpResponseStatus.OK,
+        new DefaultHttpHeaders(),
+        body,
+        now,
+        now + 1000);
+  }
+
+  private static long expiresAt(long now, String cacheControl, String age) {
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.headers().set(HttpHeaderNames.CACHE_CONTROL, cacheControl);
+    if (age != null) {
+      response.headers().set(HttpHeaderNames.AGE, age);
+    }
+    return ResponseCache.expiresAtMillis(response, now);
+  }
+
+  private String request(String uri) {
+    return request(uri, null);
+  }
+
+  private String request(String uri, String acceptEncoding) {
+    EmbeddedChannel channel = newChannel();
+    HttpRequest request = newRequest(HttpMethod.GET, uri);
+    if (acceptEncoding != null) {
+      request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, acceptEncoding);
+    }
+    channel.writeInbound(request, new DefaultLastHttpContent());
+    String content = readResponse(channel);
+    assertThat(channel.finish()).isFalse();
+    return content;
+  }
+
+  private static HttpRequest newRequest(HttpMethod method, String uri) {
+    HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, uri);
+    request.headers().set(HttpHeaderNames.HOST, "example.com");
+    return request;
+  }
+
+  /** Cache handler and an upstream that responds in two chunks */
+  private EmbeddedChannel newChannel() {
+    return new EmbeddedChannel(
+        new ResponseCacheHandler(cache, metrics),
+        new ChannelInboundHandlerAdapter() {
+          @Override
+          public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof HttpRequest request) {
+              upstreamRequests++;
+              if (deferResponse) {
+                deferred.add(() -> respond(ctx, request.uri()));
+              } else {
+                respond(ctx, request.uri());
+              }
+            }
+            ReferenceCountUtil.release(msg);
+          }
+        });
+  }
+
+  private void respond(ChannelHandlerContext ctx, String uri) {
+    byte[] content = ("content of " + uri).getBytes(StandardCharsets.UTF_8);
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    responseHeaders.accept(response.headers());
+    if (chunked) {
+      HttpUtil.setTransferEncodingChunked(response, true);
+    } else {
+      response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
+    }
+    ctx.write(response);
+    ctx.write(new DefaultHttpContent(Unpooled.wrappedBuffer(content, 0, 5)));
+    ctx.writeAndFlush(
+        new DefaultLastHttpContent(Unpooled.wrappedBuffer(content, 5, content.length - 5)));
+  }
+
+  private static String readResponse(EmbeddedChannel channel) {
+    HttpResponse response = channel.readOutbound();
+    assertThat(response).isNotNull();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.OK);
+    StringBuilder sb = new StringBuilder();
+    Object msg;
+    do {
+      msg = channel.readOutbound();
+      assertThat(msg).isInstanceOf(HttpContent.class);
+      sb.append(((HttpContent) msg).content().toString(StandardCharsets.UTF_8));
+      ReferenceCountUtil.release(msg);
+    } while (!(msg instanceof LastHttpContent));
+    return sb.toString();
+  }
+}
@@ -0,0 +1,239 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Jens Wilke
+ */
+public class ResponseCompressionTest {
+
+  static final String BODY = "compress me, ".repeat(200);
+
+  ProxyMetrics metrics = new ProxyMetrics();
+  ResponseCache cache = new ResponseCache(CacheConfig.DEFAULT, metrics);
+  int upstreamRequests;
+  String upstreamAcceptEncoding;
+  Consumer<HttpHeaders> responseHeaders =
+      h -> h.set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=utf-8");
+
+  @AfterEach
+  void tearDown() {
+    cache.clear();
+  }
+
+  @Test
+  public void negotiate() {
+    List<String> offered = List.of("br", "gzip", "deflate");
+    assertThat(ResponseCompressionHandler.negotiate(null, offered)).isNull();
+    assertThat(ResponseCompressionHandler.negotiate("gzip, deflate, br", offered)).isEqualTo("br");
+    assertThat(ResponseCompressionHandler.negotiate("deflate, gzip", offered)).isEqualTo("gzip");
+    assertThat(ResponseCompressionHandler.negotiate("br;q=0.5, gzip", offered)).isEqualTo("gzip");
+    assertThat(ResponseCompressionHandler.negotiate("gzip;q=0, *", offered)).isEqualTo("br");
+    assertThat(ResponseCompressionHandler.negotiate("*;q=0", offered)).isNull();
+    assertThat(ResponseCompressionHandler.negotiate("x-gzip", offered)).isEqualTo("gzip");
+    assertThat(ResponseCompressionHandler.negotiate("compress", offered)).isNull();
+  }
+
+  @Test
+  public void gzipChunkedResponse() throws IOException {
+    EmbeddedChannel channel = newChannel(false);
+    channel.writeInbound(newRequest(HttpMethod.GET, "gzip"), new DefaultLastHttpContent());
+    HttpResponse response = channel.readOutbound();
+    assertThat(response.headers().get(HttpHeaderNames.CONTENT_ENCODING)).isEqualTo("gzip");
+    assertThat(response.headers().get(HttpHeaderNames.VARY)).isEqualTo("accept-encoding");
+    assertThat(response.headers().contains(HttpHeaderNames.CONTENT_LENGTH)).isFalse();
+    byte[] compressed = readContent(channel);
+    assertThat(compressed.length).isLessThan(BODY.length());
+    assertThat(gunzip(compressed)).isEqualTo(BODY);
+    assertThat(channel.finish()).isFalse();
+    assertThat(metrics.compressionCounter.labelValues("gzip").get()).isEqualTo(1.0);
+  }
+
+  @Test
+  public void identityGetsVary() {
+    EmbeddedChannel channel = newChannel(false);
+    channel.writeInbound(newRequest(HttpMethod.GET, null), new DefaultLastHttpContent());
+    HttpResponse response = channel.readOutbound();
+    assertThat(response.headers().contains(HttpHeaderNames.CONTENT_ENCODING)).isFalse();
+    assertThat(response.headers().get(HttpHeaderNames.VARY)).isEqualTo("accept-encoding");
+    assertThat(new String(readContent(channel), StandardCharsets.UTF_8)).isEqualTo(BODY);
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void notCompressedIfTypeDoesNotMatchOrEncoded() {
+    responseHeaders = h -> h.set(HttpHeaderNames.CONTENT_TYPE, "image/png");
+    assertNotCompressed();
+    responseHeaders =
+        h -> {
+          h.set(HttpHeaderNames.CONTENT_TYPE, "text/html");
+          h.set(HttpHeaderNames.CONTENT_ENCODING, "br");
+        };
+    assertNotCompressed();
+    responseHeaders =
+        h -> {
+          h.set(HttpHeaderNames.CONTENT_TYPE, "text/html");
+          h.set(HttpHeaderNames.CACHE_CONTROL, "no-transform");
+        };
+    assertNotCompressed();
+  }
+
+  @Test
+  public void smallResponseNotCompressed() {
+    EmbeddedChannel channel =
+        newChannel(
+            false,
+            new ResponseCompressionHandler(
+                CompressionConfig.builder().minBytes(BODY.length() + 1).build(), metrics));
+    channel.writeInbound(newRequest(HttpMethod.GET, "gzip"), new DefaultLastHttpContent());
+    HttpResponse response = channel.readOutbound();
+    assertThat(response.headers().contains(HttpHeaderNames.CONTENT_ENCODING)).isFalse();
+    channel.finishAndReleaseAll();
+  }
+
+  /** The cache stores the compressed variant and the upstream sees the normalized header */
+  @Test
+  public void cachedCompressedOnce() throws IOException {
+    responseHeaders =
+        h -> {
+          h.set(HttpHeaderNames.CONTENT_TYPE, "text/html");
+          h.set(HttpHeaderNames.CACHE_CONTROL, "max-age=60");
+        };
+    for (String acceptEncoding : List.of("gzip, deflate", "deflate, gzip", "gzip")) {
+      EmbeddedChannel channel = newChannel(true);
+      channel.writeInbound(
+          newRequest(HttpMethod.GET, acceptEncoding), new DefaultLastHttpContent());
+      HttpResponse response = channel.readOutbound();
+      assertThat(response.headers().get(HttpHeaderNames.CONTENT_ENCODING)).isEqualTo("gzip");
+      assertThat(gunzip(readContent(channel))).isEqualTo(BODY);
+      channel.finishAndReleaseAll();
+    }
+    assertThat(upstreamRequests).isEqualTo(1);
+    assertThat(upstreamAcceptEncoding).isEqualTo("gzip");
+    assertThat(metrics.compressionCounter.labelValues("gzip").get()).isEqualTo(1.0);
+    EmbeddedChannel channel = newChannel(true);
+    channel.writeInbound(newRequest(HttpMethod.GET, null), new DefaultLastHttpContent());
+    HttpResponse response = channel.readOutbound();
+    assertThat(response.headers().contains(HttpHeaderNames.CONTENT_ENCODING)).isFalse();
+    assertThat(new String(readContent(channel), StandardCharsets.UTF_8)).isEqualTo(BODY);
+    channel.finishAndReleaseAll();
+    assertThat(upstreamRequests).isEqualTo(2);
+    assertThat(upstreamAcceptEncoding).isEqualTo("identity");
+  }
+
+  @Test
+  public void challengeResourcePrecompressed() throws IOException {
+    ResourceFiles.FileInfo file = new ResourceFiles("challenge/files/").getFile("script.js");
+    assertThat(file.gzipBuf()).isNotNull();
+    byte[] compressed = new byte[file.gzipBuf().readableBytes()];
+    file.gzipBuf().getBytes(file.gzipBuf().readerIndex(), compressed);
+    assertThat(gunzip(compressed)).isEqualTo(file.buf().toString(StandardCharsets.UTF_8));
+    ResourceFiles.FileInfo png = new ResourceFiles("challenge/files/").getFile("starting.png");
+    assertThat(png.gzipBuf()).isNull();
+  }
+
+  private void assertNotCompressed() {
+    EmbeddedChannel channel = newChannel(false);
+    channel.writeInbound(newRequest(HttpMethod.GET, "gzip"), new DefaultLastHttpContent());
+    HttpResponse response = channel.readOutbound();
+    assertThat(response.headers().contains(HttpHeaderNames.VARY)).isFalse();
+    assertThat(new String(readContent(channel), StandardCharsets.UTF_8)).isEqualTo(BODY);
+    channel.finishAndReleaseAll();
+  }
+
+  private static HttpRequest newRequest(HttpMethod method, String acceptEncoding) {
+    HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, "/a");
+    request.headers().set(HttpHeaderNames.HOST, "example.com");
+    if (acceptEncoding != null) {
+      request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, acceptEncoding);
+    }
+    return request;
+  }
+
+  private EmbeddedChannel newChannel(boolean withCache) {
+    return newChannel(
+        withCache, new ResponseCompressionHandler(CompressionConfig.DEFAULT, metrics));
+  }
+
+  /** Optional cache, compression and an upstream that responds in two chunks */
+  private EmbeddedChannel newChannel(boolean withCache, ResponseCompressionHandler compression) {
+    EmbeddedChannel channel = new EmbeddedChannel();
+    if (withCache) {
+      channel.pipeline().addLast(new ResponseCacheHandler(cache, metrics, true));
+    }
+    channel.pipeline().addLast(compression);
+    channel
+        .pipeline()
+        .addLast(
+            new ChannelInboundHandlerAdapter() {
+              @Override
+              public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                if (msg instanceof HttpRequest request) {
+                  upstreamRequests++;
+                  upstreamAcceptEncoding = request.headers().get(HttpHeaderNames.ACCEPT_ENCODING);
+                  respond(ctx);
+                }
+                ReferenceCountUtil.release(msg);
+              }
+            });
+    return channel;
+  }
+
+  private void respond(ChannelHandlerContext ctx) {
+    byte[] content = BODY.getBytes(StandardCharsets.UTF_8);
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    responseHeaders.accept(response.headers());
+    response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
+    ctx.write(response);
+    ctx.write(new DefaultHttpContent(Unpooled.wrappedBuffer(content, 0, 100)));
+    ctx.writeAndFlush(
+        new DefaultLastHttpContent(Unpooled.wrappedBuffer(content, 100, content.length - 100)));
+  }
+
+  private static byte[] readContent(EmbeddedChannel channel) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Object msg;
+    while ((msg = channel.readOutbound()) != null) {
+      ByteBuf buf = ((HttpContent) msg).content();
+      byte[] ba = new byte[buf.readableBytes()];
+      buf.readBytes(ba);
+      out.writeBytes(ba);
+      ReferenceCountUtil.release(msg);
+    }
+    return out.toByteArray();
+  }
+
+  private static String gunzip(byte[] compressed) throws IOException {
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+}
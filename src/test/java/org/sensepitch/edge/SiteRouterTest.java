@@ -0,0 +1,68 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Jens Wilke
+ */
+public class SiteRouterTest {
+
+  @Test
+  public void hostMatcher() {
+    HostMatcher matcher =
+        new HostMatcher(
+            List.of("example.com", "*.example.com", "www.example.com", "*.a.example.com"));
+    assertThat(matcher.match("example.com")).isEqualTo(0);
+    assertThat(matcher.match("www.example.com")).isEqualTo(2);
+    assertThat(matcher.match("WWW.Example.COM")).isEqualTo(2);
+    assertThat(matcher.match("shop.example.com")).isEqualTo(1);
+    assertThat(matcher.match("x.y.example.com")).isEqualTo(1);
+    assertThat(matcher.match("a.example.com")).isEqualTo(1);
+    assertThat(matcher.match("x.a.example.com")).isEqualTo(3);
+    assertThat(matcher.match("example.org")).isEqualTo(HostMatcher.NO_MATCH);
+    assertThat(matcher.match("badexample.com")).isEqualTo(HostMatcher.NO_MATCH);
+    assertThat(matcher.match("com")).isEqualTo(HostMatcher.NO_MATCH);
+    assertThat(matcher.match("")).isEqualTo(HostMatcher.NO_MATCH);
+    assertThat(new HostMatcher(List.of("*")).match("any.host")).isEqualTo(0);
+    assertThatThrownBy(() -> new HostMatcher(List.of("a.com", "A.com")))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  public void longestPrefixWins() {
+    SiteRouter router =
+        new SiteRouter(
+            List.of(
+                new SiteRouter.Route("example.com", "", 0),
+                new SiteRouter.Route("example.com", "/api/", 1),
+                new SiteRouter.Route("example.com", "/api/v2/", 2),
+                new SiteRouter.Route("example.com", "/apx", 3),
+                new SiteRouter.Route("*.example.com", "/", 4),
+                new SiteRouter.Route("static.example.com", "/img/", 5)));
+    assertThat(router.route("example.com", "/")).isEqualTo(0);
+    assertThat(router.route("example.com", "/api")).isEqualTo(0);
+    assertThat(router.route("example.com", "/api/x")).isEqualTo(1);
+    assertThat(router.route("example.com", "/api/v2/x")).isEqualTo(2);
+    assertThat(router.route("example.com", "/api/v3/x")).isEqualTo(1);
+    assertThat(router.route("example.com", "/apx/1")).isEqualTo(3);
+    assertThat(router.route("www.example.com", "/index.html")).isEqualTo(4);
+    assertThat(router.route("static.example.com", "/img/a.png")).isEqualTo(5);
+    assertThat(router.route("static.example.com", "/other")).isEqualTo(SiteRouter.NO_SITE);
+    assertThat(router.route("example.org", "/")).isEqualTo(SiteRouter.NO_SITE);
+  }
+
+  @Test
+  public void duplicateRouteRejected() {
+    assertThatThrownBy(
+            () ->
+                new SiteRouter(
+                    List.of(
+                        new SiteRouter.Route("example.com", "/a", 0),
+                        new SiteRouter.Route("example.com", "/a", 1))))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
@@ -0,0 +1,192 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Lifecycle of the site handlers in the pipeline for the requests of one connection.
+ *
+ * @author Jens Wilke
+ */
+public class SiteSelectorHandlerTest {
+
+  static final PassThroughHandler PASS_THROUGH = new PassThroughHandler();
+
+  List<Promise<Channel>> connects = new ArrayList<>();
+  EmbeddedChannel ingress;
+
+  Upstream upstream =
+      new Upstream() {
+        @Override
+        public Future<Channel> connect(ChannelHandlerContext downstreamContext) {
+          Promise<Channel> promise = downstreamContext.executor().newPromise();
+          connects.add(promise);
+          return promise;
+        }
+
+        @Override
+        public void release(Channel ch) {}
+      };
+
+  /** Intercepts requests below {@code /blocked} with status 403 */
+  ProtectionPlugin plugin =
+      (request, ctx) -> {
+        if (!request.uri().startsWith("/blocked")) {
+          return false;
+        }
+        FullHttpResponse response =
+            new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.FORBIDDEN);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+        ctx.writeAndFlush(response);
+        return true;
+      };
+
+  @BeforeEach
+  void setUp() {
+    ProxyMetrics metrics = new ProxyMetrics();
+    List<SiteSelector.Suppliers> sites = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      ChannelHandler protection = new ProtectionHandler(plugin);
+      sites.add(
+          new SiteSelector.Suppliers(
+              () -> protection,
+              () -> PASS_THROUGH,
+              () -> PASS_THROUGH,
+              () -> PASS_THROUGH,
+              () -> new DownstreamHandler(upstream, metrics)));
+    }
+    SiteSelector selector =
+        new SiteSelector(
+            List.of(new SiteRouter.Route("a.test", "", 0), new SiteRouter.Route("b.test", "", 1)),
+            sites);
+    ingress = new EmbeddedChannel();
+    ingress.pipeline().addLast("siteSelector", new SiteSelectorHandler(selector));
+    Dummy404Handler dummy = new Dummy404Handler();
+    for (String slot :
+        new String[] {"protection", "waitingRoom", "cache", "compression", "proxy"}) {
+      ingress.pipeline().addLast(slot, dummy);
+    }
+  }
+
+  @Test
+  public void sameSiteReusesHandlers() {
+    ingress.writeInbound(request("a.test", "/"));
+    ChannelHandler protection = ingress.pipeline().get("protection");
+    ChannelHandler proxy = ingress.pipeline().get("proxy");
+    assertThat(proxy).isInstanceOf(DownstreamHandler.class);
+    respond();
+    ingress.writeInbound(request("a.test", "/other"));
+    assertThat(ingress.pipeline().get("protection")).isSameAs(protection);
+    assertThat(ingress.pipeline().get("proxy")).isSameAs(proxy);
+    assertThat(connects).hasSize(2);
+    respond();
+  }
+
+  @Test
+  public void otherSiteReplacesHandlers() {
+    ingress.writeInbound(request("a.test", "/"));
+    ChannelHandler protection = ingress.pipeline().get("protection");
+    ChannelHandler proxy = ingress.pipeline().get("proxy");
+    respond();
+    ingress.writeInbound(request("b.test", "/"));
+    assertThat(ingress.pipeline().get("protection"))
+        .isInstanceOf(ProtectionHandler.class)
+        .isNotSameAs(protection);
+    assertThat(ingress.pipeline().get("proxy"))
+        .isInstanceOf(DownstreamHandler.class)
+        .isNotSameAs(proxy);
+    respond();
+  }
+
+  @Test
+  public void requestWhileInProgressGetsFreshHandlers() {
+    ingress.writeInbound(request("a.test", "/"));
+    ChannelHandler proxy = ingress.pipeline().get("proxy");
+    ingress.writeInbound(request("a.test", "/other"));
+    assertThat(ingress.pipeline().get("proxy"))
+        .isInstanceOf(DownstreamHandler.class)
+        .isNotSameAs(proxy);
+    assertThat(connects).hasSize(2);
+    assertThat(connects.get(0).isDone()).isFalse();
+  }
+
+  @Test
+  public void interceptedRequestSkipsContentOnly() {
+    HttpRequest blocked = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/blocked");
+    blocked.headers().set(HttpHeaderNames.HOST, "a.test");
+    blocked.headers().set(HttpHeaderNames.CONTENT_LENGTH, 6);
+    HttpContent content = new DefaultHttpContent(content("abc"));
+    LastHttpContent lastContent = new DefaultLastHttpContent(content("def"));
+    ingress.writeInbound(blocked, content, lastContent);
+    FullHttpResponse response = ingress.readOutbound();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.FORBIDDEN);
+    assertThat(content.refCnt()).isZero();
+    assertThat(lastContent.refCnt()).isZero();
+    assertThat(connects).isEmpty();
+    HttpRequest next = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/");
+    next.headers().set(HttpHeaderNames.HOST, "a.test");
+    next.headers().set(HttpHeaderNames.CONTENT_LENGTH, 3);
+    ingress.writeInbound(next, new DefaultLastHttpContent(content("ghi")));
+    assertThat(connects).hasSize(1);
+    EmbeddedChannel upstreamChannel = connectUpstream();
+    assertThat((Object) upstreamChannel.readOutbound()).isSameAs(next);
+    LastHttpContent forwarded = upstreamChannel.readOutbound();
+    assertThat(forwarded.content().toString(StandardCharsets.US_ASCII)).isEqualTo("ghi");
+    forwarded.release();
+  }
+
+  static HttpRequest request(String host, String uri) {
+    HttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    request.headers().set(HttpHeaderNames.HOST, host);
+    return request;
+  }
+
+  static ByteBuf content(String s) {
+    return Unpooled.copiedBuffer(s, StandardCharsets.US_ASCII);
+  }
+
+  /** Complete the pending upstream connect */
+  EmbeddedChannel connectUpstream() {
+    EmbeddedChannel ch = new EmbeddedChannel();
+    connects.get(connects.size() - 1).setSuccess(ch);
+    return ch;
+  }
+
+  /** Connect upstream and send the upstream response downstream, which completes the request */
+  void respond() {
+    EmbeddedChannel upstreamChannel = connectUpstream();
+    ReferenceCountUtil.release(upstreamChannel.readOutbound());
+    FullHttpResponse response =
+        new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+    ingress.writeOutbound(response);
+    ReferenceCountUtil.release(ingress.readOutbound());
+  }
+}
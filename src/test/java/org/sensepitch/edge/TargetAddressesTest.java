@@ -0,0 +1,264 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.codec.dns.DatagramDnsQuery;
+import io.netty.handler.codec.dns.DatagramDnsQueryDecoder;
+import io.netty.handler.codec.dns.DatagramDnsResponse;
+import io.netty.handler.codec.dns.DatagramDnsResponseEncoder;
+import io.netty.handler.codec.dns.DefaultDnsRawRecord;
+import io.netty.handler.codec.dns.DnsQuestion;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsResponseCode;
+import io.netty.handler.codec.dns.DnsSection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Jens Wilke
+ */
+public class TargetAddressesTest {
+
+  Map<String, List<String>> records = new ConcurrentHashMap<>();
+  Map<String, List<String>> records6 = new ConcurrentHashMap<>();
+  volatile boolean dropAaaa;
+  AtomicInteger aaaaQueries = new AtomicInteger();
+  EventLoopGroup group =
+      new MultiThreadIoEventLoopGroup(1, Transport.Nio.INSTANCE.newIoHandlerFactory());
+  AtomicInteger queries = new AtomicInteger();
+  Channel dnsServer;
+  UpstreamDnsConfig dnsConfig;
+
+  ProxyContext proxyContext =
+      new ProxyContext() {
+        @Override
+        public EventLoopGroup eventLoopGroup() {
+          return group;
+        }
+
+        @Override
+        public Transport transport() {
+          return Transport.Nio.INSTANCE;
+        }
+
+        @Override
+        public ProxyMetrics metrics() {
+          return new ProxyMetrics();
+        }
+      };
+
+  @BeforeEach
+  void setUp() throws Exception {
+    dnsServer =
+        new Bootstrap()
+            .group(group)
+            .channel(NioDatagramChannel.class)
+            .handler(
+                new ChannelInitializer<DatagramChannel>() {
+                  @Override
+                  protected void initChannel(DatagramChannel ch) {
+                    ch.pipeline()
+                        .addLast(
+                            new DatagramDnsQueryDecoder(),
+                            new DatagramDnsResponseEncoder(),
+                            new StandInDnsHandler());
+                  }
+                })
+            .bind("127.0.0.1", 0)
+            .sync()
+            .channel();
+    int port = ((InetSocketAddress) dnsServer.localAddress()).getPort();
+    dnsConfig =
+        UpstreamDnsConfig.builder()
+            .nameServers(List.of("127.0.0.1:" + port))
+            .minTtlSeconds(1)
+            .timeoutMillis(1000)
+            .build();
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    dnsServer.close().sync();
+    group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+  }
+
+  @Test
+  public void ipAddressWithoutDns() {
+    TargetAddresses addresses =
+        TargetAddresses.of(
+            proxyContext, UpstreamConfig.builder().target("127.0.0.1:8080").dns(dnsConfig).build());
+    assertThat(addresses.select(0)).isEqualTo(new InetSocketAddress("127.0.0.1", 8080));
+    assertThat(queries.get()).isZero();
+  }
+
+  @Test
+  public void allAddressesInTurnAndRefreshedAfterTtl() throws Exception {
+    records.put("backend.test", List.of("10.0.0.1", "10.0.0.2"));
+    TargetAddresses addresses =
+        TargetAddresses.of(
+            proxyContext,
+            UpstreamConfig.builder().target("backend.test:8080").dns(dnsConfig).build());
+    assertThat(addresses.addresses()).hasSize(2);
+    assertThat(addresses.select(0)).isNotEqualTo(addresses.select(1));
+    assertThat(addresses.select(0)).isEqualTo(addresses.select(2));
+    assertThat(addresses.select(0).getPort()).isEqualTo(8080);
+    records.put("backend.test", List.of("10.0.0.3"));
+    long deadline = System.currentTimeMillis() + 5000;
+    while (addresses.addresses().size() != 1 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertThat(addresses.select(0).getAddress().getHostAddress()).isEqualTo("10.0.0.3");
+  }
+
+  @Test
+  public void failedRefreshKeepsAddresses() throws Exception {
+    records.put("backend.test", List.of("10.0.0.1"));
+    TargetAddresses addresses =
+        TargetAddresses.of(
+            proxyContext, UpstreamConfig.builder().target("backend.test").dns(dnsConfig).build());
+    assertThat(addresses.select(0)).isEqualTo(new InetSocketAddress("10.0.0.1", 80));
+    records.remove("backend.test");
+    int before = queries.get();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (queries.get() < before + 4 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertThat(addresses.select(0)).isEqualTo(new InetSocketAddress("10.0.0.1", 80));
+  }
+
+  @Test
+  public void unresolvedConnectFails() {
+    UpstreamConfig cfg = UpstreamConfig.builder().target("missing.test").dns(dnsConfig).build();
+    TargetAddresses addresses = TargetAddresses.of(proxyContext, cfg);
+    assertThat(addresses.select(0)).isNull();
+    DefaultUpstream upstream = new DefaultUpstream(proxyContext, cfg, addresses);
+    EmbeddedChannel ingress = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    assertThat(upstream.connect(ingress.pipeline().firstContext()).cause())
+        .isInstanceOf(TargetAddresses.UnresolvedTargetException.class);
+  }
+
+  @Test
+  public void ipv4OnlySkipsAaaa() {
+    records.put("backend.test", List.of("10.0.0.1"));
+    records6.put("backend.test", List.of("fd00::1"));
+    TargetAddresses addresses =
+        TargetAddresses.of(
+            proxyContext,
+            UpstreamConfig.builder()
+                .target("backend.test")
+                .dns(dnsConfig.toBuilder().addressTypes("ipv4_only").build())
+                .build());
+    assertThat(addresses.addresses()).containsExactly(new InetSocketAddress("10.0.0.1", 80));
+    assertThat(aaaaQueries.get()).isZero();
+  }
+
+  @Test
+  public void preferredFamilyOnly() {
+    records.put("backend.test", List.of("10.0.0.1"));
+    records6.put("backend.test", List.of("fd00::1"));
+    TargetAddresses addresses =
+        TargetAddresses.of(
+            proxyContext,
+            UpstreamConfig.builder()
+                .target("backend.test")
+                .dns(dnsConfig.toBuilder().addressTypes("IPV6_PREFERRED").build())
+                .build());
+    assertThat(addresses.addresses()).containsExactly(new InetSocketAddress("fd00::1", 80));
+  }
+
+  @Test
+  public void otherFamilyIfNoPreferredRecords() {
+    records.put("backend.test", List.of("10.0.0.1"));
+    TargetAddresses addresses =
+        TargetAddresses.of(
+            proxyContext,
+            UpstreamConfig.builder()
+                .target("backend.test")
+                .dns(dnsConfig.toBuilder().addressTypes("IPV6_PREFERRED").build())
+                .build());
+    assertThat(addresses.addresses()).containsExactly(new InetSocketAddress("10.0.0.1", 80));
+  }
+
+  /** A lost AAAA answer times out after the query timeout, the A records are used before */
+  @Test
+  public void preferredAddressesWithoutWaitingForOtherFamily() {
+    records.put("backend.test", List.of("10.0.0.1"));
+    dropAaaa = true;
+    long start = System.currentTimeMillis();
+    TargetAddresses addresses =
+        TargetAddresses.of(
+            proxyContext,
+            UpstreamConfig.builder()
+                .target("backend.test")
+                .dns(
+                    dnsConfig.toBuilder()
+                        .addressTypes("IPV4_PREFERRED")
+                        .timeoutMillis(3000)
+                        .build())
+                .build());
+    assertThat(addresses.addresses()).containsExactly(new InetSocketAddress("10.0.0.1", 80));
+    assertThat(System.currentTimeMillis() - start).isLessThan(2000);
+    assertThat(aaaaQueries.get()).isPositive();
+  }
+
+  /** Answers A and AAAA queries with a TTL of one second, everything else is not found */
+  class StandInDnsHandler extends SimpleChannelInboundHandler<DatagramDnsQuery> {
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, DatagramDnsQuery query)
+        throws Exception {
+      queries.incrementAndGet();
+      DnsQuestion question = query.recordAt(DnsSection.QUESTION);
+      if (question.type() == DnsRecordType.AAAA) {
+        aaaaQueries.incrementAndGet();
+        if (dropAaaa) {
+          return;
+        }
+      }
+      String name = question.name().toLowerCase(Locale.ROOT);
+      if (name.endsWith(".")) {
+        name = name.substring(0, name.length() - 1);
+      }
+      DatagramDnsResponse response =
+          new DatagramDnsResponse(query.recipient(), query.sender(), query.id());
+      response.addRecord(DnsSection.QUESTION, question);
+      List<String> ips = records.get(name);
+      List<String> ips6 = records6.get(name);
+      if (ips == null && ips6 == null) {
+        response.setCode(DnsResponseCode.NXDOMAIN);
+      } else if (question.type() == DnsRecordType.A || question.type() == DnsRecordType.AAAA) {
+        List<String> answer = question.type() == DnsRecordType.A ? ips : ips6;
+        for (String ip : answer != null ? answer : List.<String>of()) {
+          response.addRecord(
+              DnsSection.ANSWER,
+              new DefaultDnsRawRecord(
+                  question.name(),
+                  question.type(),
+                  1,
+                  Unpooled.wrappedBuffer(InetAddress.getByName(ip).getAddress())));
+        }
+      }
+      ctx.writeAndFlush(response);
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Jens Wilke
+ */
+public class TargetHealthTest {
+
+  static final long SECONDS = TimeUnit.SECONDS.toNanos(1);
+
+  Transport transport = Transport.select(Transport.NIO);
+  EventLoopGroup group = new MultiThreadIoEventLoopGroup(1, transport.newIoHandlerFactory());
+  ProxyMetrics metrics = new ProxyMetrics();
+
+  @AfterEach
+  void tearDown() {
+    group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void ejectAfterConsecutiveFailures() {
+    TargetHealth health = newHealth(HealthCheckConfig.builder().consecutiveFailures(3).build());
+    long now = 100 * SECONDS;
+    health.failure(now);
+    health.failure(now);
+    health.success();
+    health.failure(now);
+    health.failure(now);
+    assertThat(health.isAvailable(now)).isTrue();
+    health.failure(now);
+    assertThat(health.isAvailable(now)).isFalse();
+    assertThat(health.isAvailable(now + 10 * SECONDS - 1)).isFalse();
+    assertThat(health.isAvailable(now + 10 * SECONDS)).isTrue();
+    assertThat(metrics.upstreamEjectionCounter.labelValues("test").get()).isEqualTo(1.0);
+  }
+
+  @Test
+  public void ejectionTimeDoublesUntilSuccess() {
+    TargetHealth health =
+        newHealth(
+            HealthCheckConfig.builder()
+                .consecutiveFailures(1)
+                .baseEjectionMillis(1000)
+                .maxEjectionMillis(3000)
+                .build());
+    long now = 100 * SECONDS;
+    health.failure(now);
+    assertThat(health.isAvailable(now + SECONDS)).isTrue();
+    now += SECONDS;
+    health.failure(now);
+    assertThat(health.isAvailable(now + SECONDS)).isFalse();
+    assertThat(health.isAvailable(now + 2 * SECONDS)).isTrue();
+    now += 2 * SECONDS;
+    health.failure(now);
+    assertThat(health.isAvailable(now + 3 * SECONDS - 1)).isFalse();
+    assertThat(health.isAvailable(now + 3 * SECONDS)).isTrue();
+    now += 3 * SECONDS;
+    health.success();
+    health.failure(now);
+    assertThat(health.isAvailable(now + SECONDS)).isTrue();
+  }
+
+  @Test
+  public void ejectionTimeDoublesAfterProbeAdmission() {
+    TargetHealth health =
+        newHealth(
+            HealthCheckConfig.builder()
+                .consecutiveFailures(1)
+                .baseEjectionMillis(1000)
+                .maxEjectionMillis(10_000)
+                .build());
+    long now = 100 * SECONDS;
+    health.failure(now);
+    health.admit(now);
+    assertThat(health.isAvailable(now)).isTrue();
+    health.failure(now);
+    assertThat(health.isAvailable(now + 2 * SECONDS - 1)).isFalse();
+    health.admit(now);
+    health.failure(now);
+    assertThat(health.isAvailable(now + 4 * SECONDS - 1)).isFalse();
+    health.admit(now);
+    health.success();
+    health.failure(now);
+    assertThat(health.isAvailable(now + SECONDS)).isTrue();
+  }
+
+  @Test
+  public void probeAdmitsEjectedTarget() throws Exception {
+    int port = startServer();
+    String target = "127.0.0.1:" + port;
+    HealthCheckConfig cfg =
+        HealthCheckConfig.builder()
+            .path("/health")
+            .intervalMillis(20)
+            .consecutiveFailures(1)
+            .baseEjectionMillis(60_000)
+            .build();
+    TargetHealth health = new TargetHealth(cfg, metrics, target);
+    health.failure(System.nanoTime());
+    assertThat(health.isAvailable(System.nanoTime())).isFalse();
+    ProxyContext ctx = newContext();
+    health.startProbing(
+        cfg,
+        DefaultUpstream.newBootstrap(ctx),
+        new TargetAddresses(ctx, target, UpstreamDnsConfig.DEFAULT),
+        group.next());
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!health.isAvailable(System.nanoTime()) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(health.isAvailable(System.nanoTime())).isTrue();
+    assertThat(metrics.upstreamHealthCheckCounter.labelValues(target, "success").get())
+        .isGreaterThanOrEqualTo(1.0);
+  }
+
+  @Test
+  public void probeFailureEjects() throws Exception {
+    // nothing listens on the port after the server is closed
+    Channel server = bindServer();
+    int port = ((InetSocketAddress) server.localAddress()).getPort();
+    server.close().sync();
+    String target = "127.0.0.1:" + port;
+    HealthCheckConfig cfg =
+        HealthCheckConfig.builder()
+            .path("/health")
+            .intervalMillis(20)
+            .consecutiveFailures(2)
+            .build();
+    TargetHealth health = new TargetHealth(cfg, metrics, target);
+    ProxyContext ctx = newContext();
+    health.startProbing(
+        cfg,
+        DefaultUpstream.newBootstrap(ctx),
+        new TargetAddresses(ctx, target, UpstreamDnsConfig.DEFAULT),
+        group.next());
+    long deadline = System.currentTimeMillis() + 5000;
+    while (health.isAvailable(System.nanoTime()) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(health.isAvailable(System.nanoTime())).isFalse();
+    assertThat(metrics.upstreamEjectionCounter.labelValues(target).get()).isEqualTo(1.0);
+  }
+
+  TargetHealth newHealth(HealthCheckConfig cfg) {
+    return new TargetHealth(cfg, metrics, "test");
+  }
+
+  ProxyContext newContext() {
+    return new ProxyContext() {
+      @Override
+      public EventLoopGroup eventLoopGroup() {
+        return group;
+      }
+
+      @Override
+      public Transport transport() {
+        return transport;
+      }
+
+      @Override
+      public ProxyMetrics metrics() {
+        return metrics;
+      }
+    };
+  }
+
+  int startServer() throws InterruptedException {
+    return ((InetSocketAddress) bindServer().localAddress()).getPort();
+  }
+
+  Channel bindServer() throws InterruptedException {
+    return new ServerBootstrap()
+        .group(group)
+        .channel(transport.serverSocketChannelClass())
+        .childHandler(
+            new ChannelInitializer<SocketChannel>() {
+              @Override
+              protected void initChannel(SocketChannel ch) {
+                ch.pipeline()
+                    .addLast(
+                        new HttpServerCodec(),
+                        new ChannelInboundHandlerAdapter() {
+                          @Override
+                          public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                            ReferenceCountUtil.release(msg);
+                            if (msg instanceof LastHttpContent) {
+                              FullHttpResponse response =
+                                  new DefaultFullHttpResponse(
+                                      HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+                              response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+                              ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+                            }
+                          }
+                        });
+              }
+            })
+        .bind("127.0.0.1", 0)
+        .sync()
+        .channel();
+  }
+}
@@ -0,0 +1,184 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.IoHandlerFactory;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.unix.UnixChannelOption;
+import io.netty.channel.uring.IoUringChannelOption;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Jens Wilke
+ */
+public class TransportTest {
+
+  static final ListenConfig ALL_OPTIONS =
+      ListenConfig.builder().acceptors(4).tcpFastOpen(16).tcpDeferAcceptSeconds(5).build();
+
+  Transport ioUring = new Unavailable(Transport.IoUring.INSTANCE);
+  Transport epoll = new Unavailable(Transport.Epoll.INSTANCE);
+
+  @Test
+  public void autoFallsBackToNio() {
+    assertThat(Transport.select(null, ioUring, epoll, Transport.Nio.INSTANCE))
+        .isSameAs(Transport.Nio.INSTANCE);
+    assertThat(Transport.select(Transport.AUTO, ioUring, epoll, Transport.Nio.INSTANCE))
+        .isSameAs(Transport.Nio.INSTANCE);
+  }
+
+  @Test
+  public void autoPrefersIoUringThenEpoll() {
+    Transport availableEpoll = new Available(Transport.Epoll.INSTANCE);
+    Transport availableIoUring = new Available(Transport.IoUring.INSTANCE);
+    assertThat(Transport.select(null, ioUring, availableEpoll, Transport.Nio.INSTANCE))
+        .isSameAs(availableEpoll);
+    assertThat(Transport.select(null, availableIoUring, availableEpoll, Transport.Nio.INSTANCE))
+        .isSameAs(availableIoUring);
+  }
+
+  @Test
+  public void autoUsesAvailableTransport() {
+    Transport transport = Transport.select(Transport.AUTO);
+    assertThat(transport.isAvailable()).isTrue();
+    if (Transport.IoUring.INSTANCE.isAvailable()) {
+      assertThat(transport.name()).isEqualTo(Transport.IO_URING);
+    } else if (Transport.Epoll.INSTANCE.isAvailable()) {
+      assertThat(transport.name()).isEqualTo(Transport.EPOLL);
+    } else {
+      assertThat(transport.name()).isEqualTo(Transport.NIO);
+    }
+  }
+
+  @Test
+  public void selectByName() {
+    assertThat(Transport.select(Transport.NIO)).isSameAs(Transport.Nio.INSTANCE);
+    assertThatThrownBy(() -> Transport.select("kqueue"))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("Unknown transport");
+    assertThatThrownBy(() -> Transport.select(Transport.EPOLL, ioUring, epoll))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("not available");
+  }
+
+  @Test
+  public void nioIgnoresNativeOptions() {
+    assertThat(Transport.Nio.INSTANCE.isReusePortSupported()).isFalse();
+    assertThat(applyOptions(Transport.Nio.INSTANCE, ALL_OPTIONS)).isEmpty();
+  }
+
+  @Test
+  public void epollOptions() {
+    Map<ChannelOption<?>, Object> options = applyOptions(Transport.Epoll.INSTANCE, ALL_OPTIONS);
+    assertThat(Transport.Epoll.INSTANCE.isReusePortSupported()).isTrue();
+    assertThat(options)
+        .containsEntry(UnixChannelOption.SO_REUSEPORT, true)
+        .containsEntry(EpollChannelOption.TCP_DEFER_ACCEPT, 5);
+    if (io.netty.channel.epoll.Epoll.isTcpFastOpenServerSideAvailable()) {
+      assertThat(options).containsEntry(ChannelOption.TCP_FASTOPEN, 16);
+    } else {
+      assertThat(options).doesNotContainKey(ChannelOption.TCP_FASTOPEN);
+    }
+  }
+
+  @Test
+  public void ioUringOptions() {
+    Map<ChannelOption<?>, Object> options = applyOptions(Transport.IoUring.INSTANCE, ALL_OPTIONS);
+    assertThat(Transport.IoUring.INSTANCE.isReusePortSupported()).isTrue();
+    assertThat(options)
+        .containsEntry(UnixChannelOption.SO_REUSEPORT, true)
+        .containsEntry(IoUringChannelOption.TCP_DEFER_ACCEPT, 5);
+    if (io.netty.channel.uring.IoUring.isTcpFastOpenServerSideAvailable()) {
+      assertThat(options).containsEntry(ChannelOption.TCP_FASTOPEN, 16);
+    } else {
+      assertThat(options).doesNotContainKey(ChannelOption.TCP_FASTOPEN);
+    }
+  }
+
+  @Test
+  public void disabledOptionsNotSet() {
+    ListenConfig cfg = ListenConfig.builder().acceptors(1).build();
+    assertThat(applyOptions(Transport.Epoll.INSTANCE, cfg)).isEmpty();
+    assertThat(applyOptions(Transport.IoUring.INSTANCE, cfg)).isEmpty();
+  }
+
+  static Map<ChannelOption<?>, Object> applyOptions(Transport transport, ListenConfig cfg) {
+    ServerBootstrap bootstrap = new ServerBootstrap();
+    transport.applyServerOptions(bootstrap, cfg);
+    return bootstrap.config().options();
+  }
+
+  /** Native transport as on a system without the native library */
+  static class Unavailable extends Delegate {
+    Unavailable(Transport transport) {
+      super(transport);
+    }
+
+    @Override
+    public boolean isAvailable() {
+      return false;
+    }
+  }
+
+  /** Native transport as on a system with the native library */
+  static class Available extends Delegate {
+    Available(Transport transport) {
+      super(transport);
+    }
+
+    @Override
+    public boolean isAvailable() {
+      return true;
+    }
+  }
+
+  abstract static class Delegate implements Transport {
+    final Transport transport;
+
+    Delegate(Transport transport) {
+      this.transport = transport;
+    }
+
+    @Override
+    public String name() {
+      return transport.name();
+    }
+
+    @Override
+    public IoHandlerFactory newIoHandlerFactory() {
+      return transport.newIoHandlerFactory();
+    }
+
+    @Override
+    public Class<? extends ServerSocketChannel> serverSocketChannelClass() {
+      return transport.serverSocketChannelClass();
+    }
+
+    @Override
+    public Class<? extends SocketChannel> socketChannelClass() {
+      return transport.socketChannelClass();
+    }
+
+    @Override
+    public Class<? extends DatagramChannel> datagramChannelClass() {
+      return transport.datagramChannelClass();
+    }
+
+    @Override
+    public boolean isReusePortSupported() {
+      return transport.isReusePortSupported();
+    }
+
+    @Override
+    public void applyServerOptions(ServerBootstrap bootstrap, ListenConfig cfg) {
+      transport.applyServerOptions(bootstrap, cfg);
+    }
+  }
+}
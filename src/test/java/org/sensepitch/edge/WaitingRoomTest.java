@@ -0,0 +1,198 @@
+package org.sensepitch.edge;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Jens Wilke
+ */
+public class WaitingRoomTest {
+
+  AtomicLong millis = new AtomicLong(1_760_000_000_000L);
+  ProxyMetrics metrics = new ProxyMetrics();
+
+  WaitingRoom newRoom(int maxInFlight, int admitPerSecond) {
+    return new WaitingRoom(
+        WaitingRoomConfig.builder()
+            .maxInFlight(maxInFlight)
+            .admitPerSecond(admitPerSecond)
+            .secret("test")
+            .build(),
+        metrics,
+        millis::get);
+  }
+
+  @Test
+  public void sipHashTestVector() {
+    assertThat(
+            WaitingRoom.sipHash24(
+                0x0706050403020100L, 0x0f0e0d0c0b0a0908L, 0x0706050403020100L, 0x0f0e0d0c0b0a0908L))
+        .isEqualTo(0x3f2acc7f57c29bdbL);
+  }
+
+  @Test
+  public void admittedBelowCapacityWithPass() {
+    WaitingRoom room = newRoom(10, 1);
+    EmbeddedChannel channel = new EmbeddedChannel(new WaitingRoomHandler(room));
+    channel.writeInbound(newRequest(null));
+    assertThat((Object) channel.readInbound()).isNotNull();
+    assertThat(room.inFlight()).isEqualTo(1);
+    String pass = respond(channel);
+    assertThat(pass).startsWith("sensepitch-queue=P");
+    assertThat(room.inFlight()).isZero();
+    channel.writeInbound(newRequest(cookieValue(pass)));
+    assertThat((Object) channel.readInbound()).isNotNull();
+    assertThat(respond(channel)).isNull();
+    assertThat(metrics.waitingRoomCounter.labelValues("pass").get()).isEqualTo(1.0);
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void queuedOverCapacityAndAdmittedInOrder() {
+    WaitingRoom room = newRoom(1, 1);
+    EmbeddedChannel busy = new EmbeddedChannel(new WaitingRoomHandler(room));
+    busy.writeInbound(newRequest(null));
+    assertThat((Object) busy.readInbound()).isNotNull();
+    String first = queue(room);
+    String second = queue(room);
+    assertThat(first).isNotEqualTo(second);
+    millis.addAndGet(1000);
+    assertThat(room.check(cookieValue(first))).isEqualTo(WaitingRoom.WAITING);
+    respond(busy);
+    millis.addAndGet(1000);
+    assertThat(room.check(cookieValue(first))).isEqualTo(WaitingRoom.ADMITTED);
+    assertThat(room.check(cookieValue(second))).isEqualTo(WaitingRoom.WAITING);
+    assertThat(room.isQueueing()).isTrue();
+    millis.addAndGet(1000);
+    assertThat(room.check(cookieValue(second))).isEqualTo(WaitingRoom.ADMITTED);
+    assertThat(room.isQueueing()).isFalse();
+    EmbeddedChannel channel = new EmbeddedChannel(new WaitingRoomHandler(room));
+    channel.writeInbound(newRequest(cookieValue(first)));
+    assertThat((Object) channel.readInbound()).isNotNull();
+    assertThat(respond(channel)).startsWith("sensepitch-queue=P");
+    busy.finishAndReleaseAll();
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void noTicketWithoutHtmlAccept() {
+    WaitingRoom room = newRoom(1, 1);
+    EmbeddedChannel busy = new EmbeddedChannel(new WaitingRoomHandler(room));
+    busy.writeInbound(newRequest(null));
+    assertThat((Object) busy.readInbound()).isNotNull();
+    EmbeddedChannel channel = new EmbeddedChannel(new WaitingRoomHandler(room));
+    HttpRequest request = newRequest(null);
+    request.headers().set(HttpHeaderNames.ACCEPT, "*/*");
+    channel.writeInbound(request);
+    assertThat((Object) channel.readInbound()).isNull();
+    FullHttpResponse response = channel.readOutbound();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.SERVICE_UNAVAILABLE);
+    assertThat(response.headers().get(HttpHeaderNames.SET_COOKIE)).isNull();
+    response.release();
+    assertThat(room.isQueueing()).isTrue();
+    respond(busy);
+    millis.addAndGet(1000);
+    assertThat(room.isQueueing()).isFalse();
+    busy.finishAndReleaseAll();
+    channel.finishAndReleaseAll();
+  }
+
+  @Test
+  public void waitingTicketRenewedOnRefresh() {
+    WaitingRoom room = newRoom(1, 1);
+    EmbeddedChannel busy = new EmbeddedChannel(new WaitingRoomHandler(room));
+    busy.writeInbound(newRequest(null));
+    assertThat((Object) busy.readInbound()).isNotNull();
+    String ticket = cookieValue(queue(room));
+    assertThat(refresh(room, ticket)).isNull();
+    millis.addAndGet(WaitingRoomConfig.DEFAULT_SESSION_SECONDS * 1000L / 2);
+    String renewed = cookieValue(refresh(room, ticket));
+    assertThat(renewed.substring(0, 34)).isEqualTo(ticket.substring(0, 34));
+    assertThat(renewed).isNotEqualTo(ticket);
+    millis.addAndGet(WaitingRoomConfig.DEFAULT_SESSION_SECONDS * 1000L / 2);
+    assertThat(room.check(ticket)).isEqualTo(WaitingRoom.NO_TICKET);
+    assertThat(room.check(renewed)).isEqualTo(WaitingRoom.WAITING);
+    busy.finishAndReleaseAll();
+  }
+
+  @Test
+  public void tamperedOrExpiredCookieIgnored() {
+    WaitingRoom room = newRoom(1, 1);
+    String ticket = cookieValue(room.ticketCookie(0));
+    assertThat(room.check(ticket)).isEqualTo(WaitingRoom.WAITING);
+    assertThat(room.check(ticket.replace("=T0", "=T1"))).isEqualTo(WaitingRoom.NO_TICKET);
+    assertThat(room.check("other=1; " + ticket + "; x=y")).isEqualTo(WaitingRoom.WAITING);
+    assertThat(room.check("x" + ticket)).isEqualTo(WaitingRoom.NO_TICKET);
+    assertThat(room.check(ticket + "0")).isEqualTo(WaitingRoom.NO_TICKET);
+    assertThat(room.check(null)).isEqualTo(WaitingRoom.NO_TICKET);
+    millis.addAndGet(WaitingRoomConfig.DEFAULT_SESSION_SECONDS * 1000L);
+    assertThat(room.check(ticket)).isEqualTo(WaitingRoom.NO_TICKET);
+  }
+
+  /** Request of a new visitor that is queued, returns the ticket cookie */
+  private String queue(WaitingRoom room) {
+    EmbeddedChannel channel = new EmbeddedChannel(new WaitingRoomHandler(room));
+    channel.writeInbound(newRequest(null));
+    assertThat((Object) channel.readInbound()).isNull();
+    FullHttpResponse response = channel.readOutbound();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.SERVICE_UNAVAILABLE);
+    assertThat(response.headers().get(HttpHeaderNames.RETRY_AFTER)).isEqualTo("10");
+    String cookie = response.headers().get(HttpHeaderNames.SET_COOKIE);
+    assertThat(cookie).startsWith("sensepitch-queue=T");
+    response.release();
+    channel.finishAndReleaseAll();
+    return cookie;
+  }
+
+  /**
+   * Refresh of the queue page by a waiting visitor
+   *
+   * @return the set cookie header of the queue page
+   */
+  private static String refresh(WaitingRoom room, String cookie) {
+    EmbeddedChannel channel = new EmbeddedChannel(new WaitingRoomHandler(room));
+    channel.writeInbound(newRequest(cookie));
+    assertThat((Object) channel.readInbound()).isNull();
+    FullHttpResponse response = channel.readOutbound();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.SERVICE_UNAVAILABLE);
+    String setCookie = response.headers().get(HttpHeaderNames.SET_COOKIE);
+    response.release();
+    channel.finishAndReleaseAll();
+    return setCookie;
+  }
+
+  /**
+   * @return the set cookie header of the response
+   */
+  private static String respond(EmbeddedChannel channel) {
+    channel.writeOutbound(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+    FullHttpResponse response = channel.readOutbound();
+    String cookie = response.headers().get(HttpHeaderNames.SET_COOKIE);
+    response.release();
+    return cookie;
+  }
+
+  private static String cookieValue(String setCookie) {
+    return setCookie.substring(0, setCookie.indexOf(';'));
+  }
+
+  private static HttpRequest newRequest(String cookie) {
+    HttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+    request.headers().set(HttpHeaderNames.ACCEPT, "text/html,application/xhtml+xml,*/*;q=0.8");
+    if (cookie != null) {
+      request.headers().set(HttpHeaderNames.COOKIE, cookie);
+    }
+    return request;
+  }
+}